@@ -0,0 +1,28 @@
+package io.github.yappy.lua.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lua source code compilation.
+ *
+ * @author yappy
+ */
+@Name("io.github.yappy.lua.LuaCompile")
+@Label("Lua Compile")
+@Category("Lua")
+@Description("Lua source code compilation")
+@Enabled(false)
+public class LuaCompileEvent extends Event {
+
+	@Label("Chunk Name")
+	public String chunkName;
+
+	@Label("Success")
+	public boolean success;
+
+}
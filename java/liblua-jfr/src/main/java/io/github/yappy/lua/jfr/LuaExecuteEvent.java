@@ -0,0 +1,37 @@
+package io.github.yappy.lua.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lua code execution. (execString or callGlobalFunction)
+ *
+ * @author yappy
+ */
+@Name("io.github.yappy.lua.LuaExecute")
+@Label("Lua Execute")
+@Category("Lua")
+@Description("Lua chunk or global function execution")
+@Enabled(false)
+public class LuaExecuteEvent extends Event {
+
+	@Label("Chunk Name")
+	public String chunkName;
+
+	@Label("Instructions")
+	@Description("VM instruction count in units of the interrupt hook interval")
+	public long instructions;
+
+	@Label("Memory Delta")
+	@DataAmount
+	public long memoryDelta;
+
+	@Label("Success")
+	public boolean success;
+
+}
@@ -0,0 +1,32 @@
+package io.github.yappy.lua.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Lua garbage collector cycles completed during an execution.
+ *
+ * @author yappy
+ */
+@Name("io.github.yappy.lua.LuaGcCycle")
+@Label("Lua GC Cycle")
+@Category("Lua")
+@Description("Lua garbage collection cycles completed during execution")
+@Enabled(false)
+@StackTrace(false)
+public class LuaGcCycleEvent extends Event {
+
+	@Label("Cycles")
+	public long cycles;
+
+	@Label("Memory Used")
+	@DataAmount
+	public long memoryUsed;
+
+}
@@ -0,0 +1,28 @@
+package io.github.yappy.lua.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lua to Java function call.
+ *
+ * @author yappy
+ */
+@Name("io.github.yappy.lua.LuaHostCall")
+@Label("Lua Host Call")
+@Category("Lua")
+@Description("Java function call from Lua code")
+@Enabled(false)
+public class LuaHostCallEvent extends Event {
+
+	@Label("Function Name")
+	public String functionName;
+
+	@Label("Success")
+	public boolean success;
+
+}
@@ -0,0 +1,101 @@
+package io.github.yappy.lua.jfr;
+
+import io.github.yappy.lua.LuaTracer;
+
+/**
+ * {@link LuaTracer} implementation which emits JDK Flight Recorder events.
+ *
+ * If an event type is disabled, its begin method returns null
+ * and the engine skips its statistics.
+ *
+ * @author yappy
+ */
+public class LuaJfrTracer implements LuaTracer {
+
+	@Override
+	public Object compileBegin(String chunkName) {
+		LuaCompileEvent event = new LuaCompileEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.chunkName = chunkName;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void compileEnd(Object context, boolean success) {
+		LuaCompileEvent event = (LuaCompileEvent)context;
+		event.end();
+		if (event.shouldCommit()) {
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object executeBegin(String chunkName) {
+		LuaExecuteEvent event = new LuaExecuteEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.chunkName = chunkName;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void executeEnd(Object context, long instructions,
+			long memoryDelta, boolean success) {
+		LuaExecuteEvent event = (LuaExecuteEvent)context;
+		event.end();
+		if (event.shouldCommit()) {
+			event.instructions = instructions;
+			event.memoryDelta = memoryDelta;
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	@Override
+	public Object hostCallBegin(String name) {
+		LuaHostCallEvent event = new LuaHostCallEvent();
+		if (!event.isEnabled()) {
+			return null;
+		}
+		event.functionName = name;
+		event.begin();
+		return event;
+	}
+
+	@Override
+	public void hostCallEnd(Object context, boolean success) {
+		LuaHostCallEvent event = (LuaHostCallEvent)context;
+		event.end();
+		if (event.shouldCommit()) {
+			event.success = success;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void gcCycle(long cycles, long memoryUsed) {
+		LuaGcCycleEvent event = new LuaGcCycleEvent();
+		if (event.shouldCommit()) {
+			event.cycles = cycles;
+			event.memoryUsed = memoryUsed;
+			event.commit();
+		}
+	}
+
+	@Override
+	public void memoryLimitHit(long memoryLimit, long memoryUsed) {
+		LuaMemoryLimitHitEvent event = new LuaMemoryLimitHitEvent();
+		if (event.shouldCommit()) {
+			event.memoryLimit = memoryLimit;
+			event.memoryUsed = memoryUsed;
+			event.commit();
+		}
+	}
+
+}
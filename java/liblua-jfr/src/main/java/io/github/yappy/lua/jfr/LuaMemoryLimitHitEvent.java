@@ -0,0 +1,31 @@
+package io.github.yappy.lua.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Lua memory allocation failure by nativeMemoryLimit.
+ *
+ * @author yappy
+ */
+@Name("io.github.yappy.lua.LuaMemoryLimitHit")
+@Label("Lua Memory Limit Hit")
+@Category("Lua")
+@Description("Lua memory allocation refused by native memory limit")
+@Enabled(false)
+public class LuaMemoryLimitHitEvent extends Event {
+
+	@Label("Memory Limit")
+	@DataAmount
+	public long memoryLimit;
+
+	@Label("Memory Used")
+	@DataAmount
+	public long memoryUsed;
+
+}
@@ -0,0 +1,18 @@
+/**
+ * JDK Flight Recorder events for Lua engine.
+ *
+ * <pre>{@code
+ * try (LuaEngine lua = new LuaEngine()) {
+ *     lua.setTracer(new LuaJfrTracer());
+ *     ...
+ * }
+ * }</pre>
+ *
+ * <p>Events are in "Lua" category and disabled by default.
+ * Enable them in the recording settings, e.g.
+ * {@code io.github.yappy.lua.LuaExecute#enabled=true}.</p>
+ *
+ * @see io.github.yappy.lua.LuaTracer
+ * @author yappy
+ */
+package io.github.yappy.lua.jfr;
@@ -0,0 +1,144 @@
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import io.github.yappy.lua.LuaArg;
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaException;
+import io.github.yappy.lua.LuaFunction;
+import io.github.yappy.lua.LuaRuntimeException;
+import io.github.yappy.lua.jfr.LuaJfrTracer;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+public class LuaJfrTracerTest {
+
+	private LuaEngine lua;
+
+	@Rule
+	public TemporaryFolder tmpDir = new TemporaryFolder();
+
+	@Before
+	public void init() throws Exception {
+		lua = new LuaEngine(1024 * 1024, LuaEngine.DEFAULT_INTR_INST_COUNT);
+		lua.openStdLibs();
+		lua.setTracer(new LuaJfrTracer());
+	}
+
+	@After
+	public void term() throws Exception {
+		lua.close();
+		lua = null;
+	}
+
+	private static List<RecordedEvent> record(Runnable action, File file)
+			throws Exception {
+		try (Recording recording = new Recording()) {
+			recording.enable("io.github.yappy.lua.LuaCompile");
+			recording.enable("io.github.yappy.lua.LuaExecute");
+			recording.enable("io.github.yappy.lua.LuaHostCall");
+			recording.enable("io.github.yappy.lua.LuaGcCycle");
+			recording.enable("io.github.yappy.lua.LuaMemoryLimitHit");
+			recording.start();
+			action.run();
+			recording.stop();
+			recording.dump(file.toPath());
+		}
+		return RecordingFile.readAllEvents(file.toPath());
+	}
+
+	private static List<RecordedEvent> filter(
+			List<RecordedEvent> events, String name) {
+		List<RecordedEvent> result = new ArrayList<>();
+		for (RecordedEvent e : events) {
+			if (e.getEventType().getName().equals(name)) {
+				result.add(e);
+			}
+		}
+		return result;
+	}
+
+	@Test
+	public void compileAndExecute() throws Exception {
+		lua.addGlobalFunction("func", new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				return null;
+			}
+		}, LuaArg.LONG);
+
+		List<RecordedEvent> events = record(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lua.execString(
+							"for i = 1, 100000 do end\n" +
+							"func(1)\n" +
+							"t = {}\n" +
+							"for i = 1, 10000 do t[i] = {} end\n" +
+							"t = nil\n" +
+							"collectgarbage()\n",
+							"jfr.lua");
+				} catch (LuaException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}, tmpDir.newFile("compile.jfr"));
+
+		List<RecordedEvent> compile =
+				filter(events, "io.github.yappy.lua.LuaCompile");
+		assertThat(compile.size(), is(1));
+		assertThat(compile.get(0).getString("chunkName"), is("jfr.lua"));
+		assertThat(compile.get(0).getBoolean("success"), is(true));
+
+		List<RecordedEvent> execute =
+				filter(events, "io.github.yappy.lua.LuaExecute");
+		assertThat(execute.size(), is(1));
+		assertThat(execute.get(0).getString("chunkName"), is("jfr.lua"));
+		assertTrue(execute.get(0).getLong("instructions") >= 100000);
+
+		List<RecordedEvent> hostCall =
+				filter(events, "io.github.yappy.lua.LuaHostCall");
+		assertThat(hostCall.size(), is(1));
+		assertThat(hostCall.get(0).getString("functionName"), is("func"));
+
+		List<RecordedEvent> gc =
+				filter(events, "io.github.yappy.lua.LuaGcCycle");
+		assertThat(gc.size(), is(1));
+		assertTrue(gc.get(0).getLong("cycles") >= 1);
+	}
+
+	@Test
+	public void memoryLimitHit() throws Exception {
+		List<RecordedEvent> events = record(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					lua.execString(
+							"local s = \"abcde\"\n" +
+							"while true do s = s .. s end\n",
+							"memory.lua");
+				} catch (LuaException e) {
+					// memory error expected
+				}
+			}
+		}, tmpDir.newFile("memory.jfr"));
+
+		List<RecordedEvent> hit =
+				filter(events, "io.github.yappy.lua.LuaMemoryLimitHit");
+		assertThat(hit.size(), is(1));
+		assertThat(hit.get(0).getLong("memoryLimit"), is(1024L * 1024));
+	}
+
+}
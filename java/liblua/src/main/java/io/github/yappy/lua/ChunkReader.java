@@ -0,0 +1,15 @@
+package io.github.yappy.lua;
+
+import java.io.IOException;
+
+/*
+ * lua_Reader -> C -> Java chunk source interface. (package private)
+ */
+interface ChunkReader {
+
+	// Fill the direct buffer passed to loadStream() from its start.
+	// @returns Filled byte count, or -1 at the end.
+	// @throws IOException It is thrown from loadStream().
+	int read() throws IOException;
+
+}
@@ -5,6 +5,7 @@ package io.github.yappy.lua;
  */
 interface DebugHook {
 
-	void hook(int event, int currentline) throws LuaAbortException;
+	// returns true to yield the running coroutine (time slice is over)
+	boolean hook(int event, int currentline) throws LuaAbortException;
 
 }
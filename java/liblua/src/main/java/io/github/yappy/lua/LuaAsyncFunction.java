@@ -0,0 +1,38 @@
+package io.github.yappy.lua;
+
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Lua -&gt; Java non-blocking function call interface.
+ *
+ * The function starts the work and returns a stage of the results
+ * without waiting for it.
+ *
+ * If the script runs in a coroutine of {@link LuaExecutor#submitAsync},
+ * the calling coroutine yields and is resumed with the results when the
+ * stage completes. The engine thread runs other scripts meanwhile.
+ * Otherwise (e.g. {@link LuaEngine#execString(String, String)}),
+ * the engine thread blocks until the stage completes, and
+ * {@link LuaAbortException} is raised if the thread is interrupted.
+ *
+ * If the stage completes exceptionally with {@link LuaRuntimeException},
+ * it is raised as a Lua error in the caller.
+ *
+ * @see LuaFunction
+ * @author yappy
+ */
+public interface LuaAsyncFunction {
+
+	/**
+	 * Invoked when called from Lua.
+	 * Parameter and result conversion is the same as
+	 * {@link LuaFunction#call(Object[])}.
+	 * @param args Function args.
+	 * @return Stage of the function results. (results may be null)
+	 * @throws LuaRuntimeException Raise Lua error. It can be handled by Lua code.
+	 * @throws LuaAbortException Raise Lua error. It cannot be handled by Lua code.
+	 */
+	CompletionStage<Object[]> call(Object[] args)
+			throws LuaRuntimeException, LuaAbortException;
+
+}
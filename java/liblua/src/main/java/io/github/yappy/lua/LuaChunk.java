@@ -0,0 +1,73 @@
+package io.github.yappy.lua;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Lua program code which is compiled once per engine.
+ *
+ * The chunk is compiled at the first call in each engine and the
+ * function is kept in the engine until it is closed (also over
+ * {@link LuaEngine#reset()}) or {@link LuaEngine#releaseChunk(LuaChunk)}
+ * is called. It is called with the parameters as "...", and its return
+ * values are the results.
+ *
+ * An instance can be shared among threads and engines, except a chunk
+ * from {@link LuaEngine#compile(java.io.Reader, String)} etc., which has
+ * no source code and can be called only in the engine which compiled it.
+ * @see LuaEngine#callChunk(LuaChunk, Object...)
+ * @author yappy
+ */
+public final class LuaChunk {
+
+	private static final AtomicInteger nextId = new AtomicInteger(1);
+
+	private final int id;
+	private final String source;
+	private final String chunkName;
+
+	/**
+	 * Create a chunk.
+	 * @param source Lua source code.
+	 * @param chunkName It will be used at error message.
+	 */
+	public LuaChunk(String source, String chunkName) {
+		if (source == null) {
+			throw new NullPointerException("source");
+		}
+		if (chunkName == null) {
+			throw new NullPointerException("chunkName");
+		}
+		this.id = nextId.getAndIncrement();
+		this.source = source;
+		this.chunkName = chunkName;
+	}
+
+	// compiled in an engine from a stream
+	LuaChunk(String chunkName) {
+		this.id = nextId.getAndIncrement();
+		this.source = null;
+		this.chunkName = chunkName;
+	}
+
+	// key of the compiled function in each engine
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * Get the source code.
+	 * @return Lua source code, or null if compiled from a stream.
+	 */
+	public String getSource() {
+		return source;
+	}
+
+	/**
+	 * Get the chunk name.
+	 * @return Chunk name.
+	 */
+	public String getChunkName() {
+		return chunkName;
+	}
+
+}
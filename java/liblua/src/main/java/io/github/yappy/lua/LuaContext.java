@@ -0,0 +1,164 @@
+package io.github.yappy.lua;
+
+/**
+ * Lightweight execution context in a {@link LuaEngine}.
+ *
+ * Created by {@link LuaEngine#newContext()}.
+ * Each context has its own Lua thread and global environment table.
+ * Global variables of the engine are visible as read-only defaults:
+ * assignments to globals in a context (including {@code _G.x = v}) are
+ * stored in the context and do not change the engine or other contexts.
+ *
+ * Only the global table is separated. Tables reached through globals,
+ * such as library tables ({@code string}, {@code math}, ...), the string
+ * metatable and tables created by the engine, are shared objects:
+ * changing their fields in a context (e.g. {@code string.upper = f}) is
+ * visible to the engine and all other contexts. Do not run code which
+ * modifies them in a context if isolation is required.
+ *
+ * A context is a part of the engine. It must be used by the thread
+ * which uses the engine, and it is invalid after the engine is closed.
+ * Java functions registered to the engine can be called from contexts.
+ * @author yappy
+ */
+public class LuaContext implements AutoCloseable {
+
+	private final LuaEngine engine;
+	// registry ref in native (0 if closed)
+	private int ref;
+
+	LuaContext(LuaEngine engine, int ref) {
+		this.engine = engine;
+		this.ref = ref;
+	}
+
+	/**
+	 * Destroy the context.
+	 * Its globals become garbage.
+	 * @throws IllegalStateException The context is running.
+	 */
+	@Override
+	public void close() {
+		if (ref == 0) {
+			return;
+		}
+		try {
+			engine.closeContext(ref);
+		}
+		catch (LuaException e) {
+			// memory error in native; the context remains until the engine is closed
+		}
+		ref = 0;
+	}
+
+	/**
+	 * Get the engine which this context belongs to.
+	 * @return Lua engine.
+	 */
+	public LuaEngine getEngine() {
+		return engine;
+	}
+
+	private int enter() {
+		if (ref == 0) {
+			throw new IllegalStateException("LuaContext is closed");
+		}
+		return engine.enterContext(ref);
+	}
+
+	/**
+	 * Execute string as Lua program code in this context.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @throws LuaException Syntax or Runtime or other error.
+	 * @see LuaEngine#execString(String, String)
+	 */
+	public void execString(String buf, String chunkName) throws LuaException {
+		execString(null, buf, chunkName);
+	}
+
+	/**
+	 * Execute string as Lua program code in this context with debug hook.
+	 * @param hook Lua debug hook.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @throws LuaException Syntax or Runtime or other error.
+	 * @see LuaEngine#execString(LuaHook, String, String)
+	 */
+	public void execString(LuaHook hook, String buf, String chunkName)
+			throws LuaException {
+		int prev = enter();
+		try {
+			engine.execString(hook, buf, chunkName);
+		}
+		finally {
+			engine.leaveContext(prev);
+		}
+	}
+
+	/**
+	 * Get a global variable in this context.
+	 * If it is not set in this context, the engine global is returned.
+	 * @param name Global variable name.
+	 * @return Value.
+	 * @throws LuaException Lua error.
+	 */
+	public Object getGlobalVariable(String name) throws LuaException {
+		int prev = enter();
+		try {
+			return engine.getGlobalVariable(name);
+		}
+		finally {
+			engine.leaveContext(prev);
+		}
+	}
+
+	/**
+	 * Set a global variable in this context.
+	 * @param name Global variable name.
+	 * @param value Value.
+	 * @throws LuaException Lua error.
+	 */
+	public void addGlobalVariable(String name, Object value)
+			throws LuaException {
+		int prev = enter();
+		try {
+			engine.addGlobalVariable(name, value);
+		}
+		finally {
+			engine.leaveContext(prev);
+		}
+	}
+
+	/**
+	 * Call Lua global function in this context.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Return values.
+	 * @throws LuaException Lua error.
+	 */
+	public Object[] callGlobalFunction(
+			String name, Object... params) throws LuaException {
+		return callGlobalFunction(null, name, params);
+	}
+
+	/**
+	 * Call Lua global function in this context with debug hook.
+	 * @param hook Debug hook.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Return values.
+	 * @throws LuaException Lua error.
+	 */
+	public Object[] callGlobalFunction(
+			LuaHook hook, String name, Object... params) throws LuaException {
+		int prev = enter();
+		try {
+			return engine.callGlobalFunction(hook, name, params);
+		}
+		finally {
+			engine.leaveContext(prev);
+		}
+	}
+
+}
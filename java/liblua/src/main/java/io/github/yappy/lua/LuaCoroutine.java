@@ -0,0 +1,173 @@
+package io.github.yappy.lua;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+
+/**
+ * Lua coroutine controlled from Java.
+ *
+ * Created by {@link LuaEngine#newCoroutine(String)}.
+ * {@link #resume(Object...)} runs the function until it calls
+ * coroutine.yield or returns, like Lua coroutine.resume.
+ * If it calls {@link LuaAsyncFunction}, resume blocks until the result.
+ *
+ * This class is also a generator. The iterator resumes the coroutine
+ * without parameters for each element, and an element is the values
+ * passed to coroutine.yield. The values returned by the function end
+ * the iteration and are not elements. So a script can produce a large
+ * result set lazily without building a table.
+ *
+ * A coroutine is a part of the engine. It must be used by the thread
+ * which uses the engine, and it is invalid after the engine is closed.
+ * @author yappy
+ */
+public class LuaCoroutine implements AutoCloseable, Iterable<Object[]> {
+
+	/**
+	 * Coroutine status.
+	 */
+	public enum Status {
+		/** Not started yet, or yielded. */
+		SUSPENDED,
+		/** In {@link LuaCoroutine#resume(Object...)}. */
+		RUNNING,
+		/** Returned, failed or closed. */
+		DEAD,
+	}
+
+	private final LuaEngine engine;
+	private final LuaEngine.AsyncRun run;
+	private Status status = Status.SUSPENDED;
+
+	LuaCoroutine(LuaEngine engine, LuaEngine.AsyncRun run) {
+		this.engine = engine;
+		this.run = run;
+	}
+
+	/**
+	 * Destroy the coroutine if it is suspended.
+	 * @throws IllegalStateException The coroutine is running.
+	 */
+	@Override
+	public void close() {
+		if (status == Status.RUNNING) {
+			throw new IllegalStateException("Coroutine is running");
+		}
+		if (status == Status.DEAD) {
+			return;
+		}
+		status = Status.DEAD;
+		try {
+			engine.closeAsync(run);
+		}
+		catch (LuaException e) {
+			// memory error in native; it remains until the engine is closed
+		}
+	}
+
+	/**
+	 * Get the engine which this coroutine belongs to.
+	 * @return Lua engine.
+	 */
+	public LuaEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Get the status.
+	 * @return Status.
+	 */
+	public Status status() {
+		return status;
+	}
+
+	/**
+	 * Start or continue the coroutine.
+	 * The first resume passes params to the function, and later ones
+	 * pass them as the results of coroutine.yield.
+	 * If a Lua error occurs, the coroutine is dead.
+	 * @param params Parameters.
+	 * @return Values passed to coroutine.yield, or return values.
+	 * Check {@link #status()} to know which.
+	 * @throws LuaException Lua error.
+	 * @throws IllegalStateException The coroutine is not suspended.
+	 */
+	public Object[] resume(Object... params) throws LuaException {
+		if (params == null) {
+			throw new NullPointerException("params");
+		}
+		if (status != Status.SUSPENDED) {
+			throw new IllegalStateException("Coroutine is " + status);
+		}
+		status = Status.RUNNING;
+		boolean finished = true;
+		try {
+			Object[] results = engine.resumeCoroutine(run, params);
+			finished = run.isFinished();
+			return results;
+		}
+		finally {
+			status = finished ? Status.DEAD : Status.SUSPENDED;
+		}
+	}
+
+	/**
+	 * Get an iterator which resumes the coroutine for each element.
+	 * Elements are consumed from this coroutine. Lua errors are thrown as
+	 * {@link UncheckedLuaException}.
+	 * @return Iterator of yielded values.
+	 */
+	@Override
+	public Iterator<Object[]> iterator() {
+		return new Iterator<Object[]>() {
+			// yielded but not returned by next()
+			private Object[] next = null;
+
+			@Override
+			public boolean hasNext() {
+				if (next == null && status == Status.SUSPENDED) {
+					try {
+						Object[] values = resume();
+						if (status == Status.SUSPENDED) {
+							next = values;
+						}
+					}
+					catch (LuaException e) {
+						throw new UncheckedLuaException(e);
+					}
+				}
+				return next != null;
+			}
+
+			@Override
+			public Object[] next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Object[] result = next;
+				next = null;
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+	}
+
+	/**
+	 * Get a spliterator of yielded values.
+	 * The size is unknown and it is not split.
+	 * @return Spliterator of yielded values.
+	 * @see #iterator()
+	 */
+	@Override
+	public Spliterator<Object[]> spliterator() {
+		return Spliterators.spliteratorUnknownSize(iterator(),
+				Spliterator.ORDERED | Spliterator.NONNULL);
+	}
+
+}
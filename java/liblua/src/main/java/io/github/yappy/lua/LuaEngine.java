@@ -2,15 +2,39 @@ package io.github.yappy.lua;
 
 import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.lang.reflect.Field;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import io.github.yappy.lua.lib.LuaLibrary;
 import io.github.yappy.lua.lib.LuaLibraryFunction;
@@ -55,13 +79,39 @@ public class LuaEngine implements AutoCloseable {
 	public static final long DEFAULT_MEMORY_LIMIT = 16 * 1024 * 1024;
 	/** Default debug hook instruction count for interrupt. */
 	public static final int DEFAULT_INTR_INST_COUNT = 1000;
+	/** Default batch size of {@link #pipe(String, Iterator)}. */
+	public static final int DEFAULT_PIPE_BATCH_SIZE = 256;
+	/** Default buffer size of {@link #setSink(LuaSink)}. */
+	public static final int DEFAULT_SINK_BUFFER_SIZE = 64 * 1024;
+	// compile() read buffer size
+	private static final int LOAD_BUFFER_SIZE = 64 * 1024;
 
 	private static final String VERSION_STRING;
 
 	// getVersion String[] size
 	private static final int VERSION_ARRAY_SIZE	= 4;
+	// getStatistics long[] size and index
+	private static final int STAT_ARRAY_SIZE		= 9;
+	private static final int STAT_MEMORY_USED		= 0;
+	private static final int STAT_GC_CYCLES			= 1;
+	private static final int STAT_MEMORY_PEAK		= 2;
+	private static final int STAT_ALLOC_COUNT		= 3;
+	private static final int STAT_FREE_COUNT		= 4;
+	private static final int STAT_REALLOC_COUNT		= 5;
+	private static final int STAT_REJECT_COUNT		= 6;
+	private static final int STAT_GC_DEBT			= 7;
+	private static final int STAT_GC_ESTIMATE		= 8;
+	// newPeer() flags
+	private static final int PEER_FLAG_SLAB_ALLOCATOR	= (1 << 0);
+	// getMemoryBudgetStatus long[] size and index
+	static final int BUDGET_ARRAY_SIZE				= 3;
+	static final int BUDGET_USED					= 0;
+	static final int BUDGET_EMERGENCY_GC_COUNT		= 1;
+	static final int BUDGET_REJECT_COUNT			= 2;
 	// Function returns multiple values (for C API pcall nresults)
 	private static final int LUA_MULTRET		= -1;
+	// FunctionRoot#call() result: yield the calling coroutine
+	private static final int PROXY_RET_YIELD	= -1;
 	// openLibs() bit
 	private static final int LIB_BIT_BASE			= (1 << 0);
 	private static final int LIB_BIT_PACKAGE		= (1 << 1);
@@ -73,7 +123,14 @@ public class LuaEngine implements AutoCloseable {
 	private static final int LIB_BIT_MATH			= (1 << 7);
 	private static final int LIB_BIT_UTF8			= (1 << 8);
 	private static final int LIB_BIT_DEBUG			= (1 << 9);
-	private static final int LIB_ID_COUNT			= 10;
+	private static final int LIB_BIT_JSON			= (1 << 10);
+	private static final int LIB_BIT_STRBUF			= (1 << 11);
+	private static final int LIB_BIT_NUMARRAY		= (1 << 12);
+	private static final int LIB_BIT_BYTES			= (1 << 13);
+	private static final int LIB_ID_COUNT			= 14;
+	// numarray element type
+	private static final int NUMARRAY_TYPE_DOUBLE	= 0;
+	private static final int NUMARRAY_TYPE_INT64	= 1;
 	// Lua C API return code (lua.h)
 	private static final int LUA_OK					= 0;
 	private static final int LUA_YIELD				= 1;
@@ -99,6 +156,23 @@ public class LuaEngine implements AutoCloseable {
 	private static final int CHECK_TYPE_STRING		= 3;
 	private static final int CHECK_OPT_ALLOW_NIL	= (1 << 16);
 	private static final int CHECK_TYPE_MASK		= 0xffff;
+	// For callBatchColumns()
+	private static final int COLUMN_DOUBLE			= 0;
+	private static final int COLUMN_LONG			= 1;
+	private static final int COLUMN_BOOLEAN			= 2;
+	private static final int COLUMN_STRING			= 3;
+	// emit() value types
+	private static final int SINK_TYPE_NIL			= LuaSink.TYPE_NIL;
+	private static final int SINK_TYPE_BOOLEAN		= LuaSink.TYPE_BOOLEAN;
+	private static final int SINK_TYPE_INTEGER		= LuaSink.TYPE_INTEGER;
+	private static final int SINK_TYPE_NUMBER		= LuaSink.TYPE_NUMBER;
+	private static final int SINK_TYPE_STRING		= LuaSink.TYPE_STRING;
+	// loadTable() column types
+	private static final int TABLE_TYPE_SKIP		= LuaTableSchema.TYPE_SKIP;
+	private static final int TABLE_TYPE_BOOLEAN		= LuaTableSchema.TYPE_BOOLEAN;
+	private static final int TABLE_TYPE_INTEGER		= LuaTableSchema.TYPE_INTEGER;
+	private static final int TABLE_TYPE_NUMBER		= LuaTableSchema.TYPE_NUMBER;
+	private static final int TABLE_TYPE_STRING		= LuaTableSchema.TYPE_STRING;
 	// Lua C API hook event code (lua.h)
 	private static final int LUA_HOOKCALL			= 0;
 	private static final int LUA_HOOKRET			= 1;
@@ -110,17 +184,53 @@ public class LuaEngine implements AutoCloseable {
 	private static final int LUA_MASKRET			= (1 << LUA_HOOKRET);
 	private static final int LUA_MASKLINE			= (1 << LUA_HOOKLINE);
 	private static final int LUA_MASKCOUNT			= (1 << LUA_HOOKCOUNT);
+	// Lua C API gc option (lua.h)
+	private static final int LUA_GCSTOP				= 0;
+	private static final int LUA_GCRESTART			= 1;
+	private static final int LUA_GCCOLLECT			= 2;
+	private static final int LUA_GCCOUNT			= 3;
+	private static final int LUA_GCCOUNTB			= 4;
+	private static final int LUA_GCSTEP				= 5;
+	private static final int LUA_GCSETPAUSE			= 6;
+	private static final int LUA_GCSETSTEPMUL		= 7;
+	private static final int LUA_GCISRUNNING		= 9;
 
 	// Native interface
 	private static native int getVersionInfo(String[] info);
-	private static native long newPeer(long nativeMemoryLimit);
+	private static native long newPeer(long nativeMemoryLimit, int flags,
+			long budget);
 	private static native void deletePeer(long peer);
+	// for LuaMemoryBudget
+	static native long newMemoryBudget(long softLimit, long hardLimit);
+	static native void releaseMemoryBudget(long budget);
+	static native void getMemoryBudgetStatus(long budget, long[] status);
+	private static native void getStatistics(long peer, long[] stats);
+	private static native void resetMemoryPeak(long peer);
+	private static native int gc(long peer, int what, int data, int[] result);
+	private static native int checkpoint(long peer);
+	private static native int reset(long peer);
+	private static native int cloneState(
+			long srcPeer, long dstPeer, LuaPrint print);
+	private static native int newContext(
+			long peer, boolean env, int[] result);
+	private static native int deleteContext(long peer, int ref);
+	private static native int setContext(long peer, int ref);
+	private static native void restoreContext(long peer);
+	private static native boolean canYield(long peer);
+	private static native int resume(long peer, int nargs)
+			throws LuaAbortException;
 	private static native void setDebugHook(long peer, DebugHook hook);
 	private static native void setHookMask(long peer, int mask, int count);
 	private static native int openLibs(long peer, int libs);
 	private static native int replacePrintFunc(long peer, LuaPrint print);
+	private static native int setSink(long peer,
+			ByteBuffer buffer, SinkFlush callback);
+	private static native void flushSink(long peer, boolean discard)
+			throws LuaRuntimeException, LuaAbortException;
 	private static native int loadString(
 			long peer, String buf, String chunkName);
+	private static native int loadStream(long peer, String chunkName,
+			ByteBuffer buffer, ChunkReader reader) throws IOException;
 	private static native int getTop(long peer);
 	private static native void setTop(long peer, int index);
 	private static native int pushValues(long peer, Object[] values);
@@ -133,7 +243,22 @@ public class LuaEngine implements AutoCloseable {
 	private static native int pcall(
 			long peer, int nargs, int nresults, int msgh)
 			throws LuaAbortException;
+	private static native int callBatch(long peer, Object[][] argSets,
+			Object[][] results, String[] errors, int[] failed);
+	private static native int callBatchColumns(long peer, int rows,
+			Object[] columns, int[] columnTypes, Object out, int outType,
+			String[] errors, int[] failed);
+	private static native boolean pushChunk(long peer, int id);
+	private static native int setChunk(long peer, int id);
+	private static native int releaseChunk(long peer, int id);
+	private static native int loadTable(long peer, ByteBuffer data,
+			String fileName, String[] names, int[] types, char delimiter,
+			boolean header, boolean columnar, int[] rows);
 	private static native int getGlobal(long peer, String name);
+	private static native long getStrBufLength(long peer);
+	private static native void copyStrBuf(long peer, ByteBuffer dst);
+	private static native int pushNumArray(long peer, int type, Object array);
+	private static native Object toNumArray(long peer);
 	private static native int setGlobal(long peer, String name);
 	private static native void setProxyCallback(
 			long peer, FunctionRoot callback);
@@ -142,12 +267,46 @@ public class LuaEngine implements AutoCloseable {
 	// private variables
 	private long peer = 0;
 	private final LuaVersion version;
+	private final long nativeMemoryLimit;
+	private final int intrInstCount;
+	private final boolean slabAllocator;
+	private final LuaMemoryBudget budget;
 	private LuaHook hook = null;
 	private LuaPrint print = null;
 	private LuaPrint printRoot = new LuaPrintImpl();
+	// emit() is available if not null
+	private LuaSink sink = null;
+	// reused by compile()
+	private ByteBuffer loadBuffer = null;
+	private LuaTracer tracer = null;
+	private long hookCount = 0;
+	private long tracedGcCycles = 0;
+	private long gcFullCount = 0;
+	private long gcFullTotalNanos = 0;
+	private long gcFullMaxNanos = 0;
+	private long gcFullLastNanos = 0;
+	private long gcStepCount = 0;
+	private long gcStepTotalNanos = 0;
+	private long gcStepMaxNanos = 0;
+	private long[] stats = new long[STAT_ARRAY_SIZE];
 	private List<LuaFunction> functionList = new ArrayList<LuaFunction>();
 	private List<LuaArg[]> argsList = new ArrayList<LuaArg[]>();
+	private List<String> nameList = new ArrayList<String>();
 	private Deque<AutoCloseable> closeList = new ArrayDeque<>();
+	// functionList size at checkpoint() (-1 if not yet)
+	// entries after it are set to null by reset() and never reused
+	private int checkpointFunctionCount = -1;
+	// LuaContext ref which native L() points to (0: main)
+	private int currentContext = 0;
+	// contexts saved by enterContext() (same as native)
+	private Deque<Integer> savedContexts = new ArrayDeque<>();
+	// set by abort() from any thread
+	private volatile boolean abortRequested = false;
+	// LuaAsyncFunction result which the yielded coroutine waits for
+	private CompletableFuture<Object[]> pendingStage = null;
+	// time slice of resumeAsync() in hook count (0: unlimited)
+	private long sliceHooks = 0;
+	private long sliceUsed = 0;
 
 	/**
 	 * Initialize LuaEngine with {@link #DEFAULT_MEMORY_LIMIT} and {@link #DEFAULT_INTR_INST_COUNT}.
@@ -166,7 +325,55 @@ public class LuaEngine implements AutoCloseable {
 	 * @param intrInstCount Instruction count for debug hook.
 	 */
 	public LuaEngine(long nativeMemoryLimit, int intrInstCount) {
-		this.peer = newPeer(nativeMemoryLimit);
+		this(nativeMemoryLimit, intrInstCount, false);
+	}
+
+	/**
+	 * Initialize LuaEngine with allocator selection.
+	 * If slabAllocator is true, small blocks (tables, strings, closures)
+	 * are carved from large chunks which are held until {@link #close()}.
+	 * It reduces malloc/free calls and heap fragmentation for long-running
+	 * or allocation-heavy scripts, but reserved chunks are not returned
+	 * to the system while the engine is alive.
+	 * nativeMemoryLimit is applied to requested sizes in both cases.
+	 * @param nativeMemoryLimit Native heap size which Lua can use.
+	 * @param intrInstCount Instruction count for debug hook.
+	 * @param slabAllocator true to use the slab allocator instead of malloc.
+	 */
+	public LuaEngine(long nativeMemoryLimit, int intrInstCount,
+			boolean slabAllocator) {
+		this(nativeMemoryLimit, intrInstCount, slabAllocator, null);
+	}
+
+	/**
+	 * Initialize LuaEngine which draws native memory from a shared budget.
+	 * nativeMemoryLimit is still applied as the per-engine cap.
+	 * If the budget soft limit is reached, this engine runs full GC
+	 * at the next debug hook. Allocations beyond the hard limit fail.
+	 * The engine keeps the budget alive until {@link #close()},
+	 * even if {@link LuaMemoryBudget#close()} is called before it.
+	 * @param nativeMemoryLimit Native heap size which this engine can use.
+	 * @param intrInstCount Instruction count for debug hook.
+	 * @param slabAllocator true to use the slab allocator instead of malloc.
+	 * @param budget Shared memory budget. (null if not used)
+	 * @throws IllegalStateException budget is already closed.
+	 */
+	public LuaEngine(long nativeMemoryLimit, int intrInstCount,
+			boolean slabAllocator, LuaMemoryBudget budget) {
+		this.nativeMemoryLimit = nativeMemoryLimit;
+		this.intrInstCount = intrInstCount;
+		this.slabAllocator = slabAllocator;
+		this.budget = budget;
+		int flags = slabAllocator ? PEER_FLAG_SLAB_ALLOCATOR : 0;
+		if (budget != null) {
+			// the engine gets its own reference to the native budget
+			synchronized (budget) {
+				this.peer = newPeer(nativeMemoryLimit, flags, budget.getPeer());
+			}
+		}
+		else {
+			this.peer = newPeer(nativeMemoryLimit, flags, 0);
+		}
 		if (peer == 0) {
 			// probably cannot allocate in native heap
 			throw new OutOfMemoryError();
@@ -262,20 +469,83 @@ public class LuaEngine implements AutoCloseable {
 		return result;
 	}
 
-	private int pcallWithHook(LuaHook hook, int nargs, int nresults, int msgh)
-			throws LuaAbortException {
+	private long[] updateStatistics() {
+		getStatistics(peer, stats);
+		return stats;
+	}
+
+	private int loadWithTrace(String buf, String chunkName) {
+		LuaTracer tracer = this.tracer;
+		Object context = (tracer != null) ? tracer.compileBegin(chunkName) : null;
+		int ret = LUA_ERRRUN;
+		try {
+			ret = loadString(peer, buf, chunkName);
+			return ret;
+		}
+		finally {
+			if (context != null) {
+				tracer.compileEnd(context, ret == LUA_OK);
+			}
+		}
+	}
+
+	private int pcallWithHook(LuaHook hook, String chunkName,
+			int nargs, int nresults, int msgh) throws LuaException {
+		LuaTracer tracer = this.tracer;
+		Object context = (tracer != null) ? tracer.executeBegin(chunkName) : null;
+		long hookCountBefore = hookCount;
+		long memoryBefore = (context != null) ?
+				updateStatistics()[STAT_MEMORY_USED] : 0;
+
 		this.hook = hook;
+		int ret = LUA_ERRRUN;
 		try {
-			return pcall(peer, nargs, nresults, msgh);
+			ret = pcall(peer, nargs, nresults, msgh);
+			flushSink(false);
+			return ret;
 		}
 		finally {
 			this.hook = null;
+			flushSink(true);
+			if (tracer != null) {
+				long[] stats = updateStatistics();
+				if (context != null) {
+					tracer.executeEnd(context,
+							(hookCount - hookCountBefore) * intrInstCount,
+							stats[STAT_MEMORY_USED] - memoryBefore,
+							ret == LUA_OK);
+				}
+				traceGcCycles(tracer, stats);
+			}
+		}
+	}
+
+	private void traceGcCycles(LuaTracer tracer, long[] stats) {
+		long cycles = stats[STAT_GC_CYCLES] - tracedGcCycles;
+		tracedGcCycles = stats[STAT_GC_CYCLES];
+		if (cycles > 0) {
+			tracer.gcCycle(cycles, stats[STAT_MEMORY_USED]);
+		}
+	}
+
+	private int gcWithTrace(int what, int data) throws LuaException {
+		int[] result = new int[1];
+		try {
+			checkLuaError(gc(peer, what, data, result));
+		}
+		finally {
+			LuaTracer tracer = this.tracer;
+			if (tracer != null) {
+				traceGcCycles(tracer, updateStatistics());
+			}
 		}
+		return result[0];
 	}
 
 	private class DebugHookImpl implements DebugHook {
 		@Override
-		public void hook(int event, int currentline) throws LuaAbortException {
+		public boolean hook(int event, int currentline) throws LuaAbortException {
+			hookCount++;
 			// dispatch
 			if (hook != null) {
 				switch (event) {
@@ -298,6 +568,12 @@ public class LuaEngine implements AutoCloseable {
 			if (Thread.currentThread().isInterrupted()) {
 				throw new LuaAbortException(new InterruptedException());
 			}
+			if (abortRequested) {
+				abortRequested = false;
+				throw new LuaAbortException("Aborted");
+			}
+			// keep requesting until native code can yield
+			return sliceHooks > 0 && ++sliceUsed >= sliceHooks;
 		}
 	}
 
@@ -328,10 +604,31 @@ public class LuaEngine implements AutoCloseable {
 	private class FunctionRootImpl implements FunctionRoot {
 		@Override
 		public int call(int id) throws LuaRuntimeException, LuaException {
-			if (id < 0 || id >= functionList.size()) {
+			if (id < 0) {
 				throw new Error("Invalid function root call ID");
 			}
+			if (id >= functionList.size() || functionList.get(id) == null) {
+				// a function kept by an upvalue over reset()
+				throw new LuaRuntimeException("Function is removed by reset()");
+			}
 
+			LuaTracer tracer = LuaEngine.this.tracer;
+			Object context = (tracer != null) ?
+					tracer.hostCallBegin(nameList.get(id)) : null;
+			boolean success = false;
+			try {
+				int ret = callFunction(id);
+				success = true;
+				return ret;
+			}
+			finally {
+				if (context != null) {
+					tracer.hostCallEnd(context, success);
+				}
+			}
+		}
+
+		private int callFunction(int id) throws LuaRuntimeException, LuaException {
 			LuaFunction func = functionList.get(id);
 			LuaArg[] argsCheck = argsList.get(id);
 			boolean isAny = argsCheck.length >= 1 && argsCheck[0].isAny();
@@ -400,7 +697,21 @@ public class LuaEngine implements AutoCloseable {
 			}
 
 			// dispatch
-			Object[] results = func.call(args);
+			Object[] results;
+			if (func instanceof AsyncFunctionAdapter) {
+				CompletableFuture<Object[]> future =
+						((AsyncFunctionAdapter)func).start(args);
+				if (!future.isDone() && canYield(peer)) {
+					// resumed by resumeAsync() with the result
+					pendingStage = future;
+					return PROXY_RET_YIELD;
+				}
+				// not in a coroutine run by resumeAsync()
+				results = AsyncFunctionAdapter.await(future);
+			}
+			else {
+				results = func.call(args);
+			}
 
 			// Push results into the stack and return count
 			if (results == null || results.length == 0) {
@@ -411,6 +722,80 @@ public class LuaEngine implements AutoCloseable {
 		}
 	}
 
+	// emit() buffer flush
+	private static class SinkFlushImpl implements SinkFlush {
+		private final LuaSink sink;
+		private final ByteBuffer buffer;
+
+		public SinkFlushImpl(LuaSink sink, ByteBuffer buffer) {
+			this.sink = sink;
+			this.buffer = buffer;
+		}
+
+		@Override
+		public void flush(int length, int rows)
+				throws LuaRuntimeException, LuaAbortException {
+			buffer.clear();
+			buffer.limit(length);
+			sink.write(buffer, rows);
+		}
+	}
+
+	// LuaAsyncFunction in functionList
+	// call() blocks the engine thread until the result is available
+	private static class AsyncFunctionAdapter implements LuaFunction {
+		private final LuaAsyncFunction func;
+
+		public AsyncFunctionAdapter(LuaAsyncFunction func) {
+			this.func = func;
+		}
+
+		public CompletableFuture<Object[]> start(Object[] args)
+				throws LuaRuntimeException, LuaAbortException {
+			CompletionStage<Object[]> stage = func.call(args);
+			if (stage == null) {
+				throw new NullPointerException("LuaAsyncFunction result");
+			}
+			return stage.toCompletableFuture();
+		}
+
+		public static Object[] await(CompletableFuture<Object[]> future)
+				throws LuaRuntimeException, LuaAbortException {
+			try {
+				return future.get();
+			}
+			catch (InterruptedException e) {
+				future.cancel(false);
+				throw new LuaAbortException(e);
+			}
+			catch (CancellationException e) {
+				throw new LuaAbortException(e);
+			}
+			catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof LuaRuntimeException) {
+					throw (LuaRuntimeException)cause;
+				}
+				if (cause instanceof LuaAbortException) {
+					throw (LuaAbortException)cause;
+				}
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException)cause;
+				}
+				if (cause instanceof Error) {
+					throw (Error)cause;
+				}
+				throw new LuaRuntimeException(cause);
+			}
+		}
+
+		@Override
+		public Object[] call(Object[] args)
+				throws LuaRuntimeException, LuaAbortException {
+			return await(start(args));
+		}
+	}
+
 	/**
 	 * Open Lua default standard libraries.
 	 * Library set is {@link LuaStdLib#DEFAULT_SET}.
@@ -440,208 +825,1507 @@ public class LuaEngine implements AutoCloseable {
 	}
 
 	/**
-	 * Set Lua standard print() function callback.
-	 * Lua print() func is replaced automatically by this engine.
-	 * @param print Print callback.
+	 * Get native memory usage and allocation statistics.
+	 * @return Memory statistics.
 	 */
-	public void setPrintFunction(LuaPrint print) {
-		this.print = print;
+	public LuaMemoryStats getMemoryStats() {
+		return getMemoryStats(false);
 	}
 
 	/**
-	 * Create a new empty table, and set it to global variable.
-	 * @param table Global variable name.
-	 * @throws LuaException Lua error.
+	 * Get native memory usage and allocation statistics.
+	 * If resetPeak is true, peak usage will be reset to the current usage
+	 * after getting statistics.
+	 * Calling this with resetPeak=true before and after a script gives
+	 * the peak usage of the script.
+	 * @param resetPeak Reset peak usage.
+	 * @return Memory statistics.
 	 */
-	public void addLibTable(String table) throws LuaException {
-		checkLuaError(pushNewTable(peer, 0, 0));
-		checkLuaError(setGlobal(peer, table));
+	public LuaMemoryStats getMemoryStats(boolean resetPeak) {
+		long[] stats = new long[STAT_ARRAY_SIZE];
+		getStatistics(peer, stats);
+		if (resetPeak) {
+			resetMemoryPeak(peer);
+		}
+		return new LuaMemoryStats(nativeMemoryLimit,
+				stats[STAT_MEMORY_USED], stats[STAT_MEMORY_PEAK],
+				stats[STAT_ALLOC_COUNT], stats[STAT_FREE_COUNT],
+				stats[STAT_REALLOC_COUNT], stats[STAT_REJECT_COUNT]);
 	}
 
 	/**
-	 * Get a Lua global variable.
-	 * @param name Global variable name.
-	 * @return Value.
-	 * @throws LuaException Lua error.
+	 * Perform a full garbage collection cycle.
+	 * Calling this between requests avoids collection work
+	 * in the middle of a latency-sensitive script.
+	 * Pause time is recorded in {@link #getGcStats()}.
+	 * @throws LuaException Error in __gc metamethod.
 	 */
-	public Object getGlobalVariable(String name) throws LuaException {
-		if (name == null) {
-			throw new NullPointerException("name");
+	public void gcCollect() throws LuaException {
+		long start = System.nanoTime();
+		try {
+			gcWithTrace(LUA_GCCOLLECT, 0);
+		}
+		finally {
+			long time = System.nanoTime() - start;
+			gcFullCount++;
+			gcFullTotalNanos += time;
+			gcFullMaxNanos = Math.max(gcFullMaxNanos, time);
+			gcFullLastNanos = time;
 		}
-
-		checkLuaError(getGlobal(peer, name));
-		return popStack(1)[0];
 	}
 
 	/**
-	 * Set a Lua global variable.
-	 * @param name Global variable name.
-	 * @param value Value.
-	 * @throws LuaException Lua error.
+	 * Perform an incremental garbage collection step.
+	 * Pause time is recorded in {@link #getGcStats()}.
+	 * @param kb Step size in KB. 0 is one basic step.
+	 * @return true if the step finished a collection cycle.
+	 * @throws LuaException Error in __gc metamethod.
 	 */
-	public void addGlobalVariable(String name, Object value)
-			throws LuaException {
-		if (name == null) {
-			throw new NullPointerException("name");
+	public boolean gcStep(int kb) throws LuaException {
+		long start = System.nanoTime();
+		try {
+			return gcWithTrace(LUA_GCSTEP, kb) != 0;
+		}
+		finally {
+			long time = System.nanoTime() - start;
+			gcStepCount++;
+			gcStepTotalNanos += time;
+			gcStepMaxNanos = Math.max(gcStepMaxNanos, time);
 		}
-
-		checkLuaError(pushValues(peer, new Object[] { value }));
-		checkLuaError(setGlobal(peer, name));
 	}
 
 	/**
-	 * Set a value to a field in a table.
-	 * table["name"] = value.
-	 * @param table Global table variable name.
-	 * @param name Table key.
-	 * @param value Value.
-	 * @throws LuaException Lua error.
+	 * Set the collector pause.
+	 * A new cycle starts when memory usage reaches pause% of the usage
+	 * after the previous collection. (Lua default: 200)
+	 * @param pause Pause in percent.
+	 * @return Previous value.
+	 * @throws LuaException A Lua error occurred.
 	 */
-	public void addLibVariable(String table, String name, Object value)
-			throws LuaException {
-		if (table == null) {
-			throw new NullPointerException("table");
-		}
-		if (name == null) {
-			throw new NullPointerException("name");
-		}
-		// push _G["table"]
-		checkLuaError(getGlobal(peer, table));
-		// push value
-		checkLuaError(pushValues(peer, new Object[] { value }));
-		// table[name] = value (pop value)
-		checkLuaError(setTableField(peer, name));
-		// pop table
-		setTop(peer, getTop(peer) - 1);
+	public int setGcPause(int pause) throws LuaException {
+		return gcWithTrace(LUA_GCSETPAUSE, pause);
 	}
 
 	/**
-	 * Set a function to a global variable.
-	 * @param name Global variable name.
-	 * @param func Function to be called.
-	 * @param args Function arguments check and conversion rules.
-	 * @throws LuaException Lua error.
+	 * Set the collector step multiplier.
+	 * It controls the collector speed relative to memory allocation.
+	 * (Lua default: 200)
+	 * @param stepMul Step multiplier in percent.
+	 * @return Previous value.
+	 * @throws LuaException A Lua error occurred.
 	 */
-	public void addGlobalFunction(String name, LuaFunction func,
-			LuaArg... args) throws LuaException {
-		if (name == null) {
-			throw new NullPointerException("name");
-		}
-		if (func == null) {
-			throw new NullPointerException("func");
-		}
-		if (args == null) {
-			throw new NullPointerException("args");
-		}
-		for (int i = 0; i < args.length; i++) {
-			if (args[i] == null) {
-				throw new NullPointerException("args");
-			}
-			if (i != 0 && args[i].isAny()) {
-				throw new IllegalArgumentException("Any must be first");
-			}
-			if (i != args.length - 1 && args[i].isVarArgs()) {
-				throw new IllegalArgumentException("VarArgs must be last");
-			}
-		}
-
-		int id = functionList.size();
-		functionList.add(func);
-		argsList.add((LuaArg[])args.clone());
-
-		checkLuaError(pushProxyFunction(peer, id));
-		checkLuaError(setGlobal(peer, name));
+	public int setGcStepMultiplier(int stepMul) throws LuaException {
+		return gcWithTrace(LUA_GCSETSTEPMUL, stepMul);
 	}
 
 	/**
-	 * Set a function to a field in a table.
-	 * table["name"] = func.
-	 * @param table Global table variable name.
-	 * @param name Table key.
-	 * @param func Function to be called.
-	 * @param args Function arguments check and conversion rules.
-	 * @throws LuaException Lua error.
+	 * Stop the garbage collector.
+	 * Memory usage grows until {@link #gcRestart()},
+	 * but {@link #gcCollect()} and {@link #gcStep(int)} still work.
+	 * @throws LuaException A Lua error occurred.
 	 */
-	public void addLibFunction(String table, String name,
-			LuaFunction func, LuaArg... args) throws LuaException {
-		if (table == null) throw new NullPointerException("table");
-		if (name == null) throw new NullPointerException("name");
-		if (func == null) throw new NullPointerException("func");
-		if (args == null) throw new NullPointerException("args");
-		for (int i = 0; i < args.length; i++) {
-			if (args[i] == null) {
-				throw new NullPointerException("args");
-			}
-			if (i != 0 && args[i] == LuaArg.ANY) {
-				throw new IllegalArgumentException("args[not 0] cannot be ANY");
-			}
-		}
-
-		int id = functionList.size();
-		functionList.add(func);
-		argsList.add((LuaArg[])args.clone());
-
-		// push _G["table"]
-		checkLuaError(getGlobal(peer, table));
-		// push function
-		checkLuaError(pushProxyFunction(peer, id));
-		// table[name] = function (pop function)
-		checkLuaError(setTableField(peer, name));
-		// pop table
-		setTop(peer, getTop(peer) - 1);
+	public void gcStop() throws LuaException {
+		gcWithTrace(LUA_GCSTOP, 0);
 	}
 
 	/**
-	 * Call Lua global function.
-	 * @param name Global variable name.
-	 * @param params Parameters.
-	 * @return Return values.
-	 * @throws LuaException Lua error.
+	 * Restart the garbage collector.
+	 * @throws LuaException A Lua error occurred.
 	 */
-	public Object[] callGlobalFunction(
-			String name, Object... params) throws LuaException {
-		return callGlobalFunction(null, name, params);
+	public void gcRestart() throws LuaException {
+		gcWithTrace(LUA_GCRESTART, 0);
 	}
 
 	/**
-	 * Call Lua global function with debug hook.
-	 * @param hook Debug hook.
-	 * @param name Global variable name.
-	 * @param params Parameters.
-	 * @return Return values.
-	 * @throws LuaException Lua error.
+	 * Get whether the garbage collector is running. (not stopped)
+	 * @return false if stopped.
+	 * @throws LuaException A Lua error occurred.
 	 */
-	public Object[] callGlobalFunction(
-			LuaHook hook, String name, Object... params) throws LuaException {
-		if (name == null) {
-			throw new NullPointerException("name");
-		}
-		if (params == null) {
-			throw new NullPointerException("params");
-		}
-		if (getTop(peer) != 0) {
-			throw new IllegalStateException("stack not empty");
-		}
+	public boolean isGcRunning() throws LuaException {
+		return gcWithTrace(LUA_GCISRUNNING, 0) != 0;
+	}
 
-		// push global
-		checkLuaError(getGlobal(peer, name));
-		// push parameters
-		checkLuaError(pushValues(peer, params));
-		// pcall
-		checkLuaError(pcallWithHook(hook, params.length, LUA_MULTRET, 0));
-		// pop results
-		Object[] results = popStackAll();
+	/**
+	 * Get memory in use counted by the garbage collector.
+	 * @return Bytes in use.
+	 * @throws LuaException A Lua error occurred.
+	 */
+	public long gcCount() throws LuaException {
+		long kb = gcWithTrace(LUA_GCCOUNT, 0);
+		long b = gcWithTrace(LUA_GCCOUNTB, 0);
+		return kb * 1024 + b;
+	}
 
-		return results;
+	// for LuaEnginePool idle GC
+	// bytes allocated but not yet paid by the collector
+	// (a step runs when it becomes positive)
+	long getGcDebt() {
+		return updateStatistics()[STAT_GC_DEBT];
 	}
 
+	// for LuaEnginePool idle GC
+	// memory growth from the live data estimate of the last cycle
+	long getGcGrowth() {
+		long[] stats = updateStatistics();
+		return stats[STAT_MEMORY_USED] - stats[STAT_GC_ESTIMATE];
+	}
 
-	public long getPeerForDebug() {
-		return peer;
+	/**
+	 * Get pause time statistics of {@link #gcCollect()} and
+	 * {@link #gcStep(int)}.
+	 * @return GC statistics.
+	 */
+	public LuaGcStats getGcStats() {
+		return new LuaGcStats(gcFullCount, gcFullTotalNanos, gcFullMaxNanos,
+				gcFullLastNanos, gcStepCount, gcStepTotalNanos, gcStepMaxNanos);
 	}
 
 	/**
-	 * Execute string as Lua program code.
+	 * Save the current global state as a checkpoint for {@link #reset()}.
+	 * Call this after opening libraries and registering functions.
+	 * All tables reachable from the registry (_G, package.loaded, etc.)
+	 * or the string metatable, and their metatables are copied shallowly.
+	 * The previous checkpoint is discarded.
+	 * @throws LuaException A Lua error occurred.
+	 */
+	public void checkpoint() throws LuaException {
+		checkLuaError(checkpoint(peer));
+		checkpointFunctionCount = functionList.size();
+	}
+
+	/**
+	 * Restore the global state to the checkpoint.
+	 * Contents and metatables of the checkpoint tables are restored,
+	 * so globals set after the checkpoint are removed.
+	 * Tables created after the checkpoint become garbage.
+	 * Libraries are not reopened and functions added before the
+	 * checkpoint are kept. Functions added after it are removed,
+	 * and calling them (e.g. kept in a context) raises a Lua error.
+	 * A weak table is copied with the same weak mode, so the checkpoint
+	 * does not keep its weak keys or values alive.
+	 *
+	 * Closure upvalues and userdata contents are not restored.
+	 * @throws LuaException A Lua error occurred.
+	 * @throws IllegalStateException {@link #checkpoint()} is not called.
+	 */
+	public void reset() throws LuaException {
+		if (checkpointFunctionCount < 0) {
+			throw new IllegalStateException("No checkpoint");
+		}
+		setTop(peer, 0);
+		checkLuaError(reset(peer));
+		// stale proxies might be still reachable (e.g. from contexts),
+		// so the ids must not be given to new functions
+		for (int i = checkpointFunctionCount; i < functionList.size(); i++) {
+			functionList.set(i, null);
+			argsList.set(i, null);
+			nameList.set(i, null);
+		}
+	}
+
+	/**
+	 * Create a new engine with a deep copy of the global state.
+	 * Memory settings are the same as this engine.
+	 * Registered Java functions and the print callback are shared,
+	 * so function ids stay valid in the new engine.
+	 * Hook and tracer are not copied.
+	 * @return New engine.
+	 * @throws LuaException The state has values which cannot be copied
+	 * (userdata or coroutine) or other Lua error.
+	 * @see LuaEngineTemplate
+	 */
+	LuaEngine newClone() throws LuaException {
+		LuaEngine clone = new LuaEngine(
+				nativeMemoryLimit, intrInstCount, slabAllocator, budget);
+		boolean ok = false;
+		try {
+			setTop(peer, 0);
+			clone.checkLuaError(cloneState(peer, clone.peer, clone.printRoot));
+			clone.print = print;
+			clone.functionList.addAll(functionList);
+			clone.argsList.addAll(argsList);
+			clone.nameList.addAll(nameList);
+			clone.checkpointFunctionCount = checkpointFunctionCount;
+			ok = true;
+		}
+		finally {
+			if (!ok) {
+				clone.close();
+			}
+		}
+		return clone;
+	}
+
+	/**
+	 * Request to abort the running script.
+	 * This method can be called from any thread.
+	 * {@link LuaAbortException} will be thrown at the next debug hook
+	 * of the script running now or run next, and then the request
+	 * is cleared.
+	 * Unlike {@link Thread#interrupt()}, the thread running the engine
+	 * need not be known.
+	 */
+	public void abort() {
+		abortRequested = true;
+	}
+
+	/**
+	 * Cancel the abort request which is not consumed yet.
+	 */
+	public void clearAbort() {
+		abortRequested = false;
+	}
+
+	/**
+	 * Create a lightweight context for a request.
+	 * A context has its own Lua thread (stack) and global environment.
+	 * Global reads fall back to the engine globals, and global writes
+	 * stay in the context. Libraries and functions of the engine are
+	 * shared, so creating a context is much cheaper than a new engine.
+	 *
+	 * Tables in the engine globals (e.g. string) are shared and can be
+	 * modified from contexts. The engine cannot be cloned by
+	 * {@link LuaEngineTemplate} while it has open contexts.
+	 * @return New context. The caller must close it.
+	 * @throws LuaException A Lua error occurred.
+	 */
+	public LuaContext newContext() throws LuaException {
+		int prev = enterContext(0);
+		try {
+			int[] result = new int[1];
+			checkLuaError(newContext(peer, true, result));
+			return new LuaContext(this, result[0]);
+		}
+		finally {
+			leaveContext(prev);
+		}
+	}
+
+	// for LuaContext
+	// switch the native current thread and return the previous context
+	// must be paired with leaveContext(prev)
+	int enterContext(int ref) {
+		if (peer == 0) {
+			throw new IllegalStateException("LuaEngine is closed");
+		}
+		int prev = currentContext;
+		if (setContext(peer, ref) != LUA_OK) {
+			throw new IllegalStateException("Invalid context");
+		}
+		savedContexts.push(prev);
+		currentContext = ref;
+		return prev;
+	}
+
+	// restore the native current thread saved by enterContext()
+	// (it is the calling coroutine during a LuaFunction call)
+	void leaveContext(int prev) {
+		restoreContext(peer);
+		savedContexts.pop();
+		currentContext = prev;
+	}
+
+	void closeContext(int ref) throws LuaException {
+		if (peer == 0) {
+			// already destroyed with the engine
+			return;
+		}
+		if (ref == currentContext || savedContexts.contains(ref)) {
+			throw new IllegalStateException("Context is running");
+		}
+		int prev = enterContext(0);
+		try {
+			checkLuaError(deleteContext(peer, ref));
+		}
+		finally {
+			leaveContext(prev);
+		}
+	}
+
+	// for LuaExecutor
+	// a script running in its own coroutine
+	static final class AsyncRun {
+		private final int context;
+		// argument count for the first resume
+		private int startArgs;
+		// yielded by a LuaAsyncFunction (not by coroutine.yield)
+		private CompletableFuture<Object[]> pending = null;
+		// yielded because the time slice is over
+		private boolean preempted = false;
+		// returned, failed or closed
+		private boolean finished = false;
+		private Object[] results = null;
+
+		private AsyncRun(int context, int startArgs) {
+			this.context = context;
+			this.startArgs = startArgs;
+		}
+
+		// null if yielded by coroutine.yield or preemption
+		public CompletableFuture<Object[]> getPending() {
+			return pending;
+		}
+
+		public boolean isPreempted() {
+			return preempted;
+		}
+
+		public boolean isFinished() {
+			return finished;
+		}
+
+		public Object[] getResults() {
+			return results;
+		}
+	}
+
+	// load a chunk into a new coroutine (globals are shared)
+	AsyncRun startAsync(String buf, String chunkName) throws LuaException {
+		int ref = newAsyncContext();
+		boolean ok = false;
+		int prev = enterContext(ref);
+		try {
+			checkLuaError(loadWithTrace(buf, chunkName));
+			ok = true;
+		}
+		finally {
+			leaveContext(prev);
+			if (!ok) {
+				closeContext(ref);
+			}
+		}
+		return new AsyncRun(ref, 0);
+	}
+
+	// push a global function call into a new coroutine
+	AsyncRun startAsyncCall(String name, Object[] params) throws LuaException {
+		int ref = newAsyncContext();
+		boolean ok = false;
+		int prev = enterContext(ref);
+		try {
+			checkLuaError(getGlobal(peer, name));
+			checkLuaError(pushValues(peer, params));
+			ok = true;
+		}
+		finally {
+			leaveContext(prev);
+			if (!ok) {
+				closeContext(ref);
+			}
+		}
+		return new AsyncRun(ref, params.length);
+	}
+
+	private int newAsyncContext() throws LuaException {
+		int prev = enterContext(0);
+		try {
+			int[] result = new int[1];
+			checkLuaError(newContext(peer, false, result));
+			return result[0];
+		}
+		finally {
+			leaveContext(prev);
+		}
+	}
+
+	// resume until the next yield and return true if finished
+	// values or error is the result of the pending LuaAsyncFunction
+	// the coroutine is closed when finished or failed
+	boolean resumeAsync(AsyncRun run, Object[] values, String error)
+			throws LuaException {
+		return resumeAsync(run, values, error, 0);
+	}
+
+	// sliceInstructions: preempt after about this count (0: unlimited)
+	boolean resumeAsync(AsyncRun run, Object[] values, String error,
+			long sliceInstructions) throws LuaException {
+		Object[] args = new Object[0];
+		if (run.pending != null) {
+			args = asyncResult(values, error);
+			run.pending = null;
+		}
+		return resumeRun(run, args, sliceInstructions);
+	}
+
+	// for LuaCoroutine
+	// resume with args and return values passed to yield or return
+	// LuaAsyncFunction in the coroutine blocks until its result
+	Object[] resumeCoroutine(AsyncRun run, Object[] args) throws LuaException {
+		while (!resumeRun(run, args, 0)) {
+			CompletableFuture<Object[]> pending = run.pending;
+			if (pending == null) {
+				// coroutine.yield
+				return run.results;
+			}
+			run.pending = null;
+			boolean ok = false;
+			try {
+				try {
+					args = asyncResult(AsyncFunctionAdapter.await(pending), null);
+				}
+				catch (LuaRuntimeException e) {
+					// Lua error at the call
+					String msg = e.getMessage();
+					args = asyncResult(null, (msg != null) ? msg : e.toString());
+				}
+				ok = true;
+			}
+			finally {
+				if (!ok) {
+					closeAsync(run);
+				}
+			}
+		}
+		return run.results;
+	}
+
+	// resume arguments of a yielded LuaAsyncFunction call
+	// (true, results...) or (false, msg)
+	private static Object[] asyncResult(Object[] values, String error) {
+		if (error != null) {
+			return new Object[] { false, error };
+		}
+		int n = (values != null) ? values.length : 0;
+		Object[] args = new Object[1 + n];
+		args[0] = true;
+		if (n != 0) {
+			System.arraycopy(values, 0, args, 1, n);
+		}
+		return args;
+	}
+
+	// resume until the next yield and return true if finished
+	// yielded or returned values are in run.results
+	// the coroutine is closed when finished or failed
+	private boolean resumeRun(AsyncRun run, Object[] args,
+			long sliceInstructions) throws LuaException {
+		boolean finished = true;
+		int prev = enterContext(run.context);
+		try {
+			int nargs = run.startArgs + args.length;
+			run.startArgs = 0;
+			run.preempted = false;
+			run.results = null;
+			if (args.length != 0) {
+				checkLuaError(pushValues(peer, args));
+			}
+			pendingStage = null;
+			// the hook is called every intrInstCount instructions
+			long hooks = (sliceInstructions > 0) ?
+					(sliceInstructions + intrInstCount - 1) / intrInstCount : 0;
+			sliceHooks = hooks;
+			sliceUsed = 0;
+			int ret;
+			try {
+				ret = resume(peer, nargs);
+				flushSink(false);
+			}
+			finally {
+				sliceHooks = 0;
+				flushSink(true);
+			}
+			if (ret == LUA_YIELD) {
+				run.pending = pendingStage;
+				run.preempted = (pendingStage == null) &&
+						(hooks > 0) && (sliceUsed >= hooks);
+				pendingStage = null;
+				// values passed to coroutine.yield
+				run.results = popStackAll();
+				finished = false;
+				return false;
+			}
+			checkLuaError(ret);
+			run.results = popStackAll();
+			return true;
+		}
+		finally {
+			leaveContext(prev);
+			if (finished) {
+				run.finished = true;
+				closeContext(run.context);
+			}
+		}
+	}
+
+	// discard a suspended coroutine
+	void closeAsync(AsyncRun run) throws LuaException {
+		run.pending = null;
+		run.finished = true;
+		closeContext(run.context);
+	}
+
+	/**
+	 * Create a coroutine of a Lua global function.
+	 * The coroutine has its own Lua thread and shares the engine globals.
+	 * @param name Global variable name.
+	 * @return New coroutine. It should be closed if it is not finished.
+	 * @throws LuaException A Lua error occurred.
+	 * @see LuaCoroutine
+	 */
+	public LuaCoroutine newCoroutine(String name) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		return new LuaCoroutine(this, startAsyncCall(name, new Object[0]));
+	}
+
+	/**
+	 * Set activity tracer for profiling.
+	 * @param tracer Tracer. null to disable.
+	 */
+	public void setTracer(LuaTracer tracer) {
+		this.tracer = tracer;
+		if (tracer != null) {
+			tracedGcCycles = updateStatistics()[STAT_GC_CYCLES];
+		}
+	}
+
+	/**
+	 * Set Lua standard print() function callback.
+	 * Lua print() func is replaced automatically by this engine.
+	 * @param print Print callback.
+	 */
+	public void setPrintFunction(LuaPrint print) {
+		this.print = print;
+	}
+
+	/**
+	 * Set Lua global function emit(...) which sends rows to sink
+	 * with {@link #DEFAULT_SINK_BUFFER_SIZE}.
+	 * @param sink Row receiver. null removes emit.
+	 * @throws LuaException Lua error.
+	 * @see #setSink(LuaSink, int)
+	 */
+	public void setSink(LuaSink sink) throws LuaException {
+		setSink(sink, DEFAULT_SINK_BUFFER_SIZE);
+	}
+
+	/**
+	 * Set Lua global function emit(...) which sends rows to sink.
+	 *
+	 * emit(...) appends its arguments as a row to a native buffer, so it
+	 * is much cheaper than calling a {@link LuaFunction} for each row.
+	 * The rows are flushed to sink when the buffer is full, and when a
+	 * call from Java returns. Rows are discarded if the call is aborted
+	 * by a Java exception.
+	 * @param sink Row receiver. null removes emit.
+	 * @param bufferSize Buffer size in bytes. A row must fit in it.
+	 * @throws LuaException Lua error.
+	 * @see LuaSink
+	 */
+	public void setSink(LuaSink sink, int bufferSize) throws LuaException {
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize=" + bufferSize);
+		}
+		if (sink == null) {
+			checkLuaError(setSink(peer, null, null));
+			this.sink = null;
+			return;
+		}
+		ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+		buffer.order(ByteOrder.nativeOrder());
+		checkLuaError(setSink(peer, buffer, new SinkFlushImpl(sink, buffer)));
+		this.sink = sink;
+	}
+
+	// rows emitted during a call from Java
+	private void flushSink(boolean discard)
+			throws LuaRuntimeException, LuaAbortException {
+		if (sink != null) {
+			flushSink(peer, discard);
+		}
+	}
+
+	/**
+	 * Create a new empty table, and set it to global variable.
+	 * @param table Global variable name.
+	 * @throws LuaException Lua error.
+	 */
+	public void addLibTable(String table) throws LuaException {
+		checkLuaError(pushNewTable(peer, 0, 0));
+		checkLuaError(setGlobal(peer, table));
+	}
+
+	/**
+	 * Get a Lua global variable.
+	 * @param name Global variable name.
+	 * @return Value.
+	 * @throws LuaException Lua error.
+	 */
+	public Object getGlobalVariable(String name) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+
+		checkLuaError(getGlobal(peer, name));
+		return popStack(1)[0];
+	}
+
+	/**
+	 * Get the contents of a strbuf in a Lua global variable.
+	 * The bytes are copied from the native buffer into a new direct buffer
+	 * without creating a Lua string.
+	 * @param name Global variable name.
+	 * @return Buffer of the contents (position is 0).
+	 * @throws LuaException The variable is not a strbuf, or Lua error.
+	 * @see LuaStdLib#STRBUF
+	 */
+	public ByteBuffer getStrBuf(String name) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+
+		checkLuaError(getGlobal(peer, name));
+		try {
+			long length = getStrBufLength(peer);
+			if (length < 0) {
+				throw new LuaRuntimeException(name + " is not a strbuf");
+			}
+			if (length > Integer.MAX_VALUE) {
+				throw new LuaRuntimeException(name + " is too large: " + length);
+			}
+			ByteBuffer dst = ByteBuffer.allocateDirect((int)length);
+			copyStrBuf(peer, dst);
+			return dst;
+		}
+		finally {
+			setTop(peer, getTop(peer) - 1);
+		}
+	}
+
+	/**
+	 * Get the elements of a numarray in a Lua global variable.
+	 * The elements are copied once from the userdata into a new array.
+	 * @param name Global variable name.
+	 * @return double[] for a double array, or long[] for an int64 array.
+	 * @throws LuaException The variable is not a numarray, or Lua error.
+	 * @see LuaStdLib#NUMARRAY
+	 */
+	public Object getNumArray(String name) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+
+		checkLuaError(getGlobal(peer, name));
+		try {
+			Object array = toNumArray(peer);
+			if (array == null) {
+				throw new LuaRuntimeException(name + " is not a numarray");
+			}
+			return array;
+		}
+		finally {
+			setTop(peer, getTop(peer) - 1);
+		}
+	}
+
+	/**
+	 * Set a Lua global variable.
+	 *
+	 * A direct ByteBuffer (including MappedByteBuffer) is set as a bytes
+	 * view of its position to limit without copying. Writes from Lua are
+	 * visible to Java, and the buffer is kept reachable while the view is
+	 * alive. A read-only buffer makes a read-only view.
+	 * {@link LuaStdLib#BYTES} must be opened for it, otherwise
+	 * IllegalArgumentException is thrown.
+	 * @param name Global variable name.
+	 * @param value Value.
+	 * @throws LuaException Lua error.
+	 * @see LuaStdLib#BYTES
+	 */
+	public void addGlobalVariable(String name, Object value)
+			throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+
+		checkLuaError(pushValues(peer, new Object[] { value }));
+		checkLuaError(setGlobal(peer, name));
+	}
+
+	/**
+	 * Set a double numarray to a Lua global variable.
+	 * The elements are copied once into the userdata without creating a
+	 * Lua table.
+	 * @param name Global variable name.
+	 * @param values Elements.
+	 * @throws LuaException Lua error. (e.g. memory limit)
+	 * @see LuaStdLib#NUMARRAY
+	 */
+	public void addNumArray(String name, double[] values)
+			throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (values == null) {
+			throw new NullPointerException("values");
+		}
+
+		checkLuaError(pushNumArray(peer, NUMARRAY_TYPE_DOUBLE, values));
+		checkLuaError(setGlobal(peer, name));
+	}
+
+	/**
+	 * Set an int64 numarray to a Lua global variable.
+	 * The elements are copied once into the userdata without creating a
+	 * Lua table.
+	 * @param name Global variable name.
+	 * @param values Elements.
+	 * @throws LuaException Lua error. (e.g. memory limit)
+	 * @see LuaStdLib#NUMARRAY
+	 */
+	public void addNumArray(String name, long[] values)
+			throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (values == null) {
+			throw new NullPointerException("values");
+		}
+
+		checkLuaError(pushNumArray(peer, NUMARRAY_TYPE_INT64, values));
+		checkLuaError(setGlobal(peer, name));
+	}
+
+	/**
+	 * Load a CSV/TSV file into a Lua global variable as a table.
+	 *
+	 * The file is memory-mapped and the table is built directly in native
+	 * code with typed field parsing, so neither Lua source code nor the
+	 * Lua parser is involved. The mapping is released by GC.
+	 * @param name Global variable name.
+	 * @param file CSV/TSV file. (less than 2GB)
+	 * @param schema Columns and file format.
+	 * @return Loaded row count.
+	 * @throws LuaException Field format error or other Lua error.
+	 * (e.g. memory limit)
+	 * @throws IOException Read error.
+	 * @see LuaTableSchema
+	 */
+	public int loadTable(String name, Path file, LuaTableSchema schema)
+			throws LuaException, IOException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (file == null) {
+			throw new NullPointerException("file");
+		}
+		if (schema == null) {
+			throw new NullPointerException("schema");
+		}
+
+		MappedByteBuffer data;
+		try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+			long size = ch.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("File is too large: " + size);
+			}
+			data = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+		}
+		Path fileName = file.getFileName();
+		int[] rows = new int[1];
+		// push table
+		checkLuaError(loadTable(peer, data,
+				(fileName != null) ? fileName.toString() : file.toString(),
+				schema.names(), schema.types(), schema.getDelimiter(),
+				schema.hasHeader(), schema.isColumnar(), rows));
+		// pop table
+		checkLuaError(setGlobal(peer, name));
+		return rows[0];
+	}
+
+	/**
+	 * Set a value to a field in a table.
+	 * table["name"] = value.
+	 * @param table Global table variable name.
+	 * @param name Table key.
+	 * @param value Value.
+	 * @throws LuaException Lua error.
+	 */
+	public void addLibVariable(String table, String name, Object value)
+			throws LuaException {
+		if (table == null) {
+			throw new NullPointerException("table");
+		}
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		// push _G["table"]
+		checkLuaError(getGlobal(peer, table));
+		// push value
+		checkLuaError(pushValues(peer, new Object[] { value }));
+		// table[name] = value (pop value)
+		checkLuaError(setTableField(peer, name));
+		// pop table
+		setTop(peer, getTop(peer) - 1);
+	}
+
+	/**
+	 * Set a function to a global variable.
+	 * @param name Global variable name.
+	 * @param func Function to be called.
+	 * @param args Function arguments check and conversion rules.
+	 * @throws LuaException Lua error.
+	 */
+	public void addGlobalFunction(String name, LuaFunction func,
+			LuaArg... args) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (func == null) {
+			throw new NullPointerException("func");
+		}
+		if (args == null) {
+			throw new NullPointerException("args");
+		}
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] == null) {
+				throw new NullPointerException("args");
+			}
+			if (i != 0 && args[i].isAny()) {
+				throw new IllegalArgumentException("Any must be first");
+			}
+			if (i != args.length - 1 && args[i].isVarArgs()) {
+				throw new IllegalArgumentException("VarArgs must be last");
+			}
+		}
+
+		int id = functionList.size();
+		functionList.add(func);
+		argsList.add((LuaArg[])args.clone());
+		nameList.add(name);
+
+		checkLuaError(pushProxyFunction(peer, id));
+		checkLuaError(setGlobal(peer, name));
+	}
+
+	/**
+	 * Set an asynchronous function to a global variable.
+	 * @param name Global variable name.
+	 * @param func Function to be called.
+	 * @param args Function arguments check and conversion rules.
+	 * @throws LuaException Lua error.
+	 * @see LuaAsyncFunction
+	 */
+	public void addGlobalAsyncFunction(String name, LuaAsyncFunction func,
+			LuaArg... args) throws LuaException {
+		if (func == null) {
+			throw new NullPointerException("func");
+		}
+		addGlobalFunction(name, new AsyncFunctionAdapter(func), args);
+	}
+
+	/**
+	 * Set a function to a field in a table.
+	 * table["name"] = func.
+	 * @param table Global table variable name.
+	 * @param name Table key.
+	 * @param func Function to be called.
+	 * @param args Function arguments check and conversion rules.
+	 * @throws LuaException Lua error.
+	 */
+	public void addLibFunction(String table, String name,
+			LuaFunction func, LuaArg... args) throws LuaException {
+		if (table == null) throw new NullPointerException("table");
+		if (name == null) throw new NullPointerException("name");
+		if (func == null) throw new NullPointerException("func");
+		if (args == null) throw new NullPointerException("args");
+		for (int i = 0; i < args.length; i++) {
+			if (args[i] == null) {
+				throw new NullPointerException("args");
+			}
+			if (i != 0 && args[i] == LuaArg.ANY) {
+				throw new IllegalArgumentException("args[not 0] cannot be ANY");
+			}
+		}
+
+		int id = functionList.size();
+		functionList.add(func);
+		argsList.add((LuaArg[])args.clone());
+		nameList.add(table + "." + name);
+
+		// push _G["table"]
+		checkLuaError(getGlobal(peer, table));
+		// push function
+		checkLuaError(pushProxyFunction(peer, id));
+		// table[name] = function (pop function)
+		checkLuaError(setTableField(peer, name));
+		// pop table
+		setTop(peer, getTop(peer) - 1);
+	}
+
+	/**
+	 * Set an asynchronous function to a field in a table.
+	 * table["name"] = func.
+	 * @param table Global table variable name.
+	 * @param name Table key.
+	 * @param func Function to be called.
+	 * @param args Function arguments check and conversion rules.
+	 * @throws LuaException Lua error.
+	 * @see LuaAsyncFunction
+	 */
+	public void addLibAsyncFunction(String table, String name,
+			LuaAsyncFunction func, LuaArg... args) throws LuaException {
+		if (func == null) throw new NullPointerException("func");
+		addLibFunction(table, name, new AsyncFunctionAdapter(func), args);
+	}
+
+	/**
+	 * Call Lua global function.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Return values.
+	 * @throws LuaException Lua error.
+	 */
+	public Object[] callGlobalFunction(
+			String name, Object... params) throws LuaException {
+		return callGlobalFunction(null, name, params);
+	}
+
+	/**
+	 * Call Lua global function with debug hook.
+	 * @param hook Debug hook.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Return values.
+	 * @throws LuaException Lua error.
+	 */
+	public Object[] callGlobalFunction(
+			LuaHook hook, String name, Object... params) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (params == null) {
+			throw new NullPointerException("params");
+		}
+		if (getTop(peer) != 0) {
+			throw new IllegalStateException("stack not empty");
+		}
+
+		// push global
+		checkLuaError(getGlobal(peer, name));
+		// push parameters
+		checkLuaError(pushValues(peer, params));
+		// pcall
+		checkLuaError(pcallWithHook(hook, name, params.length, LUA_MULTRET, 0));
+		// pop results
+		Object[] results = popStackAll();
+
+		return results;
+	}
+
+	/**
+	 * Call Lua global function for each argument set.
+	 *
+	 * All calls are made in one native call, so this is much faster than
+	 * calling {@link #callGlobalFunction(String, Object...)} many times.
+	 * A Lua error in a row does not stop the batch. The result of the row
+	 * is null and its error message is set to errors.
+	 * {@link LuaAbortException} and Java exceptions stop the batch.
+	 * @param name Global variable name.
+	 * @param argSets Parameters of each call.
+	 * @param errors Error message of each row (null if succeeded) or null.
+	 * @return Return values of each call.
+	 * @throws LuaException Lua error except runtime errors of rows.
+	 */
+	public Object[][] callBatch(String name, Object[][] argSets,
+			String[] errors) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (argSets == null) {
+			throw new NullPointerException("argSets");
+		}
+		for (Object[] args : argSets) {
+			if (args == null) {
+				throw new NullPointerException("argSets");
+			}
+		}
+		if (errors != null && errors.length < argSets.length) {
+			throw new IllegalArgumentException("errors is too short");
+		}
+		if (getTop(peer) != 0) {
+			throw new IllegalStateException("stack not empty");
+		}
+
+		Object[][] results = new Object[argSets.length][];
+		callBatchWithTrace(name, null, argSets, results,
+				0, null, null, null, 0, errors);
+		return results;
+	}
+
+	/**
+	 * Call a chunk for each argument set.
+	 * @param chunk Lua chunk.
+	 * @param argSets Parameters of each call.
+	 * @param errors Error message of each row (null if succeeded) or null.
+	 * @return Return values of each call.
+	 * @throws LuaException Lua error except runtime errors of rows.
+	 * @see #callBatch(String, Object[][], String[])
+	 */
+	public Object[][] callBatch(LuaChunk chunk, Object[][] argSets,
+			String[] errors) throws LuaException {
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		if (argSets == null) {
+			throw new NullPointerException("argSets");
+		}
+		for (Object[] args : argSets) {
+			if (args == null) {
+				throw new NullPointerException("argSets");
+			}
+		}
+		if (errors != null && errors.length < argSets.length) {
+			throw new IllegalArgumentException("errors is too short");
+		}
+		if (getTop(peer) != 0) {
+			throw new IllegalStateException("stack not empty");
+		}
+
+		Object[][] results = new Object[argSets.length][];
+		callBatchWithTrace(chunk.getChunkName(), chunk, argSets, results,
+				0, null, null, null, 0, errors);
+		return results;
+	}
+
+	/**
+	 * Call Lua global function for each row of argument columns.
+	 *
+	 * Columns are double[], long[], boolean[] or String[], and the i-th
+	 * call receives the i-th element of each column.
+	 * long is passed as Lua integer.
+	 * The first return value is written to the out column, which is also
+	 * one of the types above. A row fails if the value cannot be converted
+	 * (e.g. nil for double[]). Buffers can be reused among batches.
+	 *
+	 * All calls are made in one native call without boxing. A Lua error in
+	 * a row does not stop the batch. The out element of the row is not
+	 * changed and its error message is set to errors.
+	 * {@link LuaAbortException} and Java exceptions stop the batch.
+	 * @param name Global variable name.
+	 * @param rows Row count. Each column must be longer than or equal to it.
+	 * @param columns Argument columns.
+	 * @param out Column of the first return values, or null.
+	 * @param errors Error message of each row (null if succeeded) or null.
+	 * @return Failed row count.
+	 * @throws LuaException Lua error except runtime errors of rows.
+	 */
+	public int callBatchColumns(String name, int rows, Object[] columns,
+			Object out, String[] errors) throws LuaException {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (columns == null) {
+			throw new NullPointerException("columns");
+		}
+		if (rows < 0) {
+			throw new IllegalArgumentException("rows=" + rows);
+		}
+		int[] columnTypes = new int[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			columnTypes[i] = getColumnType(columns[i], rows);
+		}
+		int outType = (out != null) ? getColumnType(out, rows) : 0;
+		if (errors != null && errors.length < rows) {
+			throw new IllegalArgumentException("errors is too short");
+		}
+		if (getTop(peer) != 0) {
+			throw new IllegalStateException("stack not empty");
+		}
+
+		return callBatchWithTrace(name, null, null, null,
+				rows, columns, columnTypes, out, outType, errors);
+	}
+
+	/**
+	 * Transform records with Lua global function lazily
+	 * with {@link #DEFAULT_PIPE_BATCH_SIZE}.
+	 * @param name Global variable name.
+	 * @param input Parameters of each call.
+	 * @return Stream of return values of each call.
+	 * @see #pipe(String, Iterator, int)
+	 */
+	public Stream<Object[]> pipe(String name, Iterator<Object[]> input) {
+		return pipe(name, input, DEFAULT_PIPE_BATCH_SIZE);
+	}
+
+	/**
+	 * Transform records with Lua global function lazily.
+	 *
+	 * Records are pulled from input only when the stream needs more
+	 * results, and batchSize records are passed to
+	 * {@link #callBatch(String, Object[][], String[])} at once.
+	 * So at most one batch of records and results is in memory.
+	 *
+	 * The stream is sequential and must be consumed by the thread which
+	 * uses this engine. Lua errors are thrown as
+	 * {@link UncheckedLuaException}, including a runtime error of a row.
+	 * @param name Global variable name.
+	 * @param input Parameters of each call.
+	 * @param batchSize Max record count of one batch.
+	 * @return Stream of return values of each call.
+	 */
+	public Stream<Object[]> pipe(String name, Iterator<Object[]> input,
+			int batchSize) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (input == null) {
+			throw new NullPointerException("input");
+		}
+		if (batchSize <= 0) {
+			throw new IllegalArgumentException("batchSize=" + batchSize);
+		}
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+				new PipeIterator(name, input, batchSize),
+				Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	private class PipeIterator implements Iterator<Object[]> {
+		private final String name;
+		private final Iterator<Object[]> input;
+		// reused by all batches
+		private final Object[][] argSets;
+		private final String[] errors;
+		private Object[][] results = new Object[0][];
+		private int pos = 0;
+
+		public PipeIterator(String name, Iterator<Object[]> input,
+				int batchSize) {
+			this.name = name;
+			this.input = input;
+			this.argSets = new Object[batchSize][];
+			this.errors = new String[batchSize];
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (pos < results.length) {
+				return true;
+			}
+			int n = 0;
+			while (n < argSets.length && input.hasNext()) {
+				argSets[n++] = input.next();
+			}
+			if (n == 0) {
+				return false;
+			}
+			Object[][] batch = (n == argSets.length) ?
+					argSets : Arrays.copyOf(argSets, n);
+			Arrays.fill(errors, null);
+			try {
+				results = callBatch(name, batch, errors);
+			}
+			catch (LuaException e) {
+				throw new UncheckedLuaException(e);
+			}
+			finally {
+				Arrays.fill(argSets, null);
+			}
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public Object[] next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			int i = pos++;
+			if (errors[i] != null) {
+				throw new UncheckedLuaException(new LuaRuntimeException(
+						"runtime error: " + errors[i]));
+			}
+			Object[] result = results[i];
+			results[i] = null;
+			return result;
+		}
+
+		@Override
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	private static int getColumnType(Object column, int rows) {
+		int type;
+		int length;
+		if (column instanceof double[]) {
+			type = COLUMN_DOUBLE;
+			length = ((double[])column).length;
+		}
+		else if (column instanceof long[]) {
+			type = COLUMN_LONG;
+			length = ((long[])column).length;
+		}
+		else if (column instanceof boolean[]) {
+			type = COLUMN_BOOLEAN;
+			length = ((boolean[])column).length;
+		}
+		else if (column instanceof String[]) {
+			type = COLUMN_STRING;
+			length = ((String[])column).length;
+		}
+		else if (column == null) {
+			throw new NullPointerException("column");
+		}
+		else {
+			throw new IllegalArgumentException(
+					"Invalid column type: " + column.getClass().getName());
+		}
+		if (length < rows) {
+			throw new IllegalArgumentException("column is too short");
+		}
+		return type;
+	}
+
+	// traced as one execution
+	// call chunk if not null, or global name
+	private int callBatchWithTrace(String name, LuaChunk chunk,
+			Object[][] argSets, Object[][] results,
+			int rows, Object[] columns, int[] columnTypes,
+			Object out, int outType, String[] errors) throws LuaException {
+		LuaTracer tracer = this.tracer;
+		Object context = (tracer != null) ? tracer.executeBegin(name) : null;
+		long hookCountBefore = hookCount;
+		long memoryBefore = (context != null) ?
+				updateStatistics()[STAT_MEMORY_USED] : 0;
+
+		int[] failed = new int[1];
+		int ret = LUA_ERRRUN;
+		try {
+			if (chunk != null) {
+				pushChunkFunction(chunk);
+			}
+			else {
+				checkLuaError(getGlobal(peer, name));
+			}
+			if (argSets != null) {
+				ret = callBatch(peer, argSets, results, errors, failed);
+			}
+			else {
+				ret = callBatchColumns(peer, rows, columns, columnTypes,
+						out, outType, errors, failed);
+			}
+			flushSink(false);
+			checkLuaError(ret);
+			return failed[0];
+		}
+		finally {
+			// the stack is left on a Java exception
+			setTop(peer, 0);
+			flushSink(true);
+			if (tracer != null) {
+				long[] stats = updateStatistics();
+				if (context != null) {
+					tracer.executeEnd(context,
+							(hookCount - hookCountBefore) * intrInstCount,
+							stats[STAT_MEMORY_USED] - memoryBefore,
+							ret == LUA_OK);
+				}
+				traceGcCycles(tracer, stats);
+			}
+		}
+	}
+	/**
+	 * Call a chunk.
+	 * The chunk is compiled only at the first call in this engine.
+	 * @param chunk Lua chunk.
+	 * @param params Parameters. (... in the chunk)
+	 * @return Return values.
+	 * @throws LuaException Lua error.
+	 */
+	public Object[] callChunk(LuaChunk chunk, Object... params)
+			throws LuaException {
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		if (params == null) {
+			throw new NullPointerException("params");
+		}
+		if (getTop(peer) != 0) {
+			throw new IllegalStateException("stack not empty");
+		}
+
+		pushChunkFunction(chunk);
+		checkLuaError(pushValues(peer, params));
+		checkLuaError(pcallWithHook(null, chunk.getChunkName(),
+				params.length, LUA_MULTRET, 0));
+		return popStackAll();
+	}
+
+	/**
+	 * Compile Lua program code read from a channel.
+	 * The code is read in blocks into a reused native buffer, so the whole
+	 * code is never held in memory as a String.
+	 * The channel is not closed. It should be a blocking channel.
+	 * @param in Lua source code (UTF-8).
+	 * @param chunkName It will be used at error message.
+	 * @return Chunk which can be called only by this engine.
+	 * @throws LuaException Syntax or other error.
+	 * @throws IOException Read error.
+	 * @see #callChunk(LuaChunk, Object...)
+	 */
+	public LuaChunk compile(final ReadableByteChannel in, String chunkName)
+			throws LuaException, IOException {
+		if (in == null) {
+			throw new NullPointerException("in");
+		}
+		final ByteBuffer buffer = getLoadBuffer();
+		return compileStream(new ChunkReader() {
+			@Override
+			public int read() throws IOException {
+				buffer.clear();
+				int n;
+				do {
+					n = in.read(buffer);
+				} while (n == 0);
+				return n;
+			}
+		}, chunkName);
+	}
+
+	/**
+	 * Compile Lua program code read from a stream.
+	 * The stream is not closed.
+	 * @param in Lua source code (UTF-8).
+	 * @param chunkName It will be used at error message.
+	 * @return Chunk which can be called only by this engine.
+	 * @throws LuaException Syntax or other error.
+	 * @throws IOException Read error.
+	 * @see #compile(ReadableByteChannel, String)
+	 */
+	public LuaChunk compile(InputStream in, String chunkName)
+			throws LuaException, IOException {
+		if (in == null) {
+			throw new NullPointerException("in");
+		}
+		return compile(Channels.newChannel(in), chunkName);
+	}
+
+	/**
+	 * Compile Lua program code read from a reader.
+	 * Characters are encoded to UTF-8 block by block.
+	 * The reader is not closed.
+	 * @param in Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @return Chunk which can be called only by this engine.
+	 * @throws LuaException Syntax or other error.
+	 * @throws IOException Read error.
+	 * @see #compile(ReadableByteChannel, String)
+	 */
+	public LuaChunk compile(final Reader in, String chunkName)
+			throws LuaException, IOException {
+		if (in == null) {
+			throw new NullPointerException("in");
+		}
+		final ByteBuffer buffer = getLoadBuffer();
+		final CharBuffer chars = CharBuffer.allocate(LOAD_BUFFER_SIZE / 4);
+		chars.flip();
+		final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+		return compileStream(new ChunkReader() {
+			private boolean eof = false;
+			private boolean flushed = false;
+
+			@Override
+			public int read() throws IOException {
+				buffer.clear();
+				while (!flushed) {
+					CoderResult result = encoder.encode(chars, buffer, eof);
+					if (result.isError()) {
+						result.throwException();
+					}
+					if (result.isOverflow()) {
+						return buffer.position();
+					}
+					if (eof) {
+						// UTF-8 encoder has no state to flush
+						encoder.flush(buffer);
+						flushed = true;
+						break;
+					}
+					// underflow: read more characters
+					chars.compact();
+					eof = in.read(chars) < 0;
+					chars.flip();
+				}
+				return (buffer.position() > 0) ? buffer.position() : -1;
+			}
+		}, chunkName);
+	}
+
+	private LuaChunk compileStream(ChunkReader reader, String chunkName)
+			throws LuaException, IOException {
+		if (chunkName == null) {
+			throw new NullPointerException("chunkName");
+		}
+		LuaChunk chunk = new LuaChunk(chunkName);
+		LuaTracer tracer = this.tracer;
+		Object context = (tracer != null) ? tracer.compileBegin(chunkName) : null;
+		int ret = LUA_ERRRUN;
+		try {
+			ret = loadStream(peer, chunkName, loadBuffer, reader);
+		}
+		finally {
+			if (context != null) {
+				tracer.compileEnd(context, ret == LUA_OK);
+			}
+		}
+		checkLuaError(ret);
+		checkLuaError(setChunk(peer, chunk.getId()));
+		return chunk;
+	}
+
+	private ByteBuffer getLoadBuffer() {
+		if (loadBuffer == null) {
+			loadBuffer = ByteBuffer.allocateDirect(LOAD_BUFFER_SIZE);
+		}
+		return loadBuffer;
+	}
+
+	/**
+	 * Remove the compiled function of the chunk from this engine.
+	 * Compiled chunks are kept until the engine is closed, so call this
+	 * for a chunk which is no longer used (e.g. compiled per request).
+	 * The function and its constants become garbage.
+	 *
+	 * A chunk with source code is compiled again at the next call.
+	 * A chunk from {@link #compile(Reader, String)} etc. cannot be called
+	 * any more.
+	 * Nothing happens if the chunk is not compiled in this engine.
+	 * @param chunk Chunk.
+	 * @throws LuaException Lua error.
+	 */
+	public void releaseChunk(LuaChunk chunk) throws LuaException {
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		checkLuaError(releaseChunk(peer, chunk.getId()));
+	}
+
+	// push the compiled chunk, compile it if needed
+	private void pushChunkFunction(LuaChunk chunk) throws LuaException {
+		if (pushChunk(peer, chunk.getId())) {
+			return;
+		}
+		if (chunk.getSource() == null) {
+			throw new IllegalStateException(
+					"The chunk is compiled by another engine or released");
+		}
+		checkLuaError(loadWithTrace(chunk.getSource(), chunk.getChunkName()));
+		checkLuaError(setChunk(peer, chunk.getId()));
+		if (!pushChunk(peer, chunk.getId())) {
+			throw new IllegalStateException("chunk not found");
+		}
+	}
+
+	public long getPeerForDebug() {
+		return peer;
+	}
+
+	/**
+	 * Execute string as Lua program code.
 	 * @param buf Lua source code.
 	 * @param chunkName It will be used at error message.
 	 * @throws LuaException Syntax or Runtime or other error.
@@ -660,9 +2344,9 @@ public class LuaEngine implements AutoCloseable {
 	public void execString(LuaHook hook, String buf, String chunkName)
 			throws LuaException {
 		// push chunk function
-		checkLuaError(loadString(peer, buf, chunkName));
+		checkLuaError(loadWithTrace(buf, chunkName));
 		// pcall nargs=0, nresults=0
-		checkLuaError(pcallWithHook(hook, 0, 0, 0));
+		checkLuaError(pcallWithHook(hook, chunkName, 0, 0, 0));
 	}
 
 	public String dumpLuaStack() {
@@ -697,6 +2381,10 @@ public class LuaEngine implements AutoCloseable {
 			case LUA_ERRSYNTAX:
 				throw new LuaSyntaxException("syntax error: " + getLuaErrorMsg());
 			case LUA_ERRMEM:
+				if (tracer != null) {
+					tracer.memoryLimitHit(nativeMemoryLimit,
+							updateStatistics()[STAT_MEMORY_USED]);
+				}
 				throw new LuaException("memory error");
 			case LUA_ERRGCMM:
 				throw new LuaException("error in gc");
@@ -749,13 +2437,20 @@ public class LuaEngine implements AutoCloseable {
 			if (funcMeta == null) {
 				continue;
 			}
-			LuaFunction func;
+			Object func;
 			try {
-				func = (LuaFunction)(f.get(lib));
+				func = f.get(lib);
 			} catch (IllegalAccessException e) {
 				throw new IllegalArgumentException("Invalid library implementation", e);
 			}
-			addLibFunction(table, funcMeta.name(), func, funcMeta.args());
+			if (func instanceof LuaAsyncFunction) {
+				addLibAsyncFunction(table, funcMeta.name(),
+						(LuaAsyncFunction)func, funcMeta.args());
+			}
+			else {
+				addLibFunction(table, funcMeta.name(),
+						(LuaFunction)func, funcMeta.args());
+			}
 		}
 		closeList.push(lib);
 	}
@@ -0,0 +1,17 @@
+package io.github.yappy.lua;
+
+/**
+ * Creates and initializes a new Lua engine for {@link LuaEnginePool}.
+ * @author yappy
+ */
+public interface LuaEngineFactory {
+
+	/**
+	 * Create a new engine.
+	 * Open libraries, register functions and load scripts here.
+	 * @return New engine.
+	 * @throws LuaException A Lua error occurred.
+	 */
+	LuaEngine create() throws LuaException;
+
+}
@@ -0,0 +1,275 @@
+package io.github.yappy.lua;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of initialized Lua engines.
+ *
+ * {@link #borrow()} returns an idle engine or creates a new one with
+ * {@link LuaEngineFactory}. {@link #release(LuaEngine)} returns it to the
+ * pool. The most recently released engine is borrowed first.
+ *
+ * Idle GC ({@link #startIdleGc(long, int, int)}) runs bounded incremental
+ * GC steps for idle engines in a background thread, so that borrowed
+ * engines have little pending GC work.
+ *
+ * This class is thread-safe, but each borrowed engine must be used by
+ * one thread at a time as usual.
+ * @author yappy
+ */
+public class LuaEnginePool implements AutoCloseable {
+
+	/** Default max idle engine count. */
+	public static final int DEFAULT_MAX_IDLE = 16;
+
+	private final LuaEngineFactory factory;
+	private final int maxIdle;
+	// first: most recently released
+	private final Deque<LuaEngine> idle = new ArrayDeque<>();
+	private boolean closed = false;
+
+	private ScheduledExecutorService gcExecutor = null;
+	private int gcStepKb = 0;
+	private int gcMaxSteps = 0;
+	private long gcVisitCount = 0;
+	private long gcStepCount = 0;
+	private long gcCycleCount = 0;
+	private long gcFreedBytes = 0;
+	private long gcTotalNanos = 0;
+
+	/**
+	 * Create a pool with {@link #DEFAULT_MAX_IDLE}.
+	 * @param factory Engine factory.
+	 */
+	public LuaEnginePool(LuaEngineFactory factory) {
+		this(factory, DEFAULT_MAX_IDLE);
+	}
+
+	/**
+	 * Create a pool.
+	 * @param factory Engine factory.
+	 * @param maxIdle Max idle engine count.
+	 * Released engines over this will be closed.
+	 */
+	public LuaEnginePool(LuaEngineFactory factory, int maxIdle) {
+		if (maxIdle < 0) {
+			throw new IllegalArgumentException("maxIdle=" + maxIdle);
+		}
+		this.factory = factory;
+		this.maxIdle = maxIdle;
+	}
+
+	/**
+	 * Stop idle GC and close all idle engines.
+	 * Engines released after this will be closed.
+	 */
+	@Override
+	public void close() {
+		stopIdleGc();
+		synchronized (this) {
+			closed = true;
+			while (!idle.isEmpty()) {
+				idle.pollFirst().close();
+			}
+		}
+	}
+
+	/**
+	 * Get an idle engine or create a new one.
+	 * @return Lua engine.
+	 * @throws LuaException Error in {@link LuaEngineFactory#create()}.
+	 * @throws IllegalStateException Already closed.
+	 */
+	public LuaEngine borrow() throws LuaException {
+		synchronized (this) {
+			if (closed) {
+				throw new IllegalStateException("LuaEnginePool is closed");
+			}
+			LuaEngine engine = idle.pollFirst();
+			if (engine != null) {
+				return engine;
+			}
+		}
+		return factory.create();
+	}
+
+	/**
+	 * Return an engine to the pool.
+	 * @param engine Lua engine from {@link #borrow()}.
+	 */
+	public void release(LuaEngine engine) {
+		if (!offerIdle(engine)) {
+			engine.close();
+		}
+	}
+
+	/**
+	 * Get idle engine count.
+	 * Engines which idle GC is working on are not included.
+	 * @return Idle engine count.
+	 */
+	public synchronized int getIdleCount() {
+		return idle.size();
+	}
+
+	private synchronized boolean offerIdle(LuaEngine engine) {
+		if (closed || idle.size() >= maxIdle) {
+			return false;
+		}
+		idle.offerFirst(engine);
+		return true;
+	}
+
+	/**
+	 * Start idle GC in a background daemon thread.
+	 * Every periodMillis, each idle engine is checked.
+	 * If its GC debt is close to trigger a step (within stepKb) or its
+	 * memory has grown by more than stepKb since the last cycle,
+	 * {@link LuaEngine#gcStep(int)} is called up to maxSteps times or
+	 * until the cycle finishes.
+	 * Engines stopped by {@link LuaEngine#gcStop()} are skipped.
+	 * @param periodMillis Check interval in milliseconds.
+	 * @param stepKb Step size in KB.
+	 * @param maxSteps Max step count for each engine in each check.
+	 * @throws IllegalStateException Already started.
+	 */
+	public synchronized void startIdleGc(long periodMillis, int stepKb,
+			int maxSteps) {
+		if (stepKb <= 0 || maxSteps <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"stepKb=%d, maxSteps=%d", stepKb, maxSteps));
+		}
+		if (gcExecutor != null) {
+			throw new IllegalStateException("Idle GC is already started");
+		}
+		this.gcStepKb = stepKb;
+		this.gcMaxSteps = maxSteps;
+		gcExecutor = Executors.newSingleThreadScheduledExecutor(
+			new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread th = new Thread(r, "LuaEnginePool-idle-gc");
+					th.setDaemon(true);
+					return th;
+				}
+			});
+		gcExecutor.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				gcIdleEngines();
+			}
+		}, periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stop idle GC and wait for the current check.
+	 */
+	public void stopIdleGc() {
+		ScheduledExecutorService executor;
+		synchronized (this) {
+			executor = gcExecutor;
+			gcExecutor = null;
+		}
+		if (executor == null) {
+			return;
+		}
+		executor.shutdown();
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Check all idle engines once in the calling thread.
+	 * It is called periodically after {@link #startIdleGc(long, int, int)}.
+	 * Parameters of the last start are used.
+	 * (if never started, does nothing)
+	 */
+	public void gcIdleEngines() {
+		int count;
+		int stepKb;
+		int maxSteps;
+		synchronized (this) {
+			count = idle.size();
+			stepKb = gcStepKb;
+			maxSteps = gcMaxSteps;
+		}
+		if (stepKb <= 0) {
+			return;
+		}
+		// from the least recently released
+		// checked engines are returned to the first
+		for (int i = 0; i < count; i++) {
+			LuaEngine engine;
+			synchronized (this) {
+				engine = idle.pollLast();
+			}
+			if (engine == null) {
+				break;
+			}
+			boolean ok;
+			try {
+				gcIdleEngine(engine, stepKb, maxSteps);
+				ok = true;
+			} catch (LuaException e) {
+				// error in __gc; don't reuse it
+				ok = false;
+			}
+			if (!ok || !offerIdle(engine)) {
+				engine.close();
+			}
+		}
+	}
+
+	private void gcIdleEngine(LuaEngine engine, int stepKb, int maxSteps)
+			throws LuaException {
+		long margin = stepKb * 1024L;
+		if (engine.getGcDebt() <= -margin && engine.getGcGrowth() <= margin) {
+			return;
+		}
+		if (!engine.isGcRunning()) {
+			return;
+		}
+		long usedBefore = engine.getMemoryStats().getUsed();
+		long start = System.nanoTime();
+		int steps = 0;
+		int cycles = 0;
+		while (steps < maxSteps) {
+			steps++;
+			// pay the credit (negative debt) in advance, or the step does
+			// nothing until the engine allocates that much in a request
+			long credit = Math.max(-engine.getGcDebt(), 0);
+			int kb = (int) Math.min(stepKb + credit / 1024, Integer.MAX_VALUE);
+			if (engine.gcStep(kb)) {
+				cycles++;
+				break;
+			}
+		}
+		long time = System.nanoTime() - start;
+		long freed = usedBefore - engine.getMemoryStats().getUsed();
+		synchronized (this) {
+			gcVisitCount++;
+			gcStepCount += steps;
+			gcCycleCount += cycles;
+			gcFreedBytes += Math.max(freed, 0);
+			gcTotalNanos += time;
+		}
+	}
+
+	/**
+	 * Get GC work done by idle GC.
+	 * @return Idle GC statistics.
+	 */
+	public synchronized LuaIdleGcStats getIdleGcStats() {
+		return new LuaIdleGcStats(gcVisitCount, gcStepCount, gcCycleCount,
+				gcFreedBytes, gcTotalNanos);
+	}
+
+}
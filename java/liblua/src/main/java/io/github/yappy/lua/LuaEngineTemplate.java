@@ -0,0 +1,68 @@
+package io.github.yappy.lua;
+
+/**
+ * Initialized Lua engine as a template for new engines.
+ *
+ * Opening libraries and running setup scripts in every new engine is
+ * slow. This class takes an engine which is already initialized, and
+ * {@link #newEngine()} creates a new engine with a deep copy of its
+ * global state (the registry, _G, package.loaded and the string
+ * metatable) in native code.
+ * Tables, Lua functions (as bytecode) and Java functions are copied.
+ * Shared references, cycles and shared upvalues are kept.
+ *
+ * Userdata and coroutines cannot be copied, so the template must not
+ * hold them. (e.g. {@link LuaStdLib#IO} has userdata for files)
+ *
+ * Registered {@link LuaFunction} objects are shared by the template and
+ * all engines created from it, so they must be thread-safe if the
+ * engines are used by multiple threads.
+ *
+ * This class is thread-safe.
+ * @author yappy
+ */
+public class LuaEngineTemplate implements AutoCloseable {
+
+	private LuaEngine template;
+
+	/**
+	 * Create a template.
+	 * The template owns the engine and the engine must not be used
+	 * after this.
+	 * @param template Initialized engine.
+	 */
+	public LuaEngineTemplate(LuaEngine template) {
+		if (template == null) {
+			throw new NullPointerException("template");
+		}
+		this.template = template;
+	}
+
+	/**
+	 * Close the template engine.
+	 * Engines created from this template are not affected.
+	 */
+	@Override
+	public synchronized void close() {
+		if (template != null) {
+			template.close();
+			template = null;
+		}
+	}
+
+	/**
+	 * Create a new engine with a copy of the template state.
+	 * Memory settings are the same as the template.
+	 * @return New engine. The caller must close it.
+	 * @throws LuaException The template has values which cannot be copied
+	 * or other Lua error. (e.g. memory limit)
+	 * @throws IllegalStateException Already closed.
+	 */
+	public synchronized LuaEngine newEngine() throws LuaException {
+		if (template == null) {
+			throw new IllegalStateException("LuaEngineTemplate is closed");
+		}
+		return template.newClone();
+	}
+
+}
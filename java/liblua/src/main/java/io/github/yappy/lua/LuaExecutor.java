@@ -0,0 +1,519 @@
+package io.github.yappy.lua;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Asynchronous task runner for a Lua engine.
+ *
+ * Tasks submitted to this class run one at a time in submission order
+ * on threads of the given {@link Executor}, so a shared thread pool can
+ * drive many engines without a dedicated thread per engine or request.
+ * Each run takes one task and then the next run is scheduled again,
+ * so that other work in the pool is not starved.
+ *
+ * The queue is bounded. If it is full, submit methods throw
+ * {@link RejectedExecutionException} immediately (backpressure).
+ *
+ * Cancelling a returned future removes the task if it is waiting, or
+ * aborts the script by {@link LuaEngine#abort()} if it is running.
+ *
+ * A script submitted by {@link #submitAsync(String, String)} runs in its
+ * own coroutine. When it calls a {@link LuaAsyncFunction}, the coroutine
+ * yields and the engine runs other tasks until the result is available.
+ * Cancelling it while it waits closes the coroutine by the next step.
+ *
+ * The engine must not be used directly while this executor is in use.
+ * This class is thread-safe.
+ * @author yappy
+ */
+public class LuaExecutor implements AutoCloseable {
+
+	/** Default max waiting task count. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+
+	private final LuaEngine engine;
+	private final Executor executor;
+	private final int queueCapacity;
+	private final Deque<TaskFuture<?>> queue = new ArrayDeque<>();
+	private TaskFuture<?> running = null;
+	// a drain run is queued in the executor or running
+	private boolean scheduled = false;
+	private boolean closed = false;
+
+	private long submittedCount = 0;
+	private long rejectedCount = 0;
+	private long startedCount = 0;
+	private long completedCount = 0;
+	private long failedCount = 0;
+	private long cancelledCount = 0;
+	private long queueTotalNanos = 0;
+	private long queueMaxNanos = 0;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * Create an executor with {@link #DEFAULT_QUEUE_CAPACITY}.
+	 * @param engine Lua engine.
+	 * @param executor Threads which run tasks.
+	 */
+	public LuaExecutor(LuaEngine engine, Executor executor) {
+		this(engine, executor, DEFAULT_QUEUE_CAPACITY);
+	}
+
+	/**
+	 * Create an executor.
+	 * @param engine Lua engine.
+	 * @param executor Threads which run tasks.
+	 * @param queueCapacity Max waiting task count.
+	 */
+	public LuaExecutor(LuaEngine engine, Executor executor, int queueCapacity) {
+		if (engine == null) {
+			throw new NullPointerException("engine");
+		}
+		if (executor == null) {
+			throw new NullPointerException("executor");
+		}
+		if (queueCapacity <= 0) {
+			throw new IllegalArgumentException("queueCapacity=" + queueCapacity);
+		}
+		this.engine = engine;
+		this.executor = executor;
+		this.queueCapacity = queueCapacity;
+	}
+
+	/**
+	 * Stop accepting tasks and cancel waiting tasks.
+	 * The running task is not aborted.
+	 * The engine is not closed by this method.
+	 * Coroutines of suspended async scripts are not closed here;
+	 * they are released when the engine is closed.
+	 */
+	@Override
+	public void close() {
+		List<TaskFuture<?>> pending;
+		synchronized (this) {
+			closed = true;
+			pending = new ArrayList<TaskFuture<?>>(queue);
+			queue.clear();
+			cancelledCount += pending.size();
+		}
+		for (TaskFuture<?> future : pending) {
+			future.cancel(false);
+		}
+	}
+
+	/**
+	 * Submit a task.
+	 * @param task Task.
+	 * @param <T> Result type.
+	 * @return Future of the result.
+	 * @throws RejectedExecutionException The queue is full or closed.
+	 */
+	public <T> CompletableFuture<T> submit(LuaTask<T> task) {
+		if (task == null) {
+			throw new NullPointerException("task");
+		}
+		TaskFuture<T> future = new TaskFuture<>(task);
+		enqueue(future, false);
+		return future;
+	}
+
+	// force: ignore queueCapacity (resuming an accepted script)
+	private void enqueue(TaskFuture<?> future, boolean force) {
+		boolean schedule;
+		synchronized (this) {
+			if (closed) {
+				rejectedCount++;
+				throw new RejectedExecutionException("LuaExecutor is closed");
+			}
+			if (!force && queue.size() >= queueCapacity) {
+				rejectedCount++;
+				throw new RejectedExecutionException("Queue is full");
+			}
+			future.submitNanos = System.nanoTime();
+			queue.offerLast(future);
+			submittedCount++;
+			schedule = !scheduled;
+			scheduled = true;
+		}
+		if (schedule) {
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * Submit a Lua global function call.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Future of the return values.
+	 * @throws RejectedExecutionException The queue is full or closed.
+	 * @see LuaEngine#callGlobalFunction(String, Object...)
+	 */
+	public CompletableFuture<Object[]> submit(
+			final String name, final Object... params) {
+		return submit(new LuaTask<Object[]>() {
+			@Override
+			public Object[] run(LuaEngine engine) throws LuaException {
+				return engine.callGlobalFunction(name, params);
+			}
+		});
+	}
+
+	/**
+	 * Submit execution of Lua program code.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @return Future which completes with null.
+	 * @throws RejectedExecutionException The queue is full or closed.
+	 * @see LuaEngine#execString(String, String)
+	 */
+	public CompletableFuture<Void> submitString(
+			final String buf, final String chunkName) {
+		return submit(new LuaTask<Void>() {
+			@Override
+			public Void run(LuaEngine engine) throws LuaException {
+				engine.execString(buf, chunkName);
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Submit execution of Lua program code in a new coroutine.
+	 *
+	 * The coroutine yields at calls of {@link LuaAsyncFunction}
+	 * (and coroutine.yield), and each resume is queued as a new task.
+	 * So many waiting scripts can share the engine and one thread.
+	 * The script shares the engine globals.
+	 *
+	 * Resumes are not limited by the queue capacity.
+	 * If the stage of a {@link LuaAsyncFunction} completes exceptionally
+	 * with other than {@link LuaRuntimeException}, the script is stopped
+	 * and the returned future completes with the exception.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @return Future of the chunk return values.
+	 * @throws RejectedExecutionException The queue is full or closed.
+	 */
+	public CompletableFuture<Object[]> submitAsync(
+			String buf, String chunkName) {
+		if (buf == null) {
+			throw new NullPointerException("buf");
+		}
+		if (chunkName == null) {
+			throw new NullPointerException("chunkName");
+		}
+		AsyncScript script = new AsyncScript(buf, chunkName);
+		enqueue(script.newStep(), false);
+		return script;
+	}
+
+	/**
+	 * Get task counts and queue latency.
+	 * @return Statistics.
+	 */
+	public synchronized LuaExecutorStats getStats() {
+		return new LuaExecutorStats(queue.size(), submittedCount,
+				rejectedCount, startedCount, completedCount, failedCount,
+				cancelledCount, queueTotalNanos, queueMaxNanos);
+	}
+
+	private void scheduleDrain() {
+		try {
+			executor.execute(drainTask);
+		}
+		catch (RejectedExecutionException e) {
+			// the executor is shut down; nothing will run
+			List<TaskFuture<?>> pending;
+			synchronized (this) {
+				scheduled = false;
+				pending = new ArrayList<TaskFuture<?>>(queue);
+				queue.clear();
+				failedCount += pending.size();
+			}
+			for (TaskFuture<?> future : pending) {
+				future.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void drain() {
+		TaskFuture<?> task;
+		synchronized (this) {
+			task = queue.pollFirst();
+			if (task == null) {
+				scheduled = false;
+				return;
+			}
+			running = task;
+			long latency = System.nanoTime() - task.submitNanos;
+			startedCount++;
+			queueTotalNanos += latency;
+			queueMaxNanos = Math.max(queueMaxNanos, latency);
+		}
+		boolean ok = task.runWith(engine);
+		boolean more;
+		synchronized (this) {
+			running = null;
+			// abort() by a cancel which was too late
+			engine.clearAbort();
+			if (task.isCancelled()) {
+				cancelledCount++;
+			}
+			else if (ok) {
+				completedCount++;
+			}
+			else {
+				failedCount++;
+			}
+			more = !queue.isEmpty();
+			scheduled = more;
+		}
+		// after the stats are updated
+		task.finish();
+		if (more) {
+			scheduleDrain();
+		}
+	}
+
+	private synchronized void abortIfRunning(LuaTask<?> task) {
+		if (running != null && running.task == task) {
+			// LuaAbortException at the next debug hook
+			engine.abort();
+		}
+	}
+
+	private synchronized void onCancel(TaskFuture<?> future) {
+		if (queue.remove(future)) {
+			cancelledCount++;
+		}
+		else if (running == future) {
+			// LuaAbortException at the next debug hook
+			engine.abort();
+		}
+	}
+
+	private class TaskFuture<T> extends CompletableFuture<T> {
+		private final LuaTask<T> task;
+		private long submitNanos;
+		// outcome of runWith() for finish()
+		private boolean ran = false;
+		private T result = null;
+		private Throwable failure = null;
+
+		public TaskFuture(LuaTask<T> task) {
+			this.task = task;
+		}
+
+		// return true if finished normally
+		// the future is completed later by finish()
+		public boolean runWith(LuaEngine engine) {
+			if (isDone()) {
+				return false;
+			}
+			ran = true;
+			try {
+				result = task.run(engine);
+				return true;
+			}
+			catch (Throwable t) {
+				failure = t;
+				return false;
+			}
+		}
+
+		public void finish() {
+			if (!ran) {
+				return;
+			}
+			if (failure != null) {
+				completeExceptionally(failure);
+			}
+			else {
+				complete(result);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result) {
+				onCancel(this);
+			}
+			return result;
+		}
+	}
+
+	// result of submitAsync()
+	// each step is a task which resumes the coroutine once
+	private class AsyncScript extends CompletableFuture<Object[]> {
+		private final String buf;
+		private final String chunkName;
+		// accessed by steps only (serialized by the queue)
+		private LuaEngine.AsyncRun run = null;
+		private Object[] values = null;
+		private String error = null;
+		// the last step result for finishStep()
+		private boolean finished = false;
+		private Object[] finalResults = null;
+		private Throwable finalFailure = null;
+		// waiting for a pending stage (guarded by the executor)
+		private boolean waiting = false;
+
+		private final LuaTask<Void> step = new LuaTask<Void>() {
+			@Override
+			public Void run(LuaEngine engine) throws LuaException {
+				if (isDone()) {
+					// cancelled or failed while suspended
+					if (run != null) {
+						engine.closeAsync(run);
+					}
+					return null;
+				}
+				try {
+					if (run == null) {
+						run = engine.startAsync(buf, chunkName);
+					}
+					if (engine.resumeAsync(run, values, error)) {
+						finalResults = run.getResults();
+						finished = true;
+						return null;
+					}
+				}
+				catch (LuaException | RuntimeException | Error e) {
+					finalFailure = e;
+					finished = true;
+					throw e;
+				}
+				CompletableFuture<Object[]> pending = run.getPending();
+				if (pending == null) {
+					// coroutine.yield; let other tasks run
+					setResult(null, null);
+					resumeLater();
+				}
+				else {
+					boolean done;
+					synchronized (LuaExecutor.this) {
+						done = isDone();
+						waiting = !done;
+					}
+					if (done) {
+						// cancelled while this step was running
+						engine.closeAsync(run);
+						return null;
+					}
+					pending.whenComplete(new BiConsumer<Object[], Throwable>() {
+						@Override
+						public void accept(Object[] result, Throwable t) {
+							onStageComplete(result, t);
+						}
+					});
+				}
+				return null;
+			}
+		};
+
+		public AsyncScript(String buf, String chunkName) {
+			this.buf = buf;
+			this.chunkName = chunkName;
+		}
+
+		private void setResult(Object[] values, String error) {
+			this.values = values;
+			this.error = error;
+		}
+
+		// true if this call stops waiting
+		private boolean stopWaiting() {
+			synchronized (LuaExecutor.this) {
+				boolean result = waiting;
+				waiting = false;
+				return result;
+			}
+		}
+
+		private void onStageComplete(Object[] result, Throwable t) {
+			if (!stopWaiting()) {
+				// cancelled and already being closed
+				return;
+			}
+			if (t == null) {
+				setResult(result, null);
+			}
+			else {
+				Throwable cause = (t instanceof CompletionException &&
+						t.getCause() != null) ? t.getCause() : t;
+				if (cause instanceof LuaRuntimeException) {
+					// Lua error in the caller
+					String msg = cause.getMessage();
+					setResult(null, (msg != null) ? msg : cause.toString());
+				}
+				else {
+					// the next step closes the coroutine
+					completeExceptionally(cause);
+				}
+			}
+			resumeLater();
+		}
+
+		// a step task which completes this after the stats are updated
+		private TaskFuture<Void> newStep() {
+			return new TaskFuture<Void>(step) {
+				@Override
+				public void finish() {
+					super.finish();
+					finishStep();
+				}
+			};
+		}
+
+		private void finishStep() {
+			if (!finished) {
+				return;
+			}
+			if (finalFailure != null) {
+				completeExceptionally(finalFailure);
+			}
+			else {
+				complete(finalResults);
+			}
+		}
+
+		private void resumeLater() {
+			try {
+				enqueue(newStep(), true);
+			}
+			catch (RejectedExecutionException e) {
+				// closed
+				completeExceptionally(e);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result) {
+				abortIfRunning(step);
+				if (stopWaiting()) {
+					// the next step closes the coroutine
+					resumeLater();
+				}
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package io.github.yappy.lua;
+
+/**
+ * Task counts and queue latency of {@link LuaExecutor}.
+ * @see LuaExecutor#getStats()
+ * @author yappy
+ */
+public final class LuaExecutorStats {
+
+	private final int queueSize;
+	private final long submittedCount;
+	private final long rejectedCount;
+	private final long startedCount;
+	private final long completedCount;
+	private final long failedCount;
+	private final long cancelledCount;
+	private final long queueTotalNanos;
+	private final long queueMaxNanos;
+
+	LuaExecutorStats(int queueSize, long submittedCount, long rejectedCount,
+			long startedCount, long completedCount, long failedCount, long cancelledCount,
+			long queueTotalNanos, long queueMaxNanos) {
+		this.queueSize = queueSize;
+		this.submittedCount = submittedCount;
+		this.rejectedCount = rejectedCount;
+		this.startedCount = startedCount;
+		this.completedCount = completedCount;
+		this.failedCount = failedCount;
+		this.cancelledCount = cancelledCount;
+		this.queueTotalNanos = queueTotalNanos;
+		this.queueMaxNanos = queueMaxNanos;
+	}
+
+	/**
+	 * Get waiting task count.
+	 * @return Queue size.
+	 */
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+	/**
+	 * Get accepted task count.
+	 * @return Submitted count.
+	 */
+	public long getSubmittedCount() {
+		return submittedCount;
+	}
+
+	/**
+	 * Get task count rejected because the queue was full or closed.
+	 * @return Rejected count.
+	 */
+	public long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Get task count which started to run.
+	 * @return Started count.
+	 */
+	public long getStartedCount() {
+		return startedCount;
+	}
+
+	/**
+	 * Get task count finished normally.
+	 * @return Completed count.
+	 */
+	public long getCompletedCount() {
+		return completedCount;
+	}
+
+	/**
+	 * Get task count finished with an exception.
+	 * Aborted tasks are included.
+	 * @return Failed count.
+	 */
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	/**
+	 * Get task count cancelled before or during the run.
+	 * @return Cancelled count.
+	 */
+	public long getCancelledCount() {
+		return cancelledCount;
+	}
+
+	/**
+	 * Get total time from submit to start of started tasks.
+	 * @return Total queue latency in nanoseconds.
+	 */
+	public long getQueueTotalNanos() {
+		return queueTotalNanos;
+	}
+
+	/**
+	 * Get max time from submit to start.
+	 * @return Max queue latency in nanoseconds.
+	 */
+	public long getQueueMaxNanos() {
+		return queueMaxNanos;
+	}
+
+	/**
+	 * Get average time from submit to start.
+	 * @return Average queue latency in nanoseconds. (0 if no task started)
+	 */
+	public long getQueueAverageNanos() {
+		return (startedCount != 0) ? queueTotalNanos / startedCount : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"queue=%d, submitted=%d, rejected=%d, completed=%d, " +
+				"failed=%d, cancelled=%d, latency(avg)=%dns, latency(max)=%dns",
+				queueSize, submittedCount, rejectedCount, completedCount,
+				failedCount, cancelledCount, getQueueAverageNanos(),
+				queueMaxNanos);
+	}
+
+}
@@ -35,6 +35,7 @@ public interface LuaFunction {
 	 * <tr><td>Boolean</td><td>boolean</td></tr>
 	 * <tr><td>Number(Byte, Double, Float, Integer, Long, Short, etc.)</td><td>number</td></tr>
 	 * <tr><td>String</td><td>string</td></tr>
+	 * <tr><td>direct ByteBuffer</td><td>bytes (view of position to limit, {@link LuaStdLib#BYTES} is needed)</td></tr>
 	 * </table>
 	 *
 	 * @param args Function args.
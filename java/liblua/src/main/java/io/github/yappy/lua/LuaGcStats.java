@@ -0,0 +1,99 @@
+package io.github.yappy.lua;
+
+/**
+ * Pause time statistics of garbage collection requested from Java.
+ *
+ * Only {@link LuaEngine#gcCollect()} and {@link LuaEngine#gcStep(int)}
+ * are measured. Automatic incremental steps during Lua execution are not
+ * included.
+ * @see LuaEngine#getGcStats()
+ * @author yappy
+ */
+public final class LuaGcStats {
+
+	private final long fullCount;
+	private final long fullTotalNanos;
+	private final long fullMaxNanos;
+	private final long fullLastNanos;
+	private final long stepCount;
+	private final long stepTotalNanos;
+	private final long stepMaxNanos;
+
+	LuaGcStats(long fullCount, long fullTotalNanos, long fullMaxNanos,
+			long fullLastNanos,
+			long stepCount, long stepTotalNanos, long stepMaxNanos) {
+		this.fullCount = fullCount;
+		this.fullTotalNanos = fullTotalNanos;
+		this.fullMaxNanos = fullMaxNanos;
+		this.fullLastNanos = fullLastNanos;
+		this.stepCount = stepCount;
+		this.stepTotalNanos = stepTotalNanos;
+		this.stepMaxNanos = stepMaxNanos;
+	}
+
+	/**
+	 * Get full collection count.
+	 * @return {@link LuaEngine#gcCollect()} count.
+	 */
+	public long getFullCount() {
+		return fullCount;
+	}
+
+	/**
+	 * Get total pause time of full collections.
+	 * @return Total time in nanoseconds.
+	 */
+	public long getFullTotalNanos() {
+		return fullTotalNanos;
+	}
+
+	/**
+	 * Get the longest pause time of full collections.
+	 * @return Max time in nanoseconds.
+	 */
+	public long getFullMaxNanos() {
+		return fullMaxNanos;
+	}
+
+	/**
+	 * Get pause time of the last full collection.
+	 * @return Time in nanoseconds. (0 if never)
+	 */
+	public long getFullLastNanos() {
+		return fullLastNanos;
+	}
+
+	/**
+	 * Get explicit step count.
+	 * @return {@link LuaEngine#gcStep(int)} count.
+	 */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Get total pause time of explicit steps.
+	 * @return Total time in nanoseconds.
+	 */
+	public long getStepTotalNanos() {
+		return stepTotalNanos;
+	}
+
+	/**
+	 * Get the longest pause time of explicit steps.
+	 * @return Max time in nanoseconds.
+	 */
+	public long getStepMaxNanos() {
+		return stepMaxNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"full=%d (total=%dns, max=%dns, last=%dns), " +
+				"step=%d (total=%dns, max=%dns)",
+				fullCount, fullTotalNanos, fullMaxNanos, fullLastNanos,
+				stepCount, stepTotalNanos, stepMaxNanos);
+	}
+
+}
@@ -0,0 +1,76 @@
+package io.github.yappy.lua;
+
+/**
+ * GC work done by {@link LuaEnginePool} for idle engines.
+ *
+ * This work would otherwise run in the middle of script execution
+ * after the engine is borrowed.
+ * @see LuaEnginePool#getIdleGcStats()
+ * @author yappy
+ */
+public final class LuaIdleGcStats {
+
+	private final long visitCount;
+	private final long stepCount;
+	private final long cycleCount;
+	private final long freedBytes;
+	private final long totalNanos;
+
+	LuaIdleGcStats(long visitCount, long stepCount, long cycleCount,
+			long freedBytes, long totalNanos) {
+		this.visitCount = visitCount;
+		this.stepCount = stepCount;
+		this.cycleCount = cycleCount;
+		this.freedBytes = freedBytes;
+		this.totalNanos = totalNanos;
+	}
+
+	/**
+	 * Get the count of idle engines which had GC work to do.
+	 * @return Visit count.
+	 */
+	public long getVisitCount() {
+		return visitCount;
+	}
+
+	/**
+	 * Get incremental step count.
+	 * @return Step count.
+	 */
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	/**
+	 * Get completed collection cycle count.
+	 * @return Cycle count.
+	 */
+	public long getCycleCount() {
+		return cycleCount;
+	}
+
+	/**
+	 * Get memory freed by idle steps.
+	 * @return Freed bytes.
+	 */
+	public long getFreedBytes() {
+		return freedBytes;
+	}
+
+	/**
+	 * Get time spent in idle steps.
+	 * It is moved off the request path.
+	 * @return Total time in nanoseconds.
+	 */
+	public long getTotalNanos() {
+		return totalNanos;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"visit=%d, step=%d, cycle=%d, freed=%d, time=%dns",
+				visitCount, stepCount, cycleCount, freedBytes, totalNanos);
+	}
+
+}
@@ -0,0 +1,124 @@
+package io.github.yappy.lua;
+
+/**
+ * Native memory budget shared by multiple Lua engines.
+ *
+ * nativeMemoryLimit of each engine is a per-engine cap, so the sum of them
+ * can be much larger than the memory actually available.
+ * Engines created with the same budget also draw from this global limit.
+ * This class is thread-safe and the native side is lock-free.
+ *
+ * If an allocation exceeds the soft limit, it is still allowed up to the
+ * hard limit and the requesting engine runs full GC at its next debug hook.
+ * (every intrInstCount instructions)
+ * An allocation exceeding the hard limit is refused after Lua's own
+ * emergency GC.
+ *
+ * @see LuaEngine#LuaEngine(long, int, boolean, LuaMemoryBudget)
+ * @author yappy
+ */
+public final class LuaMemoryBudget implements AutoCloseable {
+
+	private final long softLimit;
+	private final long hardLimit;
+	private long peer;
+
+	/**
+	 * Create a budget whose soft limit and hard limit are the same.
+	 * @param limit Native memory limit in bytes for all engines.
+	 */
+	public LuaMemoryBudget(long limit) {
+		this(limit, limit);
+	}
+
+	/**
+	 * Create a budget.
+	 * @param softLimit Full GC is requested above this.
+	 * @param hardLimit Allocation is refused above this.
+	 * @throws IllegalArgumentException
+	 * softLimit is negative or larger than hardLimit.
+	 */
+	public LuaMemoryBudget(long softLimit, long hardLimit) {
+		if (softLimit < 0 || softLimit > hardLimit) {
+			throw new IllegalArgumentException(String.format(
+					"softLimit=%d, hardLimit=%d", softLimit, hardLimit));
+		}
+		this.softLimit = softLimit;
+		this.hardLimit = hardLimit;
+		this.peer = LuaEngine.newMemoryBudget(softLimit, hardLimit);
+		if (peer == 0) {
+			throw new OutOfMemoryError();
+		}
+	}
+
+	/**
+	 * Release the budget.
+	 * Native resources will be destroyed after all engines using this
+	 * budget are closed.
+	 */
+	@Override
+	public synchronized void close() {
+		if (peer != 0) {
+			LuaEngine.releaseMemoryBudget(peer);
+			peer = 0;
+		}
+	}
+
+	// called by LuaEngine in synchronized block
+	long getPeer() {
+		if (peer == 0) {
+			throw new IllegalStateException("LuaMemoryBudget is closed");
+		}
+		return peer;
+	}
+
+	/**
+	 * Get soft limit.
+	 * @return Soft limit in bytes.
+	 */
+	public long getSoftLimit() {
+		return softLimit;
+	}
+
+	/**
+	 * Get hard limit.
+	 * @return Hard limit in bytes.
+	 */
+	public long getHardLimit() {
+		return hardLimit;
+	}
+
+	private synchronized long[] getStatus() {
+		long[] status = new long[LuaEngine.BUDGET_ARRAY_SIZE];
+		LuaEngine.getMemoryBudgetStatus(getPeer(), status);
+		return status;
+	}
+
+	/**
+	 * Get native memory usage of all engines using this budget.
+	 * @return Bytes in use.
+	 * @throws IllegalStateException Already closed.
+	 */
+	public long getUsed() {
+		return getStatus()[LuaEngine.BUDGET_USED];
+	}
+
+	/**
+	 * Get full GC count run by the soft limit.
+	 * @return Emergency GC count.
+	 * @throws IllegalStateException Already closed.
+	 */
+	public long getEmergencyGcCount() {
+		return getStatus()[LuaEngine.BUDGET_EMERGENCY_GC_COUNT];
+	}
+
+	/**
+	 * Get allocation count refused by the hard limit.
+	 * @return Rejection count.
+	 * @throws IllegalStateException Already closed.
+	 */
+	public long getRejectCount() {
+		return getStatus()[LuaEngine.BUDGET_REJECT_COUNT];
+	}
+
+}
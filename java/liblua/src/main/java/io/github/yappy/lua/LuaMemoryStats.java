@@ -0,0 +1,97 @@
+package io.github.yappy.lua;
+
+/**
+ * Native memory usage and allocation statistics of a Lua engine.
+ *
+ * All counts are from the engine initialization.
+ * @see LuaEngine#getMemoryStats()
+ * @author yappy
+ */
+public final class LuaMemoryStats {
+
+	private final long memoryLimit;
+	private final long used;
+	private final long peak;
+	private final long allocCount;
+	private final long freeCount;
+	private final long reallocCount;
+	private final long rejectCount;
+
+	LuaMemoryStats(long memoryLimit, long used, long peak,
+			long allocCount, long freeCount, long reallocCount,
+			long rejectCount) {
+		this.memoryLimit = memoryLimit;
+		this.used = used;
+		this.peak = peak;
+		this.allocCount = allocCount;
+		this.freeCount = freeCount;
+		this.reallocCount = reallocCount;
+		this.rejectCount = rejectCount;
+	}
+
+	/**
+	 * Get native memory limit. (nativeMemoryLimit)
+	 * @return Memory limit in bytes.
+	 */
+	public long getMemoryLimit() {
+		return memoryLimit;
+	}
+
+	/**
+	 * Get current native memory usage.
+	 * @return Bytes in use.
+	 */
+	public long getUsed() {
+		return used;
+	}
+
+	/**
+	 * Get peak native memory usage since initialization or the last reset.
+	 * @return Peak bytes in use.
+	 * @see LuaEngine#getMemoryStats(boolean)
+	 */
+	public long getPeak() {
+		return peak;
+	}
+
+	/**
+	 * Get new allocation count.
+	 * @return malloc count.
+	 */
+	public long getAllocCount() {
+		return allocCount;
+	}
+
+	/**
+	 * Get free count.
+	 * @return free count.
+	 */
+	public long getFreeCount() {
+		return freeCount;
+	}
+
+	/**
+	 * Get reallocation (grow or shrink) count.
+	 * @return realloc count.
+	 */
+	public long getReallocCount() {
+		return reallocCount;
+	}
+
+	/**
+	 * Get allocation count refused by the memory limit.
+	 * @return Rejection count.
+	 */
+	public long getRejectCount() {
+		return rejectCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"used=%d, peak=%d, limit=%d, alloc=%d, free=%d, realloc=%d, reject=%d",
+				used, peak, memoryLimit,
+				allocCount, freeCount, reallocCount, rejectCount);
+	}
+
+}
@@ -0,0 +1,288 @@
+package io.github.yappy.lua;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Spliterator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+
+/**
+ * Data parallel execution of a {@link LuaChunk} with engines of
+ * {@link LuaEnginePool}.
+ *
+ * Data rows are split into slices, and each slice is processed by
+ * {@link LuaEngine#callBatch(LuaChunk, Object[][], String[])} with an
+ * engine borrowed for the slice. The chunk is compiled once per engine.
+ * Results are in the order of the data.
+ *
+ * The engines must not depend on each other's global state, since
+ * rows are processed by any engine in any order.
+ * @author yappy
+ */
+public final class LuaParallel {
+
+	/** Default row count processed by one engine at a time. */
+	public static final int DEFAULT_SLICE_SIZE = 256;
+
+	private LuaParallel() {
+	}
+
+	/**
+	 * Call chunk for each row in parallel with
+	 * {@link ForkJoinPool#commonPool()} and {@link #DEFAULT_SLICE_SIZE}.
+	 * @param pool Engine pool.
+	 * @param chunk Lua chunk.
+	 * @param data Parameters of each call.
+	 * @return Return values of each call.
+	 * @throws LuaException Lua error of any row.
+	 * @see #map(ForkJoinPool, LuaEnginePool, LuaChunk, List, int)
+	 */
+	public static List<Object[]> map(LuaEnginePool pool, LuaChunk chunk,
+			List<Object[]> data) throws LuaException {
+		return map(ForkJoinPool.commonPool(), pool, chunk, data,
+				DEFAULT_SLICE_SIZE);
+	}
+
+	/**
+	 * Call chunk for each row in parallel.
+	 * If a row fails, the first error in row order is thrown after all
+	 * slices end. A runtime error message is prefixed with its row index.
+	 * @param forkJoin Threads which run slices.
+	 * @param pool Engine pool.
+	 * @param chunk Lua chunk.
+	 * @param data Parameters of each call.
+	 * @param sliceSize Max row count processed by one engine at a time.
+	 * @return Return values of each call.
+	 * @throws LuaException Lua error of any row.
+	 */
+	public static List<Object[]> map(ForkJoinPool forkJoin,
+			LuaEnginePool pool, LuaChunk chunk, List<Object[]> data,
+			int sliceSize) throws LuaException {
+		if (forkJoin == null) {
+			throw new NullPointerException("forkJoin");
+		}
+		if (pool == null) {
+			throw new NullPointerException("pool");
+		}
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		if (data == null) {
+			throw new NullPointerException("data");
+		}
+		if (sliceSize <= 0) {
+			throw new IllegalArgumentException("sliceSize=" + sliceSize);
+		}
+
+		Object[][] rows = data.toArray(new Object[data.size()][]);
+		Object[][] results = new Object[rows.length][];
+		LuaException[] errors = new LuaException[rows.length];
+		forkJoin.invoke(new MapTask(pool, chunk, rows, results, errors,
+				0, rows.length, sliceSize));
+		for (LuaException e : errors) {
+			if (e != null) {
+				throw e;
+			}
+		}
+		return Arrays.asList(results);
+	}
+
+	/**
+	 * Get a spliterator which calls chunk for each element of source.
+	 *
+	 * It splits with source, so a parallel stream runs the chunk on many
+	 * engines, e.g.
+	 * {@code StreamSupport.stream(LuaParallel.map(pool, chunk,
+	 * data.spliterator(), 256), true)}.
+	 * Up to sliceSize elements are taken from source and processed by one
+	 * engine at a time. Lua errors are thrown as
+	 * {@link UncheckedLuaException}.
+	 * @param pool Engine pool.
+	 * @param chunk Lua chunk.
+	 * @param source Parameters of each call.
+	 * @param sliceSize Max element count processed by one engine at a time.
+	 * @return Spliterator of return values.
+	 */
+	public static Spliterator<Object[]> map(LuaEnginePool pool,
+			LuaChunk chunk, Spliterator<Object[]> source, int sliceSize) {
+		if (pool == null) {
+			throw new NullPointerException("pool");
+		}
+		if (chunk == null) {
+			throw new NullPointerException("chunk");
+		}
+		if (source == null) {
+			throw new NullPointerException("source");
+		}
+		if (sliceSize <= 0) {
+			throw new IllegalArgumentException("sliceSize=" + sliceSize);
+		}
+		return new MapSpliterator(pool, chunk, source, sliceSize);
+	}
+
+	// process a slice with a borrowed engine
+	// error of row i is set to errors[i - from]
+	private static Object[][] callSlice(LuaEnginePool pool, LuaChunk chunk,
+			Object[][] rows, String[] errors) throws LuaException {
+		LuaEngine engine = pool.borrow();
+		boolean release = false;
+		try {
+			Object[][] results = engine.callBatch(chunk, rows, errors);
+			release = true;
+			return results;
+		}
+		finally {
+			if (release) {
+				pool.release(engine);
+			}
+			else {
+				// the state might be broken
+				engine.close();
+			}
+		}
+	}
+
+	private static final class MapTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final LuaEnginePool pool;
+		private final LuaChunk chunk;
+		private final Object[][] rows;
+		private final Object[][] results;
+		private final LuaException[] errors;
+		private final int from;
+		private final int to;
+		private final int sliceSize;
+
+		public MapTask(LuaEnginePool pool, LuaChunk chunk,
+				Object[][] rows, Object[][] results, LuaException[] errors,
+				int from, int to, int sliceSize) {
+			this.pool = pool;
+			this.chunk = chunk;
+			this.rows = rows;
+			this.results = results;
+			this.errors = errors;
+			this.from = from;
+			this.to = to;
+			this.sliceSize = sliceSize;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > sliceSize) {
+				int mid = (from + to) >>> 1;
+				invokeAll(
+					new MapTask(pool, chunk, rows, results, errors,
+							from, mid, sliceSize),
+					new MapTask(pool, chunk, rows, results, errors,
+							mid, to, sliceSize));
+				return;
+			}
+			Object[][] slice = Arrays.copyOfRange(rows, from, to);
+			String[] messages = new String[slice.length];
+			try {
+				Object[][] sliceResults =
+						callSlice(pool, chunk, slice, messages);
+				System.arraycopy(sliceResults, 0, results, from, slice.length);
+				for (int i = 0; i < messages.length; i++) {
+					if (messages[i] != null) {
+						errors[from + i] = new LuaRuntimeException(
+								"runtime error at row " + (from + i) +
+								": " + messages[i]);
+					}
+				}
+			}
+			catch (LuaException e) {
+				errors[from] = e;
+			}
+		}
+	}
+
+	private static final class MapSpliterator implements Spliterator<Object[]> {
+		private final LuaEnginePool pool;
+		private final LuaChunk chunk;
+		private final Spliterator<Object[]> source;
+		private final int sliceSize;
+		// results not returned yet
+		private Object[][] buffer = new Object[0][];
+		private int pos = 0;
+
+		public MapSpliterator(LuaEnginePool pool, LuaChunk chunk,
+				Spliterator<Object[]> source, int sliceSize) {
+			this.pool = pool;
+			this.chunk = chunk;
+			this.source = source;
+			this.sliceSize = sliceSize;
+		}
+
+		@Override
+		public boolean tryAdvance(Consumer<? super Object[]> action) {
+			if (pos >= buffer.length && !fill()) {
+				return false;
+			}
+			Object[] result = buffer[pos];
+			buffer[pos++] = null;
+			action.accept(result);
+			return true;
+		}
+
+		// process the next slice of source
+		private boolean fill() {
+			final List<Object[]> slice = new ArrayList<>(sliceSize);
+			Consumer<Object[]> add = new Consumer<Object[]>() {
+				@Override
+				public void accept(Object[] row) {
+					slice.add(row);
+				}
+			};
+			while (slice.size() < sliceSize && source.tryAdvance(add)) {
+				// pull
+			}
+			if (slice.isEmpty()) {
+				return false;
+			}
+			Object[][] rows = slice.toArray(new Object[slice.size()][]);
+			String[] messages = new String[rows.length];
+			try {
+				buffer = callSlice(pool, chunk, rows, messages);
+			}
+			catch (LuaException e) {
+				throw new UncheckedLuaException(e);
+			}
+			for (String msg : messages) {
+				if (msg != null) {
+					throw new UncheckedLuaException(
+							new LuaRuntimeException("runtime error: " + msg));
+				}
+			}
+			pos = 0;
+			return true;
+		}
+
+		@Override
+		public Spliterator<Object[]> trySplit() {
+			if (pos < buffer.length) {
+				// keep the order of buffered results
+				return null;
+			}
+			Spliterator<Object[]> prefix = source.trySplit();
+			return (prefix != null) ?
+					new MapSpliterator(pool, chunk, prefix, sliceSize) : null;
+		}
+
+		@Override
+		public long estimateSize() {
+			return source.estimateSize() + (buffer.length - pos);
+		}
+
+		@Override
+		public int characteristics() {
+			// one result for each element
+			return (source.characteristics() &
+					(ORDERED | SIZED | SUBSIZED)) | NONNULL;
+		}
+	}
+
+}
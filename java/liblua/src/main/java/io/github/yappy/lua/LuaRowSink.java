@@ -0,0 +1,60 @@
+package io.github.yappy.lua;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * {@link LuaSink} which decodes rows to Java values.
+ *
+ * Values are converted as follows.
+ * nil: null, boolean: Boolean, integer: Long, number: Double,
+ * string: String (decoded as UTF-8).
+ *
+ * @author yappy
+ */
+public abstract class LuaRowSink implements LuaSink {
+
+	/**
+	 * Invoked for each emitted row.
+	 * @param values Values passed to emit(...).
+	 * @throws LuaRuntimeException Raise Lua error.
+	 * @throws LuaAbortException Raise Lua error. It cannot be handled by Lua code.
+	 */
+	protected abstract void row(Object[] values)
+			throws LuaRuntimeException, LuaAbortException;
+
+	@Override
+	public void write(ByteBuffer chunk, int rowCount)
+			throws LuaRuntimeException, LuaAbortException {
+		for (int i = 0; i < rowCount; i++) {
+			Object[] values = new Object[chunk.getInt()];
+			for (int k = 0; k < values.length; k++) {
+				values[k] = readValue(chunk);
+			}
+			row(values);
+		}
+	}
+
+	private static Object readValue(ByteBuffer chunk) {
+		int type = chunk.get();
+		switch (type) {
+		case TYPE_NIL:
+			return null;
+		case TYPE_BOOLEAN:
+			return chunk.get() != 0;
+		case TYPE_INTEGER:
+			return chunk.getLong();
+		case TYPE_NUMBER:
+			return chunk.getDouble();
+		case TYPE_STRING:
+		{
+			byte[] bytes = new byte[chunk.getInt()];
+			chunk.get(bytes);
+			return new String(bytes, StandardCharsets.UTF_8);
+		}
+		default:
+			throw new IllegalArgumentException("Invalid type: " + type);
+		}
+	}
+
+}
@@ -0,0 +1,452 @@
+package io.github.yappy.lua;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.BiConsumer;
+
+/**
+ * Cooperative scheduler for many Lua coroutines in one engine.
+ *
+ * Each spawned script or function call runs in its own coroutine
+ * (Lua thread) sharing the engine globals, so thousands of long-lived
+ * actors need neither their own engine nor their own Java thread.
+ *
+ * A coroutine runs for a time slice of about sliceInstructions Lua
+ * instructions, and then it is preempted by the debug hook and goes back
+ * to the ready queue. It also gives up the engine at coroutine.yield, and
+ * at a call of {@link LuaAsyncFunction} until the result is available.
+ * The coroutine with the highest priority runs first, and coroutines with
+ * the same priority run round-robin. A lower priority coroutine runs only
+ * when no higher one is ready.
+ *
+ * Each slice is run by a task of the given carrier {@link Executor}, and
+ * the next slice is scheduled again as a new task. So a few carrier
+ * threads can drive many schedulers (engines) fairly.
+ *
+ * Cancelling a returned future stops the coroutine at its next slice,
+ * or aborts the script by {@link LuaEngine#abort()} if it is running.
+ * A coroutine waiting for a {@link LuaAsyncFunction} gets its next slice
+ * at once. The stage itself is not cancelled (it may be shared), and its
+ * result is ignored.
+ *
+ * The engine must not be used directly while this scheduler is in use.
+ * This class is thread-safe.
+ * @author yappy
+ */
+public class LuaScheduler implements AutoCloseable {
+
+	/** Default priority. */
+	public static final int DEFAULT_PRIORITY = 0;
+	/** Default time slice in Lua instruction count. */
+	public static final long DEFAULT_SLICE_INSTRUCTIONS = 10000;
+
+	private final LuaEngine engine;
+	private final Executor carriers;
+	private final long sliceInstructions;
+	private final PriorityQueue<Actor> ready = new PriorityQueue<>();
+	// spawn order, and re-queue order for round-robin
+	private long sequence = 0;
+	// waiting for a LuaAsyncFunction
+	private final Set<Actor> waiting = new HashSet<>();
+	private Actor running = null;
+	// a slice is queued in the executor or running
+	private boolean scheduled = false;
+	private boolean closed = false;
+
+	private long spawnedCount = 0;
+	private long sliceCount = 0;
+	private long preemptedCount = 0;
+	private long completedCount = 0;
+	private long failedCount = 0;
+
+	private final Runnable sliceTask = new Runnable() {
+		@Override
+		public void run() {
+			runSlice();
+		}
+	};
+
+	/**
+	 * Create a scheduler with {@link #DEFAULT_SLICE_INSTRUCTIONS}.
+	 * @param engine Lua engine.
+	 * @param carriers Threads which run coroutines.
+	 */
+	public LuaScheduler(LuaEngine engine, Executor carriers) {
+		this(engine, carriers, DEFAULT_SLICE_INSTRUCTIONS);
+	}
+
+	/**
+	 * Create a scheduler.
+	 * The time slice is rounded up to a multiple of the debug hook interval
+	 * of the engine.
+	 * @param engine Lua engine.
+	 * @param carriers Threads which run coroutines.
+	 * @param sliceInstructions Time slice in Lua instruction count.
+	 */
+	public LuaScheduler(LuaEngine engine, Executor carriers,
+			long sliceInstructions) {
+		if (engine == null) {
+			throw new NullPointerException("engine");
+		}
+		if (carriers == null) {
+			throw new NullPointerException("carriers");
+		}
+		if (sliceInstructions <= 0) {
+			throw new IllegalArgumentException(
+					"sliceInstructions=" + sliceInstructions);
+		}
+		this.engine = engine;
+		this.carriers = carriers;
+		this.sliceInstructions = sliceInstructions;
+	}
+
+	/**
+	 * Stop accepting coroutines and cancel all coroutines except the
+	 * running one, including ones waiting for a {@link LuaAsyncFunction}.
+	 * Suspended Lua threads are released when the engine is closed.
+	 * The engine is not closed by this method.
+	 */
+	@Override
+	public void close() {
+		List<Actor> pending;
+		synchronized (this) {
+			closed = true;
+			pending = new ArrayList<Actor>(ready);
+			pending.addAll(waiting);
+			ready.clear();
+			waiting.clear();
+		}
+		for (Actor actor : pending) {
+			actor.cancel(false);
+		}
+	}
+
+	/**
+	 * Spawn a coroutine which calls a Lua global function
+	 * with {@link #DEFAULT_PRIORITY}.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Future of the return values.
+	 * @throws RejectedExecutionException The scheduler is closed.
+	 */
+	public CompletableFuture<Object[]> spawn(String name, Object... params) {
+		return spawn(DEFAULT_PRIORITY, name, params);
+	}
+
+	/**
+	 * Spawn a coroutine which calls a Lua global function.
+	 * @param priority Priority. Larger runs first.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Future of the return values.
+	 * @throws RejectedExecutionException The scheduler is closed.
+	 */
+	public CompletableFuture<Object[]> spawn(int priority,
+			String name, Object... params) {
+		if (name == null) {
+			throw new NullPointerException("name");
+		}
+		if (params == null) {
+			throw new NullPointerException("params");
+		}
+		Actor actor = new Actor(priority, name, params, null);
+		offer(actor);
+		return actor;
+	}
+
+	/**
+	 * Spawn a coroutine which executes Lua program code
+	 * with {@link #DEFAULT_PRIORITY}.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @return Future of the chunk return values.
+	 * @throws RejectedExecutionException The scheduler is closed.
+	 */
+	public CompletableFuture<Object[]> spawnString(
+			String buf, String chunkName) {
+		return spawnString(DEFAULT_PRIORITY, buf, chunkName);
+	}
+
+	/**
+	 * Spawn a coroutine which executes Lua program code.
+	 * @param priority Priority. Larger runs first.
+	 * @param buf Lua source code.
+	 * @param chunkName It will be used at error message.
+	 * @return Future of the chunk return values.
+	 * @throws RejectedExecutionException The scheduler is closed.
+	 */
+	public CompletableFuture<Object[]> spawnString(int priority,
+			String buf, String chunkName) {
+		if (buf == null) {
+			throw new NullPointerException("buf");
+		}
+		if (chunkName == null) {
+			throw new NullPointerException("chunkName");
+		}
+		Actor actor = new Actor(priority, chunkName, null, buf);
+		offer(actor);
+		return actor;
+	}
+
+	/**
+	 * Get coroutine counts and slice statistics.
+	 * @return Statistics.
+	 */
+	public synchronized LuaSchedulerStats getStats() {
+		return new LuaSchedulerStats(ready.size(), waiting.size(),
+				spawnedCount, sliceCount, preemptedCount,
+				completedCount, failedCount);
+	}
+
+	private void offer(Actor actor) {
+		boolean schedule;
+		synchronized (this) {
+			if (closed) {
+				throw new RejectedExecutionException("LuaScheduler is closed");
+			}
+			spawnedCount++;
+			schedule = enqueue(actor);
+		}
+		if (schedule) {
+			scheduleSlice();
+		}
+	}
+
+	// return true if a slice must be scheduled
+	private boolean enqueue(Actor actor) {
+		actor.sequence = sequence++;
+		ready.offer(actor);
+		boolean schedule = !scheduled;
+		scheduled = true;
+		return schedule;
+	}
+
+	// from LuaAsyncFunction completion
+	private void wakeUp(Actor actor) {
+		boolean schedule;
+		synchronized (this) {
+			if (!waiting.remove(actor)) {
+				// already woken up by cancel, or closed
+				return;
+			}
+			schedule = enqueue(actor);
+		}
+		if (schedule) {
+			scheduleSlice();
+		}
+	}
+
+	private void scheduleSlice() {
+		try {
+			carriers.execute(sliceTask);
+		}
+		catch (RejectedExecutionException e) {
+			// the executor is shut down; nothing will run
+			List<Actor> pending;
+			synchronized (this) {
+				scheduled = false;
+				pending = new ArrayList<Actor>(ready);
+				ready.clear();
+				failedCount += pending.size();
+			}
+			for (Actor actor : pending) {
+				actor.completeExceptionally(e);
+			}
+		}
+	}
+
+	private void runSlice() {
+		Actor actor;
+		synchronized (this) {
+			actor = ready.poll();
+			if (actor == null) {
+				scheduled = false;
+				return;
+			}
+			running = actor;
+			sliceCount++;
+		}
+		// READY: back to the queue
+		// WAITING: waits for a LuaAsyncFunction
+		// DONE: finished, failed or cancelled
+		State state = actor.runSlice();
+		boolean more;
+		synchronized (this) {
+			running = null;
+			// abort() by a cancel which was too late
+			engine.clearAbort();
+			switch (state) {
+			case READY:
+				if (actor.run.isPreempted()) {
+					preemptedCount++;
+				}
+				enqueue(actor);
+				break;
+			case WAITING:
+				waiting.add(actor);
+				actor.waitStage();
+				break;
+			case DONE:
+				if (!actor.isCancelled()) {
+					if (actor.isCompletedExceptionally() ||
+							actor.failure != null) {
+						failedCount++;
+					}
+					else {
+						completedCount++;
+					}
+				}
+				break;
+			}
+			more = !ready.isEmpty();
+			scheduled = more;
+		}
+		if (state == State.DONE) {
+			// after the stats are updated
+			actor.finish();
+		}
+		if (more) {
+			scheduleSlice();
+		}
+	}
+
+	private void onCancel(Actor actor) {
+		boolean schedule = false;
+		synchronized (this) {
+			if (running == actor) {
+				// LuaAbortException at the next debug hook
+				engine.abort();
+			}
+			else if (waiting.remove(actor)) {
+				// without waiting for the stage
+				schedule = enqueue(actor);
+			}
+			// a ready one is closed at its next slice
+		}
+		if (schedule) {
+			scheduleSlice();
+		}
+	}
+
+	private enum State {
+		READY, WAITING, DONE,
+	}
+
+	private class Actor extends CompletableFuture<Object[]>
+			implements Comparable<Actor> {
+		private final int priority;
+		private final String name;
+		private final Object[] params;
+		private final String buf;
+		private long sequence;
+		// accessed by slices only (serialized by the queue)
+		private LuaEngine.AsyncRun run = null;
+		private Object[] values = null;
+		private String error = null;
+		// outcome of the DONE slice
+		private Object[] results = null;
+		private Throwable failure = null;
+
+		public Actor(int priority, String name, Object[] params, String buf) {
+			this.priority = priority;
+			this.name = name;
+			this.params = params;
+			this.buf = buf;
+		}
+
+		@Override
+		public int compareTo(Actor o) {
+			if (priority != o.priority) {
+				return (priority > o.priority) ? -1 : 1;
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+
+		public State runSlice() {
+			try {
+				if (isDone()) {
+					// cancelled or failed while not running
+					if (run != null) {
+						engine.closeAsync(run);
+					}
+					return State.DONE;
+				}
+				if (run == null) {
+					run = (buf != null) ?
+							engine.startAsync(buf, name) :
+							engine.startAsyncCall(name, params);
+				}
+				Object[] resumeValues = values;
+				String resumeError = error;
+				values = null;
+				error = null;
+				if (engine.resumeAsync(run, resumeValues, resumeError,
+						sliceInstructions)) {
+					results = run.getResults();
+					return State.DONE;
+				}
+				return (run.getPending() != null) ? State.WAITING : State.READY;
+			}
+			catch (LuaException | RuntimeException | Error e) {
+				failure = e;
+				return State.DONE;
+			}
+		}
+
+		public void finish() {
+			if (failure != null) {
+				completeExceptionally(failure);
+			}
+			else if (results != null) {
+				complete(results);
+			}
+		}
+
+		// called with the scheduler lock
+		public void waitStage() {
+			run.getPending().whenComplete(new BiConsumer<Object[], Throwable>() {
+				@Override
+				public void accept(Object[] result, Throwable t) {
+					onStageComplete(result, t);
+				}
+			});
+		}
+
+		private void onStageComplete(Object[] result, Throwable t) {
+			if (t == null) {
+				values = result;
+			}
+			else {
+				Throwable cause = (t instanceof CompletionException &&
+						t.getCause() != null) ? t.getCause() : t;
+				if (cause instanceof LuaRuntimeException) {
+					// Lua error in the caller
+					String msg = cause.getMessage();
+					error = (msg != null) ? msg : cause.toString();
+				}
+				else {
+					// the next slice closes the coroutine
+					completeExceptionally(cause);
+				}
+			}
+			wakeUp(this);
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result) {
+				onCancel(this);
+			}
+			return result;
+		}
+	}
+
+}
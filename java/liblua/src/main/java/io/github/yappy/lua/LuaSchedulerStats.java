@@ -0,0 +1,95 @@
+package io.github.yappy.lua;
+
+/**
+ * Coroutine counts and slice statistics of {@link LuaScheduler}.
+ * @see LuaScheduler#getStats()
+ * @author yappy
+ */
+public final class LuaSchedulerStats {
+
+	private final int readyCount;
+	private final int waitingCount;
+	private final long spawnedCount;
+	private final long sliceCount;
+	private final long preemptedCount;
+	private final long completedCount;
+	private final long failedCount;
+
+	LuaSchedulerStats(int readyCount, int waitingCount, long spawnedCount,
+			long sliceCount, long preemptedCount,
+			long completedCount, long failedCount) {
+		this.readyCount = readyCount;
+		this.waitingCount = waitingCount;
+		this.spawnedCount = spawnedCount;
+		this.sliceCount = sliceCount;
+		this.preemptedCount = preemptedCount;
+		this.completedCount = completedCount;
+		this.failedCount = failedCount;
+	}
+
+	/**
+	 * Get coroutine count in the ready queue.
+	 * @return Ready count.
+	 */
+	public int getReadyCount() {
+		return readyCount;
+	}
+
+	/**
+	 * Get coroutine count waiting for {@link LuaAsyncFunction}.
+	 * @return Waiting count.
+	 */
+	public int getWaitingCount() {
+		return waitingCount;
+	}
+
+	/**
+	 * Get spawned coroutine count.
+	 * @return Spawned count.
+	 */
+	public long getSpawnedCount() {
+		return spawnedCount;
+	}
+
+	/**
+	 * Get run count of time slices.
+	 * @return Slice count.
+	 */
+	public long getSliceCount() {
+		return sliceCount;
+	}
+
+	/**
+	 * Get count of slices which ended by using up the time slice.
+	 * @return Preempted count.
+	 */
+	public long getPreemptedCount() {
+		return preemptedCount;
+	}
+
+	/**
+	 * Get coroutine count which finished normally.
+	 * @return Completed count.
+	 */
+	public long getCompletedCount() {
+		return completedCount;
+	}
+
+	/**
+	 * Get coroutine count which finished with an error.
+	 * @return Failed count.
+	 */
+	public long getFailedCount() {
+		return failedCount;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"ready=%d, waiting=%d, spawned=%d, slices=%d, preempted=%d, " +
+				"completed=%d, failed=%d",
+				readyCount, waitingCount, spawnedCount, sliceCount,
+				preemptedCount, completedCount, failedCount);
+	}
+
+}
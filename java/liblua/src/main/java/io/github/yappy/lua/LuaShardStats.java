@@ -0,0 +1,83 @@
+package io.github.yappy.lua;
+
+/**
+ * Mailbox statistics of a shard in {@link LuaShardedExecutor}.
+ *
+ * A shard whose queue depth is much larger than others has hot keys.
+ * @see LuaShardedExecutor#getShardStats(int)
+ * @author yappy
+ */
+public final class LuaShardStats {
+
+	private final int shard;
+	private final int queueDepth;
+	private final int maxQueueDepth;
+	private final long processedCount;
+	private final long batchCount;
+
+	LuaShardStats(int shard, int queueDepth, int maxQueueDepth,
+			long processedCount, long batchCount) {
+		this.shard = shard;
+		this.queueDepth = queueDepth;
+		this.maxQueueDepth = maxQueueDepth;
+		this.processedCount = processedCount;
+		this.batchCount = batchCount;
+	}
+
+	/**
+	 * Get shard index.
+	 * @return Shard index.
+	 */
+	public int getShard() {
+		return shard;
+	}
+
+	/**
+	 * Get waiting task count.
+	 * @return Current queue depth.
+	 */
+	public int getQueueDepth() {
+		return queueDepth;
+	}
+
+	/**
+	 * Get max waiting task count so far.
+	 * @return Max queue depth.
+	 */
+	public int getMaxQueueDepth() {
+		return maxQueueDepth;
+	}
+
+	/**
+	 * Get task count taken from the mailbox.
+	 * @return Processed count.
+	 */
+	public long getProcessedCount() {
+		return processedCount;
+	}
+
+	/**
+	 * Get worker wakeup count.
+	 * Each wakeup runs a batch of queued tasks.
+	 * @return Batch count.
+	 */
+	public long getBatchCount() {
+		return batchCount;
+	}
+
+	/**
+	 * Get average task count in a batch.
+	 * @return Average batch size. (0 if no batch)
+	 */
+	public double getAverageBatchSize() {
+		return (batchCount != 0) ? (double)processedCount / batchCount : 0;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"shard=%d, depth=%d, maxDepth=%d, processed=%d, batch=%d",
+				shard, queueDepth, maxQueueDepth, processedCount, batchCount);
+	}
+
+}
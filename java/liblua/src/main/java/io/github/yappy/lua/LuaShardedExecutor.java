@@ -0,0 +1,316 @@
+package io.github.yappy.lua;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Key-sharded Lua engines, each pinned to its own worker thread.
+ *
+ * A task is submitted with a key. The key hash selects a shard, so
+ * tasks with the same key always run on the same engine in submission
+ * order, and per-key state can be kept in Lua globals.
+ * Different shards run in parallel.
+ *
+ * Each shard has a bounded mailbox. When the worker wakes up, it takes
+ * all queued tasks (up to maxBatch) at once and runs them without
+ * waiting for the lock again.
+ *
+ * Cancelling a returned future skips the task if it is waiting, or
+ * aborts the script by {@link LuaEngine#abort()} if it is running.
+ *
+ * This class is thread-safe.
+ * @author yappy
+ */
+public class LuaShardedExecutor implements AutoCloseable {
+
+	/** Default max waiting task count for each shard. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 1024;
+	/** Default max task count for each wakeup. */
+	public static final int DEFAULT_MAX_BATCH = 64;
+
+	private final Shard[] shards;
+	private final int queueCapacity;
+	private final int maxBatch;
+
+	/**
+	 * Create shards with {@link #DEFAULT_QUEUE_CAPACITY} and
+	 * {@link #DEFAULT_MAX_BATCH}.
+	 * @param factory Engine factory. It is called shardCount times.
+	 * @param shardCount Shard count.
+	 * (e.g. {@link Runtime#availableProcessors()})
+	 * @throws LuaException Error in {@link LuaEngineFactory#create()}.
+	 */
+	public LuaShardedExecutor(LuaEngineFactory factory, int shardCount)
+			throws LuaException {
+		this(factory, shardCount, DEFAULT_QUEUE_CAPACITY, DEFAULT_MAX_BATCH);
+	}
+
+	/**
+	 * Create shards and start their worker threads.
+	 * @param factory Engine factory. It is called shardCount times.
+	 * @param shardCount Shard count.
+	 * @param queueCapacity Max waiting task count for each shard.
+	 * @param maxBatch Max task count for each wakeup.
+	 * @throws LuaException Error in {@link LuaEngineFactory#create()}.
+	 */
+	public LuaShardedExecutor(LuaEngineFactory factory, int shardCount,
+			int queueCapacity, int maxBatch) throws LuaException {
+		if (shardCount <= 0 || queueCapacity <= 0 || maxBatch <= 0) {
+			throw new IllegalArgumentException(String.format(
+					"shardCount=%d, queueCapacity=%d, maxBatch=%d",
+					shardCount, queueCapacity, maxBatch));
+		}
+		this.queueCapacity = queueCapacity;
+		this.maxBatch = maxBatch;
+		this.shards = new Shard[shardCount];
+		try {
+			for (int i = 0; i < shardCount; i++) {
+				shards[i] = new Shard(i, factory.create());
+			}
+		}
+		catch (LuaException | RuntimeException | Error e) {
+			for (Shard shard : shards) {
+				if (shard != null) {
+					shard.engine.close();
+				}
+			}
+			throw e;
+		}
+		for (Shard shard : shards) {
+			shard.thread.start();
+		}
+	}
+
+	/**
+	 * Stop all workers and close the engines.
+	 * Waiting tasks are cancelled. Running tasks are finished.
+	 */
+	@Override
+	public void close() {
+		for (Shard shard : shards) {
+			shard.shutdown();
+		}
+		boolean interrupted = false;
+		for (Shard shard : shards) {
+			while (true) {
+				try {
+					shard.thread.join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			shard.engine.close();
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Get shard count.
+	 * @return Shard count.
+	 */
+	public int getShardCount() {
+		return shards.length;
+	}
+
+	/**
+	 * Get shard index for the key.
+	 * @param key Key. (Object#hashCode() is used)
+	 * @return Shard index.
+	 */
+	public int shardOf(Object key) {
+		if (key == null) {
+			throw new NullPointerException("key");
+		}
+		int h = key.hashCode();
+		// spread higher bits (same as HashMap)
+		h ^= (h >>> 16);
+		return (h & 0x7fffffff) % shards.length;
+	}
+
+	/**
+	 * Submit a task to the shard of the key.
+	 * @param key Key.
+	 * @param task Task. It is called with the engine of the shard.
+	 * @param <T> Result type.
+	 * @return Future of the result.
+	 * @throws RejectedExecutionException The mailbox is full or closed.
+	 */
+	public <T> CompletableFuture<T> submit(Object key, LuaTask<T> task) {
+		if (task == null) {
+			throw new NullPointerException("task");
+		}
+		Shard shard = shards[shardOf(key)];
+		ShardFuture<T> future = new ShardFuture<>(shard, task);
+		shard.offer(future);
+		return future;
+	}
+
+	/**
+	 * Submit a Lua global function call to the shard of the key.
+	 * @param key Key.
+	 * @param name Global variable name.
+	 * @param params Parameters.
+	 * @return Future of the return values.
+	 * @throws RejectedExecutionException The mailbox is full or closed.
+	 * @see LuaEngine#callGlobalFunction(String, Object...)
+	 */
+	public CompletableFuture<Object[]> submit(Object key,
+			final String name, final Object... params) {
+		return submit(key, new LuaTask<Object[]>() {
+			@Override
+			public Object[] run(LuaEngine engine) throws LuaException {
+				return engine.callGlobalFunction(name, params);
+			}
+		});
+	}
+
+	/**
+	 * Get mailbox statistics of a shard.
+	 * @param shard Shard index.
+	 * @return Statistics.
+	 */
+	public LuaShardStats getShardStats(int shard) {
+		return shards[shard].getStats();
+	}
+
+	private class Shard implements Runnable {
+		private final int index;
+		private final LuaEngine engine;
+		private final Thread thread;
+		private final Deque<ShardFuture<?>> mailbox = new ArrayDeque<>();
+		private ShardFuture<?> running = null;
+		private boolean closed = false;
+		private int maxDepth = 0;
+		private long processedCount = 0;
+		private long batchCount = 0;
+
+		public Shard(int index, LuaEngine engine) {
+			this.index = index;
+			this.engine = engine;
+			this.thread = new Thread(this, "LuaShardedExecutor-" + index);
+			thread.setDaemon(true);
+		}
+
+		public synchronized void offer(ShardFuture<?> future) {
+			if (closed) {
+				throw new RejectedExecutionException("LuaShardedExecutor is closed");
+			}
+			if (mailbox.size() >= queueCapacity) {
+				throw new RejectedExecutionException("Queue is full: shard=" + index);
+			}
+			mailbox.offerLast(future);
+			maxDepth = Math.max(maxDepth, mailbox.size());
+			if (mailbox.size() == 1) {
+				notify();
+			}
+		}
+
+		public void shutdown() {
+			List<ShardFuture<?>> pending;
+			synchronized (this) {
+				closed = true;
+				pending = new ArrayList<ShardFuture<?>>(mailbox);
+				mailbox.clear();
+				notify();
+			}
+			for (ShardFuture<?> future : pending) {
+				future.cancel(false);
+			}
+		}
+
+		public synchronized LuaShardStats getStats() {
+			return new LuaShardStats(index, mailbox.size(), maxDepth,
+					processedCount, batchCount);
+		}
+
+		public synchronized void onCancel(ShardFuture<?> future) {
+			if (running == future) {
+				// LuaAbortException at the next debug hook
+				engine.abort();
+			}
+			else {
+				mailbox.remove(future);
+			}
+		}
+
+		@Override
+		public void run() {
+			List<ShardFuture<?>> batch = new ArrayList<>();
+			while (true) {
+				synchronized (this) {
+					while (mailbox.isEmpty() && !closed) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// only close() stops the worker
+						}
+					}
+					if (mailbox.isEmpty()) {
+						return;
+					}
+					while (!mailbox.isEmpty() && batch.size() < maxBatch) {
+						batch.add(mailbox.pollFirst());
+					}
+					processedCount += batch.size();
+					batchCount++;
+				}
+				for (ShardFuture<?> future : batch) {
+					synchronized (this) {
+						if (closed) {
+							// rest of the batch is also waiting
+							future.cancel(false);
+							continue;
+						}
+						running = future;
+					}
+					future.runWith(engine);
+					synchronized (this) {
+						running = null;
+						// abort() by a cancel which was too late
+						engine.clearAbort();
+					}
+				}
+				batch.clear();
+			}
+		}
+	}
+
+	private static class ShardFuture<T> extends CompletableFuture<T> {
+		private final Shard shard;
+		private final LuaTask<T> task;
+
+		public ShardFuture(Shard shard, LuaTask<T> task) {
+			this.shard = shard;
+			this.task = task;
+		}
+
+		public void runWith(LuaEngine engine) {
+			if (isDone()) {
+				return;
+			}
+			try {
+				complete(task.run(engine));
+			}
+			catch (Throwable t) {
+				completeExceptionally(t);
+			}
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean result = super.cancel(mayInterruptIfRunning);
+			if (result) {
+				shard.onCancel(this);
+			}
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,54 @@
+package io.github.yappy.lua;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receiver of rows emitted by Lua emit(...) function.
+ *
+ * emit(...) appends a row of its arguments to a native buffer without
+ * calling Java. The buffer is passed to {@link #write(ByteBuffer, int)}
+ * when the next row does not fit in it, and at the end of each call from
+ * Java (e.g. {@link LuaEngine#execString(String, String)}).
+ *
+ * The buffer is in the native byte order and contains rows as follows.
+ * <ul>
+ * <li>Row: int32 value count, values</li>
+ * <li>Value: int8 type, payload</li>
+ * <li>{@link #TYPE_NIL}: no payload</li>
+ * <li>{@link #TYPE_BOOLEAN}: int8 0 or 1</li>
+ * <li>{@link #TYPE_INTEGER}: int64</li>
+ * <li>{@link #TYPE_NUMBER}: float64</li>
+ * <li>{@link #TYPE_STRING}: int32 byte length, bytes (Lua string as is)</li>
+ * </ul>
+ * Other types cannot be emitted.
+ *
+ * @see LuaEngine#setSink(LuaSink, int)
+ * @see LuaRowSink
+ * @author yappy
+ */
+public interface LuaSink {
+
+	/** Value type nil. */
+	int TYPE_NIL		= 0;
+	/** Value type boolean. */
+	int TYPE_BOOLEAN	= 1;
+	/** Value type integer number. */
+	int TYPE_INTEGER	= 2;
+	/** Value type float number. */
+	int TYPE_NUMBER		= 3;
+	/** Value type string. */
+	int TYPE_STRING		= 4;
+
+	/**
+	 * Invoked with a chunk of rows.
+	 * The buffer is reused after this call returns.
+	 * @param chunk Rows between position and limit.
+	 * @param rowCount Row count in chunk.
+	 * @throws LuaRuntimeException Raise Lua error in emit(...) or at the end
+	 * of the call.
+	 * @throws LuaAbortException Raise Lua error. It cannot be handled by Lua code.
+	 */
+	void write(ByteBuffer chunk, int rowCount)
+			throws LuaRuntimeException, LuaAbortException;
+
+}
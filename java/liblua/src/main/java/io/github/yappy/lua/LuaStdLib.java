@@ -12,7 +12,15 @@ import java.util.Set;
  */
 public enum LuaStdLib {
 	BASE(0), PACKAGE(1), COROUTINE(2), TABLE(3), IO(4),
-	OS(5), STRING(6), MATH(7), UTF8(8), DEBUG(9);
+	OS(5), STRING(6), MATH(7), UTF8(8), DEBUG(9),
+	/** Native JSON library (not a Lua standard library). */
+	JSON(10),
+	/** Native string buffer library (not a Lua standard library). */
+	STRBUF(11),
+	/** Native numeric array library (not a Lua standard library). */
+	NUMARRAY(12),
+	/** Native byte array view library (not a Lua standard library). */
+	BYTES(13);
 
 	private int id;
 
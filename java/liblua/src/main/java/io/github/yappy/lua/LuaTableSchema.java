@@ -0,0 +1,159 @@
+package io.github.yappy.lua;
+
+import java.util.Arrays;
+
+/**
+ * Column names, column types and file format of
+ * {@link LuaEngine#loadTable(String, java.nio.file.Path, LuaTableSchema)}.
+ *
+ * A field is converted to the Lua value of its column type.
+ * An empty field, a missing field and a {@link #TYPE_SKIP} column are nil.
+ * <ul>
+ * <li>{@link #TYPE_BOOLEAN}: "true", "false", "1" or "0"</li>
+ * <li>{@link #TYPE_INTEGER}: decimal integer with an optional sign</li>
+ * <li>{@link #TYPE_NUMBER}: float number (the same as tonumber())</li>
+ * <li>{@link #TYPE_STRING}: bytes as is</li>
+ * </ul>
+ *
+ * Fields are separated by the delimiter and rows by LF or CRLF.
+ * A field can be quoted by '"' to contain the delimiter, line breaks and
+ * '""' as '"'. Empty lines are ignored.
+ *
+ * This class is immutable.
+ * @author yappy
+ */
+public final class LuaTableSchema {
+
+	/** Column is not loaded. */
+	public static final int TYPE_SKIP		= 0;
+	/** Column type boolean. */
+	public static final int TYPE_BOOLEAN	= 1;
+	/** Column type integer number. */
+	public static final int TYPE_INTEGER	= 2;
+	/** Column type float number. */
+	public static final int TYPE_NUMBER		= 3;
+	/** Column type string. */
+	public static final int TYPE_STRING		= 4;
+
+	private final String[] names;
+	private final int[] types;
+	private final char delimiter;
+	private final boolean header;
+	private final boolean columnar;
+
+	/**
+	 * Create a schema of CSV with a header line, loaded as an array of rows.
+	 * @param names Column names.
+	 * @param types Column types.
+	 */
+	public LuaTableSchema(String[] names, int[] types) {
+		this(names, types, ',', true, false);
+	}
+
+	/**
+	 * Create a schema.
+	 *
+	 * If columnar is false, the table is an array of rows, and each row
+	 * is a table of column name to value.
+	 * If columnar is true, the table is a table of column name to an array
+	 * of values. The arrays have holes at nil values.
+	 * @param names Column names.
+	 * @param types Column types.
+	 * @param delimiter Field delimiter. (e.g. ',' or '\t')
+	 * @param header Skip the first line.
+	 * @param columnar Column-oriented table.
+	 * @throws IllegalArgumentException Invalid column types or delimiter.
+	 */
+	public LuaTableSchema(String[] names, int[] types,
+			char delimiter, boolean header, boolean columnar) {
+		if (names == null) {
+			throw new NullPointerException("names");
+		}
+		if (types == null) {
+			throw new NullPointerException("types");
+		}
+		if (names.length != types.length) {
+			throw new IllegalArgumentException(String.format(
+					"names.length=%d, types.length=%d",
+					names.length, types.length));
+		}
+		for (int i = 0; i < names.length; i++) {
+			if (names[i] == null) {
+				throw new NullPointerException("names[" + i + "]");
+			}
+			if (types[i] < TYPE_SKIP || types[i] > TYPE_STRING) {
+				throw new IllegalArgumentException(
+						"types[" + i + "]=" + types[i]);
+			}
+		}
+		// single byte, and not a part of a field or a line break
+		if (delimiter == 0 || delimiter >= 0x80 || delimiter == '"' ||
+				delimiter == '\r' || delimiter == '\n') {
+			throw new IllegalArgumentException(
+					"delimiter=" + (int)delimiter);
+		}
+		this.names = names.clone();
+		this.types = types.clone();
+		this.delimiter = delimiter;
+		this.header = header;
+		this.columnar = columnar;
+	}
+
+	/**
+	 * Get the column names.
+	 * @return Copy of the column names.
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * Get the column types.
+	 * @return Copy of the column types.
+	 */
+	public int[] getTypes() {
+		return types.clone();
+	}
+
+	/**
+	 * Get the field delimiter.
+	 * @return Delimiter.
+	 */
+	public char getDelimiter() {
+		return delimiter;
+	}
+
+	/**
+	 * Get whether the first line is skipped.
+	 * @return true if the file has a header line.
+	 */
+	public boolean hasHeader() {
+		return header;
+	}
+
+	/**
+	 * Get whether the table is column-oriented.
+	 * @return true if column-oriented.
+	 */
+	public boolean isColumnar() {
+		return columnar;
+	}
+
+	// without copy
+	String[] names() {
+		return names;
+	}
+
+	int[] types() {
+		return types;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"names=%s, types=%s, delimiter=%d, header=%b, columnar=%b",
+				Arrays.toString(names), Arrays.toString(types),
+				(int)delimiter, header, columnar);
+	}
+
+}
@@ -0,0 +1,20 @@
+package io.github.yappy.lua;
+
+/**
+ * Work for a Lua engine run by {@link LuaExecutor}.
+ * @param <T> Result type.
+ * @author yappy
+ */
+public interface LuaTask<T> {
+
+	/**
+	 * Run with the engine.
+	 * It is called in a thread of the executor, and the engine is not
+	 * used by other tasks during this call.
+	 * @param engine Lua engine.
+	 * @return Result.
+	 * @throws LuaException A Lua error occurred.
+	 */
+	T run(LuaEngine engine) throws LuaException;
+
+}
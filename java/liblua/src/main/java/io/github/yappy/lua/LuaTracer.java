@@ -0,0 +1,79 @@
+package io.github.yappy.lua;
+
+/**
+ * Lua engine activity tracer for profilers.
+ *
+ * All methods are called on the thread which is using the engine.
+ * A begin method returns a context object and it will be passed to
+ * the corresponding end method.
+ * If a begin method returns null, the end method will not be called and
+ * the engine skips collecting statistics for it.
+ * So an implementation should return null as fast as possible when
+ * it is disabled.
+ *
+ * @see LuaEngine#setTracer(LuaTracer)
+ * @author yappy
+ */
+public interface LuaTracer {
+
+	/**
+	 * Lua source code compilation is started.
+	 * @param chunkName Chunk name.
+	 * @return Context object or null.
+	 */
+	Object compileBegin(String chunkName);
+
+	/**
+	 * Lua source code compilation is finished.
+	 * @param context The return value of {@link #compileBegin(String)}.
+	 * @param success false if syntax error or other error.
+	 */
+	void compileEnd(Object context, boolean success);
+
+	/**
+	 * Lua code execution is started.
+	 * @param chunkName Chunk name or global function name.
+	 * @return Context object or null.
+	 */
+	Object executeBegin(String chunkName);
+
+	/**
+	 * Lua code execution is finished.
+	 * @param context The return value of {@link #executeBegin(String)}.
+	 * @param instructions Executed VM instruction count.
+	 * (counted by the interrupt debug hook, so the unit is intrInstCount)
+	 * @param memoryDelta Native memory usage difference in bytes.
+	 * @param success false if Lua error or Java exception.
+	 */
+	void executeEnd(Object context, long instructions, long memoryDelta,
+			boolean success);
+
+	/**
+	 * Lua code calls a Java function.
+	 * @param name Function name. ("table.name" if it is a library function)
+	 * @return Context object or null.
+	 */
+	Object hostCallBegin(String name);
+
+	/**
+	 * Java function returns to Lua code.
+	 * @param context The return value of {@link #hostCallBegin(String)}.
+	 * @param success false if the function throws.
+	 */
+	void hostCallEnd(Object context, boolean success);
+
+	/**
+	 * Lua garbage collector completed cycles during execution.
+	 * @param cycles Completed cycle count.
+	 * @param memoryUsed Native memory usage after execution in bytes.
+	 */
+	void gcCycle(long cycles, long memoryUsed);
+
+	/**
+	 * Memory allocation failed because of nativeMemoryLimit.
+	 * @param memoryLimit Native memory limit in bytes.
+	 * @param memoryUsed Native memory usage in bytes.
+	 */
+	void memoryLimitHit(long memoryLimit, long memoryUsed);
+
+}
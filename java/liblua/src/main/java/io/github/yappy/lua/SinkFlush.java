@@ -0,0 +1,14 @@
+package io.github.yappy.lua;
+
+/*
+ * Lua emit() -> C -> Java sink buffer flush interface. (package private)
+ */
+interface SinkFlush {
+
+	// @param length Byte length of rows in the buffer.
+	// @param rows Row count.
+	// @throws LuaRuntimeException Its message will be converted to lua error.
+	void flush(int length, int rows)
+			throws LuaRuntimeException, LuaAbortException;
+
+}
@@ -0,0 +1,26 @@
+package io.github.yappy.lua;
+
+/**
+ * Wraps a {@link LuaException} where a checked exception cannot be thrown.
+ * (e.g. {@link java.util.Iterator#next()})
+ *
+ * @author yappy
+ */
+public class UncheckedLuaException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UncheckedLuaException(LuaException cause) {
+		super(cause);
+	}
+
+	public UncheckedLuaException(String message, LuaException cause) {
+		super(message, cause);
+	}
+
+	@Override
+	public LuaException getCause() {
+		return (LuaException)super.getCause();
+	}
+
+}
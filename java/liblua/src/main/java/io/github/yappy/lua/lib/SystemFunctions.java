@@ -1,13 +1,22 @@
 package io.github.yappy.lua.lib;
 
-import io.github.yappy.lua.LuaAbortException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
 import io.github.yappy.lua.LuaArg;
+import io.github.yappy.lua.LuaAsyncFunction;
 import io.github.yappy.lua.LuaFunction;
 import io.github.yappy.lua.LuaRuntimeException;
 
 @LuaLibraryTable("sys")
 public class SystemFunctions implements LuaLibrary {
 
+	private static final CompletableFuture<Object[]> NO_DELAY =
+			CompletableFuture.completedFuture(null);
+
+	// started at construction (not at the first sleep)
+	private final TimerWheel timer = TimerWheel.getDefault();
+
 	public SystemFunctions() {}
 
 	@Override
@@ -21,17 +30,16 @@ public class SystemFunctions implements LuaLibrary {
 		}
 	};
 
+	// yields the coroutine if possible, or blocks the engine thread
 	@LuaLibraryFunction(name = "sleep", args = { LuaArg.LONG })
-	public LuaFunction sleep = new LuaFunction() {
+	public LuaAsyncFunction sleep = new LuaAsyncFunction() {
 		@Override
-		public Object[] call(Object[] args) throws LuaRuntimeException, LuaAbortException {
+		public CompletionStage<Object[]> call(Object[] args) {
 			long millis = ((Long)args[0]).longValue();
-			try {
-				Thread.sleep(millis);
-			} catch(InterruptedException e) {
-				throw new LuaAbortException(e);
+			if (millis <= 0) {
+				return NO_DELAY;
 			}
-			return null;
+			return timer.schedule(millis, (Object[])null);
 		}
 	};
 
@@ -0,0 +1,185 @@
+package io.github.yappy.lua.lib;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hashed timer wheel with 1ms tick.
+ *
+ * All timers share one daemon thread, which waits without a timeout
+ * while no timer is scheduled, and otherwise sleeps until the earliest
+ * deadline (not every tick). Adding a timer is O(1), so many sleeping
+ * scripts cost almost nothing.
+ * @author yappy
+ */
+final class TimerWheel implements Runnable {
+
+	// must be power of 2
+	private static final int WHEEL_SIZE = 512;
+	private static final int WHEEL_MASK = WHEEL_SIZE - 1;
+	private static final long TICK_NANOS = 1000 * 1000;
+	// about 146 years; longer delays (e.g. Long.MAX_VALUE) are clamped
+	// so that the deadline in nanoseconds does not overflow
+	private static final long MAX_DELAY_MILLIS = Long.MAX_VALUE / TICK_NANOS / 2;
+
+	private static final TimerWheel DEFAULT = new TimerWheel();
+
+	private final List<List<Entry<?>>> wheel;
+	private final long startNanos = System.nanoTime();
+	// Object#wait() has only millisecond precision
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	// next tick to be processed
+	private long tick = 0;
+	private int count = 0;
+	// tick which the thread sleeps until
+	private long waitTarget = Long.MAX_VALUE;
+
+	private TimerWheel() {
+		wheel = new ArrayList<>(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			wheel.add(new ArrayList<Entry<?>>());
+		}
+		Thread thread = new Thread(this, "LuaTimerWheel");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the shared instance.
+	 * @return Timer wheel.
+	 */
+	public static TimerWheel getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Complete a future with the value after the delay.
+	 * Cancelling the future is allowed. It is just ignored at expiration.
+	 * @param delayMillis Delay in milliseconds. (clamped to about 146 years)
+	 * @param value Result value.
+	 * @param <T> Result type.
+	 * @return Future which completes with value.
+	 */
+	public <T> CompletableFuture<T> schedule(long delayMillis, T value) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		if (delayMillis <= 0) {
+			future.complete(value);
+			return future;
+		}
+		delayMillis = Math.min(delayMillis, MAX_DELAY_MILLIS);
+		long deadline = System.nanoTime() - startNanos + delayMillis * TICK_NANOS;
+		// round up
+		long target = (deadline + TICK_NANOS - 1) / TICK_NANOS;
+		lock.lock();
+		try {
+			if (count == 0) {
+				// skip idle ticks
+				tick = currentTick();
+			}
+			target = Math.max(target, tick);
+			wheel.get((int)(target & WHEEL_MASK)).add(
+					new Entry<T>(future, value, target));
+			count++;
+			if (count == 1 || target < waitTarget) {
+				changed.signal();
+			}
+		}
+		finally {
+			lock.unlock();
+		}
+		return future;
+	}
+
+	@Override
+	public void run() {
+		List<Entry<?>> expired = new ArrayList<>();
+		while (true) {
+			lock.lock();
+			try {
+				while (count == 0) {
+					changed.awaitUninterruptibly();
+				}
+				long now = currentTick();
+				if (now - tick >= WHEEL_SIZE) {
+					// one round visits every slot at the latest possible tick
+					tick = now - WHEEL_SIZE + 1;
+				}
+				for (; tick <= now && count > 0; tick++) {
+					// entries for later rounds stay in the slot
+					Iterator<Entry<?>> it =
+							wheel.get((int)(tick & WHEEL_MASK)).iterator();
+					while (it.hasNext()) {
+						Entry<?> e = it.next();
+						if (e.target <= tick) {
+							it.remove();
+							expired.add(e);
+							count--;
+						}
+					}
+				}
+				if (expired.isEmpty() && count > 0) {
+					// until the earliest deadline
+					waitTarget = nextTarget();
+					long elapsed = System.nanoTime() - startNanos;
+					try {
+						changed.awaitNanos(waitTarget * TICK_NANOS - elapsed);
+					} catch (InterruptedException e) {
+						// daemon; never stops
+					}
+					waitTarget = Long.MAX_VALUE;
+				}
+			}
+			finally {
+				lock.unlock();
+			}
+			// call completion handlers without the lock
+			for (Entry<?> e : expired) {
+				e.complete();
+			}
+			expired.clear();
+		}
+	}
+
+	// the earliest tick which expires an entry (count > 0)
+	// an entry in a slot before it might be for a later round
+	private long nextTarget() {
+		long min = Long.MAX_VALUE;
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			long t = tick + i;
+			for (Entry<?> e : wheel.get((int)(t & WHEEL_MASK))) {
+				if (e.target <= t) {
+					return t;
+				}
+				min = Math.min(min, e.target);
+			}
+		}
+		// all entries are for later rounds
+		return min;
+	}
+
+	private long currentTick() {
+		return (System.nanoTime() - startNanos) / TICK_NANOS;
+	}
+
+	private static final class Entry<T> {
+		private final CompletableFuture<T> future;
+		private final T value;
+		private final long target;
+
+		public Entry(CompletableFuture<T> future, T value, long target) {
+			this.future = future;
+			this.value = value;
+			this.target = target;
+		}
+
+		public void complete() {
+			future.complete(value);
+		}
+	}
+
+}
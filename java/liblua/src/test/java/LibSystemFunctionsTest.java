@@ -101,6 +101,35 @@ public class LibSystemFunctionsTest {
 		assertTrue(Math.abs((time2 - time1) - INT) < EPS);
 	}
 
+	@Test
+	public void sleepMaxInteger() throws Exception {
+		// 100ms
+		final long INT = 100;
+
+		final Thread main = Thread.currentThread();
+		Thread sub = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try { Thread.sleep(INT); } catch (Exception e) {}
+				main.interrupt();
+			}
+		});
+
+		// must not overflow and return immediately
+		boolean exFlag = false;
+		sub.start();
+		try {
+			lua.execString("sys.sleep(math.maxinteger)\n", "sleepMax.lua");
+		} catch (LuaAbortException e) {
+			exFlag = true;
+		} finally {
+			sub.join();
+			// clear interrupt
+			Thread.interrupted();
+		}
+		assertTrue(exFlag);
+	}
+
 	@Test
 	public void sleepInterruptInPcall() throws Exception {
 		// 1000ms, 100ms
@@ -0,0 +1,121 @@
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.CoreMatchers.not;
+import static org.hamcrest.CoreMatchers.sameInstance;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaEngineFactory;
+import io.github.yappy.lua.LuaEnginePool;
+import io.github.yappy.lua.LuaException;
+import io.github.yappy.lua.LuaIdleGcStats;
+
+public class LuaEnginePoolTest {
+
+	// start from a finished cycle with a large pause, so that the garbage
+	// is left without any step regardless of the previous GC state
+	private static final String GARBAGE =
+		"collectgarbage('setpause', 1000)\n" +
+		"collectgarbage()\n" +
+		"keep = {}\n" +
+		"for i = 1, 1000 do keep[i] = {} end\n" +
+		"for i = 1, 1000 do local t = { i } end\n";
+
+	private int createCount;
+	private LuaEnginePool pool;
+
+	@Before
+	public void init() throws Exception {
+		createCount = 0;
+		pool = new LuaEnginePool(new LuaEngineFactory() {
+			@Override
+			public LuaEngine create() throws LuaException {
+				createCount++;
+				LuaEngine lua = new LuaEngine();
+				lua.openStdLibs();
+				// make a cycle long enough to be left unfinished
+				lua.setGcPause(400);
+				return lua;
+			}
+		}, 2);
+	}
+
+	@After
+	public void term() throws Exception {
+		pool.close();
+		pool = null;
+	}
+
+	@Rule
+	public Timeout globalTimeout = Timeout.millis(5000);
+
+
+	@Test
+	public void borrowAndRelease() throws Exception {
+		LuaEngine lua1 = pool.borrow();
+		LuaEngine lua2 = pool.borrow();
+		LuaEngine lua3 = pool.borrow();
+		assertThat(createCount, is(3));
+		assertThat(lua1, not(sameInstance(lua2)));
+
+		pool.release(lua1);
+		pool.release(lua2);
+		// over maxIdle; closed
+		pool.release(lua3);
+		assertThat(pool.getIdleCount(), is(2));
+
+		// the most recently released first
+		assertThat(pool.borrow(), is(sameInstance(lua2)));
+		assertThat(pool.borrow(), is(sameInstance(lua1)));
+		assertThat(createCount, is(3));
+	}
+
+	@Test
+	public void idleGc() throws Exception {
+		LuaEngine lua = pool.borrow();
+		lua.execString(GARBAGE, "idleGc.lua");
+		long used = lua.getMemoryStats().getUsed();
+		pool.release(lua);
+
+		// check manually
+		pool.startIdleGc(60 * 60 * 1000, 64, 1000);
+		pool.gcIdleEngines();
+		LuaIdleGcStats stats = pool.getIdleGcStats();
+		assertThat(stats.getVisitCount(), is(1L));
+		assertTrue(stats.getStepCount() >= 1);
+		assertThat(stats.getCycleCount(), is(1L));
+		assertTrue(stats.getFreedBytes() > 0);
+		assertTrue(stats.getTotalNanos() > 0);
+
+		lua = pool.borrow();
+		assertTrue(lua.getMemoryStats().getUsed() < used);
+		assertThat(lua.getGcStats().getStepCount(), is(stats.getStepCount()));
+		pool.release(lua);
+
+		// nothing to do after the cycle
+		pool.gcIdleEngines();
+		assertThat(pool.getIdleGcStats().getVisitCount(), is(1L));
+	}
+
+	@Test
+	public void idleGcBackground() throws Exception {
+		LuaEngine lua = pool.borrow();
+		lua.execString(GARBAGE, "idleGcBackground.lua");
+		pool.release(lua);
+
+		pool.startIdleGc(10, 16, 4);
+		while (pool.getIdleGcStats().getCycleCount() == 0) {
+			Thread.sleep(10);
+		}
+		pool.stopIdleGc();
+		assertTrue(pool.getIdleGcStats().getStepCount() >= 1);
+		assertThat(pool.getIdleCount(), is(1));
+	}
+
+}
@@ -1,3 +1,4 @@
+import static org.hamcrest.CoreMatchers.containsString;
 import static org.hamcrest.CoreMatchers.instanceOf;
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.nullValue;
@@ -5,24 +6,58 @@ import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
 import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.Timeout;
 
 import io.github.yappy.lua.LuaAbortException;
 import io.github.yappy.lua.LuaArg;
+import io.github.yappy.lua.LuaChunk;
+import io.github.yappy.lua.LuaContext;
+import io.github.yappy.lua.LuaCoroutine;
 import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaEngineTemplate;
 import io.github.yappy.lua.LuaException;
 import io.github.yappy.lua.LuaFunction;
+import io.github.yappy.lua.LuaGcStats;
+import io.github.yappy.lua.LuaMemoryBudget;
+import io.github.yappy.lua.LuaMemoryStats;
 import io.github.yappy.lua.LuaPrint;
+import io.github.yappy.lua.LuaRowSink;
 import io.github.yappy.lua.LuaRuntimeException;
+import io.github.yappy.lua.LuaStdLib;
 import io.github.yappy.lua.LuaSyntaxException;
+import io.github.yappy.lua.LuaTableSchema;
+import io.github.yappy.lua.UncheckedLuaException;
 
 public class LuaEngineTest {
 
@@ -43,6 +78,8 @@ public class LuaEngineTest {
 	public ExpectedException exception = ExpectedException.none();
 	@Rule
 	public Timeout globalTimeout = Timeout.millis(1000);
+	@Rule
+	public TemporaryFolder tmpDir = new TemporaryFolder();
 
 
 	@Test
@@ -83,6 +120,578 @@ public class LuaEngineTest {
 			"runtimeError.lua");
 	}
 
+	@Test
+	public void memoryStats() throws Exception {
+		lua.openStdLibs();
+		LuaMemoryStats stats1 = lua.getMemoryStats(true);
+		assertTrue(stats1.getUsed() > 0);
+		assertThat(stats1.getMemoryLimit(), is(LuaEngine.DEFAULT_MEMORY_LIMIT));
+		assertThat(stats1.getRejectCount(), is(0L));
+
+		lua.execString(
+			"local t = {}\n" +
+			"for i = 1, 10000 do t[i] = {} end\n" +
+			"t = nil\n" +
+			"collectgarbage()\n",
+			"memoryStats.lua");
+		LuaMemoryStats stats2 = lua.getMemoryStats(true);
+		assertTrue(stats2.getPeak() > stats1.getUsed() + 10000 * 16);
+		assertTrue(stats2.getUsed() < stats2.getPeak());
+		assertTrue(stats2.getAllocCount() > stats1.getAllocCount() + 10000);
+		assertTrue(stats2.getFreeCount() > stats1.getFreeCount() + 10000);
+
+		// peak is reset
+		LuaMemoryStats stats3 = lua.getMemoryStats();
+		assertThat(stats3.getPeak(), is(stats2.getUsed()));
+	}
+
+	@Test
+	public void memoryStatsReject() throws Exception {
+		try {
+			lua.execString(
+				"local s = \"abcde\"\n" +
+				"while true do s = s .. s end\n",
+				"memoryStatsReject.lua");
+		} catch (LuaException e) {
+			// memory error
+		}
+		LuaMemoryStats stats = lua.getMemoryStats();
+		assertTrue(stats.getRejectCount() > 0);
+		assertTrue(stats.getPeak() <= stats.getMemoryLimit());
+	}
+
+	@Test
+	public void slabAllocator() throws Exception {
+		try (LuaEngine slab = new LuaEngine(1024 * 1024,
+				LuaEngine.DEFAULT_INTR_INST_COUNT, true)) {
+			slab.openStdLibs();
+			slab.execString(
+				"local keep = {}\n" +
+				"for i = 1, 10000 do\n" +
+				"  local t = { i, tostring(i) }\n" +
+				"  if i % 10 == 0 then keep[#keep + 1] = t end\n" +
+				"end\n" +
+				"n = #keep\n" +
+				"s = string.rep(\"x\", 1000)\n",
+				"slabAllocator.lua");
+			assertThat(slab.getGlobalVariable("n"), is((Object) 1000.0));
+			assertThat(((String) slab.getGlobalVariable("s")).length(), is(1000));
+
+			try {
+				slab.execString(
+					"local s = \"abcde\"\n" +
+					"while true do s = s .. s end\n",
+					"slabAllocatorLimit.lua");
+			} catch (LuaException e) {
+				// memory error
+			}
+			LuaMemoryStats stats = slab.getMemoryStats();
+			assertTrue(stats.getRejectCount() > 0);
+			assertTrue(stats.getPeak() <= stats.getMemoryLimit());
+		}
+	}
+
+	@Test
+	public void memoryBudget() throws Exception {
+		final String fill =
+			"t = {}\n" +
+			"for i = 1, 50000 do t[i] = i end\n";
+		try (LuaMemoryBudget budget = new LuaMemoryBudget(2 * 1024 * 1024);
+				LuaEngine lua1 = new LuaEngine(LuaEngine.DEFAULT_MEMORY_LIMIT,
+					LuaEngine.DEFAULT_INTR_INST_COUNT, false, budget);
+				LuaEngine lua2 = new LuaEngine(LuaEngine.DEFAULT_MEMORY_LIMIT,
+					LuaEngine.DEFAULT_INTR_INST_COUNT, false, budget)) {
+			lua1.openStdLibs();
+			// about 1MB (2 ^ 16 * 16 bytes array part)
+			lua1.execString(fill, "memoryBudget1.lua");
+			long used = budget.getUsed();
+			assertTrue(used > 1024 * 1024 && used < 2 * 1024 * 1024);
+			assertThat(used, is(lua1.getMemoryStats().getUsed() +
+				lua2.getMemoryStats().getUsed()));
+
+			// lua2 cannot get the same amount
+			try {
+				lua2.execString(fill, "memoryBudget2.lua");
+				assertTrue(false);
+			} catch (LuaException e) {
+				// memory error
+			}
+			assertTrue(budget.getRejectCount() > 0);
+			assertTrue(budget.getUsed() <= budget.getHardLimit());
+
+			// released by free
+			lua1.execString("t = nil collectgarbage()", "memoryBudget3.lua");
+			lua2.execString(fill, "memoryBudget4.lua");
+		}
+	}
+
+	@Test
+	public void memoryBudgetEmergencyGc() throws Exception {
+		LuaMemoryBudget budget = new LuaMemoryBudget(256 * 1024, 4 * 1024 * 1024);
+		try (LuaEngine lua1 = new LuaEngine(LuaEngine.DEFAULT_MEMORY_LIMIT,
+				LuaEngine.DEFAULT_INTR_INST_COUNT, false, budget)) {
+			lua1.openStdLibs();
+			// live data is below the soft limit but garbage is not
+			final String garbage =
+				"keep = {}\n" +
+				"for i = 1, 2000 do keep[i] = {} end\n" +
+				"for i = 1, 1000 do\n" +
+				"  local s = string.rep(\"x\", 10000)\n" +
+				"end\n";
+			lua1.execString(garbage, "memoryBudgetEmergencyGc1.lua");
+			assertTrue(budget.getEmergencyGcCount() > 0);
+			assertThat(budget.getRejectCount(), is(0L));
+
+			// the engine keeps the native budget
+			budget.close();
+			lua1.execString(garbage, "memoryBudgetEmergencyGc2.lua");
+		}
+	}
+
+	@Test
+	public void gcControl() throws Exception {
+		final String garbage =
+			"for i = 1, 10000 do local t = {} end\n";
+		assertThat(lua.isGcRunning(), is(true));
+		assertThat(lua.setGcPause(100), is(200));
+		assertThat(lua.setGcPause(200), is(100));
+		assertThat(lua.setGcStepMultiplier(400), is(200));
+
+		lua.gcStop();
+		assertThat(lua.isGcRunning(), is(false));
+		long before = lua.gcCount();
+		lua.execString(garbage, "gcControl1.lua");
+		long stopped = lua.gcCount();
+		assertTrue(stopped > before + 10000 * 16);
+		assertThat(stopped, is(lua.getMemoryStats().getUsed()));
+
+		lua.gcCollect();
+		assertTrue(lua.gcCount() < stopped);
+		lua.gcRestart();
+		assertThat(lua.isGcRunning(), is(true));
+
+		lua.execString(garbage, "gcControl2.lua");
+		while (!lua.gcStep(0)) {
+			// finish the cycle
+		}
+		LuaGcStats stats = lua.getGcStats();
+		assertThat(stats.getFullCount(), is(1L));
+		assertTrue(stats.getFullLastNanos() > 0);
+		assertThat(stats.getFullMaxNanos(), is(stats.getFullLastNanos()));
+		assertTrue(stats.getStepCount() >= 1);
+		assertTrue(stats.getStepTotalNanos() >= stats.getStepMaxNanos());
+	}
+
+	@Test
+	public void checkpointReset() throws Exception {
+		final int[] count = new int[1];
+		LuaFunction func = new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				count[0]++;
+				return null;
+			}
+		};
+		lua.openStdLibs(EnumSet.of(
+			LuaStdLib.BASE, LuaStdLib.PACKAGE, LuaStdLib.STRING));
+		lua.addGlobalFunction("f", func);
+		lua.execString("base = 1 t = { a = 1 }", "checkpointReset1.lua");
+		lua.checkpoint();
+
+		for (int i = 0; i < 2; i++) {
+			lua.addGlobalFunction("g", func);
+			lua.execString(
+				"f() g()\n" +
+				"x = 2\n" +
+				"t.a = 100 t.b = {}\n" +
+				"base = nil\n" +
+				"string.evil = true\n" +
+				"package.loaded.tenant = {}\n" +
+				"setmetatable(_G, { __index = function() return 42 end })\n" +
+				// string metatable is not in the registry
+				"getmetatable('').__index = function() return 'x' end\n",
+				"checkpointReset2.lua");
+			lua.reset();
+
+			lua.execString(
+				"assert(x == nil and g == nil)\n" +
+				"assert(t.a == 1 and t.b == nil)\n" +
+				"assert(base == 1)\n" +
+				"assert(string.evil == nil)\n" +
+				"assert(package.loaded.tenant == nil)\n" +
+				"assert(getmetatable(_G) == nil)\n" +
+				"assert(string.format(\"%d\", 3) == \"3\")\n" +
+				"assert(('x'):upper() == 'X')\n" +
+				"assert(getmetatable('').__index == string)\n" +
+				"f()\n",
+				"checkpointReset3.lua");
+		}
+		assertThat(count[0], is(6));
+	}
+
+	@Test
+	public void checkpointResetStaleFunction() throws Exception {
+		final int[] count = new int[1];
+		LuaFunction func = new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				count[0]++;
+				return null;
+			}
+		};
+		lua.openStdLibs();
+		lua.execString(
+			"cache = setmetatable({}, { __mode = 'k' })\n" +
+			"cache[{}] = true\n", "checkpointWeak1.lua");
+		lua.checkpoint();
+		// weak keys are not kept alive by the checkpoint
+		lua.execString(
+			"collectgarbage()\n" +
+			"assert(next(cache) == nil)\n", "checkpointWeak2.lua");
+
+		try (LuaContext ctx = lua.newContext()) {
+			lua.addGlobalFunction("g", func);
+			ctx.execString("h = g", "stale1.lua");
+			lua.reset();
+			// the id of g is not reused
+			lua.addGlobalFunction("k", func);
+			try {
+				ctx.execString("h()", "stale2.lua");
+				assertTrue(false);
+			} catch (LuaRuntimeException e) {
+				assertThat(e.getMessage(), containsString("reset"));
+			}
+			assertThat(count[0], is(0));
+		}
+		lua.execString(
+			"assert(getmetatable(cache).__mode == 'k')\n" +
+			"cache[{}] = true\n" +
+			"collectgarbage()\n" +
+			"assert(next(cache) == nil)\n", "checkpointWeak3.lua");
+	}
+
+	@Test
+	public void resetWithoutCheckpoint() throws Exception {
+		exception.expect(IllegalStateException.class);
+		lua.reset();
+	}
+
+	@Test
+	public void templateClone() throws Exception {
+		final int[] count = new int[1];
+		LuaFunction func = new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				count[0]++;
+				return null;
+			}
+		};
+		LuaEngine base = new LuaEngine();
+		base.openStdLibs(EnumSet.of(
+			LuaStdLib.BASE, LuaStdLib.PACKAGE, LuaStdLib.STRING));
+		base.addGlobalFunction("f", func);
+		base.execString(
+			"local n = 0\n" +
+			"function inc() n = n + 1 return n end\n" +
+			"t = { a = 1 } t.self = t\n" +
+			"package.loaded.mylib = { v = 3 }\n",
+			"templateClone1.lua");
+
+		try (LuaEngineTemplate template = new LuaEngineTemplate(base)) {
+			for (int i = 0; i < 2; i++) {
+				try (LuaEngine clone = template.newEngine()) {
+					clone.execString(
+						"f()\n" +
+						"assert(inc() == 1 and inc() == 2)\n" +
+						"assert(t.a == 1 and t.self == t)\n" +
+						"assert(require(\"mylib\").v == 3)\n" +
+						"assert(pcall(error, \"e\") == false)\n" +
+						"assert((\"a\"):upper() == \"A\")\n" +
+						"t.a = 2 x = 1\n",
+						"templateClone2.lua");
+				}
+			}
+		}
+		assertThat(count[0], is(2));
+	}
+
+	@Test
+	public void templateCloneUserdata() throws Exception {
+		exception.expect(LuaRuntimeException.class);
+		LuaEngine base = new LuaEngine();
+		base.openStdLibs(EnumSet.of(LuaStdLib.BASE, LuaStdLib.IO));
+		try (LuaEngineTemplate template = new LuaEngineTemplate(base)) {
+			template.newEngine().close();
+		}
+	}
+
+	@Test
+	public void context() throws Exception {
+		final int[] count = new int[1];
+		lua.openStdLibs();
+		lua.addGlobalFunction("f", new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				count[0]++;
+				return null;
+			}
+		});
+		lua.execString("shared = 1 t = {}", "context1.lua");
+
+		try (LuaContext ctx1 = lua.newContext();
+				LuaContext ctx2 = lua.newContext()) {
+			ctx1.execString(
+				"f()\n" +
+				"assert(shared == 1)\n" +
+				"shared = 10 x = 1\n" +
+				"function get() return x end\n" +
+				"t.a = 1\n",
+				"context2.lua");
+			ctx2.addGlobalVariable("x", 2);
+			ctx2.execString(
+				"f()\n" +
+				"assert(shared == 1 and get == nil and x == 2)\n" +
+				"assert(t.a == 1)\n",
+				"context3.lua");
+
+			assertThat(ctx1.getGlobalVariable("shared"), is((Object)10.0));
+			assertThat(ctx2.getGlobalVariable("shared"), is((Object)1.0));
+			assertArrayEquals(new Object[] { 1.0 },
+				ctx1.callGlobalFunction("get"));
+		}
+		assertThat(lua.getGlobalVariable("shared"), is((Object)1.0));
+		assertThat(lua.getGlobalVariable("x"), nullValue());
+		assertThat(count[0], is(2));
+	}
+
+	@Test
+	public void contextGlobalTable() throws Exception {
+		lua.openStdLibs();
+		try (LuaContext ctx1 = lua.newContext();
+				LuaContext ctx2 = lua.newContext()) {
+			ctx1.execString(
+				"_G.leak = 'from c1'\n" +
+				"assert(leak == 'from c1' and _G == _ENV)\n" +
+				"assert(_G.string == string)\n",
+				"contextGlobal1.lua");
+			ctx2.execString("assert(leak == nil and _G.leak == nil)",
+				"contextGlobal2.lua");
+			assertThat(ctx1.getGlobalVariable("leak"), is((Object)"from c1"));
+		}
+		assertThat(lua.getGlobalVariable("leak"), nullValue());
+		lua.execString("assert(_G.leak == nil)", "contextGlobal3.lua");
+	}
+
+	@Test
+	public void contextError() throws Exception {
+		lua.openStdLibs();
+		LuaContext ctx = lua.newContext();
+		try {
+			ctx.execString("error(\"ctx\")", "contextError1.lua");
+		}
+		catch (LuaRuntimeException e) {
+			// the context is reusable after an error
+		}
+		ctx.execString("y = 1", "contextError2.lua");
+		assertThat(ctx.getGlobalVariable("y"), is((Object)1.0));
+
+		lua.checkpoint();
+		LuaContext ctx2 = lua.newContext();
+		lua.reset();
+		ctx2.execString("assert(y == nil)", "contextError3.lua");
+		ctx2.close();
+
+		ctx.close();
+		exception.expect(IllegalStateException.class);
+		ctx.execString("y = 2", "contextError4.lua");
+	}
+
+	@Test
+	public void contextInCoroutine() throws Exception {
+		lua.openStdLibs();
+		try (final LuaContext ctx = lua.newContext()) {
+			ctx.addGlobalVariable("v", "ctx");
+			lua.addGlobalFunction("peek", new LuaFunction() {
+				@Override
+				public Object[] call(Object[] args) throws LuaRuntimeException {
+					try {
+						return new Object[] { ctx.getGlobalVariable("v") };
+					}
+					catch (LuaException e) {
+						throw new LuaRuntimeException(e.getMessage());
+					}
+				}
+			});
+			// the calling coroutine is restored after the context switch
+			lua.execString(
+				"local co = coroutine.wrap(function()\n" +
+				"  coroutine.yield(peek())\n" +
+				"  return peek() .. '2'\n" +
+				"end)\n" +
+				"r = co() .. co()\n",
+				"contextInCoroutine.lua");
+			assertThat(lua.getGlobalVariable("r"), is((Object)"ctxctx2"));
+		}
+	}
+
+	@Test
+	public void coroutine() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function acc(x)\n" +
+			"  while x < 10 do x = x + coroutine.yield(x) end\n" +
+			"  return 'done', x\n" +
+			"end\n",
+			"coroutine.lua");
+		try (LuaCoroutine co = lua.newCoroutine("acc")) {
+			assertThat(co.status(), is(LuaCoroutine.Status.SUSPENDED));
+			assertArrayEquals(new Object[] { 1.0 }, co.resume(1));
+			assertArrayEquals(new Object[] { 6.0 }, co.resume(5));
+			assertThat(co.status(), is(LuaCoroutine.Status.SUSPENDED));
+			assertArrayEquals(new Object[] { "done", 12.0 }, co.resume(6));
+			assertThat(co.status(), is(LuaCoroutine.Status.DEAD));
+			exception.expect(IllegalStateException.class);
+			co.resume();
+		}
+	}
+
+	@Test
+	public void coroutineGenerator() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function gen()\n" +
+			"  for i = 1, 100 do coroutine.yield(i, i * i) end\n" +
+			"  return 'end'\n" +
+			"end\n",
+			"coroutineGenerator.lua");
+		double sum = 0;
+		int count = 0;
+		try (LuaCoroutine co = lua.newCoroutine("gen")) {
+			for (Object[] values : co) {
+				assertThat(values.length, is(2));
+				sum += (Double)values[1];
+				count++;
+			}
+			assertThat(co.status(), is(LuaCoroutine.Status.DEAD));
+		}
+		assertThat(count, is(100));
+		assertThat(sum, is(338350.0));
+
+		// break in the middle and close
+		try (LuaCoroutine co = lua.newCoroutine("gen")) {
+			Iterator<Object[]> it = co.iterator();
+			assertArrayEquals(new Object[] { 1.0, 1.0 }, it.next());
+			assertArrayEquals(new Object[] { 2.0, 4.0 }, it.next());
+		}
+		// the engine is usable
+		lua.execString("x = 1", "coroutineGenerator2.lua");
+	}
+
+	@Test
+	public void coroutineError() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function fail()\n" +
+			"  coroutine.yield(1)\n" +
+			"  error('fail')\n" +
+			"end\n",
+			"coroutineError.lua");
+		try (LuaCoroutine co = lua.newCoroutine("fail")) {
+			Iterator<Object[]> it = co.iterator();
+			assertTrue(it.hasNext());
+			it.next();
+			try {
+				it.hasNext();
+				throw new AssertionError();
+			}
+			catch (UncheckedLuaException e) {
+				assertThat(e.getCause(), instanceOf(LuaRuntimeException.class));
+			}
+			assertThat(co.status(), is(LuaCoroutine.Status.DEAD));
+			assertTrue(!it.hasNext());
+		}
+		lua.execString("x = 1", "coroutineError2.lua");
+	}
+
+	@Test
+	public void migrateBetweenThreads() throws Exception {
+		final int engineCount = 4;
+		final int taskCount = 400;
+		final AtomicInteger calls = new AtomicInteger();
+		final AtomicInteger prints = new AtomicInteger();
+		final BlockingQueue<LuaEngine> engines =
+			new ArrayBlockingQueue<>(engineCount);
+		for (int i = 0; i < engineCount; i++) {
+			LuaEngine engine = new LuaEngine();
+			engine.openStdLibs();
+			engine.setPrintFunction(new LuaPrint() {
+				@Override
+				public void writeString(String str) {}
+				@Override
+				public void writeLine() {
+					prints.incrementAndGet();
+				}
+			});
+			engine.addGlobalFunction("f", new LuaFunction() {
+				@Override
+				public Object[] call(Object[] args) throws LuaRuntimeException {
+					calls.incrementAndGet();
+					return new Object[] { args[0] };
+				}
+			}, LuaArg.DOUBLE);
+			engine.execString("n = 0", "migrate1.lua");
+			engines.put(engine);
+		}
+
+		// engines are used and closed by other threads
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			Future<?>[] futures = new Future<?>[taskCount];
+			for (int i = 0; i < taskCount; i++) {
+				futures[i] = executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						LuaEngine engine = engines.take();
+						try {
+							engine.execString(
+								"n = n + f(1)\n" +
+								"print(n)\n" +
+								"local t = {} for i = 1, 100 do t[i] = {} end\n" +
+								"pcall(error, \"e\")\n",
+								"migrate2.lua");
+						}
+						finally {
+							engines.put(engine);
+						}
+						return null;
+					}
+				});
+			}
+			for (Future<?> future : futures) {
+				future.get();
+			}
+
+			double total = 0;
+			for (int i = 0; i < engineCount; i++) {
+				final LuaEngine engine = engines.take();
+				total += (Double)engine.getGlobalVariable("n");
+				executor.submit(new Callable<Void>() {
+					@Override
+					public Void call() throws Exception {
+						engine.close();
+						return null;
+					}
+				}).get();
+			}
+			assertThat(total, is((double)taskCount));
+		}
+		finally {
+			executor.shutdown();
+		}
+		assertThat(calls.get(), is(taskCount));
+		assertThat(prints.get(), is(taskCount));
+	}
+
 	@Test
 	public void timeoutError() throws Exception {
 		exception.expect(LuaAbortException.class);
@@ -313,6 +922,455 @@ public class LuaEngineTest {
 		assertThat(flag, is(new boolean[] { true, true, true, true }));
 	}
 
+	@Test
+	public void callBatch() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function f(a, b)\n" +
+			"  if a == 0 then error('zero', 0) end\n" +
+			"  return a + b, tostring(b)\n" +
+			"end\n",
+			"callBatch.lua");
+		Object[][] argSets = new Object[][] {
+			{ 1, 2 }, { 0, 1 }, { 3, 4 },
+		};
+		String[] errors = new String[argSets.length];
+		Object[][] results = lua.callBatch("f", argSets, errors);
+		assertArrayEquals(new Object[] { 3.0, "2.0" }, results[0]);
+		assertThat(results[1], nullValue());
+		assertArrayEquals(new Object[] { 7.0, "4.0" }, results[2]);
+		assertArrayEquals(new String[] { null, "zero", null }, errors);
+		// the stack is clean
+		assertArrayEquals(new Object[] { 2.0, "1.0" },
+			lua.callGlobalFunction("f", 1, 1));
+	}
+
+	@Test
+	public void callBatchColumns() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function scale(x, n, unit)\n" +
+			"  if n < 0 then error('negative', 0) end\n" +
+			"  if n == 0 then return nil end\n" +
+			"  return x * n, math.type(n), unit\n" +
+			"end\n" +
+			"function label(x, n, unit)\n" +
+			"  return string.format('%g%s', x * n, unit or '')\n" +
+			"end\n",
+			"callBatchColumns.lua");
+		final int rows = 4;
+		double[] x = { 1.5, 2.0, 3.0, 4.0, 99.0 };
+		long[] n = { 2, -1, 0, 3, 99 };
+		String[] unit = { "m", "m", null, "kg", null };
+		double[] out = new double[rows];
+		Arrays.fill(out, -1.0);
+		String[] errors = new String[rows];
+
+		int failed = lua.callBatchColumns("scale", rows,
+			new Object[] { x, n, unit }, out, errors);
+		assertThat(failed, is(2));
+		assertArrayEquals(new double[] { 3.0, -1.0, -1.0, 12.0 }, out, 0.0);
+		assertThat(errors[0], nullValue());
+		assertThat(errors[1], is("negative"));
+		assertThat(errors[2], is("bad result (number expected, got nil)"));
+		assertThat(errors[3], nullValue());
+
+		String[] labels = new String[rows];
+		assertThat(lua.callBatchColumns("label", rows,
+			new Object[] { x, n, unit }, labels, null), is(0));
+		assertArrayEquals(new String[] { "3m", "-2m", "0", "12kg" }, labels);
+
+		exception.expect(IllegalArgumentException.class);
+		lua.callBatchColumns("label", rows,
+			new Object[] { new int[rows] }, null, null);
+	}
+
+	@Test
+	public void callBatchAbort() throws Exception {
+		lua.openStdLibs();
+		lua.execString("function loop(x) while x do end end", "loop.lua");
+		Thread.currentThread().interrupt();
+		try {
+			lua.callBatchColumns("loop", 2,
+				new Object[] { new boolean[] { true, true } }, null, null);
+			throw new AssertionError();
+		}
+		catch (LuaAbortException e) {
+			// the batch stops
+		}
+		Thread.interrupted();
+		assertThat(lua.callBatchColumns("loop", 1,
+			new Object[] { new boolean[] { false } }, null, null), is(0));
+	}
+
+	@Test
+	public void pipe() throws Exception {
+		lua.openStdLibs();
+		lua.execString(
+			"function f(a)\n" +
+			"  if a < 0 then error('negative', 0) end\n" +
+			"  return a * 2\n" +
+			"end\n",
+			"pipe.lua");
+		final int[] pulled = new int[1];
+		Iterator<Object[]> input = new Iterator<Object[]>() {
+			@Override
+			public boolean hasNext() {
+				return true;
+			}
+			@Override
+			public Object[] next() {
+				return new Object[] { ++pulled[0] };
+			}
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		};
+		// infinite input is pulled lazily
+		Object[] results = lua.pipe("f", input, 64).limit(100).toArray();
+		assertThat(results.length, is(100));
+		assertArrayEquals(new Object[] { 200.0 }, (Object[])results[99]);
+		assertThat(pulled[0], is(128));
+
+		Iterator<Object[]> bad = Arrays.asList(
+			new Object[] { 1 }, new Object[] { -1 }).iterator();
+		Iterator<Object[]> it = lua.pipe("f", bad).iterator();
+		assertArrayEquals(new Object[] { 2.0 }, it.next());
+		try {
+			it.next();
+			throw new AssertionError();
+		}
+		catch (UncheckedLuaException e) {
+			assertThat(e.getCause(), instanceOf(LuaRuntimeException.class));
+		}
+		assertTrue(!it.hasNext());
+	}
+
+	@Test
+	public void sink() throws Exception {
+		lua.openStdLibs();
+		final List<Object[]> rows = new ArrayList<>();
+		final int[] writes = new int[1];
+		lua.setSink(new LuaRowSink() {
+			@Override
+			public void write(ByteBuffer chunk, int rowCount)
+					throws LuaRuntimeException, LuaAbortException {
+				writes[0]++;
+				super.write(chunk, rowCount);
+			}
+			@Override
+			protected void row(Object[] values) {
+				rows.add(values);
+			}
+		}, 64);
+		lua.execString(
+			"for i = 1, 10 do emit(i, i / 2, 'あ' .. i, i % 2 == 0, nil) end\n" +
+			"emit()\n",
+			"sink.lua");
+		assertThat(rows.size(), is(11));
+		assertArrayEquals(new Object[] { 3L, 1.5, "あ3", false, null },
+			rows.get(2));
+		assertArrayEquals(new Object[0], rows.get(10));
+		// flushed when full and at the end
+		assertTrue(writes[0] > 1);
+
+		lua.execString(
+			"assert(not pcall(emit, {}))\n" +
+			"assert(not pcall(emit, string.rep('x', 100)))\n",
+			"sink2.lua");
+		assertThat(rows.size(), is(11));
+
+		lua.setSink(null);
+		lua.execString("assert(emit == nil)", "sink3.lua");
+	}
+
+	@Test
+	public void callChunk() throws Exception {
+		lua.openStdLibs();
+		LuaChunk chunk = new LuaChunk(
+			"local a, b = ...\n" +
+			"count = (count or 0) + 1\n" +
+			"return a .. b, count\n",
+			"callChunk.lua");
+		assertArrayEquals(new Object[] { "xy", 1.0 },
+			lua.callChunk(chunk, "x", "y"));
+		lua.checkpoint();
+		assertArrayEquals(new Object[] { "ab", 2.0 },
+			lua.callChunk(chunk, "a", "b"));
+		// the compiled chunk is kept over reset
+		lua.reset();
+		assertArrayEquals(new Object[] { "ab", 2.0 },
+			lua.callChunk(chunk, "a", "b"));
+
+		String[] errors = new String[2];
+		Object[][] results = lua.callBatch(chunk,
+			new Object[][] { { "1", "2" }, { "3" } }, errors);
+		assertArrayEquals(new Object[] { "12", 3.0 }, results[0]);
+		assertThat(errors[1], containsString("concatenate"));
+
+		exception.expect(LuaSyntaxException.class);
+		lua.callChunk(new LuaChunk("return +", "syntax.lua"));
+	}
+
+	@Test
+	public void releaseChunk() throws Exception {
+		lua.openStdLibs();
+		// 1MB constant
+		char[] data = new char[1024 * 1024];
+		Arrays.fill(data, 'x');
+		String src = "return #'" + new String(data) + "'";
+
+		lua.gcCollect();
+		long base = lua.getMemoryStats().getUsed();
+		LuaChunk chunk = lua.compile(new StringReader(src), "big.lua");
+		assertArrayEquals(new Object[] { 1024.0 * 1024 }, lua.callChunk(chunk));
+		lua.gcCollect();
+		assertTrue(lua.getMemoryStats().getUsed() > base + data.length);
+
+		lua.releaseChunk(chunk);
+		lua.gcCollect();
+		assertTrue(lua.getMemoryStats().getUsed() < base + data.length / 2);
+
+		exception.expect(IllegalStateException.class);
+		lua.callChunk(chunk);
+	}
+
+	@Test
+	public void compileStream() throws Exception {
+		lua.openStdLibs();
+		// larger than the read buffer, multi-byte characters on boundaries
+		StringBuilder sb = new StringBuilder("local t = {}\n");
+		for (int i = 0; i < 10000; i++) {
+			sb.append("t[#t + 1] = 'あいう").append(i).append("'\n");
+		}
+		sb.append("return #t, t[10000]\n");
+		String src = sb.toString();
+		Object[] expected = new Object[] { 10000.0, "あいう9999" };
+
+		LuaChunk chunk1 = lua.compile(new StringReader(src), "reader.lua");
+		assertArrayEquals(expected, lua.callChunk(chunk1));
+		LuaChunk chunk2 = lua.compile(
+			new ByteArrayInputStream(src.getBytes(StandardCharsets.UTF_8)),
+			"stream.lua");
+		assertArrayEquals(expected, lua.callChunk(chunk2));
+		assertThat(chunk2.getSource(), nullValue());
+
+		try {
+			lua.compile(new StringReader("return +"), "syntax.lua");
+			throw new AssertionError();
+		}
+		catch (LuaSyntaxException e) {
+			assertThat(e.getMessage(), containsString("syntax.lua"));
+		}
+
+		InputStream broken = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("broken");
+			}
+		};
+		try {
+			lua.compile(broken, "broken.lua");
+			throw new AssertionError();
+		}
+		catch (IOException e) {
+			assertThat(e.getMessage(), is("broken"));
+		}
+		assertThat(lua.callGlobalFunction("tostring", 1)[0], is((Object)"1.0"));
+
+		// only in the engine which compiled it
+		try (LuaEngine other = new LuaEngine()) {
+			exception.expect(IllegalStateException.class);
+			other.callChunk(chunk1);
+		}
+	}
+
+	@Test
+	public void loadTable() throws Exception {
+		lua.openStdLibs();
+		Path csv = tmpDir.newFile("data.csv").toPath();
+		Files.write(csv, (
+			"id,name,score,ok,memo\r\n" +
+			"1,\"a,\"\"b\"\"\",1.5,true,x\r\n" +
+			"\r\n" +
+			"-2,\"line1\nline2\",,0,y\r\n" +
+			"3,c,2e3,false,z").getBytes(StandardCharsets.UTF_8));
+		String[] names = { "id", "name", "score", "ok", "memo" };
+		int[] types = {
+			LuaTableSchema.TYPE_INTEGER, LuaTableSchema.TYPE_STRING,
+			LuaTableSchema.TYPE_NUMBER, LuaTableSchema.TYPE_BOOLEAN,
+			LuaTableSchema.TYPE_SKIP,
+		};
+
+		assertThat(lua.loadTable("rows", csv,
+			new LuaTableSchema(names, types)), is(3));
+		lua.execString(
+			"r = {}\n" +
+			"for i, row in ipairs(rows) do\n" +
+			"  r[i] = string.format('%s|%s|%s|%s|%s', math.type(row.id),\n" +
+			"    row.name, row.score, row.ok, row.memo)\n" +
+			"end\n" +
+			"s = table.concat(r, ';')", "loadTable.lua");
+		assertThat(lua.getGlobalVariable("s"), is((Object)(
+			"integer|a,\"b\"|1.5|true|nil;" +
+			"integer|line1\nline2|nil|false|nil;" +
+			"integer|c|2000.0|false|nil")));
+
+		Path tsv = tmpDir.newFile("data.tsv").toPath();
+		Files.write(tsv, "10\tp\n\tq\n30\tr\n".getBytes(StandardCharsets.UTF_8));
+		LuaTableSchema columns = new LuaTableSchema(
+			new String[] { "id", "name" },
+			new int[] { LuaTableSchema.TYPE_INTEGER, LuaTableSchema.TYPE_STRING },
+			'\t', false, true);
+		assertThat(lua.loadTable("cols", tsv, columns), is(3));
+		lua.execString(
+			"s = string.format('%s,%s,%s %s', cols.id[1], cols.id[2],\n" +
+			"  cols.id[3], table.concat(cols.name))", "loadTable.lua");
+		assertThat(lua.getGlobalVariable("s"), is((Object)"10,nil,30 pqr"));
+
+		Files.write(tsv, "1\tp\nx\tq\n".getBytes(StandardCharsets.UTF_8));
+		try {
+			lua.loadTable("cols", tsv, columns);
+			throw new AssertionError();
+		}
+		catch (LuaRuntimeException e) {
+			assertThat(e.getMessage(), containsString("data.tsv:2:"));
+			assertThat(e.getMessage(), containsString("'id'"));
+		}
+	}
+
+	@Test
+	public void jsonLib() throws Exception {
+		lua.openStdLibs(EnumSet.of(LuaStdLib.BASE, LuaStdLib.STRING,
+			LuaStdLib.MATH, LuaStdLib.JSON));
+		lua.execString(
+			"local v = json.decode('{\"a\":[1,2.5,null],\"b\":\"x\"}')\n" +
+			"assert(math.type(v.a[1]) == 'integer' and v.a[3] == json.null)\n" +
+			"s = json.encode(v.a)\n" +
+			// deep recursion must not overflow the C stack
+			"local t = {}\n" +
+			"t[1] = t\n" +
+			"assert(not pcall(json.encode, t, 1e8))\n" +
+			"assert(not pcall(json.encode, t))\n" +
+			"assert(not pcall(json.decode, string.rep('[', 900000), 1e8))",
+			"json.lua");
+		assertThat(lua.getGlobalVariable("s"), is((Object)"[1,2.5,null]"));
+
+		// json.null (lightuserdata) can be copied
+		LuaEngine base = new LuaEngine();
+		base.openStdLibs(EnumSet.of(LuaStdLib.JSON));
+		try (LuaEngineTemplate template = new LuaEngineTemplate(base);
+				LuaEngine copy = template.newEngine()) {
+			copy.execString("s = json.encode({json.null})", "json.lua");
+			assertThat(copy.getGlobalVariable("s"), is((Object)"[null]"));
+		}
+	}
+
+	@Test
+	public void strBuf() throws Exception {
+		lua.openStdLibs(EnumSet.of(LuaStdLib.BASE, LuaStdLib.STRBUF));
+		lua.execString(
+			"b = strbuf.new()\n" +
+			"for i = 1, 3 do b:format('%d:%s;', i, 'あ') end\n" +
+			"empty = strbuf.new()", "strbuf.lua");
+		ByteBuffer buf = lua.getStrBuf("b");
+		assertThat(buf.isDirect(), is(true));
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		assertThat(new String(bytes, StandardCharsets.UTF_8),
+			is("1:あ;2:あ;3:あ;"));
+		assertThat(lua.getStrBuf("empty").remaining(), is(0));
+
+		exception.expect(LuaRuntimeException.class);
+		lua.getStrBuf("print");
+	}
+
+	@Test
+	public void numArray() throws Exception {
+		lua.openStdLibs(EnumSet.of(LuaStdLib.BASE, LuaStdLib.MATH,
+			LuaStdLib.NUMARRAY));
+		lua.addNumArray("x", new double[] { 1.0, 2.0, 3.0 });
+		lua.addNumArray("n", new long[] { Long.MAX_VALUE, -1, 2 });
+		lua.execString(
+			"assert(#x == 3 and x:type() == 'double' and x:sum() == 6.0)\n" +
+			"assert(n[1] == math.maxinteger and n:type() == 'int64')\n" +
+			"y = numarray.new(3):fill(1.5):axpy(2, x)\n" +
+			"z = n:slice(2)\n" +
+			"z[2] = 10", "numarray.lua");
+		assertArrayEquals(new double[] { 3.5, 5.5, 7.5 },
+			(double[])lua.getNumArray("y"), 0.0);
+		assertArrayEquals(new long[] { -1, 10 }, (long[])lua.getNumArray("z"));
+		lua.addNumArray("empty", new long[0]);
+		assertThat(((long[])lua.getNumArray("empty")).length, is(0));
+
+		exception.expect(LuaRuntimeException.class);
+		lua.getNumArray("print");
+	}
+
+	@Test
+	public void numArrayNotOpen() throws Exception {
+		// NUMARRAY is not in the default set
+		lua.openStdLibs();
+		exception.expect(LuaRuntimeException.class);
+		lua.addNumArray("x", new double[] { 1.0 });
+	}
+
+	@Test
+	public void bytesView() throws Exception {
+		lua.openStdLibs(EnumSet.of(LuaStdLib.BASE, LuaStdLib.BYTES));
+		ByteBuffer buf = ByteBuffer.allocateDirect(16);
+		buf.putInt(0, 0x01020304);
+		buf.position(4);
+		lua.addGlobalVariable("b", buf);
+		lua.addGlobalVariable("ro", buf.asReadOnlyBuffer());
+		lua.execString(
+			"assert(#b == 12 and not b:readonly() and ro:readonly())\n" +
+			"assert(ro:read('u32be', 1) == 0 and #ro:slice(-4) == 4)\n" +
+			"b:write('u32be', 1, 0x0a0b0c0d)\n" +
+			"assert(ro:read('u32be', 1) == 0x0a0b0c0d)\n" +
+			"assert(not pcall(ro.write, ro, 'u8', 1, 0))", "bytes.lua");
+		// written in place
+		assertThat(buf.getInt(4), is(0x0a0b0c0d));
+
+		Path file = tmpDir.newFile("data.bin").toPath();
+		Files.write(file, new byte[] { 0, 0, 0, 42 });
+		try (FileChannel ch = FileChannel.open(file,
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			MappedByteBuffer map = ch.map(FileChannel.MapMode.READ_WRITE, 0, 4);
+			lua.addGlobalVariable("m", map);
+			lua.execString(
+				"assert(m:read('i32be', 1) == 42)\n" +
+				"m:write('u8', 4, 43)", "mapped.lua");
+			assertThat(map.get(3), is((byte)43));
+		}
+
+		exception.expect(IllegalArgumentException.class);
+		lua.addGlobalVariable("heap", ByteBuffer.allocate(4));
+	}
+
+	@Test
+	public void bytesViewNotOpen() throws Exception {
+		// BYTES is not in the default set
+		lua.openStdLibs();
+		final ByteBuffer buf = ByteBuffer.allocateDirect(4);
+		lua.addGlobalFunction("getbuf", new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) {
+				return new Object[] { buf };
+			}
+		});
+		try {
+			lua.addGlobalVariable("b", buf);
+			assertTrue(false);
+		} catch (IllegalArgumentException e) {
+			// no global ref is left
+		}
+
+		exception.expect(IllegalArgumentException.class);
+		lua.execString("getbuf()", "bytesNotOpen.lua");
+	}
+
 	@Test
 	public void replacePrint() throws Exception {
 		final String keyword = "replace test";
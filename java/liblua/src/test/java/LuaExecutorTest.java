@@ -0,0 +1,272 @@
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import io.github.yappy.lua.LuaAbortException;
+import io.github.yappy.lua.LuaArg;
+import io.github.yappy.lua.LuaAsyncFunction;
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaException;
+import io.github.yappy.lua.LuaExecutor;
+import io.github.yappy.lua.LuaExecutorStats;
+import io.github.yappy.lua.LuaFunction;
+import io.github.yappy.lua.LuaRuntimeException;
+import io.github.yappy.lua.LuaTask;
+import io.github.yappy.lua.lib.SystemFunctions;
+
+public class LuaExecutorTest {
+
+	private LuaEngine lua;
+	private ExecutorService threads;
+
+	@Before
+	public void init() throws Exception {
+		lua = new LuaEngine();
+		lua.openStdLibs();
+		threads = Executors.newFixedThreadPool(4);
+	}
+
+	@After
+	public void term() throws Exception {
+		threads.shutdown();
+		lua.close();
+		lua = null;
+	}
+
+	@Rule
+	public Timeout globalTimeout = Timeout.millis(5000);
+
+	@Test
+	public void serialOrder() throws Exception {
+		lua.execString(
+			"n = 0\n" +
+			"function add(x) local old = n n = old + x return n end\n",
+			"serialOrder.lua");
+		try (LuaExecutor executor = new LuaExecutor(lua, threads)) {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submit("add", 1);
+			}
+			for (int i = 0; i < futures.length; i++) {
+				// each call sees the previous one
+				assertArrayEquals(new Object[] { (double)(i + 1) },
+					(Object[])futures[i].get());
+			}
+			LuaExecutorStats stats = executor.getStats();
+			assertThat(stats.getCompletedCount(), is(100L));
+			assertThat(stats.getStartedCount(), is(100L));
+			assertTrue(stats.getQueueMaxNanos() >= stats.getQueueAverageNanos());
+		}
+	}
+
+	@Test
+	public void error() throws Exception {
+		try (LuaExecutor executor = new LuaExecutor(lua, threads)) {
+			CompletableFuture<Void> future =
+				executor.submitString("error(\"x\")", "error.lua");
+			try {
+				future.get();
+				throw new AssertionError();
+			}
+			catch (ExecutionException e) {
+				assertThat(e.getCause(), instanceOf(LuaRuntimeException.class));
+			}
+			// the engine is still usable
+			executor.submitString("ok = true", "error2.lua").get();
+			assertThat(executor.getStats().getFailedCount(), is(1L));
+		}
+		assertThat(lua.getGlobalVariable("ok"), is((Object)true));
+	}
+
+	@Test
+	public void backpressure() throws Exception {
+		ManualExecutor manual = new ManualExecutor();
+		try (LuaExecutor executor = new LuaExecutor(lua, manual, 2)) {
+			CompletableFuture<Void> f1 = executor.submitString("a = 1", "bp1.lua");
+			CompletableFuture<Void> f2 = executor.submitString("b = 1", "bp2.lua");
+			try {
+				executor.submitString("c = 1", "bp3.lua");
+				throw new AssertionError();
+			}
+			catch (RejectedExecutionException e) {
+				// OK
+			}
+			// cancel a waiting task
+			assertTrue(f2.cancel(false));
+			manual.runAll();
+			assertTrue(f1.isDone() && !f1.isCompletedExceptionally());
+
+			LuaExecutorStats stats = executor.getStats();
+			assertThat(stats.getRejectedCount(), is(1L));
+			assertThat(stats.getCancelledCount(), is(1L));
+			assertThat(stats.getCompletedCount(), is(1L));
+		}
+		assertThat(lua.getGlobalVariable("b"), is((Object)null));
+	}
+
+	@Test
+	public void cancelRunning() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		lua.addGlobalFunction("started", new LuaFunction() {
+			@Override
+			public Object[] call(Object[] args) throws LuaRuntimeException {
+				started.countDown();
+				return null;
+			}
+		});
+		try (LuaExecutor executor = new LuaExecutor(lua, threads)) {
+			CompletableFuture<Void> loop =
+				executor.submitString("started() while true do end", "loop.lua");
+			CompletableFuture<Boolean> next = executor.submit(
+				new LuaTask<Boolean>() {
+					@Override
+					public Boolean run(LuaEngine engine) throws LuaException {
+						return true;
+					}
+				});
+			started.await();
+			assertTrue(loop.cancel(true));
+			try {
+				loop.get();
+				throw new AssertionError();
+			}
+			catch (CancellationException e) {
+				// OK
+			}
+			// native abort frees the engine for the next task
+			assertThat(next.get(), is(true));
+			assertThat(executor.getStats().getCancelledCount(), is(1L));
+		}
+	}
+
+	@Test
+	public void abort() throws Exception {
+		lua.abort();
+		try {
+			lua.execString("while true do end", "abort.lua");
+			throw new AssertionError();
+		}
+		catch (LuaAbortException e) {
+			// OK
+		}
+		// cleared
+		lua.execString("x = 1", "abort2.lua");
+	}
+
+	@Test
+	public void asyncSleep() throws Exception {
+		lua.addLibrary(new SystemFunctions());
+		// 100 scripts sleep 100ms each on one thread
+		ExecutorService single = Executors.newSingleThreadExecutor();
+		try (LuaExecutor executor = new LuaExecutor(lua, single)) {
+			long time1 = System.currentTimeMillis();
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = executor.submitAsync(
+					"sys.sleep(100)\n" +
+					"coroutine.yield()\n" +
+					"return 'done'\n",
+					"asyncSleep.lua");
+			}
+			for (int i = 0; i < futures.length; i++) {
+				assertArrayEquals(new Object[] { "done" },
+					(Object[])futures[i].get());
+			}
+			long time2 = System.currentTimeMillis();
+			assertTrue(time2 - time1 < 1000);
+		}
+		finally {
+			single.shutdown();
+		}
+	}
+
+	@Test
+	public void asyncError() throws Exception {
+		final CompletableFuture<Object[]> stage1 = new CompletableFuture<>();
+		final CompletableFuture<Object[]> stage2 = new CompletableFuture<>();
+		lua.addGlobalAsyncFunction("wait", new LuaAsyncFunction() {
+			@Override
+			public CompletionStage<Object[]> call(Object[] args) {
+				return ((Long)args[0] == 1) ? stage1 : stage2;
+			}
+		}, LuaArg.LONG);
+		try (LuaExecutor executor = new LuaExecutor(lua, threads)) {
+			CompletableFuture<Object[]> f1 = executor.submitAsync(
+				"return pcall(wait, 1)", "asyncError1.lua");
+			CompletableFuture<Object[]> f2 = executor.submitAsync(
+				"wait(2) ok = true", "asyncError2.lua");
+			// Lua error in the script
+			stage1.completeExceptionally(new LuaRuntimeException("x"));
+			assertThat(f1.get()[0], is((Object)false));
+			assertThat(f1.get()[1], is((Object)"x"));
+			// Java error stops the script
+			stage2.completeExceptionally(new IllegalStateException());
+			try {
+				f2.get();
+				throw new AssertionError();
+			}
+			catch (ExecutionException e) {
+				assertThat(e.getCause(), instanceOf(IllegalStateException.class));
+			}
+			// blocking fallback outside a coroutine
+			assertArrayEquals(new Object[] { "y" }, executor.submit(
+				new LuaTask<Object[]>() {
+					@Override
+					public Object[] run(LuaEngine engine) throws LuaException {
+						stage2.obtrudeValue(new Object[] { "y" });
+						return engine.callGlobalFunction("wait", 2);
+					}
+				}).get());
+		}
+		assertThat(lua.getGlobalVariable("ok"), is((Object)null));
+	}
+
+	@Test
+	public void asyncCancelWaiting() throws Exception {
+		ManualExecutor manual = new ManualExecutor();
+		lua.addGlobalAsyncFunction("never", new LuaAsyncFunction() {
+			@Override
+			public CompletionStage<Object[]> call(Object[] args) {
+				return new CompletableFuture<>();
+			}
+		});
+		try (LuaExecutor executor = new LuaExecutor(lua, manual)) {
+			CompletableFuture<Object[]> f = executor.submitAsync(
+				"local t = setmetatable({}, {__gc = function() collected = true end})\n" +
+				"never()\n",
+				"asyncCancelWaiting.lua");
+			manual.runAll();
+			assertTrue(!f.isDone());
+			f.cancel(false);
+			// the coroutine is closed without the stage
+			manual.runAll();
+			executor.submit(new LuaTask<Void>() {
+				@Override
+				public Void run(LuaEngine engine) throws LuaException {
+					engine.execString("collectgarbage()", "gc.lua");
+					return null;
+				}
+			});
+			manual.runAll();
+		}
+		assertThat(lua.getGlobalVariable("collected"), is((Object)true));
+	}
+
+}
@@ -0,0 +1,137 @@
+import static org.hamcrest.CoreMatchers.containsString;
+import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.stream.StreamSupport;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import io.github.yappy.lua.LuaChunk;
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaEngineFactory;
+import io.github.yappy.lua.LuaEnginePool;
+import io.github.yappy.lua.LuaException;
+import io.github.yappy.lua.LuaParallel;
+import io.github.yappy.lua.LuaRuntimeException;
+import io.github.yappy.lua.UncheckedLuaException;
+
+public class LuaParallelTest {
+
+	private static final LuaChunk SQUARE = new LuaChunk(
+		"local x = ...\n" +
+		"if x < 0 then error('negative', 0) end\n" +
+		"return x * x\n",
+		"square.lua");
+
+	private final AtomicInteger createCount = new AtomicInteger();
+	private LuaEnginePool pool;
+	private ForkJoinPool forkJoin;
+
+	@Before
+	public void init() throws Exception {
+		pool = new LuaEnginePool(new LuaEngineFactory() {
+			@Override
+			public LuaEngine create() throws LuaException {
+				createCount.incrementAndGet();
+				LuaEngine lua = new LuaEngine();
+				lua.openStdLibs();
+				return lua;
+			}
+		}, 4);
+		forkJoin = new ForkJoinPool(4);
+	}
+
+	@After
+	public void term() throws Exception {
+		forkJoin.shutdown();
+		pool.close();
+		pool = null;
+	}
+
+	@Rule
+	public Timeout globalTimeout = Timeout.millis(10000);
+
+	private static List<Object[]> numbers(int count) {
+		List<Object[]> data = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			data.add(new Object[] { i });
+		}
+		return data;
+	}
+
+	@Test
+	public void map() throws Exception {
+		List<Object[]> results = LuaParallel.map(forkJoin, pool, SQUARE,
+			numbers(10000), 100);
+		assertThat(results.size(), is(10000));
+		for (int i = 0; i < results.size(); i++) {
+			assertArrayEquals(new Object[] { (double)i * i }, results.get(i));
+		}
+		// engines are reused
+		assertTrue(createCount.get() <= 8);
+	}
+
+	@Test
+	public void mapError() throws Exception {
+		List<Object[]> data = numbers(1000);
+		data.set(500, new Object[] { -1 });
+		data.set(700, new Object[] { -1 });
+		try {
+			LuaParallel.map(forkJoin, pool, SQUARE, data, 64);
+			throw new AssertionError();
+		}
+		catch (LuaRuntimeException e) {
+			assertThat(e.getMessage(), containsString("row 500: negative"));
+		}
+	}
+
+	@Test
+	public void parallelStream() throws Exception {
+		Iterator<Object[]> it = StreamSupport.stream(
+			LuaParallel.map(pool, SQUARE, numbers(10000).spliterator(), 100),
+			true).iterator();
+		for (int i = 0; i < 10000; i++) {
+			assertArrayEquals(new Object[] { (double)i * i }, it.next());
+		}
+		assertTrue(!it.hasNext());
+
+		double sum = 0;
+		for (Object result : StreamSupport.stream(
+				LuaParallel.map(pool, SQUARE, numbers(1000).spliterator(), 10),
+				true).map(new Function<Object[], Object>() {
+					@Override
+					public Object apply(Object[] values) {
+						return values[0];
+					}
+				}).toArray()) {
+			sum += (Double)result;
+		}
+		assertThat(sum, is(332833500.0));
+
+		List<Object[]> data = numbers(100);
+		data.set(50, new Object[] { -1 });
+		try {
+			StreamSupport.stream(
+				LuaParallel.map(pool, SQUARE, data.spliterator(), 10),
+				true).toArray();
+			throw new AssertionError();
+		}
+		catch (UncheckedLuaException e) {
+			assertThat(e.getCause(), instanceOf(LuaRuntimeException.class));
+		}
+	}
+
+}
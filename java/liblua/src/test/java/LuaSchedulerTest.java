@@ -0,0 +1,170 @@
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import io.github.yappy.lua.LuaAsyncFunction;
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaScheduler;
+import io.github.yappy.lua.LuaSchedulerStats;
+import io.github.yappy.lua.lib.SystemFunctions;
+
+public class LuaSchedulerTest {
+
+	private LuaEngine lua;
+	private ExecutorService carriers;
+
+	@Before
+	public void init() throws Exception {
+		lua = new LuaEngine();
+		lua.openStdLibs();
+		lua.execString(
+			"log = {}\n" +
+			"function worker(id)\n" +
+			"  for i = 1, 3 do\n" +
+			"    log[#log + 1] = id\n" +
+			"    local x = 0\n" +
+			"    for j = 1, 10000 do x = x + j end\n" +
+			"  end\n" +
+			"  return id\n" +
+			"end\n",
+			"init.lua");
+		carriers = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void term() throws Exception {
+		carriers.shutdown();
+		lua.close();
+		lua = null;
+	}
+
+	@Rule
+	public Timeout globalTimeout = Timeout.millis(5000);
+
+	@Test
+	public void roundRobin() throws Exception {
+		try (LuaScheduler scheduler = new LuaScheduler(lua, carriers, 1000)) {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[3];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = scheduler.spawn("worker", "w" + i);
+			}
+			for (int i = 0; i < futures.length; i++) {
+				assertArrayEquals(new Object[] { "w" + i },
+					(Object[])futures[i].get());
+			}
+			LuaSchedulerStats stats = scheduler.getStats();
+			assertThat(stats.getCompletedCount(), is(3L));
+			assertTrue(stats.getPreemptedCount() > 0);
+			assertTrue(stats.getSliceCount() > 3);
+		}
+		lua.execString("s = table.concat(log, ',')", "log.lua");
+		// each worker is preempted in its inner loop
+		assertThat(lua.getGlobalVariable("s"),
+			is((Object)"w0,w1,w2,w0,w1,w2,w0,w1,w2"));
+	}
+
+	@Test
+	public void priority() throws Exception {
+		ManualExecutor manual = new ManualExecutor();
+		try (LuaScheduler scheduler = new LuaScheduler(lua, manual, 1000)) {
+			CompletableFuture<Object[]> low = scheduler.spawn(0, "worker", "l");
+			CompletableFuture<Object[]> high = scheduler.spawn(10, "worker", "h");
+			manual.runAll();
+			assertTrue(low.isDone() && high.isDone());
+		}
+		lua.execString("s = table.concat(log, ',')", "log.lua");
+		// high keeps running after preemption
+		assertThat(lua.getGlobalVariable("s"), is((Object)"h,h,h,l,l,l"));
+	}
+
+	@Test
+	public void manySleeping() throws Exception {
+		lua.addLibrary(new SystemFunctions());
+		try (LuaScheduler scheduler = new LuaScheduler(lua, carriers)) {
+			long time1 = System.currentTimeMillis();
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[2000];
+			for (int i = 0; i < futures.length; i++) {
+				futures[i] = scheduler.spawnString(
+					"for i = 1, 5 do sys.sleep(20) end return 1",
+					"manySleeping.lua");
+			}
+			for (int i = 0; i < futures.length; i++) {
+				assertArrayEquals(new Object[] { 1.0 },
+					(Object[])futures[i].get());
+			}
+			long time2 = System.currentTimeMillis();
+			// 2000 coroutines sleep 100ms each in parallel
+			assertTrue(time2 - time1 < 3000);
+			assertThat(scheduler.getStats().getWaitingCount(), is(0));
+		}
+	}
+
+	@Test
+	public void cancel() throws Exception {
+		try (LuaScheduler scheduler = new LuaScheduler(lua, carriers, 1000)) {
+			CompletableFuture<Object[]> loop =
+				scheduler.spawnString("while true do end", "loop.lua");
+			CompletableFuture<Object[]> worker = scheduler.spawn("worker", "w");
+			// the loop does not block others
+			assertArrayEquals(new Object[] { "w" }, worker.get());
+			assertTrue(loop.cancel(true));
+			try {
+				loop.get();
+				throw new AssertionError();
+			}
+			catch (CancellationException e) {
+				// OK
+			}
+			// the engine is still usable
+			assertArrayEquals(new Object[] { "x" },
+				scheduler.spawn("worker", "x").get());
+		}
+	}
+
+	@Test
+	public void cancelWaiting() throws Exception {
+		final CompletableFuture<Object[]> never = new CompletableFuture<>();
+		lua.addGlobalAsyncFunction("wait", new LuaAsyncFunction() {
+			@Override
+			public CompletionStage<Object[]> call(Object[] args) {
+				return never;
+			}
+		});
+		ManualExecutor manual = new ManualExecutor();
+		try (LuaScheduler scheduler = new LuaScheduler(lua, manual)) {
+			CompletableFuture<Object[]> waiter =
+				scheduler.spawnString("wait()", "wait1.lua");
+			manual.runAll();
+			assertThat(scheduler.getStats().getWaitingCount(), is(1));
+			// closed at the next slice without the stage
+			assertTrue(waiter.cancel(false));
+			manual.runAll();
+			LuaSchedulerStats stats = scheduler.getStats();
+			assertThat(stats.getWaitingCount(), is(0));
+			assertThat(stats.getReadyCount(), is(0));
+			assertTrue(!never.isDone());
+
+			waiter = scheduler.spawnString("wait()", "wait2.lua");
+			manual.runAll();
+			scheduler.close();
+			assertTrue(waiter.isCancelled());
+			assertThat(scheduler.getStats().getWaitingCount(), is(0));
+		}
+		// ignored after close
+		never.complete(null);
+	}
+
+}
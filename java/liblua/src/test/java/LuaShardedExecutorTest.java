@@ -0,0 +1,143 @@
+import static org.hamcrest.CoreMatchers.is;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.Timeout;
+
+import io.github.yappy.lua.LuaEngine;
+import io.github.yappy.lua.LuaEngineFactory;
+import io.github.yappy.lua.LuaException;
+import io.github.yappy.lua.LuaShardStats;
+import io.github.yappy.lua.LuaShardedExecutor;
+import io.github.yappy.lua.LuaTask;
+
+public class LuaShardedExecutorTest {
+
+	private LuaShardedExecutor executor;
+
+	@Before
+	public void init() throws Exception {
+		executor = new LuaShardedExecutor(new LuaEngineFactory() {
+			@Override
+			public LuaEngine create() throws LuaException {
+				LuaEngine lua = new LuaEngine();
+				lua.openStdLibs();
+				lua.execString(
+					"counts = {}\n" +
+					"function inc(key)\n" +
+					"  local n = (counts[key] or 0) + 1\n" +
+					"  counts[key] = n\n" +
+					"  return n\n" +
+					"end\n",
+					"init.lua");
+				return lua;
+			}
+		}, 4, 8, 64);
+	}
+
+	@After
+	public void term() throws Exception {
+		executor.close();
+		executor = null;
+	}
+
+	@Rule
+	public Timeout globalTimeout = Timeout.millis(5000);
+
+	// block the shard worker until the latch is released
+	private CompletableFuture<Void> blockShard(Object key,
+			final CountDownLatch started, final CountDownLatch release) {
+		return executor.submit(key, new LuaTask<Void>() {
+			@Override
+			public Void run(LuaEngine engine) throws LuaException {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					throw new LuaException(e);
+				}
+				return null;
+			}
+		});
+	}
+
+	@Test
+	public void sameKeyInOrder() throws Exception {
+		String[] keys = { "alice", "bob", "carol", "dave", "eve" };
+		for (int round = 0; round < 5; round++) {
+			CompletableFuture<?>[] futures = new CompletableFuture<?>[keys.length];
+			for (int i = 0; i < keys.length; i++) {
+				futures[i] = executor.submit(keys[i], "inc", keys[i]);
+			}
+			for (int i = 0; i < keys.length; i++) {
+				// per-key state in the pinned engine
+				assertArrayEquals(new Object[] { (double)(round + 1) },
+					(Object[])futures[i].get());
+			}
+		}
+		assertThat(executor.shardOf("alice"), is(executor.shardOf("alice")));
+	}
+
+	@Test
+	public void batchAndDepth() throws Exception {
+		String key = "hot";
+		int shard = executor.shardOf(key);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		CompletableFuture<Void> block = blockShard(key, started, release);
+		started.await();
+
+		CompletableFuture<?>[] futures = new CompletableFuture<?>[8];
+		for (int i = 0; i < futures.length; i++) {
+			futures[i] = executor.submit(key, "inc", key);
+		}
+		// mailbox is full
+		try {
+			executor.submit(key, "inc", key);
+			throw new AssertionError();
+		}
+		catch (RejectedExecutionException e) {
+			// OK
+		}
+		assertThat(executor.getShardStats(shard).getQueueDepth(), is(8));
+
+		release.countDown();
+		block.get();
+		assertArrayEquals(new Object[] { 8.0 },
+			(Object[])futures[futures.length - 1].get());
+
+		LuaShardStats stats = executor.getShardStats(shard);
+		assertThat(stats.getQueueDepth(), is(0));
+		assertThat(stats.getMaxQueueDepth(), is(8));
+		assertThat(stats.getProcessedCount(), is(9L));
+		// blocking task + one batch
+		assertThat(stats.getBatchCount(), is(2L));
+		assertTrue(stats.getAverageBatchSize() > 1.0);
+	}
+
+	@Test
+	public void cancelWaiting() throws Exception {
+		String key = "k";
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		blockShard(key, started, release);
+		started.await();
+
+		CompletableFuture<Object[]> f1 = executor.submit(key, "inc", key);
+		CompletableFuture<Object[]> f2 = executor.submit(key, "inc", key);
+		assertTrue(f1.cancel(false));
+		release.countDown();
+		// f1 did not run
+		assertArrayEquals(new Object[] { 1.0 }, f2.get());
+	}
+
+}
@@ -0,0 +1,26 @@
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.Executor;
+
+// runs queued Runnables only when asked
+class ManualExecutor implements Executor {
+	private final Deque<Runnable> runnables = new ArrayDeque<>();
+
+	@Override
+	public synchronized void execute(Runnable command) {
+		runnables.offerLast(command);
+	}
+
+	public void runAll() {
+		while (true) {
+			Runnable r;
+			synchronized (this) {
+				r = runnables.pollFirst();
+			}
+			if (r == null) {
+				break;
+			}
+			r.run();
+		}
+	}
+}
@@ -11,10 +11,48 @@ extern "C" {
 #define io_github_yappy_lua_LuaEngine_DEFAULT_MEMORY_LIMIT 16777216LL
 #undef io_github_yappy_lua_LuaEngine_DEFAULT_INTR_INST_COUNT
 #define io_github_yappy_lua_LuaEngine_DEFAULT_INTR_INST_COUNT 1000L
+#undef io_github_yappy_lua_LuaEngine_DEFAULT_PIPE_BATCH_SIZE
+#define io_github_yappy_lua_LuaEngine_DEFAULT_PIPE_BATCH_SIZE 256L
+#undef io_github_yappy_lua_LuaEngine_DEFAULT_SINK_BUFFER_SIZE
+#define io_github_yappy_lua_LuaEngine_DEFAULT_SINK_BUFFER_SIZE 65536L
+#undef io_github_yappy_lua_LuaEngine_LOAD_BUFFER_SIZE
+#define io_github_yappy_lua_LuaEngine_LOAD_BUFFER_SIZE 65536L
 #undef io_github_yappy_lua_LuaEngine_VERSION_ARRAY_SIZE
 #define io_github_yappy_lua_LuaEngine_VERSION_ARRAY_SIZE 4L
+#undef io_github_yappy_lua_LuaEngine_STAT_ARRAY_SIZE
+#define io_github_yappy_lua_LuaEngine_STAT_ARRAY_SIZE 9L
+#undef io_github_yappy_lua_LuaEngine_STAT_MEMORY_USED
+#define io_github_yappy_lua_LuaEngine_STAT_MEMORY_USED 0L
+#undef io_github_yappy_lua_LuaEngine_STAT_GC_CYCLES
+#define io_github_yappy_lua_LuaEngine_STAT_GC_CYCLES 1L
+#undef io_github_yappy_lua_LuaEngine_STAT_MEMORY_PEAK
+#define io_github_yappy_lua_LuaEngine_STAT_MEMORY_PEAK 2L
+#undef io_github_yappy_lua_LuaEngine_STAT_ALLOC_COUNT
+#define io_github_yappy_lua_LuaEngine_STAT_ALLOC_COUNT 3L
+#undef io_github_yappy_lua_LuaEngine_STAT_FREE_COUNT
+#define io_github_yappy_lua_LuaEngine_STAT_FREE_COUNT 4L
+#undef io_github_yappy_lua_LuaEngine_STAT_REALLOC_COUNT
+#define io_github_yappy_lua_LuaEngine_STAT_REALLOC_COUNT 5L
+#undef io_github_yappy_lua_LuaEngine_STAT_REJECT_COUNT
+#define io_github_yappy_lua_LuaEngine_STAT_REJECT_COUNT 6L
+#undef io_github_yappy_lua_LuaEngine_STAT_GC_DEBT
+#define io_github_yappy_lua_LuaEngine_STAT_GC_DEBT 7L
+#undef io_github_yappy_lua_LuaEngine_STAT_GC_ESTIMATE
+#define io_github_yappy_lua_LuaEngine_STAT_GC_ESTIMATE 8L
+#undef io_github_yappy_lua_LuaEngine_PEER_FLAG_SLAB_ALLOCATOR
+#define io_github_yappy_lua_LuaEngine_PEER_FLAG_SLAB_ALLOCATOR 1L
+#undef io_github_yappy_lua_LuaEngine_BUDGET_ARRAY_SIZE
+#define io_github_yappy_lua_LuaEngine_BUDGET_ARRAY_SIZE 3L
+#undef io_github_yappy_lua_LuaEngine_BUDGET_USED
+#define io_github_yappy_lua_LuaEngine_BUDGET_USED 0L
+#undef io_github_yappy_lua_LuaEngine_BUDGET_EMERGENCY_GC_COUNT
+#define io_github_yappy_lua_LuaEngine_BUDGET_EMERGENCY_GC_COUNT 1L
+#undef io_github_yappy_lua_LuaEngine_BUDGET_REJECT_COUNT
+#define io_github_yappy_lua_LuaEngine_BUDGET_REJECT_COUNT 2L
 #undef io_github_yappy_lua_LuaEngine_LUA_MULTRET
 #define io_github_yappy_lua_LuaEngine_LUA_MULTRET -1L
+#undef io_github_yappy_lua_LuaEngine_PROXY_RET_YIELD
+#define io_github_yappy_lua_LuaEngine_PROXY_RET_YIELD -1L
 #undef io_github_yappy_lua_LuaEngine_LIB_BIT_BASE
 #define io_github_yappy_lua_LuaEngine_LIB_BIT_BASE 1L
 #undef io_github_yappy_lua_LuaEngine_LIB_BIT_PACKAGE
@@ -35,8 +73,20 @@ extern "C" {
 #define io_github_yappy_lua_LuaEngine_LIB_BIT_UTF8 256L
 #undef io_github_yappy_lua_LuaEngine_LIB_BIT_DEBUG
 #define io_github_yappy_lua_LuaEngine_LIB_BIT_DEBUG 512L
+#undef io_github_yappy_lua_LuaEngine_LIB_BIT_JSON
+#define io_github_yappy_lua_LuaEngine_LIB_BIT_JSON 1024L
+#undef io_github_yappy_lua_LuaEngine_LIB_BIT_STRBUF
+#define io_github_yappy_lua_LuaEngine_LIB_BIT_STRBUF 2048L
+#undef io_github_yappy_lua_LuaEngine_LIB_BIT_NUMARRAY
+#define io_github_yappy_lua_LuaEngine_LIB_BIT_NUMARRAY 4096L
+#undef io_github_yappy_lua_LuaEngine_LIB_BIT_BYTES
+#define io_github_yappy_lua_LuaEngine_LIB_BIT_BYTES 8192L
 #undef io_github_yappy_lua_LuaEngine_LIB_ID_COUNT
-#define io_github_yappy_lua_LuaEngine_LIB_ID_COUNT 10L
+#define io_github_yappy_lua_LuaEngine_LIB_ID_COUNT 14L
+#undef io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_DOUBLE
+#define io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_DOUBLE 0L
+#undef io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_INT64
+#define io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_INT64 1L
 #undef io_github_yappy_lua_LuaEngine_LUA_OK
 #define io_github_yappy_lua_LuaEngine_LUA_OK 0L
 #undef io_github_yappy_lua_LuaEngine_LUA_YIELD
@@ -81,6 +131,34 @@ extern "C" {
 #define io_github_yappy_lua_LuaEngine_CHECK_OPT_ALLOW_NIL 65536L
 #undef io_github_yappy_lua_LuaEngine_CHECK_TYPE_MASK
 #define io_github_yappy_lua_LuaEngine_CHECK_TYPE_MASK 65535L
+#undef io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE
+#define io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE 0L
+#undef io_github_yappy_lua_LuaEngine_COLUMN_LONG
+#define io_github_yappy_lua_LuaEngine_COLUMN_LONG 1L
+#undef io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN
+#define io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN 2L
+#undef io_github_yappy_lua_LuaEngine_COLUMN_STRING
+#define io_github_yappy_lua_LuaEngine_COLUMN_STRING 3L
+#undef io_github_yappy_lua_LuaEngine_SINK_TYPE_NIL
+#define io_github_yappy_lua_LuaEngine_SINK_TYPE_NIL 0L
+#undef io_github_yappy_lua_LuaEngine_SINK_TYPE_BOOLEAN
+#define io_github_yappy_lua_LuaEngine_SINK_TYPE_BOOLEAN 1L
+#undef io_github_yappy_lua_LuaEngine_SINK_TYPE_INTEGER
+#define io_github_yappy_lua_LuaEngine_SINK_TYPE_INTEGER 2L
+#undef io_github_yappy_lua_LuaEngine_SINK_TYPE_NUMBER
+#define io_github_yappy_lua_LuaEngine_SINK_TYPE_NUMBER 3L
+#undef io_github_yappy_lua_LuaEngine_SINK_TYPE_STRING
+#define io_github_yappy_lua_LuaEngine_SINK_TYPE_STRING 4L
+#undef io_github_yappy_lua_LuaEngine_TABLE_TYPE_SKIP
+#define io_github_yappy_lua_LuaEngine_TABLE_TYPE_SKIP 0L
+#undef io_github_yappy_lua_LuaEngine_TABLE_TYPE_BOOLEAN
+#define io_github_yappy_lua_LuaEngine_TABLE_TYPE_BOOLEAN 1L
+#undef io_github_yappy_lua_LuaEngine_TABLE_TYPE_INTEGER
+#define io_github_yappy_lua_LuaEngine_TABLE_TYPE_INTEGER 2L
+#undef io_github_yappy_lua_LuaEngine_TABLE_TYPE_NUMBER
+#define io_github_yappy_lua_LuaEngine_TABLE_TYPE_NUMBER 3L
+#undef io_github_yappy_lua_LuaEngine_TABLE_TYPE_STRING
+#define io_github_yappy_lua_LuaEngine_TABLE_TYPE_STRING 4L
 #undef io_github_yappy_lua_LuaEngine_LUA_HOOKCALL
 #define io_github_yappy_lua_LuaEngine_LUA_HOOKCALL 0L
 #undef io_github_yappy_lua_LuaEngine_LUA_HOOKRET
@@ -99,6 +177,24 @@ extern "C" {
 #define io_github_yappy_lua_LuaEngine_LUA_MASKLINE 4L
 #undef io_github_yappy_lua_LuaEngine_LUA_MASKCOUNT
 #define io_github_yappy_lua_LuaEngine_LUA_MASKCOUNT 8L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCSTOP
+#define io_github_yappy_lua_LuaEngine_LUA_GCSTOP 0L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCRESTART
+#define io_github_yappy_lua_LuaEngine_LUA_GCRESTART 1L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCCOLLECT
+#define io_github_yappy_lua_LuaEngine_LUA_GCCOLLECT 2L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCCOUNT
+#define io_github_yappy_lua_LuaEngine_LUA_GCCOUNT 3L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCCOUNTB
+#define io_github_yappy_lua_LuaEngine_LUA_GCCOUNTB 4L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCSTEP
+#define io_github_yappy_lua_LuaEngine_LUA_GCSTEP 5L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCSETPAUSE
+#define io_github_yappy_lua_LuaEngine_LUA_GCSETPAUSE 6L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCSETSTEPMUL
+#define io_github_yappy_lua_LuaEngine_LUA_GCSETSTEPMUL 7L
+#undef io_github_yappy_lua_LuaEngine_LUA_GCISRUNNING
+#define io_github_yappy_lua_LuaEngine_LUA_GCISRUNNING 9L
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    getVersionInfo
@@ -110,10 +206,10 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getVersionInfo
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    newPeer
- * Signature: (J)J
+ * Signature: (JIJ)J
  */
 JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_newPeer
-  (JNIEnv *, jclass, jlong);
+  (JNIEnv *, jclass, jlong, jint, jlong);
 
 /*
  * Class:     io_github_yappy_lua_LuaEngine
@@ -123,6 +219,126 @@ JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_newPeer
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_deletePeer
   (JNIEnv *, jclass, jlong);
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    newMemoryBudget
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_newMemoryBudget
+  (JNIEnv *, jclass, jlong, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    releaseMemoryBudget
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_releaseMemoryBudget
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getMemoryBudgetStatus
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_getMemoryBudgetStatus
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getStatistics
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_getStatistics
+  (JNIEnv *, jclass, jlong, jlongArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    resetMemoryPeak
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_resetMemoryPeak
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    gc
+ * Signature: (JII[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_gc
+  (JNIEnv *, jclass, jlong, jint, jint, jintArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    checkpoint
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_checkpoint
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    reset
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_reset
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    cloneState
+ * Signature: (JJLio/github/yappy/lua/LuaPrint;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_cloneState
+  (JNIEnv *, jclass, jlong, jlong, jobject);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    newContext
+ * Signature: (JZ[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_newContext
+  (JNIEnv *, jclass, jlong, jboolean, jintArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    deleteContext
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_deleteContext
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setContext
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setContext
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    restoreContext
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_restoreContext
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    canYield
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_yappy_lua_LuaEngine_canYield
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    resume
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_resume
+  (JNIEnv *, jclass, jlong, jint);
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    setDebugHook
@@ -155,6 +371,22 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_openLibs
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_replacePrintFunc
   (JNIEnv *, jclass, jlong, jobject);
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setSink
+ * Signature: (JLjava/nio/ByteBuffer;Lio/github/yappy/lua/SinkFlush;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setSink
+  (JNIEnv *, jclass, jlong, jobject, jobject);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    flushSink
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_flushSink
+  (JNIEnv *, jclass, jlong, jboolean);
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    loadString
@@ -163,6 +395,14 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_replacePrintFunc
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadString
   (JNIEnv *, jclass, jlong, jstring, jstring);
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    loadStream
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;Lio/github/yappy/lua/ChunkReader;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadStream
+  (JNIEnv *, jclass, jlong, jstring, jobject, jobject);
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    getTop
@@ -227,6 +467,54 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setTableField
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pcall
   (JNIEnv *, jclass, jlong, jint, jint, jint);
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    callBatch
+ * Signature: (J[[Ljava/lang/Object;[[Ljava/lang/Object;[Ljava/lang/String;[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_callBatch
+  (JNIEnv *, jclass, jlong, jobjectArray, jobjectArray, jobjectArray, jintArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    callBatchColumns
+ * Signature: (JI[Ljava/lang/Object;[ILjava/lang/Object;I[Ljava/lang/String;[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_callBatchColumns
+  (JNIEnv *, jclass, jlong, jint, jobjectArray, jintArray, jobject, jint, jobjectArray, jintArray);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    pushChunk
+ * Signature: (JI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_yappy_lua_LuaEngine_pushChunk
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setChunk
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setChunk
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    releaseChunk
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_releaseChunk
+  (JNIEnv *, jclass, jlong, jint);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    loadTable
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/lang/String;[Ljava/lang/String;[ICZZ[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadTable
+  (JNIEnv *, jclass, jlong, jobject, jstring, jobjectArray, jintArray, jchar, jboolean, jboolean, jintArray);
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    getGlobal
@@ -235,6 +523,38 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pcall
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getGlobal
   (JNIEnv *, jclass, jlong, jstring);
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getStrBufLength
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_getStrBufLength
+  (JNIEnv *, jclass, jlong);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    copyStrBuf
+ * Signature: (JLjava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_copyStrBuf
+  (JNIEnv *, jclass, jlong, jobject);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    pushNumArray
+ * Signature: (JILjava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushNumArray
+  (JNIEnv *, jclass, jlong, jint, jobject);
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    toNumArray
+ * Signature: (J)Ljava/lang/Object;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_yappy_lua_LuaEngine_toNumArray
+  (JNIEnv *, jclass, jlong);
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    setGlobal
@@ -0,0 +1,13 @@
+/* DO NOT EDIT THIS FILE - it is machine generated */
+#include <jni.h>
+/* Header for class io_github_yappy_lua_LuaEngine_PipeIterator */
+
+#ifndef _Included_io_github_yappy_lua_LuaEngine_PipeIterator
+#define _Included_io_github_yappy_lua_LuaEngine_PipeIterator
+#ifdef __cplusplus
+extern "C" {
+#endif
+#ifdef __cplusplus
+}
+#endif
+#endif
@@ -0,0 +1,401 @@
+#include "bytes_lib.h"
+
+#include <lauxlib.h>
+#include <cstdint>
+#include <cstring>
+
+namespace {
+
+	// registry key for the metatable
+	const char *const BytesMeta = "ajlua.bytes";
+
+	struct Bytes {
+		char *data;
+		size_t len;
+		bool readonly;
+		void (*release)(void *ctx);
+		void *ctx;
+	};
+
+	enum class Kind {
+		Signed, Unsigned, Float,
+	};
+
+	struct TypeInfo {
+		Kind kind;
+		int size;
+		bool bigEndian;
+	};
+
+	const char *const TypeNames[] = {
+		"i8", "u8", "i16", "u16", "i32", "u32", "i64", "f32", "f64",
+		"i16be", "u16be", "i32be", "u32be", "i64be", "f32be", "f64be",
+		nullptr
+	};
+	const TypeInfo TypeInfos[] = {
+		{ Kind::Signed, 1, false },		{ Kind::Unsigned, 1, false },
+		{ Kind::Signed, 2, false },		{ Kind::Unsigned, 2, false },
+		{ Kind::Signed, 4, false },		{ Kind::Unsigned, 4, false },
+		{ Kind::Signed, 8, false },
+		{ Kind::Float, 4, false },		{ Kind::Float, 8, false },
+		{ Kind::Signed, 2, true },		{ Kind::Unsigned, 2, true },
+		{ Kind::Signed, 4, true },		{ Kind::Unsigned, 4, true },
+		{ Kind::Signed, 8, true },
+		{ Kind::Float, 4, true },		{ Kind::Float, 8, true },
+	};
+	static_assert(sizeof(TypeNames) / sizeof(TypeNames[0]) - 1 ==
+		sizeof(TypeInfos) / sizeof(TypeInfos[0]), "TypeInfos");
+
+	Bytes *CheckBytes(lua_State *L, int idx)
+	{
+		return static_cast<Bytes *>(luaL_checkudata(L, idx, BytesMeta));
+	}
+
+	Bytes *NewBytes(lua_State *L, size_t inlineSize)
+	{
+		auto b = static_cast<Bytes *>(
+			lua_newuserdata(L, sizeof(Bytes) + inlineSize));
+		b->data = reinterpret_cast<char *>(b + 1);
+		b->len = inlineSize;
+		b->readonly = false;
+		b->release = nullptr;
+		b->ctx = nullptr;
+		luaL_setmetatable(L, BytesMeta);
+		return b;
+	}
+
+	// the same as string.sub
+	lua_Integer PosRelat(lua_Integer pos, size_t len)
+	{
+		if (pos >= 0) {
+			return pos;
+		}
+		else if (static_cast<size_t>(-pos) > len) {
+			return 0;
+		}
+		else {
+			return static_cast<lua_Integer>(len) + pos + 1;
+		}
+	}
+
+	// [i, j] of string.sub -> offset and length
+	void CheckRange(lua_State *L, Bytes *b, int arg, size_t *off, size_t *n)
+	{
+		lua_Integer i = PosRelat(luaL_optinteger(L, arg, 1), b->len);
+		lua_Integer j = PosRelat(luaL_optinteger(L, arg + 1, -1), b->len);
+		if (i < 1) {
+			i = 1;
+		}
+		if (static_cast<lua_Unsigned>(j) > b->len) {
+			j = static_cast<lua_Integer>(b->len);
+		}
+		*off = static_cast<size_t>(i - 1);
+		*n = (i <= j) ? static_cast<size_t>(j - i + 1) : 0;
+	}
+
+	// 1-origin pos and size -> pointer
+	char *CheckAccess(lua_State *L, Bytes *b, int arg, size_t size)
+	{
+		lua_Integer pos = luaL_checkinteger(L, arg);
+		luaL_argcheck(L, pos >= 1 && size <= b->len &&
+			static_cast<lua_Unsigned>(pos - 1) <= b->len - size,
+			arg, "out of bounds");
+		return b->data + (pos - 1);
+	}
+
+	// type name -> TypeInfo (upvalue 1: {name = index})
+	const TypeInfo &CheckType(lua_State *L, int arg)
+	{
+		luaL_checktype(L, arg, LUA_TSTRING);
+		lua_pushvalue(L, arg);
+		int isnum = 0;
+		lua_Integer i = (lua_rawget(L, lua_upvalueindex(1)) == LUA_TNUMBER) ?
+			lua_tointegerx(L, -1, &isnum) : 0;
+		lua_pop(L, 1);
+		if (isnum == 0) {
+			luaL_argerror(L, arg,
+				lua_pushfstring(L, "invalid type '%s'", lua_tostring(L, arg)));
+		}
+		return TypeInfos[i];
+	}
+
+	void CheckWritable(lua_State *L, Bytes *b)
+	{
+		if (b->readonly) {
+			luaL_error(L, "read-only bytes");
+		}
+	}
+
+	uint64_t Load(const char *p, int size, bool bigEndian)
+	{
+		auto u = reinterpret_cast<const unsigned char *>(p);
+		uint64_t v = 0;
+		for (int k = 0; k < size; k++) {
+			v = (v << 8) | u[bigEndian ? k : size - 1 - k];
+		}
+		return v;
+	}
+
+	void Store(char *p, int size, bool bigEndian, uint64_t v)
+	{
+		auto u = reinterpret_cast<unsigned char *>(p);
+		for (int k = 0; k < size; k++) {
+			u[bigEndian ? size - 1 - k : k] = static_cast<unsigned char>(v);
+			v >>= 8;
+		}
+	}
+
+	// bytes.new(n | s)
+	int New(lua_State *L)
+	{
+		if (lua_type(L, 1) == LUA_TSTRING) {
+			size_t len = 0;
+			const char *s = lua_tolstring(L, 1, &len);
+			Bytes *b = NewBytes(L, len);
+			std::memcpy(b->data, s, len);
+			return 1;
+		}
+		lua_Integer n = luaL_checkinteger(L, 1);
+		luaL_argcheck(L, n >= 0 &&
+			static_cast<lua_Unsigned>(n) <= static_cast<size_t>(-1) / 2,
+			1, "out of range");
+		Bytes *b = NewBytes(L, static_cast<size_t>(n));
+		std::memset(b->data, 0, b->len);
+		return 1;
+	}
+
+	// b:len(), #b
+	int Len(lua_State *L)
+	{
+		lua_pushinteger(L, static_cast<lua_Integer>(CheckBytes(L, 1)->len));
+		return 1;
+	}
+
+	// b:readonly()
+	int ReadOnly(lua_State *L)
+	{
+		lua_pushboolean(L, CheckBytes(L, 1)->readonly);
+		return 1;
+	}
+
+	// b:slice(i [, j])
+	int Slice(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		luaL_checkinteger(L, 2);
+		size_t off = 0, n = 0;
+		CheckRange(L, b, 2, &off, &n);
+		Bytes *s = NewBytes(L, 0);
+		s->data = b->data + off;
+		s->len = n;
+		s->readonly = b->readonly;
+		// keep the parent (and its memory) alive
+		lua_pushvalue(L, 1);
+		lua_setuservalue(L, -2);
+		return 1;
+	}
+
+	// b:read(type, pos)
+	int Read(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		const TypeInfo &t = CheckType(L, 2);
+		const char *p = CheckAccess(L, b, 3, t.size);
+		uint64_t v = Load(p, t.size, t.bigEndian);
+		switch (t.kind) {
+		case Kind::Signed:
+		{
+			// sign extension
+			int shift = 64 - t.size * 8;
+			lua_pushinteger(L, static_cast<lua_Integer>(
+				static_cast<int64_t>(v << shift) >> shift));
+			break;
+		}
+		case Kind::Unsigned:
+			lua_pushinteger(L, static_cast<lua_Integer>(v));
+			break;
+		case Kind::Float:
+			if (t.size == 4) {
+				uint32_t u = static_cast<uint32_t>(v);
+				float f = 0;
+				std::memcpy(&f, &u, sizeof(f));
+				lua_pushnumber(L, f);
+			}
+			else {
+				double d = 0;
+				std::memcpy(&d, &v, sizeof(d));
+				lua_pushnumber(L, d);
+			}
+			break;
+		}
+		return 1;
+	}
+
+	// b:write(type, pos, v)
+	int Write(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		const TypeInfo &t = CheckType(L, 2);
+		CheckWritable(L, b);
+		char *p = CheckAccess(L, b, 3, t.size);
+		uint64_t v = 0;
+		if (t.kind == Kind::Float) {
+			if (t.size == 4) {
+				float f = static_cast<float>(luaL_checknumber(L, 4));
+				uint32_t u = 0;
+				std::memcpy(&u, &f, sizeof(u));
+				v = u;
+			}
+			else {
+				double d = luaL_checknumber(L, 4);
+				std::memcpy(&v, &d, sizeof(v));
+			}
+		}
+		else {
+			lua_Integer n = luaL_checkinteger(L, 4);
+			if (t.size < 8) {
+				int bits = t.size * 8;
+				lua_Integer min = (t.kind == Kind::Signed) ?
+					-(static_cast<lua_Integer>(1) << (bits - 1)) : 0;
+				lua_Integer max = (t.kind == Kind::Signed) ?
+					(static_cast<lua_Integer>(1) << (bits - 1)) - 1 :
+					(static_cast<lua_Integer>(1) << bits) - 1;
+				luaL_argcheck(L, n >= min && n <= max, 4, "integer overflow");
+			}
+			v = static_cast<uint64_t>(n);
+		}
+		Store(p, t.size, t.bigEndian, v);
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// b:string([i [, j]])
+	int String(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		size_t off = 0, n = 0;
+		CheckRange(L, b, 2, &off, &n);
+		lua_pushlstring(L, b->data + off, n);
+		return 1;
+	}
+
+	// b:put(pos, s)
+	int Put(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		CheckWritable(L, b);
+		const char *src = nullptr;
+		size_t n = 0;
+		if (lua_type(L, 3) == LUA_TSTRING) {
+			src = lua_tolstring(L, 3, &n);
+		}
+		else {
+			Bytes *s = static_cast<Bytes *>(luaL_testudata(L, 3, BytesMeta));
+			luaL_argcheck(L, s != nullptr, 3, "string or bytes expected");
+			src = s->data;
+			n = s->len;
+		}
+		char *p = CheckAccess(L, b, 2, n);
+		// the source may overlap
+		std::memmove(p, src, n);
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// tostring(b)
+	int ToString(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		lua_pushfstring(L, "bytes[%I]: %p",
+			static_cast<lua_Integer>(b->len), static_cast<void *>(b->data));
+		return 1;
+	}
+
+	int Gc(lua_State *L)
+	{
+		Bytes *b = CheckBytes(L, 1);
+		if (b->release != nullptr) {
+			b->release(b->ctx);
+			b->release = nullptr;
+		}
+		b->data = nullptr;
+		b->len = 0;
+		return 0;
+	}
+
+	const luaL_Reg BytesMethods[] = {
+		{"len", Len},
+		{"readonly", ReadOnly},
+		{"slice", Slice},
+		{"read", Read},
+		{"write", Write},
+		{"string", String},
+		{"put", Put},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg BytesMetaMethods[] = {
+		{"__len", Len},
+		{"__tostring", ToString},
+		{"__gc", Gc},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg BytesFuncs[] = {
+		{"new", New},
+		{nullptr, nullptr}
+	};
+
+}
+
+int luaopen_bytes(lua_State *L)
+{
+	luaL_newmetatable(L, BytesMeta);
+	luaL_setfuncs(L, BytesMetaMethods, 0);
+	// type table is shared by all methods
+	luaL_newlibtable(L, BytesMethods);
+	lua_createtable(L, 0, sizeof(TypeInfos) / sizeof(TypeInfos[0]));
+	for (int i = 0; TypeNames[i] != nullptr; i++) {
+		lua_pushinteger(L, i);
+		lua_setfield(L, -2, TypeNames[i]);
+	}
+	luaL_setfuncs(L, BytesMethods, 1);
+	lua_setfield(L, -2, "__index");
+	lua_pop(L, 1);
+
+	luaL_newlib(L, BytesFuncs);
+	return 1;
+}
+
+bool IsBytesOpen(lua_State *L)
+{
+	bool open = luaL_getmetatable(L, BytesMeta) == LUA_TTABLE;
+	lua_pop(L, 1);
+	return open;
+}
+
+void PushBytes(lua_State *L, char *data, size_t len, bool readonly,
+	void (*release)(void *ctx), void *ctx)
+{
+	// without __gc release would never be called
+	if (!IsBytesOpen(L)) {
+		luaL_error(L, "bytes library is not open");
+	}
+	Bytes *b = NewBytes(L, 0);
+	b->data = data;
+	b->len = len;
+	b->readonly = readonly;
+	// nothing raises an error after this
+	b->release = release;
+	b->ctx = ctx;
+}
+
+char *ToBytes(lua_State *L, int idx, size_t *len)
+{
+	auto b = static_cast<Bytes *>(luaL_testudata(L, idx, BytesMeta));
+	if (b == nullptr) {
+		return nullptr;
+	}
+	*len = b->len;
+	return b->data;
+}
@@ -0,0 +1,50 @@
+#pragma once
+
+#include <lua.h>
+#include <cstddef>
+
+#define LUA_BYTESLIBNAME "bytes"
+
+/*
+ * Byte array view library.
+ *
+ * bytes.new(n | s) -> bytes (zero-filled n bytes or a copy of string s)
+ * b:len(), #b -> length
+ * b:readonly() -> boolean
+ * b:slice(i [, j]) -> bytes (view of the same memory, indices as string.sub)
+ * b:read(type, pos) -> value
+ * b:write(type, pos, v) -> b
+ * b:string([i [, j]]) -> string (copy)
+ * b:put(pos, s) -> b (s: string or bytes)
+ *
+ * type: "i8", "u8", "i16", "u16", "i32", "u32", "i64", "f32", "f64"
+ * (little endian), or with "be" suffix (e.g. "u16be") for big endian.
+ * Positions are 1-origin and every access is bounds-checked.
+ * Integer writes must fit in the type range.
+ *
+ * A view does not own external memory. A slice keeps its parent alive,
+ * so the memory is valid while any view of it is reachable.
+ */
+int luaopen_bytes(lua_State *L);
+
+/*
+ * Return true if luaopen_bytes() has been called.
+ * A view can be used (and released) only in that case.
+ * Might raise an error. (e.g. memory error)
+ */
+bool IsBytesOpen(lua_State *L);
+
+/*
+ * Push a view of external memory.
+ * release(ctx) is called when the view is collected (it may be nullptr).
+ * If this raises an error (e.g. memory error, or the library is not
+ * open), release is not called.
+ */
+void PushBytes(lua_State *L, char *data, size_t len, bool readonly,
+	void (*release)(void *ctx), void *ctx);
+
+/*
+ * Return the memory of the view at idx, or nullptr if it is not a view.
+ * Never raises an error.
+ */
+char *ToBytes(lua_State *L, int idx, size_t *len);
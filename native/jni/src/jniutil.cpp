@@ -22,6 +22,8 @@ namespace {
 		{ nullptr, "io/github/yappy/lua/DebugHook"				},
 		{ nullptr, "io/github/yappy/lua/LuaPrint"				},
 		{ nullptr, "io/github/yappy/lua/FunctionRoot"			},
+		{ nullptr, "io/github/yappy/lua/SinkFlush"				},
+		{ nullptr, "io/github/yappy/lua/ChunkReader"			},
 		{ nullptr, "io/github/yappy/lua/LuaRuntimeException"	},
 		{ nullptr, "[Ljava/lang/Object;"						},
 		{ nullptr, "java/lang/String"							},
@@ -30,6 +32,8 @@ namespace {
 		{ nullptr, "java/lang/Long"								},
 		{ nullptr, "java/lang/Double"							},
 		{ nullptr, "java/lang/Throwable"						},
+		{ nullptr, "java/lang/Object"							},
+		{ nullptr, "java/nio/ByteBuffer"						},
 	};
 	static_assert(
 		sizeof(s_classCache) / sizeof(s_classCache[0]) ==
@@ -38,13 +42,17 @@ namespace {
 
 	MethodCacheEntry s_methodCache[] = {
 		{ nullptr, false,	ClassId::DebugHook,
-			"hook",			"(II)V"					},
+			"hook",			"(II)Z"					},
 		{ nullptr, false,	ClassId::LuaPrint,
 			"writeString",	"(Ljava/lang/String;)V"	},
 		{ nullptr, false,	ClassId::LuaPrint,
 			"writeLine",	"()V"					},
 		{ nullptr, false,	ClassId::FunctionRoot,
 			"call",			"(I)I"					},
+		{ nullptr, false,	ClassId::SinkFlush,
+			"flush",		"(II)V"					},
+		{ nullptr, false,	ClassId::ChunkReader,
+			"read",			"()I"					},
 		{ nullptr, false,	ClassId::Number,
 			"doubleValue",	"()D"					},
 		{ nullptr, true,	ClassId::Boolean,
@@ -57,11 +65,20 @@ namespace {
 			"valueOf",		"(D)Ljava/lang/Double;"	},
 		{ nullptr, false,	ClassId::Throwable,
 			"getMessage",	"()Ljava/lang/String;"	},
+		{ nullptr, false,	ClassId::ByteBuffer,
+			"position",		"()I"					},
+		{ nullptr, false,	ClassId::ByteBuffer,
+			"limit",		"()I"					},
+		{ nullptr, false,	ClassId::ByteBuffer,
+			"isReadOnly",	"()Z"					},
 	};
 	static_assert(
 		sizeof(s_methodCache) / sizeof(s_methodCache[0]) ==
 			static_cast<size_t>(MethodId::MethodCacheNum),
 		"MethodCache num");
+
+	JavaVM *s_vm = nullptr;
+	const jint EnvVersion = JNI_VERSION_1_2;
 }
 #include <stdio.h>
 namespace jniutil {
@@ -108,6 +125,21 @@ namespace jniutil {
 		}
 	}
 
+	void SetJavaVM(JavaVM *vm)
+	{
+		s_vm = vm;
+	}
+
+	JNIEnv *GetEnv()
+	{
+		JNIEnv *env = nullptr;
+		if (s_vm == nullptr ||
+			s_vm->GetEnv(reinterpret_cast<void **>(&env), EnvVersion) != JNI_OK) {
+			return nullptr;
+		}
+		return env;
+	}
+
 	jclass FindClass(ClassId id)
 	{
 		return s_classCache[static_cast<int>(id)].classCache;
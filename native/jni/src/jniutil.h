@@ -9,6 +9,8 @@ namespace jniutil {
 		DebugHook,
 		LuaPrint,
 		FunctionRoot,
+		SinkFlush,
+		ChunkReader,
 		LuaRuntimeException,
 		ObjectArray,
 		String,
@@ -17,6 +19,8 @@ namespace jniutil {
 		Long,
 		Double,
 		Throwable,
+		Object,
+		ByteBuffer,
 		ClassCacheNum,
 	};
 	enum class MethodId {
@@ -24,30 +28,40 @@ namespace jniutil {
 		LuaPrint_writeString,
 		LuaPrint_writeLine,
 		FunctionRoot_call,
+		SinkFlush_flush,
+		ChunkReader_read,
 		Number_doubleValue,
 		Boolean_valueOf,
 		Boolean_booleanValue,
 		Long_valueOf,
 		Double_valueOf,
 		Throwable_getMessage,
+		ByteBuffer_position,
+		ByteBuffer_limit,
+		ByteBuffer_isReadOnly,
 		MethodCacheNum,
 	};
 
 	bool CacheAllClass(JNIEnv *env);
 	bool CacheAllMethod(JNIEnv *env);
 	void ClearAllCache(JNIEnv *env);
+	// JavaVM from JNI_OnLoad
+	void SetJavaVM(JavaVM *vm);
+	// JNIEnv of the current thread (nullptr if not attached)
+	JNIEnv *GetEnv();
 	jclass FindClass(ClassId id);
 	jmethodID GetMethodId(MethodId id);
 
 
+	// may be called from any thread
 	struct GlobalRefDeleter {
-		explicit GlobalRefDeleter(JNIEnv *env) : m_env(env) {}
 		void operator()(jobject p)
 		{
-			m_env->DeleteGlobalRef(p);
+			JNIEnv *env = GetEnv();
+			if (env != nullptr) {
+				env->DeleteGlobalRef(p);
+			}
 		}
-	private:
-		JNIEnv *m_env;
 	};
 
 	using GlobalRef = std::unique_ptr<
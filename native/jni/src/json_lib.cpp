@@ -0,0 +1,670 @@
+#include "json_lib.h"
+
+#include <lauxlib.h>
+#include <clocale>
+#include <cmath>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <string>
+
+namespace {
+
+	const int DefaultMaxDepth = 1000;
+	const int MaxDepthLimit = DefaultMaxDepth;
+	// a buffer grown larger than this is released after use
+	const size_t KeepBufferSize = 1024 * 1024;
+
+	// reused by the calls in the same thread (never used recursively)
+	thread_local std::string EncodeBuffer;
+	thread_local std::string DecodeBuffer;
+
+	void ReleaseLarge(std::string &buf)
+	{
+		if (buf.capacity() > KeepBufferSize) {
+			std::string().swap(buf);
+		}
+	}
+
+	/*
+	 * encode
+	 */
+	struct Encoder {
+		lua_State *L;
+		std::string &out;
+		int maxDepth;
+	};
+
+	void AppendString(std::string &out, const char *s, size_t len)
+	{
+		static const char Hex[] = "0123456789abcdef";
+		const char *const end = s + len;
+		const char *run = s;
+		out.push_back('"');
+		for (const char *p = s; p < end; p++) {
+			unsigned char c = static_cast<unsigned char>(*p);
+			if (c >= 0x20 && c != '"' && c != '\\') {
+				continue;
+			}
+			out.append(run, p);
+			run = p + 1;
+			switch (c) {
+			case '"':
+				out.append("\\\"");
+				break;
+			case '\\':
+				out.append("\\\\");
+				break;
+			case '\b':
+				out.append("\\b");
+				break;
+			case '\f':
+				out.append("\\f");
+				break;
+			case '\n':
+				out.append("\\n");
+				break;
+			case '\r':
+				out.append("\\r");
+				break;
+			case '\t':
+				out.append("\\t");
+				break;
+			default:
+				out.append("\\u00");
+				out.push_back(Hex[c >> 4]);
+				out.push_back(Hex[c & 0xf]);
+				break;
+			}
+		}
+		out.append(run, end);
+		out.push_back('"');
+	}
+
+	void AppendNumber(lua_State *L, std::string &out, int idx)
+	{
+		char buf[64];
+		if (lua_isinteger(L, idx)) {
+			int len = std::snprintf(buf, sizeof(buf), LUA_INTEGER_FMT,
+				static_cast<LUAI_UACINT>(lua_tointeger(L, idx)));
+			out.append(buf, len);
+			return;
+		}
+		double value = static_cast<double>(lua_tonumber(L, idx));
+		if (!std::isfinite(value)) {
+			luaL_error(L, "json: cannot encode inf or nan");
+			return;
+		}
+		// shortest of them which reads back the same value
+		int len = 0;
+		for (int prec = 15; prec <= 17; prec++) {
+			len = std::snprintf(buf, sizeof(buf), "%.*g", prec, value);
+			if (std::strtod(buf, nullptr) == value) {
+				break;
+			}
+		}
+		// "%g" uses the locale decimal point
+		const char point = lua_getlocaledecpoint();
+		bool integral = true;
+		for (int i = 0; i < len; i++) {
+			if (buf[i] == point) {
+				buf[i] = '.';
+				integral = false;
+			}
+			else if (buf[i] == 'e') {
+				integral = false;
+			}
+		}
+		out.append(buf, len);
+		if (integral) {
+			// keep it a float in a round trip
+			out.append(".0");
+		}
+	}
+
+	void EncodeValue(Encoder &enc, int idx, int depth);
+
+	void EncodeTable(Encoder &enc, int idx, int depth)
+	{
+		lua_State *L = enc.L;
+		std::string &out = enc.out;
+		if (depth > enc.maxDepth) {
+			luaL_error(L, "json: nesting too deep (cyclic table?)");
+			return;
+		}
+		luaL_checkstack(L, 3, "json: nesting too deep");
+
+		// array if the keys are 1..n
+		lua_Integer count = 0;
+		lua_Integer n = 0;
+		bool array = true;
+		lua_pushnil(L);
+		while (lua_next(L, idx) != 0) {
+			lua_pop(L, 1);
+			count++;
+			if (array) {
+				if (lua_isinteger(L, -1) && lua_tointeger(L, -1) >= 1) {
+					lua_Integer key = lua_tointeger(L, -1);
+					n = (key > n) ? key : n;
+				}
+				else {
+					array = false;
+				}
+			}
+		}
+		if (array && count > 0 && n == count) {
+			out.push_back('[');
+			for (lua_Integer i = 1; i <= n; i++) {
+				if (i > 1) {
+					out.push_back(',');
+				}
+				lua_rawgeti(L, idx, i);
+				EncodeValue(enc, lua_gettop(L), depth);
+				lua_pop(L, 1);
+			}
+			out.push_back(']');
+			return;
+		}
+
+		out.push_back('{');
+		bool first = true;
+		lua_pushnil(L);
+		while (lua_next(L, idx) != 0) {
+			if (!first) {
+				out.push_back(',');
+			}
+			first = false;
+			// never convert the key in place (lua_next() needs it)
+			switch (lua_type(L, -2)) {
+			case LUA_TSTRING:
+			{
+				size_t len = 0;
+				const char *key = lua_tolstring(L, -2, &len);
+				AppendString(out, key, len);
+				break;
+			}
+			case LUA_TNUMBER:
+				out.push_back('"');
+				AppendNumber(L, out, -2);
+				out.push_back('"');
+				break;
+			default:
+				luaL_error(L, "json: cannot encode %s key", luaL_typename(L, -2));
+				return;
+			}
+			out.push_back(':');
+			EncodeValue(enc, lua_gettop(L), depth);
+			lua_pop(L, 1);
+		}
+		out.push_back('}');
+	}
+
+	void EncodeValue(Encoder &enc, int idx, int depth)
+	{
+		lua_State *L = enc.L;
+		switch (lua_type(L, idx)) {
+		case LUA_TNIL:
+			enc.out.append("null");
+			break;
+		case LUA_TBOOLEAN:
+			enc.out.append(lua_toboolean(L, idx) ? "true" : "false");
+			break;
+		case LUA_TNUMBER:
+			AppendNumber(L, enc.out, idx);
+			break;
+		case LUA_TSTRING:
+		{
+			size_t len = 0;
+			const char *s = lua_tolstring(L, idx, &len);
+			AppendString(enc.out, s, len);
+			break;
+		}
+		case LUA_TTABLE:
+			EncodeTable(enc, idx, depth + 1);
+			break;
+		case LUA_TLIGHTUSERDATA:
+			// json.null
+			if (lua_touserdata(L, idx) == nullptr) {
+				enc.out.append("null");
+				break;
+			}
+			luaL_error(L, "json: cannot encode %s", luaL_typename(L, idx));
+			break;
+		default:
+			luaL_error(L, "json: cannot encode %s", luaL_typename(L, idx));
+			break;
+		}
+	}
+
+	// json.encode(value [, maxdepth])
+	int Encode(lua_State *L)
+	{
+		luaL_checkany(L, 1);
+		lua_Integer maxDepth = luaL_optinteger(L, 2, DefaultMaxDepth);
+		// recursion uses the C stack
+		luaL_argcheck(L, maxDepth >= 0 && maxDepth <= MaxDepthLimit, 2,
+			"out of range");
+		lua_settop(L, 1);
+
+		std::string &out = EncodeBuffer;
+		ReleaseLarge(out);
+		out.clear();
+		Encoder enc = { L, out, static_cast<int>(maxDepth) };
+		EncodeValue(enc, 1, 0);
+		lua_pushlstring(L, out.data(), out.size());
+		ReleaseLarge(out);
+		return 1;
+	}
+
+	/*
+	 * decode
+	 */
+	struct Decoder {
+		lua_State *L;
+		const char *begin;
+		const char *p;
+		const char *end;
+		int maxDepth;
+		// unescaped string
+		std::string &buf;
+	};
+
+	void DecodeError(Decoder &dec, const char *msg)
+	{
+		luaL_error(dec.L, "json: %s at position %d", msg,
+			static_cast<int>(dec.p - dec.begin + 1));
+	}
+
+	inline bool IsDigit(char c)
+	{
+		return c >= '0' && c <= '9';
+	}
+
+	inline void SkipSpace(Decoder &dec)
+	{
+		while (dec.p < dec.end && (*dec.p == ' ' || *dec.p == '\n' ||
+			*dec.p == '\r' || *dec.p == '\t')) {
+			dec.p++;
+		}
+	}
+
+	void MatchLiteral(Decoder &dec, const char *literal, size_t len)
+	{
+		if (static_cast<size_t>(dec.end - dec.p) < len ||
+			std::memcmp(dec.p, literal, len) != 0) {
+			DecodeError(dec, "invalid literal");
+		}
+		dec.p += len;
+	}
+
+	unsigned ReadHex4(Decoder &dec)
+	{
+		if (dec.end - dec.p < 4) {
+			DecodeError(dec, "invalid unicode escape");
+		}
+		unsigned value = 0;
+		for (int i = 0; i < 4; i++) {
+			char c = *dec.p++;
+			value <<= 4;
+			if (IsDigit(c)) {
+				value |= c - '0';
+			}
+			else if (c >= 'a' && c <= 'f') {
+				value |= c - 'a' + 10;
+			}
+			else if (c >= 'A' && c <= 'F') {
+				value |= c - 'A' + 10;
+			}
+			else {
+				dec.p--;
+				DecodeError(dec, "invalid unicode escape");
+			}
+		}
+		return value;
+	}
+
+	void AppendUtf8(std::string &buf, unsigned cp)
+	{
+		if (cp < 0x80) {
+			buf.push_back(static_cast<char>(cp));
+		}
+		else if (cp < 0x800) {
+			buf.push_back(static_cast<char>(0xc0 | (cp >> 6)));
+			buf.push_back(static_cast<char>(0x80 | (cp & 0x3f)));
+		}
+		else if (cp < 0x10000) {
+			buf.push_back(static_cast<char>(0xe0 | (cp >> 12)));
+			buf.push_back(static_cast<char>(0x80 | ((cp >> 6) & 0x3f)));
+			buf.push_back(static_cast<char>(0x80 | (cp & 0x3f)));
+		}
+		else {
+			buf.push_back(static_cast<char>(0xf0 | (cp >> 18)));
+			buf.push_back(static_cast<char>(0x80 | ((cp >> 12) & 0x3f)));
+			buf.push_back(static_cast<char>(0x80 | ((cp >> 6) & 0x3f)));
+			buf.push_back(static_cast<char>(0x80 | (cp & 0x3f)));
+		}
+	}
+
+	inline bool IsPlainChar(char c)
+	{
+		return c != '"' && c != '\\' && static_cast<unsigned char>(c) >= 0x20;
+	}
+
+	// push string at dec.p ('"')
+	void DecodeString(Decoder &dec)
+	{
+		const char *start = ++dec.p;
+		const char *q = start;
+		while (q < dec.end && IsPlainChar(*q)) {
+			q++;
+		}
+		if (q < dec.end && *q == '"') {
+			// no escape
+			lua_pushlstring(dec.L, start, q - start);
+			dec.p = q + 1;
+			return;
+		}
+
+		std::string &buf = dec.buf;
+		buf.assign(start, q);
+		dec.p = q;
+		while (true) {
+			if (dec.p == dec.end) {
+				DecodeError(dec, "unterminated string");
+			}
+			char c = *dec.p;
+			if (c == '"') {
+				dec.p++;
+				break;
+			}
+			if (IsPlainChar(c)) {
+				const char *run = dec.p;
+				while (dec.p < dec.end && IsPlainChar(*dec.p)) {
+					dec.p++;
+				}
+				buf.append(run, dec.p);
+				continue;
+			}
+			if (c != '\\') {
+				DecodeError(dec, "control character in string");
+			}
+			if (++dec.p == dec.end) {
+				DecodeError(dec, "unterminated string");
+			}
+			switch (*dec.p++) {
+			case '"':
+				buf.push_back('"');
+				break;
+			case '\\':
+				buf.push_back('\\');
+				break;
+			case '/':
+				buf.push_back('/');
+				break;
+			case 'b':
+				buf.push_back('\b');
+				break;
+			case 'f':
+				buf.push_back('\f');
+				break;
+			case 'n':
+				buf.push_back('\n');
+				break;
+			case 'r':
+				buf.push_back('\r');
+				break;
+			case 't':
+				buf.push_back('\t');
+				break;
+			case 'u':
+			{
+				unsigned cp = ReadHex4(dec);
+				if (cp >= 0xd800 && cp < 0xdc00) {
+					// surrogate pair
+					if (dec.end - dec.p < 2 || dec.p[0] != '\\' || dec.p[1] != 'u') {
+						DecodeError(dec, "invalid surrogate pair");
+					}
+					dec.p += 2;
+					unsigned low = ReadHex4(dec);
+					if (low < 0xdc00 || low >= 0xe000) {
+						DecodeError(dec, "invalid surrogate pair");
+					}
+					cp = 0x10000 + ((cp - 0xd800) << 10) + (low - 0xdc00);
+				}
+				else if (cp >= 0xdc00 && cp < 0xe000) {
+					DecodeError(dec, "invalid surrogate pair");
+				}
+				AppendUtf8(buf, cp);
+				break;
+			}
+			default:
+				dec.p--;
+				DecodeError(dec, "invalid escape");
+			}
+		}
+		lua_pushlstring(dec.L, buf.data(), buf.size());
+	}
+
+	// push number at dec.p
+	void DecodeNumber(Decoder &dec)
+	{
+		const char *s = dec.p;
+		bool integer = true;
+		if (*dec.p == '-') {
+			dec.p++;
+		}
+		if (dec.p < dec.end && *dec.p == '0') {
+			dec.p++;
+		}
+		else if (dec.p < dec.end && IsDigit(*dec.p)) {
+			while (dec.p < dec.end && IsDigit(*dec.p)) {
+				dec.p++;
+			}
+		}
+		else {
+			DecodeError(dec, "invalid number");
+		}
+		if (dec.p < dec.end && *dec.p == '.') {
+			integer = false;
+			if (++dec.p == dec.end || !IsDigit(*dec.p)) {
+				DecodeError(dec, "invalid number");
+			}
+			while (dec.p < dec.end && IsDigit(*dec.p)) {
+				dec.p++;
+			}
+		}
+		if (dec.p < dec.end && (*dec.p == 'e' || *dec.p == 'E')) {
+			integer = false;
+			dec.p++;
+			if (dec.p < dec.end && (*dec.p == '+' || *dec.p == '-')) {
+				dec.p++;
+			}
+			if (dec.p == dec.end || !IsDigit(*dec.p)) {
+				DecodeError(dec, "invalid number");
+			}
+			while (dec.p < dec.end && IsDigit(*dec.p)) {
+				dec.p++;
+			}
+		}
+
+		size_t len = dec.p - s;
+		if (integer && len <= 18) {
+			// never overflows
+			bool neg = (*s == '-');
+			lua_Integer value = 0;
+			for (const char *q = s + (neg ? 1 : 0); q < dec.p; q++) {
+				value = value * 10 + (*q - '0');
+			}
+			lua_pushinteger(dec.L, neg ? -value : value);
+			return;
+		}
+		// lua_stringtonumber() needs '\0'
+		// an integer out of lua_Integer range becomes a float
+		char buf[64];
+		if (len >= sizeof(buf)) {
+			dec.p = s;
+			DecodeError(dec, "number too long");
+		}
+		std::memcpy(buf, s, len);
+		buf[len] = '\0';
+		if (lua_stringtonumber(dec.L, buf) == 0) {
+			dec.p = s;
+			DecodeError(dec, "invalid number");
+		}
+		if (!integer) {
+			lua_Number value = lua_tonumber(dec.L, -1);
+			lua_pop(dec.L, 1);
+			lua_pushnumber(dec.L, value);
+		}
+	}
+
+	void DecodeValue(Decoder &dec, int depth);
+
+	void DecodeArray(Decoder &dec, int depth)
+	{
+		lua_State *L = dec.L;
+		if (depth > dec.maxDepth) {
+			DecodeError(dec, "nesting too deep");
+		}
+		luaL_checkstack(L, 3, "json: nesting too deep");
+		dec.p++;
+		lua_newtable(L);
+		SkipSpace(dec);
+		if (dec.p < dec.end && *dec.p == ']') {
+			dec.p++;
+			return;
+		}
+		for (lua_Integer i = 1; ; i++) {
+			DecodeValue(dec, depth);
+			lua_rawseti(L, -2, i);
+			SkipSpace(dec);
+			if (dec.p < dec.end && *dec.p == ',') {
+				dec.p++;
+				continue;
+			}
+			if (dec.p < dec.end && *dec.p == ']') {
+				dec.p++;
+				return;
+			}
+			DecodeError(dec, "',' or ']' expected");
+		}
+	}
+
+	void DecodeObject(Decoder &dec, int depth)
+	{
+		lua_State *L = dec.L;
+		if (depth > dec.maxDepth) {
+			DecodeError(dec, "nesting too deep");
+		}
+		luaL_checkstack(L, 3, "json: nesting too deep");
+		dec.p++;
+		lua_newtable(L);
+		SkipSpace(dec);
+		if (dec.p < dec.end && *dec.p == '}') {
+			dec.p++;
+			return;
+		}
+		while (true) {
+			SkipSpace(dec);
+			if (dec.p == dec.end || *dec.p != '"') {
+				DecodeError(dec, "string key expected");
+			}
+			DecodeString(dec);
+			SkipSpace(dec);
+			if (dec.p == dec.end || *dec.p != ':') {
+				DecodeError(dec, "':' expected");
+			}
+			dec.p++;
+			DecodeValue(dec, depth);
+			// the last one wins
+			lua_rawset(L, -3);
+			SkipSpace(dec);
+			if (dec.p < dec.end && *dec.p == ',') {
+				dec.p++;
+				continue;
+			}
+			if (dec.p < dec.end && *dec.p == '}') {
+				dec.p++;
+				return;
+			}
+			DecodeError(dec, "',' or '}' expected");
+		}
+	}
+
+	void DecodeValue(Decoder &dec, int depth)
+	{
+		SkipSpace(dec);
+		if (dec.p == dec.end) {
+			DecodeError(dec, "unexpected end");
+		}
+		switch (*dec.p) {
+		case '{':
+			DecodeObject(dec, depth + 1);
+			break;
+		case '[':
+			DecodeArray(dec, depth + 1);
+			break;
+		case '"':
+			DecodeString(dec);
+			break;
+		case 't':
+			MatchLiteral(dec, "true", 4);
+			lua_pushboolean(dec.L, 1);
+			break;
+		case 'f':
+			MatchLiteral(dec, "false", 5);
+			lua_pushboolean(dec.L, 0);
+			break;
+		case 'n':
+			MatchLiteral(dec, "null", 4);
+			lua_pushlightuserdata(dec.L, nullptr);
+			break;
+		default:
+			if (*dec.p != '-' && !IsDigit(*dec.p)) {
+				DecodeError(dec, "unexpected character");
+			}
+			DecodeNumber(dec);
+			break;
+		}
+	}
+
+	// json.decode(string [, maxdepth])
+	int Decode(lua_State *L)
+	{
+		size_t len = 0;
+		const char *s = luaL_checklstring(L, 1, &len);
+		lua_Integer maxDepth = luaL_optinteger(L, 2, DefaultMaxDepth);
+		// recursion uses the C stack
+		luaL_argcheck(L, maxDepth >= 0 && maxDepth <= MaxDepthLimit, 2,
+			"out of range");
+		lua_settop(L, 1);
+
+		std::string &buf = DecodeBuffer;
+		ReleaseLarge(buf);
+		Decoder dec = { L, s, s, s + len, static_cast<int>(maxDepth), buf };
+		DecodeValue(dec, 0);
+		SkipSpace(dec);
+		if (dec.p != dec.end) {
+			DecodeError(dec, "garbage after value");
+		}
+		ReleaseLarge(buf);
+		return 1;
+	}
+
+	const luaL_Reg JsonFuncs[] = {
+		{"encode", Encode},
+		{"decode", Decode},
+		// placeholder
+		{"null", nullptr},
+		{nullptr, nullptr}
+	};
+
+}
+
+int luaopen_json(lua_State *L)
+{
+	luaL_newlib(L, JsonFuncs);
+	lua_pushlightuserdata(L, nullptr);
+	lua_setfield(L, -2, "null");
+	return 1;
+}
@@ -0,0 +1,27 @@
+#pragma once
+
+#include <lua.h>
+
+#define LUA_JSONLIBNAME "json"
+
+/*
+ * JSON library.
+ *
+ * json.encode(value [, maxdepth]) -> string
+ * json.decode(string [, maxdepth]) -> value
+ * json.null: lightuserdata NULL, decoded from and encoded to null
+ *
+ * decode() builds Lua tables directly without an intermediate tree.
+ * Numbers without fraction and exponent are decoded as integers if they
+ * fit in lua_Integer, and integers are encoded without fraction, so
+ * integers are preserved in a round trip. Floats are encoded with ".0"
+ * if they look like integers.
+ *
+ * A table is encoded as an array if its keys are exactly 1..n (n > 0),
+ * otherwise as an object with string or number keys. Metamethods are not
+ * called. Nesting deeper than maxdepth (default and at most 1000) is an
+ * error, and this also stops cyclic tables.
+ *
+ * Work buffers are reused by later calls in the same thread.
+ */
+int luaopen_json(lua_State *L);
@@ -2,9 +2,25 @@
 #include <lua.h>
 #include <lualib.h>
 #include <lauxlib.h>
+// internal header for GC debt
+#include <lstate.h>
 #include <array>
+#include <cstdlib>
+#include <cstring>
+#include <limits>
 #include <memory>
+#include <string>
+#include <tuple>
+#include <utility>
+#include <vector>
+#include "bytes_lib.h"
 #include "jniutil.h"
+#include "json_lib.h"
+#include "memory_budget.h"
+#include "numarray_lib.h"
+#include "slab_allocator.h"
+#include "state_clone.h"
+#include "strbuf_lib.h"
 
 /* Lua - Java type assert */
 static_assert(sizeof(lua_Number) == sizeof(jdouble), "lua_Number");
@@ -13,6 +29,36 @@ static_assert(sizeof(lua_Integer) == sizeof(jlong), "lua_Integer");
 /* Lua C define - Java constant assert */
 static_assert(LUA_MULTRET == io_github_yappy_lua_LuaEngine_LUA_MULTRET,
 	"LUA_MULTRET");
+static_assert(LUA_GCSTOP == io_github_yappy_lua_LuaEngine_LUA_GCSTOP,
+	"LUA_GCSTOP");
+static_assert(LUA_GCRESTART == io_github_yappy_lua_LuaEngine_LUA_GCRESTART,
+	"LUA_GCRESTART");
+static_assert(LUA_GCCOLLECT == io_github_yappy_lua_LuaEngine_LUA_GCCOLLECT,
+	"LUA_GCCOLLECT");
+static_assert(LUA_GCCOUNT == io_github_yappy_lua_LuaEngine_LUA_GCCOUNT,
+	"LUA_GCCOUNT");
+static_assert(LUA_GCCOUNTB == io_github_yappy_lua_LuaEngine_LUA_GCCOUNTB,
+	"LUA_GCCOUNTB");
+static_assert(LUA_GCSTEP == io_github_yappy_lua_LuaEngine_LUA_GCSTEP,
+	"LUA_GCSTEP");
+static_assert(LUA_GCSETPAUSE == io_github_yappy_lua_LuaEngine_LUA_GCSETPAUSE,
+	"LUA_GCSETPAUSE");
+static_assert(LUA_GCSETSTEPMUL == io_github_yappy_lua_LuaEngine_LUA_GCSETSTEPMUL,
+	"LUA_GCSETSTEPMUL");
+static_assert(LUA_GCISRUNNING == io_github_yappy_lua_LuaEngine_LUA_GCISRUNNING,
+	"LUA_GCISRUNNING");
+static_assert(io_github_yappy_lua_LuaEngine_STAT_ARRAY_SIZE == 9,
+	"STAT_ARRAY_SIZE");
+static_assert(io_github_yappy_lua_LuaEngine_PEER_FLAG_SLAB_ALLOCATOR == 1,
+	"PEER_FLAG_SLAB_ALLOCATOR");
+static_assert(io_github_yappy_lua_LuaEngine_BUDGET_ARRAY_SIZE == 3,
+	"BUDGET_ARRAY_SIZE");
+static_assert(io_github_yappy_lua_LuaEngine_PROXY_RET_YIELD < 0,
+	"PROXY_RET_YIELD");
+static_assert(io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_DOUBLE ==
+	NumArrayDouble, "NUMARRAY_TYPE_DOUBLE");
+static_assert(io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_INT64 ==
+	NumArrayInt64, "NUMARRAY_TYPE_INT64");
 
 namespace {
 
@@ -25,7 +71,7 @@ namespace {
 	static_assert(VersionStrList.size() ==
 		io_github_yappy_lua_LuaEngine_VERSION_ARRAY_SIZE, "VERSION_ARRAY_SIZE");
 
-	const std::array<luaL_Reg, 10> LoadLibs = {{
+	const std::array<luaL_Reg, 14> LoadLibs = {{
 		{"_G", luaopen_base},
 		{LUA_LOADLIBNAME, luaopen_package},
 		{LUA_COLIBNAME, luaopen_coroutine},
@@ -35,24 +81,66 @@ namespace {
 		{LUA_STRLIBNAME, luaopen_string},
 		{LUA_MATHLIBNAME, luaopen_math},
 		{LUA_UTF8LIBNAME, luaopen_utf8},
-		{LUA_DBLIBNAME, luaopen_debug}
+		{LUA_DBLIBNAME, luaopen_debug},
+		{LUA_JSONLIBNAME, luaopen_json},
+		{LUA_STRBUFLIBNAME, luaopen_strbuf},
+		{LUA_NUMARRAYLIBNAME, luaopen_numarray},
+		{LUA_BYTESLIBNAME, luaopen_bytes}
 	}};
 	static_assert(LoadLibs.size() == io_github_yappy_lua_LuaEngine_LIB_ID_COUNT,
 		"LIB_ID_COUNT");
 
-	/*
-	 * Lua panic means that longjmp/throw destination does not exist.
-	 * It is not expected by this module.
-	 * So shutdown the JVM with FatalError.
-	 */
-	JNIEnv *env_for_panic = nullptr;
-	int panic_handler(lua_State *) {
-		if (env_for_panic != nullptr) {
-			// never return
-			env_for_panic->FatalError("unprotected error in lua");
+	// registry key for GC cycle sentinel metatable
+	const char *const GcSentinelMeta = "ajlua.gcsentinel";
+	// registry key for checkpoint {copies, metatables, string metatable}
+	const char *const CheckpointKey = "ajlua.checkpoint";
+	const int CheckpointIndCopies = 1;
+	const int CheckpointIndMetas = 2;
+	const int CheckpointIndStringMeta = 3;
+
+	// registry key for contexts table
+	// contexts[ref] = {thread, env}, contexts.meta = {__index = _G}
+	// (env is nil for a coroutine which uses _G)
+	const char *const ContextsKey = "ajlua.contexts";
+	const char *const ContextsFieldMeta = "meta";
+	const int ContextIndThread = 1;
+	const int ContextIndEnv = 2;
+
+	// registry key for compiled chunks table (light userdata of the address)
+	// chunks[id] = function (kept by reset like contexts)
+	// lua_rawgetp() never allocates, so pushChunk needs no pcall
+	const char ChunksKey[] = "ajlua.chunks";
+
+	// push contexts[ref]
+	int PushContext(lua_State *L, int ref)
+	{
+		if (lua_getfield(L, LUA_REGISTRYINDEX, ContextsKey) != LUA_TTABLE) {
+			lua_pop(L, 1);
+			lua_pushnil(L);
+			return LUA_TNIL;
 		}
-		// call abort()
-		return 0;
+		int type = lua_rawgeti(L, -1, ref);
+		lua_remove(L, -2);
+		return type;
+	}
+
+	// enqueue value at index if it is a table not seen yet
+	// seen: copies table (value = true until copied)
+	void EnqueueTable(lua_State *L, int index, int seen, int queue, int *tail)
+	{
+		if (lua_type(L, index) != LUA_TTABLE) {
+			return;
+		}
+		index = lua_absindex(L, index);
+		lua_pushvalue(L, index);
+		if (lua_rawget(L, seen) == LUA_TNIL) {
+			lua_pushvalue(L, index);
+			lua_pushboolean(L, 1);
+			lua_rawset(L, seen);
+			lua_pushvalue(L, index);
+			lua_rawseti(L, queue, ++*tail);
+		}
+		lua_pop(L, 1);
 	}
 
 	class Lua {
@@ -62,16 +150,33 @@ namespace {
 
 		Lua(JNIEnv *env) :
 			m_env(env),
-			m_hook(nullptr, jniutil::GlobalRefDeleter(env)),
-			m_print(nullptr, jniutil::GlobalRefDeleter(env)),
-			m_callback(nullptr, jniutil::GlobalRefDeleter(env))
+			m_hook(nullptr),
+			m_print(nullptr),
+			m_callback(nullptr)
 		{}
-		~Lua() = default;
+		~Lua()
+		{
+			// lua_close() calls all pending finalizers
+			// don't create a new sentinel in it
+			m_closing = true;
+			// lua_close() before the allocator is destroyed
+			m_lua.reset();
+		}
 
-		bool Initialize(size_t memoryLimit)
+		bool Initialize(size_t memoryLimit, bool useSlab, MemoryBudget *budget)
 		{
 			// custom allocator param
 			m_memoryLimit = memoryLimit;
+			if (budget != nullptr) {
+				budget->AddRef();
+				m_budget.reset(budget);
+			}
+			if (useSlab) {
+				m_slab.reset(new(std::nothrow) SlabAllocator());
+				if (m_slab == nullptr) {
+					return false;
+				}
+			}
 			// initialize with custom allocator
 			m_lua.reset(lua_newstate(Alloc, this));
 			if (m_lua == nullptr) {
@@ -79,8 +184,7 @@ namespace {
 			}
 
 			// set panic handler
-			env_for_panic = m_env;
-			lua_atpanic(m_lua.get(), panic_handler);
+			lua_atpanic(m_lua.get(), Panic);
 
 			// set this at extraspace
 			void *extra = lua_getextraspace(m_lua.get());
@@ -89,11 +193,55 @@ namespace {
 			return true;
 		}
 
+		// current context thread or main thread
 		lua_State *L()
+		{
+			return (m_current != nullptr) ? m_current : m_lua.get();
+		}
+
+		/*
+		 * peer -> Lua with JNIEnv of the current thread.
+		 * An engine can be used from any thread (one at a time),
+		 * so every JNI entry point must call this.
+		 */
+		static Lua *FromPeer(JNIEnv *env, jlong peer)
+		{
+			auto lua = reinterpret_cast<Lua *>(peer);
+			lua->m_env = env;
+			return lua;
+		}
+
+		lua_State *MainThread()
 		{
 			return m_lua.get();
 		}
 
+		int GetContext()
+		{
+			return m_context;
+		}
+
+		// switch L() to the context thread (nullptr: main thread)
+		// the previous one (it might be a calling coroutine) is saved
+		void SetContext(int ref, lua_State *th)
+		{
+			m_savedContexts.emplace_back(m_context, m_current);
+			m_context = ref;
+			m_current = th;
+		}
+
+		// undo the last SetContext()
+		bool RestoreContext()
+		{
+			if (m_savedContexts.empty()) {
+				return false;
+			}
+			m_context = m_savedContexts.back().first;
+			m_current = m_savedContexts.back().second;
+			m_savedContexts.pop_back();
+			return true;
+		}
+
 		void SetDebugHook(jobject hook)
 		{
 			// Create global ref to hook
@@ -110,10 +258,18 @@ namespace {
 		{
 			Lua *lua = FromExtraSpace(L);
 
+			// shared budget is over soft limit
+			if (lua->m_gcRequested) {
+				lua->m_gcRequested = false;
+				lua->m_budget->CountEmergencyGc();
+				lua_gc(L, LUA_GCCOLLECT, 0);
+			}
+
 			// Java interface call
+			// returns true if the time slice is over
 			jmethodID method = jniutil::GetMethodId(
 				jniutil::MethodId::DebugHook_hook);
-			lua->m_env->CallVoidMethod(
+			jboolean yield = lua->m_env->CallBooleanMethod(
 				lua->m_hook.get(), method, ar->event, ar->currentline);
 
 			// LuaAbortException, RuntimeException, Error
@@ -121,6 +277,13 @@ namespace {
 				// jump to pcall point
 				lua_error(L);
 			}
+
+			// preempt the coroutine resumed by resume()
+			// (only count and line hooks can yield)
+			if (yield && L == lua->m_asyncThread && lua_isyieldable(L) &&
+				(ar->event == LUA_HOOKCOUNT || ar->event == LUA_HOOKLINE)) {
+				lua_yield(L, 0);
+			}
 		}
 
 		void SetPrintFunction(jobject print)
@@ -217,6 +380,24 @@ namespace {
 			m_callback.reset(global);
 		}
 
+		// L() is the calling thread during a proxy function call
+		// (it might be a coroutine)
+		class CallingThread {
+		public:
+			CallingThread(Lua *lua, lua_State *L) :
+				m_lua(lua), m_prev(lua->m_current)
+			{
+				lua->m_current = (L == lua->m_lua.get()) ? nullptr : L;
+			}
+			~CallingThread()
+			{
+				m_lua->m_current = m_prev;
+			}
+		private:
+			Lua *m_lua;
+			lua_State *m_prev;
+		};
+
 		static int ProxyFunction(lua_State *L)
 		{
 			// get from extraspace
@@ -225,6 +406,8 @@ namespace {
 			// get from upvalue
 			auto id = static_cast<jint>(
 				lua_tointeger(L, lua_upvalueindex(PROXY_UPVALUE_IND_ID)));
+			// restored by destructor (also on lua_error)
+			CallingThread calling(lua, L);
 
 			// Java interface call: FunctionRoot#call()
 			jmethodID method = jniutil::GetMethodId(
@@ -235,9 +418,19 @@ namespace {
 			jthrowable ex = env->ExceptionOccurred();
 			if (ex == nullptr) {
 				// no exception
+				if (ret == io_github_yappy_lua_LuaEngine_PROXY_RET_YIELD) {
+					// LuaAsyncFunction is pending
+					// resumed with (true, results...) or (false, msg)
+					return lua_yieldk(L, 0, 0, AsyncContinue);
+				}
 				return ret;
 			}
+			return RaiseException(L, env, ex);
+		}
 
+		// convert the pending Java exception ex to lua error
+		static int RaiseException(lua_State *L, JNIEnv *env, jthrowable ex)
+		{
 			// exception occured!
 			env->ExceptionClear();
 
@@ -276,11 +469,188 @@ namespace {
 			}
 		}
 
+		void SetSink(jobject buffer, jobject callback)
+		{
+			if (buffer == nullptr) {
+				m_sinkBuffer.reset();
+				m_sink.reset();
+				m_sinkData = nullptr;
+				m_sinkCapacity = 0;
+				DiscardSink();
+				return;
+			}
+			auto data = static_cast<char *>(
+				m_env->GetDirectBufferAddress(buffer));
+			jlong capacity = m_env->GetDirectBufferCapacity(buffer);
+			if (data == nullptr || capacity < 0) {
+				jniutil::ThrowIllegalArgumentException(m_env,
+					"not a direct buffer");
+				return;
+			}
+			// the buffer memory is valid while the global ref is alive
+			jobject globalBuffer = m_env->NewGlobalRef(buffer);
+			jobject globalCallback = m_env->NewGlobalRef(callback);
+			if (globalBuffer == nullptr || globalCallback == nullptr) {
+				jniutil::ThrowOutOfMemoryError(m_env, "NewGlobalRef");
+				return;
+			}
+			m_sinkBuffer.reset(globalBuffer);
+			m_sink.reset(globalCallback);
+			m_sinkData = data;
+			m_sinkCapacity = static_cast<size_t>(capacity);
+			DiscardSink();
+		}
+
+		// call SinkFlush#flush() if rows are buffered
+		// a Java exception might be pending at return
+		void FlushSink()
+		{
+			if (m_sinkRows == 0) {
+				return;
+			}
+			jint length = static_cast<jint>(m_sinkLength);
+			jint rows = m_sinkRows;
+			// reset first; flush() might emit again
+			DiscardSink();
+			jmethodID method = jniutil::GetMethodId(
+				jniutil::MethodId::SinkFlush_flush);
+			m_env->CallVoidMethod(m_sink.get(), method, length, rows);
+		}
+
+		void DiscardSink()
+		{
+			m_sinkLength = 0;
+			m_sinkRows = 0;
+		}
+
+		// emit(...): append a row to the sink buffer
+		static int Emit(lua_State *L)
+		{
+			Lua *lua = FromExtraSpace(L);
+			JNIEnv *env = lua->m_env;
+			if (lua->m_sink == nullptr) {
+				return luaL_error(L, "sink is not set");
+			}
+
+			// row: int32 count, values...
+			// value: int8 type, payload (see LuaSink)
+			int n = lua_gettop(L);
+			size_t size = sizeof(jint);
+			for (int i = 1; i <= n; i++) {
+				size += 1;
+				switch (lua_type(L, i)) {
+				case LUA_TNIL:
+					break;
+				case LUA_TBOOLEAN:
+					size += 1;
+					break;
+				case LUA_TNUMBER:
+					size += sizeof(jlong);
+					break;
+				case LUA_TSTRING:
+					size += sizeof(jint) + lua_rawlen(L, i);
+					break;
+				default:
+					return luaL_argerror(L, i,
+						"nil, boolean, number or string expected");
+				}
+			}
+			if (size > lua->m_sinkCapacity) {
+				return luaL_error(L, "row is larger than the sink buffer");
+			}
+			if (lua->m_sinkLength + size > lua->m_sinkCapacity) {
+				// restored by destructor (also on lua_error)
+				CallingThread calling(lua, L);
+				lua->FlushSink();
+				jthrowable ex = env->ExceptionOccurred();
+				if (ex != nullptr) {
+					return RaiseException(L, env, ex);
+				}
+			}
+
+			char *p = lua->m_sinkData + lua->m_sinkLength;
+			jint count = n;
+			std::memcpy(p, &count, sizeof(count));
+			p += sizeof(count);
+			for (int i = 1; i <= n; i++) {
+				switch (lua_type(L, i)) {
+				case LUA_TNIL:
+					*p++ = io_github_yappy_lua_LuaEngine_SINK_TYPE_NIL;
+					break;
+				case LUA_TBOOLEAN:
+					*p++ = io_github_yappy_lua_LuaEngine_SINK_TYPE_BOOLEAN;
+					*p++ = lua_toboolean(L, i) ? 1 : 0;
+					break;
+				case LUA_TNUMBER:
+					if (lua_isinteger(L, i)) {
+						jlong value = lua_tointeger(L, i);
+						*p++ = io_github_yappy_lua_LuaEngine_SINK_TYPE_INTEGER;
+						std::memcpy(p, &value, sizeof(value));
+					}
+					else {
+						jdouble value = lua_tonumber(L, i);
+						*p++ = io_github_yappy_lua_LuaEngine_SINK_TYPE_NUMBER;
+						std::memcpy(p, &value, sizeof(value));
+					}
+					p += sizeof(jlong);
+					break;
+				case LUA_TSTRING:
+				{
+					size_t len = 0;
+					const char *str = lua_tolstring(L, i, &len);
+					jint jlen = static_cast<jint>(len);
+					*p++ = io_github_yappy_lua_LuaEngine_SINK_TYPE_STRING;
+					std::memcpy(p, &jlen, sizeof(jlen));
+					p += sizeof(jlen);
+					std::memcpy(p, str, len);
+					p += len;
+					break;
+				}
+				}
+			}
+			lua->m_sinkLength += size;
+			lua->m_sinkRows++;
+			return 0;
+		}
+
+		static int AsyncContinue(lua_State *L, int, lua_KContext)
+		{
+			if (!lua_toboolean(L, 1)) {
+				// error message at 2
+				lua_settop(L, 2);
+				return lua_error(L);
+			}
+			lua_remove(L, 1);
+			return lua_gettop(L);
+		}
+
+		// the coroutine resumed by Java can yield in proxy functions
+		bool CanYieldAsync()
+		{
+			lua_State *L = this->L();
+			return L == m_asyncThread && lua_isyieldable(L);
+		}
+
+		int Resume(int nargs)
+		{
+			lua_State *L = this->L();
+			lua_State *prev = m_asyncThread;
+			m_asyncThread = L;
+			int ret = lua_resume(L, nullptr, nargs);
+			m_asyncThread = prev;
+			return ret;
+		}
+
 		void SetOriginalPcall(lua_CFunction pcall)
 		{
 			m_pcall = pcall;
 		}
 
+		lua_CFunction GetOriginalPcall()
+		{
+			return m_pcall;
+		}
+
 		static int Pcall(lua_State *L)
 		{
 			Lua *lua = FromExtraSpace(L);
@@ -300,6 +670,79 @@ namespace {
 			return *static_cast<Lua **>(lua_getextraspace(L));
 		}
 
+		/*
+		 * Lua panic means that longjmp/throw destination does not exist.
+		 * It is not expected by this module.
+		 * So shutdown the JVM with FatalError.
+		 */
+		static int Panic(lua_State *L)
+		{
+			JNIEnv *env = FromExtraSpace(L)->m_env;
+			if (env != nullptr) {
+				// never return
+				env->FatalError("unprotected error in lua");
+			}
+			// call abort()
+			return 0;
+		}
+
+		/*
+		 * GC cycle counter.
+		 * An unreachable userdata with __gc metamethod is finalized
+		 * at the end of every GC cycle.
+		 * Its finalizer counts up and creates the next one.
+		 */
+		// might longjmp() or throw C++ exception
+		static void NewGcSentinel(lua_State *L)
+		{
+			lua_newuserdata(L, 0);
+			if (luaL_newmetatable(L, GcSentinelMeta)) {
+				lua_pushcfunction(L, GcSentinel);
+				lua_setfield(L, -2, "__gc");
+			}
+			lua_setmetatable(L, -2);
+			// make it garbage
+			lua_pop(L, 1);
+		}
+
+		static int GcSentinel(lua_State *L)
+		{
+			Lua *lua = FromExtraSpace(L);
+			lua->m_gcCycles++;
+			if (!lua->m_closing) {
+				NewGcSentinel(L);
+			}
+			return 0;
+		}
+
+		/*
+		 * Allocation statistics.
+		 * Updated by Alloc() only.
+		 */
+		struct MemoryStats {
+			size_t used = 0;
+			size_t peak = 0;
+			uint64_t allocCount = 0;
+			uint64_t freeCount = 0;
+			uint64_t reallocCount = 0;
+			uint64_t rejectCount = 0;
+		};
+
+		const MemoryStats &GetMemoryStats()
+		{
+			return m_memoryStats;
+		}
+
+		void ResetMemoryPeak()
+		{
+			m_memoryStats.peak = m_memoryStats.used;
+		}
+
+		uint64_t GetGcCycles()
+		{
+			return m_gcCycles;
+		}
+
 	private:
 		struct LuaDeleter {
 			void operator()(lua_State *L)
@@ -311,43 +754,128 @@ namespace {
 
 		JNIEnv *m_env;
 		size_t m_memoryLimit;
-		lua_CFunction m_pcall;
+		MemoryStats m_memoryStats;
+		// nullptr if malloc is used
+		std::unique_ptr<SlabAllocator> m_slab;
+		struct BudgetReleaser {
+			void operator()(MemoryBudget *budget)
+			{
+				budget->Release();
+			}
+		};
+		// shared budget (nullptr if not used)
+		std::unique_ptr<MemoryBudget, BudgetReleaser> m_budget;
+		// full GC is requested by the budget soft limit
+		bool m_gcRequested = false;
+
+		// return false if refused by the shared budget
+		bool ReserveBudget(size_t size)
+		{
+			if (m_budget->Reserve(size, false)) {
+				return true;
+			}
+			// lauxlib calls lua_Alloc directly without emergency GC,
+			// so allow up to hard limit and collect at the next hook
+			if (m_budget->Reserve(size, true)) {
+				m_gcRequested = true;
+				return true;
+			}
+			// Lua runs emergency GC and retries if possible
+			m_budget->CountReject();
+			return false;
+		}
+
+		void UnreserveBudget(size_t size)
+		{
+			if (m_budget != nullptr && size != 0) {
+				m_budget->Unreserve(size);
+			}
+		}
+		uint64_t m_gcCycles = 0;
+		bool m_closing = false;
+		// current context (registry ref) and its thread
+		int m_context = 0;
+		lua_State *m_current = nullptr;
+		std::vector<std::pair<int, lua_State *>> m_savedContexts;
+		// coroutine resumed by resume()
+		lua_State *m_asyncThread = nullptr;
+		lua_CFunction m_pcall = nullptr;
 		jniutil::GlobalRef m_hook;
 		jniutil::GlobalRef m_print;
 		jniutil::GlobalRef m_callback;
+		// emit() buffer (a direct ByteBuffer) and SinkFlush
+		jniutil::GlobalRef m_sinkBuffer;
+		jniutil::GlobalRef m_sink;
+		char *m_sinkData = nullptr;
+		size_t m_sinkCapacity = 0;
+		size_t m_sinkLength = 0;
+		jint m_sinkRows = 0;
 
 		static void *Alloc(void *ud, void *ptr, size_t osize, size_t nsize)
 		{
 			auto lua = static_cast<Lua *>(ud);
+			MemoryStats &stats = lua->m_memoryStats;
 			if (nsize == 0) {
 				// free oldsize
-				lua->m_memoryLimit += osize;
-				std::free(ptr);
-				return nullptr;
-			}
-			else {
-				if (ptr == nullptr) {
-					// malloc newsize
-					if (lua->m_memoryLimit < nsize) {
-						return nullptr;
-					}
-					lua->m_memoryLimit -= nsize;
-					return std::malloc(nsize);
-				}
-				else {
-					// realloc oldsize -> newsize
-					if (nsize > osize) {
-						if (lua->m_memoryLimit < nsize - osize) {
-							return nullptr;
-						}
-						lua->m_memoryLimit -= nsize - osize;
+				if (ptr != nullptr) {
+					stats.used -= osize;
+					stats.freeCount++;
+					lua->UnreserveBudget(osize);
+					if (lua->m_slab != nullptr) {
+						lua->m_slab->Free(ptr, osize);
 					}
 					else {
-						lua->m_memoryLimit += osize - nsize;
+						std::free(ptr);
 					}
-					return std::realloc(ptr, nsize);
 				}
+				return nullptr;
+			}
+
+			// if ptr == nullptr, osize is object type (not size)
+			size_t oldsize = (ptr != nullptr) ? osize : 0;
+			if (nsize > oldsize &&
+				stats.used + (nsize - oldsize) > lua->m_memoryLimit) {
+				stats.rejectCount++;
+				return nullptr;
+			}
+			size_t reserved = 0;
+			if (nsize > oldsize && lua->m_budget != nullptr) {
+				if (!lua->ReserveBudget(nsize - oldsize)) {
+					stats.rejectCount++;
+					return nullptr;
+				}
+				reserved = nsize - oldsize;
+			}
+			void *p;
+			if (ptr == nullptr) {
+				// malloc newsize
+				p = (lua->m_slab != nullptr) ?
+					lua->m_slab->Allocate(nsize) : std::malloc(nsize);
+				if (p == nullptr) {
+					lua->UnreserveBudget(reserved);
+					return nullptr;
+				}
+				stats.allocCount++;
+			}
+			else {
+				// realloc oldsize -> newsize
+				p = (lua->m_slab != nullptr) ?
+					lua->m_slab->Reallocate(ptr, osize, nsize) :
+					std::realloc(ptr, nsize);
+				if (p == nullptr) {
+					lua->UnreserveBudget(reserved);
+					return nullptr;
+				}
+				stats.reallocCount++;
+			}
+			if (nsize < oldsize) {
+				lua->UnreserveBudget(oldsize - nsize);
+			}
+			stats.used = stats.used - oldsize + nsize;
+			if (stats.used > stats.peak) {
+				stats.peak = stats.used;
 			}
+			return p;
 		}
 	};
 
@@ -362,6 +890,90 @@ namespace {
 		return lua_checkstack(L, n);
 	}
 
+	// push _G or the environment of the current context
+	void PushGlobalTable(lua_State *L)
+	{
+		int ref = Lua::FromExtraSpace(L)->GetContext();
+		if (ref == 0) {
+			lua_rawgeti(L, LUA_REGISTRYINDEX, LUA_RIDX_GLOBALS);
+			return;
+		}
+		PushContext(L, ref);
+		if (lua_rawgeti(L, -1, ContextIndEnv) == LUA_TNIL) {
+			lua_pop(L, 1);
+			lua_rawgeti(L, LUA_REGISTRYINDEX, LUA_RIDX_GLOBALS);
+		}
+		lua_remove(L, -2);
+	}
+
+	// set _ENV of the loaded main chunk to the current context
+	// return LUA_ERRMEM with a message instead of the chunk on error
+	int SetChunkEnv(Lua *lua, lua_State *L)
+	{
+		if (lua->GetContext() == 0) {
+			return LUA_OK;
+		}
+		// main chunk has only _ENV upvalue
+		if (!HasFreeStack(L, 2)) {
+			lua_pop(L, 1);
+			lua_pushliteral(L, "stack overflow");
+			return LUA_ERRMEM;
+		}
+		PushContext(L, lua->GetContext());
+		if (lua_rawgeti(L, -1, ContextIndEnv) != LUA_TNIL) {
+			lua_setupvalue(L, -3, 1);
+		}
+		else {
+			lua_pop(L, 1);
+		}
+		lua_pop(L, 1);
+		return LUA_OK;
+	}
+
+	// bytes view release
+	void ReleaseBuffer(void *ctx)
+	{
+		jniutil::GlobalRefDeleter()(static_cast<jobject>(ctx));
+	}
+
+	// direct ByteBuffer -> bytes view of [position, limit)
+	// might longjmp() or throw C++ exception
+	void pushJavaBuffer(lua_State *L, JNIEnv *env, jobject jbuf)
+	{
+		auto data = static_cast<char *>(env->GetDirectBufferAddress(jbuf));
+		jlong capacity = env->GetDirectBufferCapacity(jbuf);
+		if (capacity < 0 || (data == nullptr && capacity != 0)) {
+			jniutil::ThrowIllegalArgumentException(env, "not a direct buffer");
+			return;
+		}
+		jint position = env->CallIntMethod(jbuf,
+			jniutil::GetMethodId(jniutil::MethodId::ByteBuffer_position));
+		jint limit = env->CallIntMethod(jbuf,
+			jniutil::GetMethodId(jniutil::MethodId::ByteBuffer_limit));
+		jboolean readonly = env->CallBooleanMethod(jbuf,
+			jniutil::GetMethodId(jniutil::MethodId::ByteBuffer_isReadOnly));
+		if (env->ExceptionCheck()) {
+			return;
+		}
+		// the global ref would leak without __gc of the view
+		if (!IsBytesOpen(L)) {
+			jniutil::ThrowIllegalArgumentException(env,
+				"bytes library is not open");
+			return;
+		}
+		// the buffer memory is valid while the global ref is alive
+		// (deleted here if PushBytes() raises an error)
+		jniutil::GlobalRef global(env->NewGlobalRef(jbuf));
+		if (global == nullptr) {
+			jniutil::ThrowOutOfMemoryError(env, "NewGlobalRef");
+			return;
+		}
+		PushBytes(L, data + position, static_cast<size_t>(limit - position),
+			readonly != JNI_FALSE, ReleaseBuffer, global.get());
+		// owned by the view
+		global.release();
+	}
+
 	// might longjmp() or throw C++ exception
 	// BUG: lua stack check
 	void pushJavaValue(lua_State *L, JNIEnv *env, jobject jobj)
@@ -376,6 +988,7 @@ namespace {
 		jclass clsBoolean = jniutil::FindClass(jniutil::ClassId::Boolean);
 		jclass clsNumber = jniutil::FindClass(jniutil::ClassId::Number);
 		jclass clsString = jniutil::FindClass(jniutil::ClassId::String);
+		jclass clsByteBuffer = jniutil::FindClass(jniutil::ClassId::ByteBuffer);
 
 		if (jobj == nullptr) {
 			lua_pushnil(L);
@@ -419,67 +1032,1210 @@ namespace {
 				lua_pushnil(L);
 			}
 		}
+		else if (env->IsInstanceOf(jobj, clsByteBuffer)) {
+			pushJavaBuffer(L, env, jobj);
+		}
 		else {
 			jniutil::ThrowIllegalArgumentException(env, "Invalid type");
 		}
 	}
 
-}
+	// nil, boolean, number and string (others are null as getStackAll())
+	// return nullptr with a pending exception on error
+	jobject ToJavaValue(lua_State *L, JNIEnv *env, int index)
+	{
+		switch (lua_type(L, index)) {
+		case LUA_TBOOLEAN:
+			return jniutil::BoxingBoolean(env,
+				static_cast<jboolean>(lua_toboolean(L, index)));
+		case LUA_TNUMBER:
+			return jniutil::BoxingDouble(env, lua_tonumber(L, index));
+		case LUA_TSTRING:
+			return env->NewStringUTF(lua_tostring(L, index));
+		default:
+			return nullptr;
+		}
+	}
 
-/*
- * Export Functions
- */
-#ifdef __cplusplus
-extern "C" {
-#endif
+	// double[], long[], boolean[] or String[] column of callBatchColumns()
+	// primitive elements are fetched once and released by the destructor
+	class BatchColumn {
+	public:
+		BatchColumn(JNIEnv *env, jarray array, int type, bool output) :
+			m_env(env), m_array(array), m_type(type), m_output(output),
+			m_elems(nullptr)
+		{
+			switch (m_type) {
+			case io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE:
+				m_elems = env->GetDoubleArrayElements(
+					static_cast<jdoubleArray>(array), nullptr);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_LONG:
+				m_elems = env->GetLongArrayElements(
+					static_cast<jlongArray>(array), nullptr);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN:
+				m_elems = env->GetBooleanArrayElements(
+					static_cast<jbooleanArray>(array), nullptr);
+				break;
+			default:
+				break;
+			}
+		}
+		~BatchColumn()
+		{
+			if (m_elems == nullptr) {
+				return;
+			}
+			// write back only the output column
+			jint mode = m_output ? 0 : JNI_ABORT;
+			switch (m_type) {
+			case io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE:
+				m_env->ReleaseDoubleArrayElements(
+					static_cast<jdoubleArray>(m_array),
+					static_cast<jdouble *>(m_elems), mode);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_LONG:
+				m_env->ReleaseLongArrayElements(
+					static_cast<jlongArray>(m_array),
+					static_cast<jlong *>(m_elems), mode);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN:
+				m_env->ReleaseBooleanArrayElements(
+					static_cast<jbooleanArray>(m_array),
+					static_cast<jboolean *>(m_elems), mode);
+				break;
+			default:
+				break;
+			}
+		}
+		BatchColumn(const BatchColumn &) = delete;
+		BatchColumn &operator=(const BatchColumn &) = delete;
 
-/*
- * Class:     io_github_yappy_lua_LuaEngine
- * Method:    getVersionInfo
- * Signature: ([Ljava/lang/String;)I
- */
-JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getVersionInfo
-  (JNIEnv *env, jclass, jobjectArray info)
-{
-	jsize index = 0;
-	for (auto str : VersionStrList) {
-		jstring jstr = env->NewStringUTF(str);
-		env->SetObjectArrayElement(info, index, jstr);
-		index++;
-	}
-	return static_cast<jint>(*lua_version(nullptr));
-}
+		bool IsValid() const
+		{
+			return m_type == io_github_yappy_lua_LuaEngine_COLUMN_STRING ||
+				m_elems != nullptr;
+		}
 
-/*
+		// might longjmp() or throw C++ exception
+		void Push(lua_State *L, int row)
+		{
+			switch (m_type) {
+			case io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE:
+				lua_pushnumber(L, static_cast<jdouble *>(m_elems)[row]);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_LONG:
+				lua_pushinteger(L, static_cast<jlong *>(m_elems)[row]);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN:
+				lua_pushboolean(L, static_cast<jboolean *>(m_elems)[row]);
+				break;
+			case io_github_yappy_lua_LuaEngine_COLUMN_STRING:
+			{
+				jobject jstr = m_env->GetObjectArrayElement(
+					static_cast<jobjectArray>(m_array), row);
+				pushJavaValue(L, m_env, jstr);
+				m_env->DeleteLocalRef(jstr);
+				break;
+			}
+			}
+		}
+
+		// return false if the value cannot be converted
+		bool Store(lua_State *L, int index, int row)
+		{
+			switch (m_type) {
+			case io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE:
+			{
+				int isnum = 0;
+				lua_Number n = lua_tonumberx(L, index, &isnum);
+				if (isnum) {
+					static_cast<jdouble *>(m_elems)[row] = n;
+				}
+				return isnum != 0;
+			}
+			case io_github_yappy_lua_LuaEngine_COLUMN_LONG:
+			{
+				int isnum = 0;
+				lua_Integer n = lua_tointegerx(L, index, &isnum);
+				if (isnum) {
+					static_cast<jlong *>(m_elems)[row] = n;
+				}
+				return isnum != 0;
+			}
+			case io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN:
+				static_cast<jboolean *>(m_elems)[row] =
+					static_cast<jboolean>(lua_toboolean(L, index));
+				return true;
+			case io_github_yappy_lua_LuaEngine_COLUMN_STRING:
+			{
+				int type = lua_type(L, index);
+				if (type != LUA_TNIL && type != LUA_TSTRING &&
+						type != LUA_TNUMBER) {
+					return false;
+				}
+				jstring jstr = (type == LUA_TNIL) ? nullptr :
+					m_env->NewStringUTF(lua_tostring(L, index));
+				if (m_env->ExceptionCheck()) {
+					return true;
+				}
+				m_env->SetObjectArrayElement(
+					static_cast<jobjectArray>(m_array), row, jstr);
+				m_env->DeleteLocalRef(jstr);
+				return true;
+			}
+			}
+			return false;
+		}
+
+		const char *TypeName() const
+		{
+			switch (m_type) {
+			case io_github_yappy_lua_LuaEngine_COLUMN_DOUBLE:
+				return "number";
+			case io_github_yappy_lua_LuaEngine_COLUMN_LONG:
+				return "integer";
+			case io_github_yappy_lua_LuaEngine_COLUMN_BOOLEAN:
+				return "boolean";
+			default:
+				return "string";
+			}
+		}
+
+	private:
+		JNIEnv *m_env;
+		jarray m_array;
+		int m_type;
+		bool m_output;
+		void *m_elems;
+	};
+
+	// shared part of callBatch() and callBatchColumns()
+	struct BatchParams {
+		JNIEnv *env;
+		int rows;
+		// callBatch()
+		jobjectArray argSets;
+		jobjectArray results;
+		// callBatchColumns()
+		std::vector<std::unique_ptr<BatchColumn>> *columns;
+		BatchColumn *out;
+		jobjectArray errors;
+		int failed;
+		// non-runtime error of a row (stops the batch)
+		int status;
+	};
+
+	// lua_CFunction
+	// stack: function to call, BatchParams *
+	// call the function for each row in protected mode
+	int BatchLoop(lua_State *L)
+	{
+		auto &params = *static_cast<BatchParams *>(lua_touserdata(L, 2));
+		lua_settop(L, 1);
+		JNIEnv *env = params.env;
+
+		for (int row = 0; row < params.rows; row++) {
+			// push function and args
+			lua_pushvalue(L, 1);
+			int nargs = 0;
+			if (params.argSets != nullptr) {
+				auto args = static_cast<jobjectArray>(
+					env->GetObjectArrayElement(params.argSets, row));
+				nargs = env->GetArrayLength(args);
+				luaL_checkstack(L, nargs + 1, "too many arguments");
+				for (int i = 0; i < nargs; i++) {
+					jobject jobj = env->GetObjectArrayElement(args, i);
+					pushJavaValue(L, env, jobj);
+					env->DeleteLocalRef(jobj);
+					if (env->ExceptionCheck()) {
+						return 0;
+					}
+				}
+				env->DeleteLocalRef(args);
+			}
+			else {
+				nargs = static_cast<int>(params.columns->size());
+				luaL_checkstack(L, nargs + 1, "too many arguments");
+				for (auto &column : *params.columns) {
+					column->Push(L, row);
+					if (env->ExceptionCheck()) {
+						return 0;
+					}
+				}
+			}
+
+			int nresults = (params.argSets != nullptr) ? LUA_MULTRET : 1;
+			int ret = lua_pcall(L, nargs, nresults, 0);
+			// LuaAbortException or unchecked exception stops the batch
+			if (env->ExceptionCheck()) {
+				return 0;
+			}
+			const char *error = nullptr;
+			if (ret == LUA_OK) {
+				if (params.argSets != nullptr) {
+					int n = lua_gettop(L) - 1;
+					jobjectArray values = env->NewObjectArray(n,
+						jniutil::FindClass(jniutil::ClassId::Object), nullptr);
+					if (env->ExceptionCheck()) {
+						return 0;
+					}
+					for (int i = 0; i < n; i++) {
+						jobject jobj = ToJavaValue(L, env, i + 2);
+						if (env->ExceptionCheck()) {
+							return 0;
+						}
+						env->SetObjectArrayElement(values, i, jobj);
+						env->DeleteLocalRef(jobj);
+					}
+					env->SetObjectArrayElement(params.results, row, values);
+					env->DeleteLocalRef(values);
+				}
+				else if (params.out != nullptr &&
+						!params.out->Store(L, 2, row)) {
+					error = lua_pushfstring(L, "bad result (%s expected, got %s)",
+						params.out->TypeName(), luaL_typename(L, 2));
+				}
+				if (env->ExceptionCheck()) {
+					return 0;
+				}
+			}
+			else if (ret == LUA_ERRRUN) {
+				error = lua_tostring(L, -1);
+				if (error == nullptr) {
+					error = "(invalid error message)";
+				}
+			}
+			else {
+				// memory error etc.
+				params.status = ret;
+				return 0;
+			}
+			if (error != nullptr) {
+				params.failed++;
+				if (params.errors != nullptr) {
+					jstring jstr = env->NewStringUTF(error);
+					if (env->ExceptionCheck()) {
+						return 0;
+					}
+					env->SetObjectArrayElement(params.errors, row, jstr);
+					env->DeleteLocalRef(jstr);
+				}
+			}
+			lua_settop(L, 1);
+		}
+		return 0;
+	}
+
+	// function to call is at the stack top
+	int CallBatch(lua_State *L, JNIEnv *env, BatchParams *params,
+		jintArray failed)
+	{
+		lua_pushcfunction(L, BatchLoop);
+		lua_insert(L, -2);
+		lua_pushlightuserdata(L, params);
+		int ret = lua_pcall(L, 2, 0, 0);
+		if (env->ExceptionCheck()) {
+			return ret;
+		}
+		if (ret == LUA_OK) {
+			ret = params->status;
+		}
+		jint cfailed = params->failed;
+		env->SetIntArrayRegion(failed, 0, 1, &cfailed);
+		return ret;
+	}
+
+	// loadTable() file and schema
+	struct TableParams {
+		const char *data;
+		size_t size;
+		const char *fileName;
+		std::vector<std::unique_ptr<char[]>> names;
+		std::vector<jint> types;
+		char delimiter;
+		bool header;
+		bool columnar;
+		// out
+		lua_Integer rows;
+	};
+
+	// decimal integer with an optional sign (overflow is an error)
+	bool ParseInteger(const char *s, const char *e, lua_Integer *out)
+	{
+		bool neg = false;
+		if (s < e && (*s == '+' || *s == '-')) {
+			neg = (*s == '-');
+			s++;
+		}
+		if (s == e) {
+			return false;
+		}
+		const lua_Unsigned limit = neg ?
+			static_cast<lua_Unsigned>(LUA_MININTEGER) : LUA_MAXINTEGER;
+		lua_Unsigned value = 0;
+		for (; s < e; s++) {
+			if (*s < '0' || *s > '9') {
+				return false;
+			}
+			unsigned digit = *s - '0';
+			if (value > (limit - digit) / 10) {
+				return false;
+			}
+			value = value * 10 + digit;
+		}
+		*out = static_cast<lua_Integer>(neg ? 0u - value : value);
+		return true;
+	}
+
+	// push the value of field [s, e) or return false if invalid
+	bool PushField(lua_State *L, int type, const char *s, const char *e)
+	{
+		size_t len = e - s;
+		switch (type) {
+		case io_github_yappy_lua_LuaEngine_TABLE_TYPE_BOOLEAN:
+			if ((len == 4 && std::memcmp(s, "true", 4) == 0) ||
+				(len == 1 && *s == '1')) {
+				lua_pushboolean(L, 1);
+				return true;
+			}
+			if ((len == 5 && std::memcmp(s, "false", 5) == 0) ||
+				(len == 1 && *s == '0')) {
+				lua_pushboolean(L, 0);
+				return true;
+			}
+			return false;
+		case io_github_yappy_lua_LuaEngine_TABLE_TYPE_INTEGER:
+		{
+			lua_Integer value = 0;
+			if (!ParseInteger(s, e, &value)) {
+				return false;
+			}
+			lua_pushinteger(L, value);
+			return true;
+		}
+		case io_github_yappy_lua_LuaEngine_TABLE_TYPE_NUMBER:
+		{
+			// lua_stringtonumber() needs '\0'
+			char buf[64];
+			if (len >= sizeof(buf)) {
+				return false;
+			}
+			std::memcpy(buf, s, len);
+			buf[len] = '\0';
+			if (lua_stringtonumber(L, buf) != len + 1) {
+				return false;
+			}
+			lua_Number value = lua_tonumber(L, -1);
+			lua_pop(L, 1);
+			lua_pushnumber(L, value);
+			return true;
+		}
+		case io_github_yappy_lua_LuaEngine_TABLE_TYPE_STRING:
+			lua_pushlstring(L, s, len);
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// lua_CFunction
+	// stack: TableParams *
+	// ret: table
+	int LoadTable(lua_State *L)
+	{
+		auto &params = *static_cast<TableParams *>(lua_touserdata(L, 1));
+		const int ncols = static_cast<int>(params.types.size());
+		const char *p = params.data;
+		const char *const end = params.data + params.size;
+
+		// pre-allocate arrays by line count
+		int estimate = 1;
+		for (const char *q = p;
+			(q = static_cast<const char *>(std::memchr(q, '\n', end - q)))
+				!= nullptr; q++) {
+			estimate++;
+		}
+		int nrec = 0;
+		for (int i = 0; i < ncols; i++) {
+			if (params.types[i] != io_github_yappy_lua_LuaEngine_TABLE_TYPE_SKIP) {
+				nrec++;
+			}
+		}
+
+		// 2: result
+		// 3..: names (interned once)
+		// 3 + ncols..: arrays of columns (columnar only)
+		luaL_checkstack(L, 2 * ncols + 8, "too many columns");
+		const int tableInd = 2;
+		const int nameInd = 3;
+		const int columnInd = nameInd + ncols;
+		lua_createtable(L, params.columnar ? 0 : estimate,
+			params.columnar ? nrec : 0);
+		for (int i = 0; i < ncols; i++) {
+			lua_pushstring(L, params.names[i].get());
+		}
+		if (params.columnar) {
+			for (int i = 0; i < ncols; i++) {
+				if (params.types[i] == io_github_yappy_lua_LuaEngine_TABLE_TYPE_SKIP) {
+					lua_pushnil(L);
+					continue;
+				}
+				lua_createtable(L, estimate, 0);
+				// result[name] = array
+				lua_pushvalue(L, nameInd + i);
+				lua_pushvalue(L, -2);
+				lua_rawset(L, tableInd);
+			}
+		}
+
+		// unescaped quoted field
+		std::string quoted;
+		lua_Integer row = 0;
+		int line = 1;
+		bool first = true;
+		while (p < end) {
+			// empty line
+			if (*p == '\n') {
+				p++;
+				line++;
+				continue;
+			}
+			if (*p == '\r' && p + 1 < end && p[1] == '\n') {
+				p += 2;
+				line++;
+				continue;
+			}
+			bool skip = first && params.header;
+			first = false;
+			const int rowLine = line;
+			if (!skip) {
+				row++;
+				if (!params.columnar) {
+					lua_createtable(L, 0, nrec);
+				}
+			}
+			for (int col = 0; ; col++) {
+				const char *s;
+				const char *e;
+				if (*p == '"') {
+					// "..." with "" as "
+					const char *start = ++p;
+					quoted.clear();
+					bool escaped = false;
+					while (true) {
+						auto q = static_cast<const char *>(
+							std::memchr(p, '"', end - p));
+						if (q == nullptr) {
+							return luaL_error(L, "%s:%d: unterminated quote",
+								params.fileName, rowLine);
+						}
+						for (const char *r = p; r < q; r++) {
+							line += (*r == '\n');
+						}
+						if (q + 1 < end && q[1] == '"') {
+							quoted.append(start, q + 1);
+							escaped = true;
+							p = start = q + 2;
+							continue;
+						}
+						if (escaped) {
+							quoted.append(start, q);
+							s = quoted.data();
+							e = s + quoted.size();
+						}
+						else {
+							s = start;
+							e = q;
+						}
+						p = q + 1;
+						break;
+					}
+					if (p < end && *p != params.delimiter && *p != '\n' &&
+						!(*p == '\r' && p + 1 < end && p[1] == '\n')) {
+						return luaL_error(L, "%s:%d: character after quote",
+							params.fileName, line);
+					}
+				}
+				else {
+					s = p;
+					while (p < end && *p != params.delimiter && *p != '\n') {
+						p++;
+					}
+					e = p;
+					// CRLF
+					if (e > s && e[-1] == '\r' && (p == end || *p == '\n')) {
+						e--;
+					}
+				}
+
+				if (!skip) {
+					if (col >= ncols) {
+						return luaL_error(L, "%s:%d: too many fields",
+							params.fileName, rowLine);
+					}
+					int type = params.types[col];
+					// empty and skipped fields are nil
+					if (s != e && type != io_github_yappy_lua_LuaEngine_TABLE_TYPE_SKIP) {
+						if (!PushField(L, type, s, e)) {
+							return luaL_error(L, "%s:%d: invalid value for '%s'",
+								params.fileName, rowLine, params.names[col].get());
+						}
+						if (params.columnar) {
+							// column[row] = value
+							lua_rawseti(L, columnInd + col, row);
+						}
+						else {
+							// row[name] = value
+							lua_pushvalue(L, nameInd + col);
+							lua_insert(L, -2);
+							lua_rawset(L, -3);
+						}
+					}
+				}
+
+				if (p < end && *p == params.delimiter) {
+					p++;
+					if (p == end) {
+						// an empty last field
+						break;
+					}
+					continue;
+				}
+				// end of row
+				if (p < end && *p == '\r') {
+					p++;
+				}
+				if (p < end && *p == '\n') {
+					p++;
+					line++;
+				}
+				break;
+			}
+			if (!skip && !params.columnar) {
+				// result[row] = row table
+				lua_rawseti(L, tableInd, row);
+			}
+		}
+
+		params.rows = row;
+		lua_settop(L, tableInd);
+		return 1;
+	}
+}
+
+/*
+ * Export Functions
+ */
+#ifdef __cplusplus
+extern "C" {
+#endif
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getVersionInfo
+ * Signature: ([Ljava/lang/String;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getVersionInfo
+  (JNIEnv *env, jclass, jobjectArray info)
+{
+	jsize index = 0;
+	for (auto str : VersionStrList) {
+		jstring jstr = env->NewStringUTF(str);
+		env->SetObjectArrayElement(info, index, jstr);
+		index++;
+	}
+	return static_cast<jint>(*lua_version(nullptr));
+}
+
+/*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    newPeer
- * Signature: (J)J
+ * Signature: (JIJ)J
  */
 JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_newPeer
-  (JNIEnv *env, jclass, jlong nativeMemoryLimit)
+  (JNIEnv *env, jclass, jlong nativeMemoryLimit, jint flags, jlong budget)
 {
 	Lua *lua = new(std::nothrow) Lua(env);
 	if (lua == nullptr) {
 		// new failed; out of memory
 		return 0;
 	}
-	if (!lua->Initialize(nativeMemoryLimit)) {
+	bool useSlab =
+		(flags & io_github_yappy_lua_LuaEngine_PEER_FLAG_SLAB_ALLOCATOR) != 0;
+	if (!lua->Initialize(nativeMemoryLimit, useSlab,
+		reinterpret_cast<MemoryBudget *>(budget))) {
 		// lua_newstate failed; out of memory
 		delete lua;
 		return 0;
 	}
+
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		Lua::NewGcSentinel(L);
+		return 0;
+	};
+	// lua error safe call (args=0, ret=0)
+	lua_pushcfunction(lua->L(), f);
+	if (lua_pcall(lua->L(), 0, 0, 0) != LUA_OK) {
+		// out of memory
+		delete lua;
+		return 0;
+	}
 	return reinterpret_cast<jlong>(lua);
 }
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    newMemoryBudget
+ * Signature: (JJ)J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_newMemoryBudget
+  (JNIEnv *, jclass, jlong softLimit, jlong hardLimit)
+{
+	MemoryBudget *budget = new(std::nothrow) MemoryBudget(softLimit, hardLimit);
+	// nullptr if out of memory
+	return reinterpret_cast<jlong>(budget);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    releaseMemoryBudget
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_releaseMemoryBudget
+  (JNIEnv *, jclass, jlong budget)
+{
+	// deleted after all Lua states using it are deleted
+	reinterpret_cast<MemoryBudget *>(budget)->Release();
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getMemoryBudgetStatus
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_getMemoryBudgetStatus
+  (JNIEnv *env, jclass, jlong budget, jlongArray status)
+{
+	auto b = reinterpret_cast<MemoryBudget *>(budget);
+	std::array<jlong, io_github_yappy_lua_LuaEngine_BUDGET_ARRAY_SIZE> cstatus;
+	cstatus[io_github_yappy_lua_LuaEngine_BUDGET_USED] =
+		static_cast<jlong>(b->GetUsed());
+	cstatus[io_github_yappy_lua_LuaEngine_BUDGET_EMERGENCY_GC_COUNT] =
+		static_cast<jlong>(b->GetEmergencyGcCount());
+	cstatus[io_github_yappy_lua_LuaEngine_BUDGET_REJECT_COUNT] =
+		static_cast<jlong>(b->GetRejectCount());
+	env->SetLongArrayRegion(status, 0, cstatus.size(), cstatus.data());
+}
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    deletePeer
  * Signature: (J)V
  */
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_deletePeer
-  (JNIEnv *, jclass, jlong peer)
+  (JNIEnv *env, jclass, jlong peer)
+{
+	// finalizers might call Java in lua_close()
+	delete Lua::FromPeer(env, peer);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getStatistics
+ * Signature: (J[J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_getStatistics
+  (JNIEnv *env, jclass, jlong peer, jlongArray stats)
 {
-	delete reinterpret_cast<Lua *>(peer);
+	auto lua = Lua::FromPeer(env, peer);
+
+	const auto &mem = lua->GetMemoryStats();
+	std::array<jlong, io_github_yappy_lua_LuaEngine_STAT_ARRAY_SIZE> cstats;
+	cstats[io_github_yappy_lua_LuaEngine_STAT_MEMORY_USED] =
+		static_cast<jlong>(mem.used);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_GC_CYCLES] =
+		static_cast<jlong>(lua->GetGcCycles());
+	cstats[io_github_yappy_lua_LuaEngine_STAT_MEMORY_PEAK] =
+		static_cast<jlong>(mem.peak);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_ALLOC_COUNT] =
+		static_cast<jlong>(mem.allocCount);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_FREE_COUNT] =
+		static_cast<jlong>(mem.freeCount);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_REALLOC_COUNT] =
+		static_cast<jlong>(mem.reallocCount);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_REJECT_COUNT] =
+		static_cast<jlong>(mem.rejectCount);
+	global_State *g = G(lua->L());
+	cstats[io_github_yappy_lua_LuaEngine_STAT_GC_DEBT] =
+		static_cast<jlong>(g->GCdebt);
+	cstats[io_github_yappy_lua_LuaEngine_STAT_GC_ESTIMATE] =
+		static_cast<jlong>(g->GCestimate);
+	env->SetLongArrayRegion(stats, 0, cstats.size(), cstats.data());
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    resetMemoryPeak
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_resetMemoryPeak
+  (JNIEnv *env, jclass, jlong peer)
+{
+	Lua::FromPeer(env, peer)->ResetMemoryPeak();
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    gc
+ * Signature: (JII[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_gc
+  (JNIEnv *env, jclass, jlong peer, jint what, jint data, jintArray result)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	// arg1: what(int)
+	// arg2: data(int)
+	// ret1: lua_gc() result(int)
+	// finalizers might raise errors in collect or step
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		int what = static_cast<int>(lua_tointeger(L, 1));
+		int data = static_cast<int>(lua_tointeger(L, 2));
+		lua_pushinteger(L, lua_gc(L, what, data));
+		return 1;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1, arg2:
+	lua_pushinteger(L, what);
+	lua_pushinteger(L, data);
+	// lua error safe call (args=2, ret=1)
+	int ret = lua_pcall(L, 2, 1, 0);
+	if (ret != LUA_OK) {
+		return ret;
+	}
+	jint cresult = static_cast<jint>(lua_tointeger(L, -1));
+	lua_pop(L, 1);
+	env->SetIntArrayRegion(result, 0, 1, &cresult);
+	return LUA_OK;
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    checkpoint
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_checkpoint
+  (JNIEnv *env, jclass, jlong peer)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	// arg: none
+	// ret: none
+	// shallow copy of all tables reachable from the registry
+	// (including _G and package.loaded) and the string metatable,
+	// and their metatables
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		// discard the previous checkpoint
+		lua_pushnil(L);
+		lua_setfield(L, LUA_REGISTRYINDEX, CheckpointKey);
+
+		lua_createtable(L, 3, 0);
+		int cp = lua_gettop(L);
+		lua_newtable(L);
+		int copies = lua_gettop(L);
+		lua_newtable(L);
+		int metas = lua_gettop(L);
+		lua_newtable(L);
+		int queue = lua_gettop(L);
+		int head = 1;
+		int tail = 0;
+
+		// contexts are not a part of the checkpoint (mark as seen)
+		bool hasContexts =
+			lua_getfield(L, LUA_REGISTRYINDEX, ContextsKey) == LUA_TTABLE;
+		int contexts = lua_gettop(L);
+		if (hasContexts) {
+			lua_pushvalue(L, contexts);
+			lua_pushboolean(L, 1);
+			lua_rawset(L, copies);
+		}
+		// compiled chunks too
+		bool hasChunks =
+			lua_rawgetp(L, LUA_REGISTRYINDEX, ChunksKey) == LUA_TTABLE;
+		int chunks = lua_gettop(L);
+		if (hasChunks) {
+			lua_pushvalue(L, chunks);
+			lua_pushboolean(L, 1);
+			lua_rawset(L, copies);
+		}
+
+		lua_pushvalue(L, LUA_REGISTRYINDEX);
+		EnqueueTable(L, -1, copies, queue, &tail);
+		lua_pop(L, 1);
+		// not in the registry (global_State)
+		lua_pushliteral(L, "");
+		if (lua_getmetatable(L, -1)) {
+			EnqueueTable(L, -1, copies, queue, &tail);
+			lua_rawseti(L, cp, CheckpointIndStringMeta);
+		}
+		lua_pop(L, 1);
+		while (head <= tail) {
+			lua_rawgeti(L, queue, head++);
+			int t = lua_gettop(L);
+			lua_newtable(L);
+			int copy = lua_gettop(L);
+			// the copy of a weak table is weak in the same way,
+			// and its weak keys or values are not copied recursively
+			bool weakKeys = false;
+			bool weakValues = false;
+			if (luaL_getmetafield(L, t, "__mode") != LUA_TNIL) {
+				if (lua_type(L, -1) == LUA_TSTRING) {
+					const char *mode = lua_tostring(L, -1);
+					weakKeys = std::strchr(mode, 'k') != nullptr;
+					weakValues = std::strchr(mode, 'v') != nullptr;
+				}
+				lua_createtable(L, 0, 1);
+				lua_insert(L, -2);
+				lua_setfield(L, -2, "__mode");
+				lua_setmetatable(L, copy);
+			}
+			lua_pushnil(L);
+			while (lua_next(L, t) != 0) {
+				// key: -2, value: -1
+				if (!weakKeys) {
+					EnqueueTable(L, -2, copies, queue, &tail);
+				}
+				if (!weakValues) {
+					EnqueueTable(L, -1, copies, queue, &tail);
+				}
+				lua_pushvalue(L, -2);
+				lua_insert(L, -2);
+				lua_rawset(L, copy);
+			}
+			if (lua_getmetatable(L, t)) {
+				EnqueueTable(L, -1, copies, queue, &tail);
+				lua_pushvalue(L, t);
+				lua_insert(L, -2);
+				lua_rawset(L, metas);
+			}
+			// copies[t] = copy
+			lua_pushvalue(L, t);
+			lua_insert(L, -2);
+			lua_rawset(L, copies);
+			lua_pop(L, 1);
+		}
+
+		if (hasContexts) {
+			lua_pushvalue(L, contexts);
+			lua_pushnil(L);
+			lua_rawset(L, copies);
+		}
+		if (hasChunks) {
+			lua_pushvalue(L, chunks);
+			lua_pushnil(L);
+			lua_rawset(L, copies);
+		}
+
+		lua_pushvalue(L, copies);
+		lua_rawseti(L, cp, CheckpointIndCopies);
+		lua_pushvalue(L, metas);
+		lua_rawseti(L, cp, CheckpointIndMetas);
+		lua_pushvalue(L, cp);
+		lua_setfield(L, LUA_REGISTRYINDEX, CheckpointKey);
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// lua error safe call (args=0, ret=0)
+	return lua_pcall(L, 0, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    reset
+ * Signature: (J)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_reset
+  (JNIEnv *env, jclass, jlong peer)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	// arg: none
+	// ret: none
+	// restore contents and metatables of all checkpoint tables
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		if (lua_getfield(L, LUA_REGISTRYINDEX, CheckpointKey) != LUA_TTABLE) {
+			return luaL_error(L, "no checkpoint");
+		}
+		int cp = lua_gettop(L);
+		lua_getfield(L, LUA_REGISTRYINDEX, ContextsKey);
+		int contexts = lua_gettop(L);
+		lua_rawgetp(L, LUA_REGISTRYINDEX, ChunksKey);
+		int chunks = lua_gettop(L);
+		lua_rawgeti(L, cp, CheckpointIndCopies);
+		int copies = lua_gettop(L);
+		lua_rawgeti(L, cp, CheckpointIndMetas);
+		int metas = lua_gettop(L);
+
+		lua_pushnil(L);
+		while (lua_next(L, copies) != 0) {
+			// original: -2, copy: -1
+			int t = lua_gettop(L) - 1;
+			int copy = lua_gettop(L);
+			// clear (assigning nil to existing fields is allowed in next)
+			lua_pushnil(L);
+			while (lua_next(L, t) != 0) {
+				lua_pop(L, 1);
+				lua_pushvalue(L, -1);
+				lua_pushnil(L);
+				lua_rawset(L, t);
+			}
+			// refill
+			lua_pushnil(L);
+			while (lua_next(L, copy) != 0) {
+				lua_pushvalue(L, -2);
+				lua_insert(L, -2);
+				lua_rawset(L, t);
+			}
+			// metatable or nil
+			lua_pushvalue(L, t);
+			lua_rawget(L, metas);
+			lua_setmetatable(L, t);
+			// leave key for next
+			lua_pop(L, 1);
+		}
+
+		// string metatable or nil
+		lua_pushliteral(L, "");
+		lua_rawgeti(L, cp, CheckpointIndStringMeta);
+		lua_setmetatable(L, -2);
+		lua_pop(L, 1);
+
+		// registry was restored to the state before checkpoint
+		lua_pushvalue(L, cp);
+		lua_setfield(L, LUA_REGISTRYINDEX, CheckpointKey);
+		// contexts and chunks are kept
+		lua_pushvalue(L, contexts);
+		lua_setfield(L, LUA_REGISTRYINDEX, ContextsKey);
+		lua_pushvalue(L, chunks);
+		lua_rawsetp(L, LUA_REGISTRYINDEX, ChunksKey);
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// lua error safe call (args=0, ret=0)
+	return lua_pcall(L, 0, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    cloneState
+ * Signature: (JJLio/github/yappy/lua/LuaPrint;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_cloneState
+  (JNIEnv *env, jclass, jlong srcPeer, jlong dstPeer, jobject print)
+{
+	auto src = Lua::FromPeer(env, srcPeer);
+	auto dst = Lua::FromPeer(env, dstPeer);
+
+	// copied print() and pcall() refer to the dst Lua object
+	dst->SetPrintFunction(print);
+	if (env->ExceptionCheck()) {
+		return 0;
+	}
+	dst->SetOriginalPcall(src->GetOriginalPcall());
+
+	// CloneState() runs its own pcall on dst
+	return CloneState(src->MainThread(), dst->MainThread());
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    newContext
+ * Signature: (JZ[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_newContext
+  (JNIEnv *env, jclass, jlong peer, jboolean newEnv, jintArray result)
+{
+	auto L = Lua::FromPeer(env, peer)->MainThread();
+
+	// arg1: newEnv(boolean)
+	// ret1: context ref(int)
+	// contexts[ref] = {thread, env or nil}
+	// env has shared metatable {__index = _G} and env._G = env
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		bool newEnv = lua_toboolean(L, 1);
+		if (lua_getfield(L, LUA_REGISTRYINDEX, ContextsKey) != LUA_TTABLE) {
+			lua_pop(L, 1);
+			lua_newtable(L);
+			lua_pushvalue(L, -1);
+			lua_setfield(L, LUA_REGISTRYINDEX, ContextsKey);
+		}
+		int contexts = lua_gettop(L);
+		if (lua_getfield(L, contexts, ContextsFieldMeta) != LUA_TTABLE) {
+			lua_pop(L, 1);
+			lua_createtable(L, 0, 1);
+			lua_rawgeti(L, LUA_REGISTRYINDEX, LUA_RIDX_GLOBALS);
+			lua_setfield(L, -2, "__index");
+			lua_pushvalue(L, -1);
+			lua_setfield(L, contexts, ContextsFieldMeta);
+		}
+		int meta = lua_gettop(L);
+
+		lua_createtable(L, 2, 0);
+		lua_newthread(L);
+		lua_rawseti(L, -2, ContextIndThread);
+		if (newEnv) {
+			lua_newtable(L);
+			lua_pushvalue(L, meta);
+			lua_setmetatable(L, -2);
+			// _G.x = v must not write to the shared globals
+			lua_pushvalue(L, -1);
+			lua_setfield(L, -2, "_G");
+			lua_rawseti(L, -2, ContextIndEnv);
+		}
+		int ref = luaL_ref(L, contexts);
+		lua_pushinteger(L, ref);
+		return 1;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1:
+	lua_pushboolean(L, newEnv);
+	// lua error safe call (args=1, ret=1)
+	int ret = lua_pcall(L, 1, 1, 0);
+	if (ret != LUA_OK) {
+		return ret;
+	}
+	jint cresult = static_cast<jint>(lua_tointeger(L, -1));
+	lua_pop(L, 1);
+	env->SetIntArrayRegion(result, 0, 1, &cresult);
+	return LUA_OK;
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    deleteContext
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_deleteContext
+  (JNIEnv *env, jclass, jlong peer, jint ref)
+{
+	auto L = Lua::FromPeer(env, peer)->MainThread();
+
+	// arg1: context ref(int)
+	// ret: none
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		int ref = static_cast<int>(lua_tointeger(L, 1));
+		if (lua_getfield(L, LUA_REGISTRYINDEX, ContextsKey) == LUA_TTABLE) {
+			luaL_unref(L, -1, ref);
+		}
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1:
+	lua_pushinteger(L, ref);
+	// lua error safe call (args=1, ret=0)
+	return lua_pcall(L, 1, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setContext
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setContext
+  (JNIEnv *env, jclass, jlong peer, jint ref)
+{
+	auto lua = Lua::FromPeer(env, peer);
+	auto L = lua->MainThread();
+
+	if (ref == 0) {
+		lua->SetContext(0, nullptr);
+		return LUA_OK;
+	}
+
+	// arg1: context ref(int)
+	// ret1: thread
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		int ref = static_cast<int>(lua_tointeger(L, 1));
+		if (PushContext(L, ref) != LUA_TTABLE) {
+			return luaL_error(L, "invalid context");
+		}
+		lua_rawgeti(L, -1, ContextIndThread);
+		return 1;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1:
+	lua_pushinteger(L, ref);
+	// lua error safe call (args=1, ret=1)
+	int ret = lua_pcall(L, 1, 1, 0);
+	if (ret != LUA_OK) {
+		// discard error object
+		lua_pop(L, 1);
+		return ret;
+	}
+	// the thread is kept alive by contexts[ref]
+	lua->SetContext(ref, lua_tothread(L, -1));
+	lua_pop(L, 1);
+	return LUA_OK;
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    restoreContext
+ * Signature: (J)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_restoreContext
+  (JNIEnv *env, jclass, jlong peer)
+{
+	if (!Lua::FromPeer(env, peer)->RestoreContext()) {
+		jniutil::ThrowIllegalStateException(env, "No context to restore");
+	}
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    canYield
+ * Signature: (J)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_yappy_lua_LuaEngine_canYield
+  (JNIEnv *env, jclass, jlong peer)
+{
+	return Lua::FromPeer(env, peer)->CanYieldAsync();
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    resume
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_resume
+  (JNIEnv *env, jclass, jlong peer, jint nargs)
+{
+	auto lua = Lua::FromPeer(env, peer);
+	auto L = lua->L();
+
+	if (!HasStack(L, nargs)) {
+		jniutil::ThrowIllegalStateException(env, "Stack underflow");
+		return 0;
+	}
+
+	// the current context thread is the coroutine
+	// first resume: function + args, next resume: args
+	return lua->Resume(nargs);
 }
 
 /*
@@ -488,9 +2244,9 @@ JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_deletePeer
  * Signature: (JLio/github/yappy/lua/DebugHook;)V
  */
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setDebugHook
-  (JNIEnv *, jclass, jlong peer, jobject hook)
+  (JNIEnv *env, jclass, jlong peer, jobject hook)
 {
-	auto lua = reinterpret_cast<Lua *>(peer);
+	auto lua = Lua::FromPeer(env, peer);
 	lua->SetDebugHook(hook);
 }
 
@@ -500,9 +2256,9 @@ JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setDebugHook
  * Signature: (JII)V
  */
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setHookMask
-  (JNIEnv *, jclass, jlong peer, jint mask, jint count)
+  (JNIEnv *env, jclass, jlong peer, jint mask, jint count)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 	lua_sethook(L, Lua::Hook, mask, count);
 }
 
@@ -512,9 +2268,9 @@ JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setHookMask
  * Signature: (JI)I
  */
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_openLibs
-  (JNIEnv *, jclass, jlong peer, jint libs)
+  (JNIEnv *env, jclass, jlong peer, jint libs)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 	uint32_t bits = static_cast<uint32_t>(libs);
 
 	// arg1: bits(uint32)
@@ -556,7 +2312,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_openLibs
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_replacePrintFunc
   (JNIEnv *env, jclass, jlong peer, jobject print)
 {
-	auto lua = reinterpret_cast<Lua *>(peer);
+	auto lua = Lua::FromPeer(env, peer);
 	auto L = lua->L();
 
 	if (!HasFreeStack(L, 1)) {
@@ -579,6 +2335,67 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_replacePrintFunc
 	return lua_pcall(L, 0, 0, 0);
 }
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setSink
+ * Signature: (JLjava/nio/ByteBuffer;Lio/github/yappy/lua/SinkFlush;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setSink
+  (JNIEnv *env, jclass, jlong peer, jobject buffer, jobject callback)
+{
+	auto lua = Lua::FromPeer(env, peer);
+	auto L = lua->L();
+
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	lua->SetSink(buffer, callback);
+	if (env->ExceptionCheck()) {
+		return 0;
+	}
+
+	// arg1: boolean set
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		// set or remove global "emit"
+		if (lua_toboolean(L, 1)) {
+			lua_pushcfunction(L, Lua::Emit);
+		}
+		else {
+			lua_pushnil(L);
+		}
+		lua_setglobal(L, "emit");
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1: boolean set
+	lua_pushboolean(L, buffer != nullptr);
+	// lua error safe call (args=1, ret=0)
+	return lua_pcall(L, 1, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    flushSink
+ * Signature: (JZ)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_flushSink
+  (JNIEnv *env, jclass, jlong peer, jboolean discard)
+{
+	auto lua = Lua::FromPeer(env, peer);
+
+	if (discard) {
+		lua->DiscardSink();
+	}
+	else {
+		// exception from SinkFlush#flush() is thrown as is
+		lua->FlushSink();
+	}
+}
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    loadString
@@ -605,10 +2422,78 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadString
 		return 0;
 	}
 
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto lua = Lua::FromPeer(env, peer);
+	auto L = lua->L();
+
+	// text only
+	int ret = luaL_loadbufferx(L, cBuf.get(), buflen, cChunkName.get(), "t");
+	if (ret != LUA_OK) {
+		return ret;
+	}
+	return SetChunkEnv(lua, L);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    loadStream
+ * Signature: (JLjava/lang/String;Ljava/nio/ByteBuffer;Lio/github/yappy/lua/ChunkReader;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadStream
+  (JNIEnv *env, jclass, jlong peer, jstring chunkName,
+  jobject buffer, jobject reader)
+{
+	if (chunkName == nullptr || buffer == nullptr || reader == nullptr) {
+		jniutil::ThrowNullPointerException(env, "chunkName, buffer and reader");
+		return 0;
+	}
+
+	auto data = static_cast<const char *>(env->GetDirectBufferAddress(buffer));
+	if (data == nullptr) {
+		jniutil::ThrowIllegalArgumentException(env, "not a direct buffer");
+		return 0;
+	}
+	auto cChunkName = jniutil::JstrToChars(env, chunkName);
+	if (cChunkName == nullptr) {
+		jniutil::ThrowOutOfMemoryError(env, "Native heap");
+		return 0;
+	}
+
+	auto lua = Lua::FromPeer(env, peer);
+	auto L = lua->L();
+
+	// pull the next block into the direct buffer by ChunkReader#read()
+	using Params = std::tuple<JNIEnv *, jobject, const char *>;
+	Params params = std::make_tuple(env, reader, data);
+	lua_Reader f = [](lua_State *, void *ud, size_t *size) -> const char *
+	{
+		const auto &params = *static_cast<Params *>(ud);
+		JNIEnv *env = std::get<0>(params);
+		*size = 0;
+		if (env->ExceptionCheck()) {
+			return nullptr;
+		}
+		jmethodID method = jniutil::GetMethodId(
+			jniutil::MethodId::ChunkReader_read);
+		jint n = env->CallIntMethod(std::get<1>(params), method);
+		// IOException ends the chunk; it is thrown after lua_load()
+		if (env->ExceptionCheck() || n <= 0) {
+			return nullptr;
+		}
+		*size = static_cast<size_t>(n);
+		return std::get<2>(params);
+	};
 
 	// text only
-	return luaL_loadbufferx(L, cBuf.get(), buflen, cChunkName.get(), "t");
+	int ret = lua_load(L, f, &params, cChunkName.get(), "t");
+	if (env->ExceptionCheck()) {
+		// function or error message
+		lua_pop(L, 1);
+		return 0;
+	}
+	if (ret != LUA_OK) {
+		return ret;
+	}
+	return SetChunkEnv(lua, L);
 }
 
 /*
@@ -617,9 +2502,9 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadString
  * Signature: (J)I
  */
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getTop
-  (JNIEnv *, jclass, jlong peer)
+  (JNIEnv *env, jclass, jlong peer)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	return lua_gettop(L);
 }
@@ -632,7 +2517,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getTop
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setTop
   (JNIEnv *env, jclass, jlong peer, jint index)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (index >= 0) {
 		if (!lua_checkstack(L, index)) {
@@ -657,7 +2542,7 @@ JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setTop
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushValues
   (JNIEnv *env, jclass, jlong peer, jobjectArray values)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (values == nullptr) {
 		jniutil::ThrowNullPointerException(env, "values");
@@ -711,7 +2596,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushValues
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getValues
   (JNIEnv *env, jclass, jlong peer, jbyteArray types, jobjectArray values)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (types == nullptr) {
 		jniutil::ThrowNullPointerException(env, "types");
@@ -838,7 +2723,7 @@ EXIT:
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getCheckedValues
   (JNIEnv *env, jclass, jlong peer, jintArray checks, jobjectArray values)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (checks == nullptr) {
 		jniutil::ThrowNullPointerException(env, "checks");
@@ -982,7 +2867,7 @@ EXIT:
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushNewTable
   (JNIEnv *env, jclass, jlong peer, jint narr, jint nrec)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 	if (!HasFreeStack(L, 2)) {
 		jniutil::ThrowIllegalStateException(env, "stack overflow");
 		return 0;
@@ -1017,7 +2902,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushNewTable
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setTableField
   (JNIEnv *env, jclass, jlong peer, jstring key)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 	if (!HasFreeStack(L, 2)) {
 		jniutil::ThrowIllegalStateException(env, "stack overflow");
 		return 0;
@@ -1060,9 +2945,9 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setTableField
  * Signature: (JIII)I
  */
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pcall
-  (JNIEnv *, jclass, jlong peer, jint nargs, jint nresults, jint msgh)
+  (JNIEnv *env, jclass, jlong peer, jint nargs, jint nresults, jint msgh)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	/*
 	 * (setjmp() or try) and call lua function
@@ -1090,6 +2975,263 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pcall
 	return lua_pcall(L, nargs, nresults, msgh);
 }
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    callBatch
+ * Signature: (J[[Ljava/lang/Object;[[Ljava/lang/Object;[Ljava/lang/String;[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_callBatch
+  (JNIEnv *env, jclass, jlong peer, jobjectArray argSets,
+  jobjectArray results, jobjectArray errors, jintArray failed)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return 0;
+	}
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	BatchParams params = {};
+	params.env = env;
+	params.rows = env->GetArrayLength(argSets);
+	params.argSets = argSets;
+	params.results = results;
+	params.errors = errors;
+	// all rows in one JNI call
+	return CallBatch(L, env, &params, failed);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    callBatchColumns
+ * Signature: (JI[Ljava/lang/Object;[ILjava/lang/Object;I[Ljava/lang/String;[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_callBatchColumns
+  (JNIEnv *env, jclass, jlong peer, jint rows, jobjectArray columns,
+  jintArray columnTypes, jobject out, jint outType,
+  jobjectArray errors, jintArray failed)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return 0;
+	}
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	jsize count = env->GetArrayLength(columns);
+	std::vector<jint> types(count);
+	env->GetIntArrayRegion(columnTypes, 0, count, types.data());
+	if (env->ExceptionCheck()) {
+		return 0;
+	}
+	// primitive elements are released at return
+	std::vector<std::unique_ptr<BatchColumn>> inputs;
+	inputs.reserve(count);
+	for (jsize i = 0; i < count; i++) {
+		auto array = static_cast<jarray>(env->GetObjectArrayElement(columns, i));
+		inputs.emplace_back(new BatchColumn(env, array, types[i], false));
+		if (!inputs.back()->IsValid()) {
+			// OutOfMemoryError is pending
+			return 0;
+		}
+	}
+	std::unique_ptr<BatchColumn> output;
+	if (out != nullptr) {
+		output.reset(new BatchColumn(env,
+			static_cast<jarray>(out), outType, true));
+		if (!output->IsValid()) {
+			return 0;
+		}
+	}
+
+	BatchParams params = {};
+	params.env = env;
+	params.rows = rows;
+	params.columns = &inputs;
+	params.out = output.get();
+	params.errors = errors;
+	// all rows in one JNI call
+	return CallBatch(L, env, &params, failed);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    pushChunk
+ * Signature: (JI)Z
+ */
+JNIEXPORT jboolean JNICALL Java_io_github_yappy_lua_LuaEngine_pushChunk
+  (JNIEnv *env, jclass, jlong peer, jint id)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return JNI_FALSE;
+	}
+
+	// raw get with light userdata key and integer key never raises
+	// lua error (no string is created)
+	if (lua_rawgetp(L, LUA_REGISTRYINDEX, ChunksKey) != LUA_TTABLE) {
+		lua_pop(L, 1);
+		return JNI_FALSE;
+	}
+	if (lua_rawgeti(L, -1, id) != LUA_TFUNCTION) {
+		lua_pop(L, 2);
+		return JNI_FALSE;
+	}
+	lua_remove(L, -2);
+	return JNI_TRUE;
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    setChunk
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setChunk
+  (JNIEnv *env, jclass, jlong peer, jint id)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return 0;
+	}
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	// arg1: function
+	// arg2: id
+	// ret: none
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		if (lua_rawgetp(L, LUA_REGISTRYINDEX, ChunksKey) != LUA_TTABLE) {
+			lua_pop(L, 1);
+			lua_newtable(L);
+			lua_pushvalue(L, -1);
+			lua_rawsetp(L, LUA_REGISTRYINDEX, ChunksKey);
+		}
+		// chunks[id] = function
+		lua_pushvalue(L, 1);
+		lua_rawseti(L, -2, lua_tointeger(L, 2));
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	lua_insert(L, -2);
+	// arg2: id
+	lua_pushinteger(L, id);
+	// lua error safe call (args=2, ret=0)
+	return lua_pcall(L, 2, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    releaseChunk
+ * Signature: (JI)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_releaseChunk
+  (JNIEnv *env, jclass, jlong peer, jint id)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	// arg1: id
+	// ret: none
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		if (lua_rawgetp(L, LUA_REGISTRYINDEX, ChunksKey) != LUA_TTABLE) {
+			return 0;
+		}
+		// chunks[id] = nil
+		lua_pushnil(L);
+		lua_rawseti(L, -2, lua_tointeger(L, 1));
+		return 0;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1: id
+	lua_pushinteger(L, id);
+	// lua error safe call (args=1, ret=0)
+	return lua_pcall(L, 1, 0, 0);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    loadTable
+ * Signature: (JLjava/nio/ByteBuffer;Ljava/lang/String;[Ljava/lang/String;[ICZZ[I)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_loadTable
+  (JNIEnv *env, jclass, jlong peer, jobject data, jstring fileName,
+  jobjectArray names, jintArray types, jchar delimiter,
+  jboolean header, jboolean columnar, jintArray rows)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	TableParams params = {};
+	params.size = static_cast<size_t>(env->GetDirectBufferCapacity(data));
+	params.data = static_cast<const char *>(env->GetDirectBufferAddress(data));
+	if (params.data == nullptr && params.size != 0) {
+		jniutil::ThrowIllegalArgumentException(env, "not a direct buffer");
+		return 0;
+	}
+	auto cFileName = jniutil::JstrToChars(env, fileName);
+	if (cFileName == nullptr) {
+		jniutil::ThrowOutOfMemoryError(env, "Native heap");
+		return 0;
+	}
+	params.fileName = cFileName.get();
+	jsize count = env->GetArrayLength(names);
+	params.types.resize(count);
+	env->GetIntArrayRegion(types, 0, count, params.types.data());
+	if (env->ExceptionCheck()) {
+		return 0;
+	}
+	for (jsize i = 0; i < count; i++) {
+		auto name = static_cast<jstring>(env->GetObjectArrayElement(names, i));
+		params.names.push_back(jniutil::JstrToChars(env, name));
+		env->DeleteLocalRef(name);
+		if (params.names.back() == nullptr) {
+			jniutil::ThrowOutOfMemoryError(env, "Native heap");
+			return 0;
+		}
+	}
+	params.delimiter = static_cast<char>(delimiter);
+	params.header = (header != JNI_FALSE);
+	params.columnar = (columnar != JNI_FALSE);
+
+	// cfunc
+	lua_pushcfunction(L, LoadTable);
+	// arg1: TableParams *
+	lua_pushlightuserdata(L, &params);
+	// lua error safe call (args=1, ret=1)
+	int ret = lua_pcall(L, 1, 1, 0);
+	if (ret == LUA_OK) {
+		jint crows = static_cast<jint>(params.rows);
+		env->SetIntArrayRegion(rows, 0, 1, &crows);
+	}
+	return ret;
+}
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    getGlobal
@@ -1098,7 +3240,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pcall
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getGlobal
   (JNIEnv *env, jclass, jlong peer, jstring name)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (!HasFreeStack(L, 2)) {
 		jniutil::ThrowIllegalStateException(env, "stack overflow");
@@ -1117,9 +3259,8 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getGlobal
 	lua_CFunction f = [](lua_State *L) -> int
 	{
 		// push ret
-		lua_getglobal(L, static_cast<const char *>(lua_touserdata(L, 1)));
-		// remove arg1
-		lua_remove(L, 1);
+		PushGlobalTable(L);
+		lua_getfield(L, -1, static_cast<const char *>(lua_touserdata(L, 1)));
 		return 1;
 	};
 	// cfunc
@@ -1130,6 +3271,176 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getGlobal
 	return lua_pcall(L, 1, 1, 0);
 }
 
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    getStrBufLength
+ * Signature: (J)J
+ */
+JNIEXPORT jlong JNICALL Java_io_github_yappy_lua_LuaEngine_getStrBufLength
+  (JNIEnv *env, jclass, jlong peer)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return 0;
+	}
+	// for metatable check
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	size_t len = 0;
+	if (ToStrBuf(L, -1, &len) == nullptr) {
+		return -1;
+	}
+	return static_cast<jlong>(len);
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    copyStrBuf
+ * Signature: (JLjava/nio/ByteBuffer;)V
+ */
+JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_copyStrBuf
+  (JNIEnv *env, jclass, jlong peer, jobject dst)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return;
+	}
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return;
+	}
+
+	size_t len = 0;
+	const char *data = ToStrBuf(L, -1, &len);
+	if (data == nullptr) {
+		jniutil::ThrowIllegalArgumentException(env, "not a strbuf");
+		return;
+	}
+	auto p = static_cast<char *>(env->GetDirectBufferAddress(dst));
+	jlong capacity = env->GetDirectBufferCapacity(dst);
+	if ((p == nullptr && len != 0) || capacity < static_cast<jlong>(len)) {
+		jniutil::ThrowIllegalArgumentException(env, "dst");
+		return;
+	}
+	if (len != 0) {
+		std::memcpy(p, data, len);
+	}
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    pushNumArray
+ * Signature: (JILjava/lang/Object;)I
+ */
+JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushNumArray
+  (JNIEnv *env, jclass, jlong peer, jint type, jobject array)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasFreeStack(L, 3)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return 0;
+	}
+
+	jsize len = env->GetArrayLength(static_cast<jarray>(array));
+
+	// arg1: type
+	// arg2: length
+	// ret: zero-filled numarray
+	lua_CFunction f = [](lua_State *L) -> int
+	{
+		PushNumArray(L, static_cast<int>(lua_tointeger(L, 1)),
+			lua_tointeger(L, 2));
+		return 1;
+	};
+	// cfunc
+	lua_pushcfunction(L, f);
+	// arg1: type
+	lua_pushinteger(L, type);
+	// arg2: length
+	lua_pushinteger(L, len);
+	// lua error safe call (args=2, ret=1)
+	int ret = lua_pcall(L, 2, 1, 0);
+	if (ret != LUA_OK) {
+		return ret;
+	}
+
+	// copy the elements directly into the userdata
+	int atype = 0;
+	lua_Integer alen = 0;
+	void *p = ToNumArray(L, -1, &atype, &alen);
+	if (p == nullptr) {
+		lua_pop(L, 1);
+		jniutil::ThrowIllegalStateException(env, "numarray is not created");
+		return 0;
+	}
+	if (type == io_github_yappy_lua_LuaEngine_NUMARRAY_TYPE_DOUBLE) {
+		env->GetDoubleArrayRegion(static_cast<jdoubleArray>(array), 0, len,
+			static_cast<jdouble *>(p));
+	}
+	else {
+		env->GetLongArrayRegion(static_cast<jlongArray>(array), 0, len,
+			static_cast<jlong *>(p));
+	}
+	return ret;
+}
+
+/*
+ * Class:     io_github_yappy_lua_LuaEngine
+ * Method:    toNumArray
+ * Signature: (J)Ljava/lang/Object;
+ */
+JNIEXPORT jobject JNICALL Java_io_github_yappy_lua_LuaEngine_toNumArray
+  (JNIEnv *env, jclass, jlong peer)
+{
+	auto L = Lua::FromPeer(env, peer)->L();
+
+	if (!HasStack(L, 1)) {
+		jniutil::ThrowIllegalStateException(env, "stack underflow");
+		return nullptr;
+	}
+	// for metatable check
+	if (!HasFreeStack(L, 2)) {
+		jniutil::ThrowIllegalStateException(env, "stack overflow");
+		return nullptr;
+	}
+
+	int type = 0;
+	lua_Integer len = 0;
+	void *p = ToNumArray(L, -1, &type, &len);
+	if (p == nullptr) {
+		return nullptr;
+	}
+	if (len > std::numeric_limits<jsize>::max()) {
+		jniutil::ThrowIllegalStateException(env, "numarray is too large");
+		return nullptr;
+	}
+	jsize jlen = static_cast<jsize>(len);
+	if (type == NumArrayDouble) {
+		jdoubleArray dst = env->NewDoubleArray(jlen);
+		if (dst == nullptr) {
+			return nullptr;
+		}
+		env->SetDoubleArrayRegion(dst, 0, jlen, static_cast<jdouble *>(p));
+		return dst;
+	}
+	else {
+		jlongArray dst = env->NewLongArray(jlen);
+		if (dst == nullptr) {
+			return nullptr;
+		}
+		env->SetLongArrayRegion(dst, 0, jlen, static_cast<jlong *>(p));
+		return dst;
+	}
+}
+
 /*
  * Class:     io_github_yappy_lua_LuaEngine
  * Method:    setGlobal
@@ -1138,7 +3449,7 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_getGlobal
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setGlobal
   (JNIEnv *env, jclass, jlong peer, jstring name)
 {
-	auto L = reinterpret_cast<Lua *>(peer)->L();
+	auto L = Lua::FromPeer(env, peer)->L();
 
 	if (!HasStack(L, 1)) {
 		jniutil::ThrowIllegalStateException(env, "Stack underflow");
@@ -1157,8 +3468,9 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setGlobal
 	// ret: none
 	lua_CFunction f = [](lua_State *L) -> int
 	{
-		lua_setglobal(L, static_cast<const char *>(lua_touserdata(L, 1)));
-		lua_pop(L, 1);
+		PushGlobalTable(L);
+		lua_insert(L, 2);
+		lua_setfield(L, 2, static_cast<const char *>(lua_touserdata(L, 1)));
 		return 0;
 	};
 	// cfunc
@@ -1177,9 +3489,9 @@ JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_setGlobal
  * Signature: (JLio/github/yappy/lua/FunctionRoot;)V
  */
 JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setProxyCallback
-  (JNIEnv *, jclass, jlong peer, jobject callback)
+  (JNIEnv *env, jclass, jlong peer, jobject callback)
 {
-	auto lua = reinterpret_cast<Lua *>(peer);
+	auto lua = Lua::FromPeer(env, peer);
 	lua->SetProxyCallback(callback);
 }
 
@@ -1191,7 +3503,7 @@ JNIEXPORT void JNICALL Java_io_github_yappy_lua_LuaEngine_setProxyCallback
 JNIEXPORT jint JNICALL Java_io_github_yappy_lua_LuaEngine_pushProxyFunction
   (JNIEnv *env, jclass, jlong peer, jint id)
 {
-	auto lua = reinterpret_cast<Lua *>(peer);
+	auto lua = Lua::FromPeer(env, peer);
 	auto L = lua->L();
 
 	// cfunction + upvalue
@@ -1230,6 +3542,7 @@ JNIEXPORT jint JNICALL JNI_OnLoad(JavaVM *vm, void * /*reserved*/)
 	if (!jniutil::CacheAllMethod(env)) {
 		return JNI_ERR;
 	}
+	jniutil::SetJavaVM(vm);
 	return USE_VNI_VERSION;
 }
 
@@ -1240,6 +3553,7 @@ JNIEXPORT void JNICALL JNI_OnUnload(JavaVM *vm, void * /*reserved*/)
 		return;
 	}
 	jniutil::ClearAllCache(env);
+	jniutil::SetJavaVM(nullptr);
 }
 
 #ifdef __cplusplus
@@ -0,0 +1,37 @@
+#include "memory_budget.h"
+
+MemoryBudget::MemoryBudget(size_t softLimit, size_t hardLimit) :
+	m_softLimit(softLimit), m_hardLimit(hardLimit),
+	m_used(0), m_refCount(1), m_emergencyGcCount(0), m_rejectCount(0)
+{}
+
+void MemoryBudget::AddRef()
+{
+	m_refCount.fetch_add(1, std::memory_order_relaxed);
+}
+
+void MemoryBudget::Release()
+{
+	if (m_refCount.fetch_sub(1, std::memory_order_acq_rel) == 1) {
+		delete this;
+	}
+}
+
+bool MemoryBudget::Reserve(size_t size, bool hard)
+{
+	size_t limit = hard ? m_hardLimit : m_softLimit;
+	size_t used = m_used.load(std::memory_order_relaxed);
+	do {
+		if (size > limit || used > limit - size) {
+			return false;
+		}
+		// retry with the latest value if another thread changed it
+	} while (!m_used.compare_exchange_weak(used, used + size,
+		std::memory_order_relaxed));
+	return true;
+}
+
+void MemoryBudget::Unreserve(size_t size)
+{
+	m_used.fetch_sub(size, std::memory_order_relaxed);
+}
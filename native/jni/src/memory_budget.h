@@ -0,0 +1,67 @@
+#pragma once
+
+#include <atomic>
+#include <cstddef>
+#include <cstdint>
+
+/*
+ * Native memory budget shared by multiple lua_State.
+ *
+ * Lock-free; Reserve() and Unreserve() may be called from any thread.
+ * Lifetime is controlled by reference count. The creator has the first
+ * reference and each Lua state using this budget has one.
+ */
+class MemoryBudget {
+public:
+	MemoryBudget(size_t softLimit, size_t hardLimit);
+	MemoryBudget(const MemoryBudget &) = delete;
+	MemoryBudget &operator=(const MemoryBudget &) = delete;
+
+	void AddRef();
+	// delete this if the last reference
+	void Release();
+
+	// return false if used + size exceeds softLimit (or hardLimit)
+	bool Reserve(size_t size, bool hard);
+	void Unreserve(size_t size);
+
+	void CountEmergencyGc()
+	{
+		m_emergencyGcCount.fetch_add(1, std::memory_order_relaxed);
+	}
+	void CountReject()
+	{
+		m_rejectCount.fetch_add(1, std::memory_order_relaxed);
+	}
+
+	size_t GetSoftLimit() const
+	{
+		return m_softLimit;
+	}
+	size_t GetHardLimit() const
+	{
+		return m_hardLimit;
+	}
+	size_t GetUsed() const
+	{
+		return m_used.load(std::memory_order_relaxed);
+	}
+	uint64_t GetEmergencyGcCount() const
+	{
+		return m_emergencyGcCount.load(std::memory_order_relaxed);
+	}
+	uint64_t GetRejectCount() const
+	{
+		return m_rejectCount.load(std::memory_order_relaxed);
+	}
+
+private:
+	~MemoryBudget() = default;
+
+	const size_t m_softLimit;
+	const size_t m_hardLimit;
+	std::atomic<size_t> m_used;
+	std::atomic<int> m_refCount;
+	std::atomic<uint64_t> m_emergencyGcCount;
+	std::atomic<uint64_t> m_rejectCount;
+};
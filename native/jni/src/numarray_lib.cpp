@@ -0,0 +1,430 @@
+#include "numarray_lib.h"
+
+#include <lauxlib.h>
+#include <algorithm>
+#include <climits>
+#include <cstring>
+
+namespace {
+
+	// registry key for the metatable
+	const char *const NumArrayMeta = "ajlua.numarray";
+	const char *const TypeNames[] = { "double", "int64", nullptr };
+
+	// userdata header, elements follow
+	struct NumArray {
+		lua_Integer len;
+		int type;
+	};
+	static_assert(sizeof(NumArray) % sizeof(lua_Number) == 0, "alignment");
+	static_assert(sizeof(lua_Number) == sizeof(lua_Integer), "element size");
+
+	const size_t ElementSize = sizeof(lua_Number);
+
+	inline lua_Number *Doubles(NumArray *a)
+	{
+		return reinterpret_cast<lua_Number *>(a + 1);
+	}
+
+	inline lua_Integer *Integers(NumArray *a)
+	{
+		return reinterpret_cast<lua_Integer *>(a + 1);
+	}
+
+	// wrap around as Lua integer arithmetic
+	inline lua_Integer IntAdd(lua_Integer a, lua_Integer b)
+	{
+		return static_cast<lua_Integer>(
+			static_cast<lua_Unsigned>(a) + static_cast<lua_Unsigned>(b));
+	}
+
+	inline lua_Integer IntMul(lua_Integer a, lua_Integer b)
+	{
+		return static_cast<lua_Integer>(
+			static_cast<lua_Unsigned>(a) * static_cast<lua_Unsigned>(b));
+	}
+
+	NumArray *CheckNumArray(lua_State *L, int idx)
+	{
+		return static_cast<NumArray *>(luaL_checkudata(L, idx, NumArrayMeta));
+	}
+
+	NumArray *NewNumArray(lua_State *L, int type, lua_Integer len)
+	{
+		const size_t max = (static_cast<size_t>(-1) / 2 - sizeof(NumArray)) /
+			ElementSize;
+		if (len < 0 || static_cast<lua_Unsigned>(len) > max) {
+			luaL_error(L, "invalid array length: %I", len);
+			return nullptr;
+		}
+		size_t size = static_cast<size_t>(len) * ElementSize;
+		auto a = static_cast<NumArray *>(
+			lua_newuserdata(L, sizeof(NumArray) + size));
+		a->len = len;
+		a->type = type;
+		// all-zero bits are 0.0 and 0
+		std::memset(a + 1, 0, size);
+		luaL_setmetatable(L, NumArrayMeta);
+		return a;
+	}
+
+	NumArray *NewCopy(lua_State *L, NumArray *a, lua_Integer from,
+		lua_Integer len)
+	{
+		NumArray *b = NewNumArray(L, a->type, len);
+		std::memcpy(b + 1, Doubles(a) + from,
+			static_cast<size_t>(len) * ElementSize);
+		return b;
+	}
+
+	// the same as string.sub
+	lua_Integer PosRelat(lua_Integer pos, lua_Integer len)
+	{
+		if (pos >= 0) {
+			return pos;
+		}
+		else if (-pos > len) {
+			return 0;
+		}
+		else {
+			return len + pos + 1;
+		}
+	}
+
+	template <class T, class U>
+	lua_Number DotDouble(const T *x, const U *y, lua_Integer n)
+	{
+		lua_Number sum = 0;
+		for (lua_Integer i = 0; i < n; i++) {
+			sum += static_cast<lua_Number>(x[i]) * static_cast<lua_Number>(y[i]);
+		}
+		return sum;
+	}
+
+	template <class T>
+	void AxpyDouble(lua_Number *y, lua_Number alpha, const T *x, lua_Integer n)
+	{
+		for (lua_Integer i = 0; i < n; i++) {
+			y[i] += alpha * static_cast<lua_Number>(x[i]);
+		}
+	}
+
+	// numarray.new(n [, type])
+	int New(lua_State *L)
+	{
+		lua_Integer len = luaL_checkinteger(L, 1);
+		int type = luaL_checkoption(L, 2, "double", TypeNames);
+		NewNumArray(L, type, len);
+		return 1;
+	}
+
+	// numarray.fromtable(t [, type])
+	int FromTable(lua_State *L)
+	{
+		luaL_checktype(L, 1, LUA_TTABLE);
+		int type = luaL_checkoption(L, 2, "double", TypeNames);
+		lua_Integer len = static_cast<lua_Integer>(lua_rawlen(L, 1));
+		NumArray *a = NewNumArray(L, type, len);
+		for (lua_Integer i = 0; i < len; i++) {
+			lua_rawgeti(L, 1, i + 1);
+			int isnum = 0;
+			if (type == NumArrayDouble) {
+				Doubles(a)[i] = lua_tonumberx(L, -1, &isnum);
+			}
+			else {
+				Integers(a)[i] = lua_tointegerx(L, -1, &isnum);
+			}
+			if (isnum == 0 || lua_type(L, -1) != LUA_TNUMBER) {
+				return luaL_error(L, "element %I is not %s", i + 1,
+					(type == NumArrayDouble) ? "a number" : "an integer");
+			}
+			lua_pop(L, 1);
+		}
+		return 1;
+	}
+
+	// array[i] (upvalue 1: methods)
+	int Index(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		if (lua_type(L, 2) != LUA_TNUMBER) {
+			lua_settop(L, 2);
+			lua_gettable(L, lua_upvalueindex(1));
+			return 1;
+		}
+		int isnum = 0;
+		lua_Integer i = lua_tointegerx(L, 2, &isnum);
+		if (isnum == 0 || i < 1 || i > a->len) {
+			lua_pushnil(L);
+		}
+		else if (a->type == NumArrayDouble) {
+			lua_pushnumber(L, Doubles(a)[i - 1]);
+		}
+		else {
+			lua_pushinteger(L, Integers(a)[i - 1]);
+		}
+		return 1;
+	}
+
+	// array[i] = v
+	int NewIndex(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		int isnum = 0;
+		lua_Integer i = lua_tointegerx(L, 2, &isnum);
+		if (lua_type(L, 2) != LUA_TNUMBER || isnum == 0) {
+			return luaL_argerror(L, 2, "integer index expected");
+		}
+		if (i < 1 || i > a->len) {
+			return luaL_error(L, "index out of range: %I", i);
+		}
+		if (a->type == NumArrayDouble) {
+			Doubles(a)[i - 1] = luaL_checknumber(L, 3);
+		}
+		else {
+			Integers(a)[i - 1] = luaL_checkinteger(L, 3);
+		}
+		return 0;
+	}
+
+	// array:len(), #array
+	int Len(lua_State *L)
+	{
+		lua_pushinteger(L, CheckNumArray(L, 1)->len);
+		return 1;
+	}
+
+	// array:type()
+	int Type(lua_State *L)
+	{
+		lua_pushstring(L, TypeNames[CheckNumArray(L, 1)->type]);
+		return 1;
+	}
+
+	// tostring(array)
+	int ToString(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		lua_pushfstring(L, "numarray<%s>[%I]: %p",
+			TypeNames[a->type], a->len, static_cast<void *>(a));
+		return 1;
+	}
+
+	// array:totable()
+	int ToTable(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		luaL_argcheck(L, a->len < INT_MAX, 1, "array is too large");
+		int len = static_cast<int>(a->len);
+		lua_createtable(L, len, 0);
+		for (int i = 0; i < len; i++) {
+			if (a->type == NumArrayDouble) {
+				lua_pushnumber(L, Doubles(a)[i]);
+			}
+			else {
+				lua_pushinteger(L, Integers(a)[i]);
+			}
+			lua_rawseti(L, -2, i + 1);
+		}
+		return 1;
+	}
+
+	// array:slice(i [, j])
+	int Slice(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		lua_Integer i = PosRelat(luaL_checkinteger(L, 2), a->len);
+		lua_Integer j = PosRelat(luaL_optinteger(L, 3, -1), a->len);
+		i = std::max<lua_Integer>(i, 1);
+		j = std::min(j, a->len);
+		NewCopy(L, a, i - 1, (i <= j) ? j - i + 1 : 0);
+		return 1;
+	}
+
+	// array:copy()
+	int Copy(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		NewCopy(L, a, 0, a->len);
+		return 1;
+	}
+
+	// array:fill(v)
+	int Fill(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		if (a->type == NumArrayDouble) {
+			std::fill_n(Doubles(a), a->len, luaL_checknumber(L, 2));
+		}
+		else {
+			std::fill_n(Integers(a), a->len, luaL_checkinteger(L, 2));
+		}
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// array:sum()
+	int Sum(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		if (a->type == NumArrayDouble) {
+			const lua_Number *x = Doubles(a);
+			lua_Number sum = 0;
+			for (lua_Integer i = 0; i < a->len; i++) {
+				sum += x[i];
+			}
+			lua_pushnumber(L, sum);
+		}
+		else {
+			const lua_Integer *x = Integers(a);
+			lua_Integer sum = 0;
+			for (lua_Integer i = 0; i < a->len; i++) {
+				sum = IntAdd(sum, x[i]);
+			}
+			lua_pushinteger(L, sum);
+		}
+		return 1;
+	}
+
+	// array:dot(x)
+	int Dot(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		NumArray *b = CheckNumArray(L, 2);
+		luaL_argcheck(L, a->len == b->len, 2, "length mismatch");
+		lua_Integer n = a->len;
+		if (a->type == NumArrayInt64 && b->type == NumArrayInt64) {
+			const lua_Integer *x = Integers(a);
+			const lua_Integer *y = Integers(b);
+			lua_Integer sum = 0;
+			for (lua_Integer i = 0; i < n; i++) {
+				sum = IntAdd(sum, IntMul(x[i], y[i]));
+			}
+			lua_pushinteger(L, sum);
+		}
+		else if (a->type == NumArrayInt64) {
+			lua_pushnumber(L, DotDouble(Integers(a), Doubles(b), n));
+		}
+		else if (b->type == NumArrayInt64) {
+			lua_pushnumber(L, DotDouble(Doubles(a), Integers(b), n));
+		}
+		else {
+			lua_pushnumber(L, DotDouble(Doubles(a), Doubles(b), n));
+		}
+		return 1;
+	}
+
+	// array:scale(alpha)
+	int Scale(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		if (a->type == NumArrayDouble) {
+			lua_Number alpha = luaL_checknumber(L, 2);
+			lua_Number *x = Doubles(a);
+			for (lua_Integer i = 0; i < a->len; i++) {
+				x[i] *= alpha;
+			}
+		}
+		else {
+			lua_Integer alpha = luaL_checkinteger(L, 2);
+			lua_Integer *x = Integers(a);
+			for (lua_Integer i = 0; i < a->len; i++) {
+				x[i] = IntMul(x[i], alpha);
+			}
+		}
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// array:axpy(alpha, x)
+	int Axpy(lua_State *L)
+	{
+		NumArray *a = CheckNumArray(L, 1);
+		NumArray *b = CheckNumArray(L, 3);
+		luaL_argcheck(L, a->len == b->len, 3, "length mismatch");
+		lua_Integer n = a->len;
+		if (a->type == NumArrayDouble) {
+			lua_Number alpha = luaL_checknumber(L, 2);
+			if (b->type == NumArrayDouble) {
+				AxpyDouble(Doubles(a), alpha, Doubles(b), n);
+			}
+			else {
+				AxpyDouble(Doubles(a), alpha, Integers(b), n);
+			}
+		}
+		else {
+			lua_Integer alpha = luaL_checkinteger(L, 2);
+			luaL_argcheck(L, b->type == NumArrayInt64, 3, "int64 array expected");
+			lua_Integer *y = Integers(a);
+			const lua_Integer *x = Integers(b);
+			for (lua_Integer i = 0; i < n; i++) {
+				y[i] = IntAdd(y[i], IntMul(alpha, x[i]));
+			}
+		}
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	const luaL_Reg NumArrayMethods[] = {
+		{"len", Len},
+		{"type", Type},
+		{"totable", ToTable},
+		{"slice", Slice},
+		{"copy", Copy},
+		{"fill", Fill},
+		{"sum", Sum},
+		{"dot", Dot},
+		{"scale", Scale},
+		{"axpy", Axpy},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg NumArrayMetaMethods[] = {
+		{"__newindex", NewIndex},
+		{"__len", Len},
+		{"__tostring", ToString},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg NumArrayFuncs[] = {
+		{"new", New},
+		{"fromtable", FromTable},
+		{nullptr, nullptr}
+	};
+
+}
+
+int luaopen_numarray(lua_State *L)
+{
+	luaL_newmetatable(L, NumArrayMeta);
+	luaL_setfuncs(L, NumArrayMetaMethods, 0);
+	// __index needs both elements and methods
+	luaL_newlib(L, NumArrayMethods);
+	lua_pushcclosure(L, Index, 1);
+	lua_setfield(L, -2, "__index");
+	lua_pop(L, 1);
+
+	luaL_newlib(L, NumArrayFuncs);
+	return 1;
+}
+
+void *PushNumArray(lua_State *L, int type, lua_Integer len)
+{
+	// without the metatable the userdata is not an array
+	if (luaL_getmetatable(L, NumArrayMeta) != LUA_TTABLE) {
+		luaL_error(L, "numarray library is not open");
+	}
+	lua_pop(L, 1);
+	return NewNumArray(L, type, len) + 1;
+}
+
+void *ToNumArray(lua_State *L, int idx, int *type, lua_Integer *len)
+{
+	auto a = static_cast<NumArray *>(luaL_testudata(L, idx, NumArrayMeta));
+	if (a == nullptr) {
+		return nullptr;
+	}
+	*type = a->type;
+	*len = a->len;
+	return a + 1;
+}
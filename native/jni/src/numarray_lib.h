@@ -0,0 +1,48 @@
+#pragma once
+
+#include <lua.h>
+
+#define LUA_NUMARRAYLIBNAME "numarray"
+
+/*
+ * Numeric array library.
+ *
+ * numarray.new(n [, "double" | "int64"]) -> array (zero-filled)
+ * numarray.fromtable(t [, "double" | "int64"]) -> array
+ * array[i], array[i] = v, #array (1-origin, nil if out of range)
+ * array:type() -> "double" or "int64"
+ * array:totable() -> table
+ * array:slice(i [, j]) -> new array (indices as string.sub)
+ * array:copy() -> new array
+ * array:fill(v) -> array
+ * array:sum() -> number
+ * array:dot(x) -> number
+ * array:scale(a) -> array (array = a * array)
+ * array:axpy(a, x) -> array (array = a * x + array)
+ *
+ * Elements are stored contiguously in the userdata block, so they are
+ * counted by Lua GC and the memory limit as other objects.
+ * An int64 array keeps integers exactly (arithmetic wraps around as Lua
+ * integers), and a value stored into it must have an integer
+ * representation. Operations of an int64 array with a double operand
+ * are done in double, and an in-place result into an int64 array must
+ * be an integer operation.
+ */
+int luaopen_numarray(lua_State *L);
+
+// element types
+const int NumArrayDouble = 0;
+const int NumArrayInt64 = 1;
+
+/*
+ * Push a new zero-filled array and return its elements.
+ * Might raise an error. (e.g. memory error, or luaopen_numarray() has
+ * not been called)
+ */
+void *PushNumArray(lua_State *L, int type, lua_Integer len);
+
+/*
+ * Return the elements of the array at idx, or nullptr if it is not an
+ * array. Never raises an error.
+ */
+void *ToNumArray(lua_State *L, int idx, int *type, lua_Integer *len);
@@ -0,0 +1,124 @@
+#include "slab_allocator.h"
+
+#include <algorithm>
+#include <cstdlib>
+#include <cstring>
+
+SlabAllocator::SlabAllocator() = default;
+
+SlabAllocator::~SlabAllocator()
+{
+	for (void *chunk : m_chunks) {
+		std::free(chunk);
+	}
+	for (void *block : m_adopted) {
+		std::free(block);
+	}
+}
+
+void *SlabAllocator::Allocate(size_t size)
+{
+	if (size == 0) {
+		return nullptr;
+	}
+	if (!IsSmall(size)) {
+		return std::malloc(size);
+	}
+	return AllocateSmall(ClassIndex(size));
+}
+
+void SlabAllocator::Free(void *ptr, size_t size)
+{
+	if (ptr == nullptr) {
+		return;
+	}
+	if (!IsSmall(size)) {
+		std::free(ptr);
+		return;
+	}
+	FreeSmall(ptr, ClassIndex(size));
+}
+
+void *SlabAllocator::Reallocate(void *ptr, size_t osize, size_t nsize)
+{
+	if (ptr == nullptr) {
+		return Allocate(nsize);
+	}
+	if (!IsSmall(osize) && !IsSmall(nsize)) {
+		return std::realloc(ptr, nsize);
+	}
+	if (IsSmall(osize) && IsSmall(nsize) &&
+		ClassIndex(osize) == ClassIndex(nsize)) {
+		// fits in the same block
+		return ptr;
+	}
+	void *p = Allocate(nsize);
+	if (p == nullptr) {
+		if (nsize < osize) {
+			// Lua expects that shrinking never fails.
+			// Keep the larger block. It will be freed as nsize class.
+			if (!IsSmall(osize)) {
+				// malloc block joins the small block pool
+				Adopt(ptr);
+			}
+			return ptr;
+		}
+		return nullptr;
+	}
+	std::memcpy(p, ptr, std::min(osize, nsize));
+	Free(ptr, osize);
+	return p;
+}
+
+void SlabAllocator::Adopt(void *ptr)
+{
+	try {
+		m_adopted.push_back(ptr);
+	}
+	catch (...) {
+		// cannot track it; it will be leaked at destruction
+	}
+}
+
+void *SlabAllocator::AllocateSmall(size_t index)
+{
+	SizeClass &sc = m_classes[index];
+	// reuse a freed block
+	if (sc.freeList != nullptr) {
+		FreeBlock *block = sc.freeList;
+		sc.freeList = block->next;
+		return block;
+	}
+	// carve from the current chunk
+	size_t blockSize = ClassSize(index);
+	if (sc.bump == nullptr ||
+		static_cast<size_t>(sc.bumpEnd - sc.bump) < blockSize) {
+		// reserve before malloc so that push_back never fails after it
+		if (m_chunks.size() == m_chunks.capacity()) {
+			try {
+				m_chunks.reserve(std::max<size_t>(16, m_chunks.size() * 2));
+			}
+			catch (...) {
+				return nullptr;
+			}
+		}
+		void *chunk = std::malloc(ChunkSize);
+		if (chunk == nullptr) {
+			return nullptr;
+		}
+		m_chunks.push_back(chunk);
+		sc.bump = static_cast<uint8_t *>(chunk);
+		sc.bumpEnd = sc.bump + ChunkSize;
+	}
+	void *p = sc.bump;
+	sc.bump += blockSize;
+	return p;
+}
+
+void SlabAllocator::FreeSmall(void *ptr, size_t index)
+{
+	SizeClass &sc = m_classes[index];
+	FreeBlock *block = static_cast<FreeBlock *>(ptr);
+	block->next = sc.freeList;
+	sc.freeList = block;
+}
@@ -0,0 +1,78 @@
+#pragma once
+
+#include <array>
+#include <cstddef>
+#include <cstdint>
+#include <vector>
+
+/*
+ * Size-class slab allocator for a lua_State.
+ *
+ * Small blocks (<= MaxSmallSize) are carved from large chunks and
+ * freed blocks are kept in a free list per size class for reuse.
+ * Chunks are never returned to the system heap until the allocator is
+ * destroyed, so a long-lived Lua state does not scatter small blocks
+ * over the whole process heap.
+ * Large blocks are passed to malloc/realloc/free as is.
+ *
+ * Not thread-safe. (one allocator per lua_State)
+ */
+class SlabAllocator {
+public:
+	static const size_t Granularity = 16;
+	static const size_t MaxSmallSize = 256;
+	static const size_t ChunkSize = 64 * 1024;
+
+	SlabAllocator();
+	~SlabAllocator();
+	SlabAllocator(const SlabAllocator &) = delete;
+	SlabAllocator &operator=(const SlabAllocator &) = delete;
+
+	// return nullptr if failed
+	void *Allocate(size_t size);
+	// size must be the same as allocated size
+	void Free(void *ptr, size_t size);
+	// return nullptr if failed (ptr is still valid)
+	void *Reallocate(void *ptr, size_t osize, size_t nsize);
+
+	// bytes reserved from the system heap for small blocks
+	size_t GetReservedSize() const
+	{
+		return m_chunks.size() * ChunkSize;
+	}
+
+private:
+	static const size_t ClassCount = MaxSmallSize / Granularity;
+
+	struct FreeBlock {
+		FreeBlock *next;
+	};
+	struct SizeClass {
+		FreeBlock *freeList = nullptr;
+		// unused area of the current chunk
+		uint8_t *bump = nullptr;
+		uint8_t *bumpEnd = nullptr;
+	};
+
+	std::array<SizeClass, ClassCount> m_classes;
+	std::vector<void *> m_chunks;
+	// large blocks which became small by shrinking
+	std::vector<void *> m_adopted;
+
+	static bool IsSmall(size_t size)
+	{
+		return size <= MaxSmallSize;
+	}
+	static size_t ClassIndex(size_t size)
+	{
+		return (size + Granularity - 1) / Granularity - 1;
+	}
+	static size_t ClassSize(size_t index)
+	{
+		return (index + 1) * Granularity;
+	}
+
+	void *AllocateSmall(size_t index);
+	void FreeSmall(void *ptr, size_t index);
+	void Adopt(void *ptr);
+};
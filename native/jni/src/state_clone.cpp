@@ -0,0 +1,269 @@
+#include "state_clone.h"
+
+#include <lauxlib.h>
+// internal header for the string metatable
+#include <lstate.h>
+#include <new>
+#include <string>
+#include <unordered_map>
+
+namespace {
+
+	const int MaxCloneDepth = 1000;
+
+	struct CloneContext {
+		lua_State *src;
+		lua_State *dst;
+		// dst table: memo id -> copied object
+		int memo;
+		int memoCount = 0;
+		// src object -> memo id
+		std::unordered_map<const void *, int> ids;
+		// src upvalue id -> (memo id of the first dst closure, upvalue index)
+		struct UpvalueRef {
+			int closure;
+			int n;
+		};
+		std::unordered_map<void *, UpvalueRef> upvalues;
+		int depth = 0;
+	};
+
+	void CopyValue(CloneContext &ctx, int idx);
+
+	// lua_getmetatable("") without creating a string (it can raise an error)
+	bool PushStringMetatable(lua_State *L)
+	{
+		Table *mt = G(L)->mt[LUA_TSTRING];
+		if (mt == nullptr) {
+			return false;
+		}
+		sethvalue(L, L->top, mt);
+		L->top++;
+		return true;
+	}
+
+	// register the dst object at the top with src object p
+	int Memoize(CloneContext &ctx, const void *p)
+	{
+		int id = ++ctx.memoCount;
+		lua_pushvalue(ctx.dst, -1);
+		lua_rawseti(ctx.dst, ctx.memo, id);
+		ctx.ids.emplace(p, id);
+		return id;
+	}
+
+	// src table at srcIdx -> dst table at dstIdx
+	void CopyTableContents(CloneContext &ctx, int srcIdx, int dstIdx)
+	{
+		lua_State *src = ctx.src;
+		lua_State *dst = ctx.dst;
+		srcIdx = lua_absindex(src, srcIdx);
+		dstIdx = lua_absindex(dst, dstIdx);
+
+		lua_pushnil(src);
+		while (lua_next(src, srcIdx) != 0) {
+			// key: -2, value: -1
+			CopyValue(ctx, -2);
+			CopyValue(ctx, -1);
+			lua_rawset(dst, dstIdx);
+			lua_pop(src, 1);
+		}
+		if (lua_getmetatable(src, srcIdx)) {
+			CopyValue(ctx, -1);
+			lua_setmetatable(dst, dstIdx);
+			lua_pop(src, 1);
+		}
+	}
+
+	int DumpWriter(lua_State *, const void *p, size_t sz, void *ud)
+	{
+		static_cast<std::string *>(ud)->append(static_cast<const char *>(p), sz);
+		return 0;
+	}
+
+	void CopyLuaFunction(CloneContext &ctx, int idx)
+	{
+		lua_State *src = ctx.src;
+		lua_State *dst = ctx.dst;
+
+		// bytecode with debug info
+		std::string bin;
+		lua_pushvalue(src, idx);
+		lua_dump(src, DumpWriter, &bin, 0);
+		lua_pop(src, 1);
+		if (luaL_loadbufferx(dst, bin.data(), bin.size(), "=clone", "b") !=
+			LUA_OK) {
+			lua_error(dst);
+		}
+		int f = lua_gettop(dst);
+		int id = Memoize(ctx, lua_topointer(src, idx));
+
+		for (int n = 1; lua_getupvalue(src, idx, n) != nullptr; n++) {
+			void *uid = lua_upvalueid(src, idx, n);
+			auto it = ctx.upvalues.find(uid);
+			if (it != ctx.upvalues.end()) {
+				// shared with a closure already copied
+				lua_rawgeti(dst, ctx.memo, it->second.closure);
+				lua_upvaluejoin(dst, f, n, -1, it->second.n);
+				lua_pop(dst, 1);
+			}
+			else {
+				CopyValue(ctx, -1);
+				lua_setupvalue(dst, f, n);
+				ctx.upvalues.emplace(uid, CloneContext::UpvalueRef{id, n});
+			}
+			lua_pop(src, 1);
+		}
+	}
+
+	void CopyCFunction(CloneContext &ctx, int idx)
+	{
+		lua_State *src = ctx.src;
+		lua_State *dst = ctx.dst;
+
+		lua_CFunction func = lua_tocfunction(src, idx);
+		int n = 0;
+		while (lua_getupvalue(src, idx, n + 1) != nullptr) {
+			n++;
+			luaL_checkstack(dst, 1, "clone");
+			CopyValue(ctx, -1);
+			lua_pop(src, 1);
+		}
+		lua_pushcclosure(dst, func, n);
+		Memoize(ctx, lua_topointer(src, idx));
+	}
+
+	// push a copy of src value at idx to dst
+	void CopyValue(CloneContext &ctx, int idx)
+	{
+		lua_State *src = ctx.src;
+		lua_State *dst = ctx.dst;
+		idx = lua_absindex(src, idx);
+
+		if (++ctx.depth > MaxCloneDepth) {
+			luaL_error(dst, "clone: too deep");
+		}
+		// src never raises errors; check its stack here
+		if (!lua_checkstack(src, 4)) {
+			luaL_error(dst, "clone: stack overflow");
+		}
+		luaL_checkstack(dst, 4, "clone");
+
+		int type = lua_type(src, idx);
+		switch (type) {
+		case LUA_TNIL:
+			lua_pushnil(dst);
+			break;
+		case LUA_TBOOLEAN:
+			lua_pushboolean(dst, lua_toboolean(src, idx));
+			break;
+		case LUA_TLIGHTUSERDATA:
+			lua_pushlightuserdata(dst, lua_touserdata(src, idx));
+			break;
+		case LUA_TNUMBER:
+			if (lua_isinteger(src, idx)) {
+				lua_pushinteger(dst, lua_tointeger(src, idx));
+			}
+			else {
+				lua_pushnumber(dst, lua_tonumber(src, idx));
+			}
+			break;
+		case LUA_TSTRING: {
+			size_t len;
+			const char *str = lua_tolstring(src, idx, &len);
+			lua_pushlstring(dst, str, len);
+			break;
+		}
+		case LUA_TTABLE:
+		case LUA_TFUNCTION: {
+			auto it = ctx.ids.find(lua_topointer(src, idx));
+			if (it != ctx.ids.end()) {
+				lua_rawgeti(dst, ctx.memo, it->second);
+			}
+			else if (type == LUA_TTABLE) {
+				lua_newtable(dst);
+				Memoize(ctx, lua_topointer(src, idx));
+				CopyTableContents(ctx, idx, -1);
+			}
+			else if (lua_iscfunction(src, idx)) {
+				CopyCFunction(ctx, idx);
+			}
+			else {
+				CopyLuaFunction(ctx, idx);
+			}
+			break;
+		}
+		case LUA_TTHREAD:
+			// only the main thread (registry[LUA_RIDX_MAINTHREAD])
+			if (lua_tothread(src, idx) != src) {
+				luaL_error(dst, "clone: cannot copy coroutine");
+			}
+			lua_pushthread(dst);
+			break;
+		default:
+			luaL_error(dst, "clone: cannot copy %s", lua_typename(src, type));
+			break;
+		}
+		ctx.depth--;
+	}
+
+	int CloneMain(lua_State *dst)
+	{
+		auto src = static_cast<lua_State *>(lua_touserdata(dst, 1));
+		bool oom = false;
+		try {
+			CloneContext ctx;
+			ctx.src = src;
+			ctx.dst = dst;
+			if (!lua_checkstack(src, 4)) {
+				luaL_error(dst, "clone: stack overflow");
+			}
+			lua_newtable(dst);
+			ctx.memo = lua_gettop(dst);
+
+			// registry and _G are mapped to the existing ones
+			lua_pushvalue(src, LUA_REGISTRYINDEX);
+			lua_pushvalue(dst, LUA_REGISTRYINDEX);
+			Memoize(ctx, lua_topointer(src, -1));
+			lua_rawgeti(src, LUA_REGISTRYINDEX, LUA_RIDX_GLOBALS);
+			lua_rawgeti(dst, LUA_REGISTRYINDEX, LUA_RIDX_GLOBALS);
+			Memoize(ctx, lua_topointer(src, -1));
+			CopyTableContents(ctx, -2, -2);
+			CopyTableContents(ctx, -1, -1);
+			lua_pop(src, 2);
+			lua_pop(dst, 2);
+
+			// metatable for all strings
+			if (PushStringMetatable(src)) {
+				lua_pushliteral(dst, "");
+				CopyValue(ctx, -1);
+				lua_setmetatable(dst, -2);
+				lua_pop(dst, 1);
+				lua_pop(src, 1);
+			}
+		}
+		catch (std::bad_alloc &) {
+			// Lua errors are not caught here
+			oom = true;
+		}
+		if (oom) {
+			return luaL_error(dst, "clone: not enough memory");
+		}
+		return 0;
+	}
+
+}
+
+int CloneState(lua_State *src, lua_State *dst)
+{
+	int srcTop = lua_gettop(src);
+	if (!lua_checkstack(dst, 2)) {
+		return LUA_ERRMEM;
+	}
+	lua_pushcfunction(dst, CloneMain);
+	lua_pushlightuserdata(dst, src);
+	int ret = lua_pcall(dst, 1, 0, 0);
+	// src stack might be left on error
+	lua_settop(src, srcTop);
+	return ret;
+}
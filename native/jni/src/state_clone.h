@@ -0,0 +1,18 @@
+#pragma once
+
+#include <lua.h>
+
+/*
+ * Deep copy of a lua_State into another lua_State.
+ *
+ * The registry (including _G and package.loaded) and the string metatable
+ * of src are copied into dst. Tables, Lua closures (bytecode is dumped and
+ * loaded) and C closures are copied with identity, so shared references,
+ * cycles and shared upvalues are kept.
+ * Full userdata and coroutines cannot be copied.
+ *
+ * src must be a main thread which is not running.
+ * src is read only and never raises an error.
+ * Return LUA_OK or an error code. (the error object is pushed on dst)
+ */
+int CloneState(lua_State *src, lua_State *dst);
@@ -0,0 +1,282 @@
+#include "strbuf_lib.h"
+
+#include <lauxlib.h>
+#include <cstdio>
+#include <cstring>
+
+namespace {
+
+	// registry key for the metatable
+	const char *const StrBufMeta = "ajlua.strbuf";
+	const size_t MinCapacity = 64;
+	// format spec is limited as string.format
+	const int MaxFormatSpec = 32;
+	const int MaxFormatItem = 512;
+
+	// data points into the userdata in the uservalue
+	struct StrBuf {
+		char *data;
+		size_t len;
+		size_t cap;
+	};
+
+	StrBuf *CheckStrBuf(lua_State *L, int idx)
+	{
+		return static_cast<StrBuf *>(luaL_checkudata(L, idx, StrBufMeta));
+	}
+
+	// make room for extra bytes (idx: the buffer)
+	// The storage is a userdata, so GC pacing counts it and the emergency
+	// GC can free unreachable buffers without finalizers.
+	void Reserve(lua_State *L, int idx, StrBuf *sb, size_t extra)
+	{
+		if (extra <= sb->cap - sb->len) {
+			return;
+		}
+		const size_t max = static_cast<size_t>(-1) / 2;
+		if (extra > max - sb->len) {
+			luaL_error(L, "string buffer is too large");
+			return;
+		}
+		size_t need = sb->len + extra;
+		size_t cap = (sb->cap > 0) ? sb->cap : MinCapacity;
+		while (cap < need) {
+			cap *= 2;
+		}
+
+		idx = lua_absindex(L, idx);
+		auto p = static_cast<char *>(lua_newuserdata(L, cap));
+		if (sb->len != 0) {
+			std::memcpy(p, sb->data, sb->len);
+		}
+		// the old storage becomes garbage
+		lua_setuservalue(L, idx);
+		sb->data = p;
+		sb->cap = cap;
+	}
+
+	void Append(lua_State *L, int idx, StrBuf *sb, const char *s, size_t len)
+	{
+		Reserve(L, idx, sb, len);
+		std::memcpy(sb->data + sb->len, s, len);
+		sb->len += len;
+	}
+
+	// strbuf.new([capacity])
+	int New(lua_State *L)
+	{
+		lua_Integer capacity = luaL_optinteger(L, 1, 0);
+		luaL_argcheck(L, capacity >= 0, 1, "out of range");
+		auto sb = static_cast<StrBuf *>(lua_newuserdata(L, sizeof(StrBuf)));
+		sb->data = nullptr;
+		sb->len = 0;
+		sb->cap = 0;
+		luaL_setmetatable(L, StrBufMeta);
+		Reserve(L, -1, sb, static_cast<size_t>(capacity));
+		return 1;
+	}
+
+	// buffer:append(...)
+	int AppendValues(lua_State *L)
+	{
+		StrBuf *sb = CheckStrBuf(L, 1);
+		int n = lua_gettop(L);
+		for (int i = 2; i <= n; i++) {
+			// converts a number in place (only the argument)
+			size_t len = 0;
+			const char *s = lua_tolstring(L, i, &len);
+			if (s == nullptr) {
+				return luaL_argerror(L, i, "string or number expected");
+			}
+			Append(L, 1, sb, s, len);
+		}
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// buffer:format(fmt, ...)
+	int Format(lua_State *L)
+	{
+		StrBuf *sb = CheckStrBuf(L, 1);
+		size_t fmtLen = 0;
+		const char *fmt = luaL_checklstring(L, 2, &fmtLen);
+		const char *const end = fmt + fmtLen;
+		int top = lua_gettop(L);
+		int arg = 2;
+		while (fmt < end) {
+			if (*fmt != '%') {
+				const char *run = fmt;
+				while (fmt < end && *fmt != '%') {
+					fmt++;
+				}
+				Append(L, 1, sb, run, fmt - run);
+				continue;
+			}
+			if (++fmt < end && *fmt == '%') {
+				Append(L, 1, sb, "%", 1);
+				fmt++;
+				continue;
+			}
+
+			// %[flags][width][.precision]conversion
+			char spec[MaxFormatSpec];
+			int n = 0;
+			spec[n++] = '%';
+			const char *p = fmt;
+			while (p < end && *p != '\0' && std::strchr("-+ #0", *p) != nullptr &&
+				p - fmt < 5) {
+				spec[n++] = *p++;
+			}
+			for (int i = 0; i < 2 && p < end && *p >= '0' && *p <= '9'; i++) {
+				spec[n++] = *p++;
+			}
+			if (p < end && *p == '.') {
+				spec[n++] = *p++;
+				for (int i = 0; i < 2 && p < end && *p >= '0' && *p <= '9'; i++) {
+					spec[n++] = *p++;
+				}
+			}
+			if (p == end) {
+				return luaL_error(L, "invalid conversion '%%' to 'format'");
+			}
+			if (*p >= '0' && *p <= '9') {
+				return luaL_error(L, "invalid format (width or precision too long)");
+			}
+			char conv = *p++;
+			fmt = p;
+			bool plain = (n == 1);
+			if (++arg > top) {
+				return luaL_argerror(L, arg, "no value");
+			}
+
+			char item[MaxFormatItem];
+			int len = 0;
+			switch (conv) {
+			case 'c':
+				spec[n++] = 'c';
+				spec[n] = '\0';
+				len = std::snprintf(item, sizeof(item), spec,
+					static_cast<int>(luaL_checkinteger(L, arg)));
+				break;
+			case 'd': case 'i': case 'o': case 'u': case 'x': case 'X':
+			{
+				const char *lenmod = LUA_INTEGER_FRMLEN;
+				size_t modlen = std::strlen(lenmod);
+				std::memcpy(spec + n, lenmod, modlen);
+				n += static_cast<int>(modlen);
+				spec[n++] = conv;
+				spec[n] = '\0';
+				len = std::snprintf(item, sizeof(item), spec,
+					static_cast<LUAI_UACINT>(luaL_checkinteger(L, arg)));
+				break;
+			}
+			case 'a': case 'A': case 'e': case 'E': case 'f': case 'F':
+			case 'g': case 'G':
+			{
+				const char *lenmod = LUA_NUMBER_FRMLEN;
+				size_t modlen = std::strlen(lenmod);
+				std::memcpy(spec + n, lenmod, modlen);
+				n += static_cast<int>(modlen);
+				spec[n++] = conv;
+				spec[n] = '\0';
+				len = std::snprintf(item, sizeof(item), spec,
+					static_cast<LUAI_UACNUMBER>(luaL_checknumber(L, arg)));
+				break;
+			}
+			case 's':
+			{
+				size_t slen = 0;
+				const char *s = luaL_tolstring(L, arg, &slen);
+				if (plain || (std::strchr(spec, '.') == nullptr && slen >= 100)) {
+					// as is (no need to format)
+					Append(L, 1, sb, s, slen);
+				}
+				else {
+					luaL_argcheck(L, std::strlen(s) == slen, arg,
+						"string contains zeros");
+					spec[n++] = 's';
+					spec[n] = '\0';
+					len = std::snprintf(item, sizeof(item), spec, s);
+				}
+				lua_pop(L, 1);
+				break;
+			}
+			default:
+				return luaL_error(L, "invalid option '%%%c' to 'format'", conv);
+			}
+			if (len < 0 || len >= MaxFormatItem) {
+				return luaL_error(L, "invalid format");
+			}
+			Append(L, 1, sb, item, static_cast<size_t>(len));
+		}
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// buffer:reset()
+	int Reset(lua_State *L)
+	{
+		CheckStrBuf(L, 1)->len = 0;
+		lua_settop(L, 1);
+		return 1;
+	}
+
+	// buffer:len(), #buffer
+	int Len(lua_State *L)
+	{
+		lua_pushinteger(L, static_cast<lua_Integer>(CheckStrBuf(L, 1)->len));
+		return 1;
+	}
+
+	// buffer:tostring(), tostring(buffer)
+	int ToString(lua_State *L)
+	{
+		StrBuf *sb = CheckStrBuf(L, 1);
+		lua_pushlstring(L, sb->data, sb->len);
+		return 1;
+	}
+
+	const luaL_Reg StrBufMethods[] = {
+		{"append", AppendValues},
+		{"format", Format},
+		{"reset", Reset},
+		{"len", Len},
+		{"tostring", ToString},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg StrBufMetaMethods[] = {
+		{"__len", Len},
+		{"__tostring", ToString},
+		{nullptr, nullptr}
+	};
+
+	const luaL_Reg StrBufFuncs[] = {
+		{"new", New},
+		{nullptr, nullptr}
+	};
+
+}
+
+int luaopen_strbuf(lua_State *L)
+{
+	luaL_newmetatable(L, StrBufMeta);
+	luaL_setfuncs(L, StrBufMetaMethods, 0);
+	luaL_newlib(L, StrBufMethods);
+	lua_setfield(L, -2, "__index");
+	lua_pop(L, 1);
+
+	luaL_newlib(L, StrBufFuncs);
+	return 1;
+}
+
+const char *ToStrBuf(lua_State *L, int idx, size_t *len)
+{
+	auto sb = static_cast<StrBuf *>(luaL_testudata(L, idx, StrBufMeta));
+	if (sb == nullptr) {
+		return nullptr;
+	}
+	*len = sb->len;
+	// non-null even if empty
+	return (sb->data != nullptr) ? sb->data : "";
+}
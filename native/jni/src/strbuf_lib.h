@@ -0,0 +1,30 @@
+#pragma once
+
+#include <lua.h>
+#include <cstddef>
+
+#define LUA_STRBUFLIBNAME "strbuf"
+
+/*
+ * String buffer library.
+ *
+ * strbuf.new([capacity]) -> buffer
+ * buffer:append(...) -> buffer (strings and numbers)
+ * buffer:format(fmt, ...) -> buffer (the same as string.format except %q)
+ * buffer:reset() -> buffer (capacity is kept)
+ * buffer:len(), #buffer -> length
+ * buffer:tostring(), tostring(buffer) -> string
+ *
+ * The buffer memory is a userdata kept as the uservalue of the buffer,
+ * so it is accounted to the memory limit and GC of the state as other
+ * objects. The buffer grows twice and no Lua string is created by
+ * append and format.
+ */
+int luaopen_strbuf(lua_State *L);
+
+/*
+ * Return the contents of the buffer at idx, or nullptr if it is not a
+ * buffer. The pointer is valid until the buffer is changed or collected.
+ * Never raises an error.
+ */
+const char *ToStrBuf(lua_State *L, int idx, size_t *len);
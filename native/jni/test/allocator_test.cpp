@@ -0,0 +1,197 @@
+#include <gtest/gtest.h>
+#include <chrono>
+#include <cstdio>
+#include <cstdlib>
+#include <cstring>
+#include <thread>
+#include <vector>
+#include "memory_budget.h"
+#include "slab_allocator.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+namespace {
+	void *MallocAlloc(void *, void *ptr, size_t, size_t nsize)
+	{
+		if (nsize == 0) {
+			std::free(ptr);
+			return nullptr;
+		}
+		return std::realloc(ptr, nsize);
+	}
+
+	void *SlabAlloc(void *ud, void *ptr, size_t osize, size_t nsize)
+	{
+		auto slab = static_cast<SlabAllocator *>(ud);
+		if (nsize == 0) {
+			// osize is a type tag if ptr is nullptr
+			if (ptr != nullptr) {
+				slab->Free(ptr, osize);
+			}
+			return nullptr;
+		}
+		if (ptr == nullptr) {
+			return slab->Allocate(nsize);
+		}
+		return slab->Reallocate(ptr, osize, nsize);
+	}
+
+	// many small tables and strings, mostly garbage
+	const char *ChurnScript =
+		"local keep = {}\n"
+		"for i = 1, 200000 do\n"
+		"  local t = { x = i, y = tostring(i), z = { i } }\n"
+		"  if i % 100 == 0 then keep[#keep + 1] = t end\n"
+		"end\n"
+		"return #keep\n";
+
+	double RunChurn(lua_Alloc f, void *ud)
+	{
+		auto start = std::chrono::steady_clock::now();
+		{
+			LuaPtr lua(lua_newstate(f, ud));
+			EXPECT_NE(nullptr, lua);
+			auto L = lua.get();
+			luaL_openlibs(L);
+			EXPECT_EQ(LUA_OK, luaL_dostring(L, ChurnScript));
+			EXPECT_EQ(2000, lua_tointeger(L, -1));
+		}
+		auto end = std::chrono::steady_clock::now();
+		return std::chrono::duration<double, std::milli>(end - start).count();
+	}
+}
+
+/*
+ * Small block reuse and size class boundary
+ */
+TEST(AllocatorTest, SlabSmallBlocks)
+{
+	SlabAllocator slab;
+
+	void *p1 = slab.Allocate(10);
+	void *p2 = slab.Allocate(16);
+	ASSERT_NE(nullptr, p1);
+	ASSERT_NE(nullptr, p2);
+	ASSERT_NE(p1, p2);
+	ASSERT_EQ(SlabAllocator::ChunkSize, slab.GetReservedSize());
+
+	// freed block is reused by the same size class
+	slab.Free(p1, 10);
+	void *p3 = slab.Allocate(12);
+	ASSERT_EQ(p1, p3);
+
+	// realloc in the same class keeps the block
+	void *p4 = slab.Reallocate(p3, 12, 16);
+	ASSERT_EQ(p3, p4);
+
+	// realloc to another class copies contents
+	std::memset(p4, 0x5a, 16);
+	void *p5 = slab.Reallocate(p4, 16, 100);
+	ASSERT_NE(nullptr, p5);
+	for (int i = 0; i < 16; i++) {
+		ASSERT_EQ(0x5a, static_cast<unsigned char *>(p5)[i]);
+	}
+
+	slab.Free(p2, 16);
+	slab.Free(p5, 100);
+}
+
+/*
+ * Large blocks and small <-> large realloc
+ */
+TEST(AllocatorTest, SlabLargeBlocks)
+{
+	SlabAllocator slab;
+
+	const size_t Large = SlabAllocator::MaxSmallSize + 1;
+	void *p = slab.Allocate(Large);
+	ASSERT_NE(nullptr, p);
+	// large blocks do not use chunks
+	ASSERT_EQ(0u, slab.GetReservedSize());
+
+	std::memset(p, 0x33, Large);
+	void *q = slab.Reallocate(p, Large, 8);
+	ASSERT_NE(nullptr, q);
+	ASSERT_EQ(0x33, static_cast<unsigned char *>(q)[7]);
+
+	void *r = slab.Reallocate(q, 8, 4096);
+	ASSERT_NE(nullptr, r);
+	ASSERT_EQ(0x33, static_cast<unsigned char *>(r)[7]);
+	slab.Free(r, 4096);
+}
+
+/*
+ * Shared budget soft/hard limit and reference count
+ */
+TEST(AllocatorTest, BudgetLimit)
+{
+	MemoryBudget *budget = new MemoryBudget(100, 200);
+	budget->AddRef();
+
+	ASSERT_TRUE(budget->Reserve(100, false));
+	ASSERT_FALSE(budget->Reserve(1, false));
+	ASSERT_TRUE(budget->Reserve(100, true));
+	ASSERT_FALSE(budget->Reserve(1, true));
+	ASSERT_EQ(200u, budget->GetUsed());
+	budget->Unreserve(150);
+	ASSERT_EQ(50u, budget->GetUsed());
+	ASSERT_FALSE(budget->Reserve(static_cast<size_t>(-1), true));
+
+	budget->Release();
+	budget->Release();
+}
+
+/*
+ * Reserve from many threads never exceeds the limit
+ */
+TEST(AllocatorTest, BudgetConcurrent)
+{
+	const int ThreadCount = 8;
+	const int Repeat = 100000;
+	const size_t Limit = 1000;
+	MemoryBudget *budget = new MemoryBudget(Limit, Limit);
+
+	std::vector<std::thread> threads;
+	std::vector<int> errors(ThreadCount, 0);
+	for (int t = 0; t < ThreadCount; t++) {
+		threads.emplace_back([budget, &errors, t, Limit]() {
+			for (int i = 0; i < Repeat; i++) {
+				size_t size = (i % 7 + 1) * 10;
+				if (budget->Reserve(size, false)) {
+					if (budget->GetUsed() > Limit) {
+						errors[t]++;
+					}
+					budget->Unreserve(size);
+				}
+			}
+		});
+	}
+	for (auto &th : threads) {
+		th.join();
+	}
+	for (int e : errors) {
+		ASSERT_EQ(0, e);
+	}
+	ASSERT_EQ(0u, budget->GetUsed());
+	budget->Release();
+}
+
+/*
+ * Lua state on the slab allocator
+ * Compare with malloc (result is only printed)
+ * Disabled in the unit run; --gtest_also_run_disabled_tests to run.
+ */
+TEST(AllocatorTest, DISABLED_SlabBenchmark)
+{
+	const int Repeat = 3;
+	double mallocTime = 0.0;
+	double slabTime = 0.0;
+	for (int i = 0; i < Repeat; i++) {
+		mallocTime += RunChurn(MallocAlloc, nullptr);
+		SlabAllocator slab;
+		slabTime += RunChurn(SlabAlloc, &slab);
+	}
+	std::printf("[ BENCH    ] malloc: %.1f ms, slab: %.1f ms\n",
+		mallocTime / Repeat, slabTime / Repeat);
+}
@@ -0,0 +1,130 @@
+#include <gtest/gtest.h>
+#include <cstdio>
+#include "bytes_lib.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+namespace {
+	void CountRelease(void *ctx)
+	{
+		++*static_cast<int *>(ctx);
+	}
+}
+
+/*
+ * Typed read/write, endianness and bounds
+ */
+TEST(BytesTest, ReadWrite)
+{
+	LuaPtr lua = make_lib_lua(LUA_BYTESLIBNAME, luaopen_bytes);
+	ASSERT_NE(nullptr, lua);
+	ASSERT_EQ("", Run(lua.get(),
+		"local b = bytes.new(16)\n"
+		"assert(#b == 16 and b:len() == 16 and not b:readonly())\n"
+		"assert(b:read('i64', 1) == 0 and b:read('u8', 16) == 0)\n"
+		"b:write('u16', 1, 0x1234):write('u16be', 3, 0x1234)\n"
+		"assert(b:string(1, 4) == '\\x34\\x12\\x12\\x34')\n"
+		"b:write('i32', 5, -2)\n"
+		"assert(b:read('i32', 5) == -2 and b:read('u32', 5) == 0xfffffffe)\n"
+		"assert(b:read('i8', 5) == -2 and b:read('u8', 5) == 0xfe)\n"
+		"b:write('f64be', 9, 1.5)\n"
+		"assert(b:read('f64be', 9) == 1.5 and b:read('f64', 9) ~= 1.5)\n"
+		"assert(b:string(9, 16) == string.pack('>d', 1.5))\n"
+		"b:write('f32', 1, 0.25):write('i64be', 9, math.mininteger)\n"
+		"assert(b:read('f32', 1) == 0.25)\n"
+		"assert(b:read('i64be', 9) == math.mininteger)\n"
+		"assert(b:read('i16be', 3) == string.unpack('>i2', b:string(), 3))\n"
+		"assert(not pcall(b.read, b, 'u8', 0))\n"
+		"assert(not pcall(b.read, b, 'u8', 17))\n"
+		"assert(not pcall(b.read, b, 'i32', 14))\n"
+		"assert(not pcall(b.read, b, 'i24', 1))\n"
+		"assert(not pcall(b.write, b, 'u8', 1, 256))\n"
+		"assert(not pcall(b.write, b, 'i8', 1, -129))\n"
+		"assert(not pcall(b.write, b, 'u16', 1, -1))\n"
+		"assert(not pcall(b.write, b, 'i32', 1, 1.5))\n"
+		"local s = bytes.new('abc')\n"
+		"assert(#s == 3 and s:string() == 'abc' and s:string(-2) == 'bc')\n"
+		"s:put(2, 'xy')\n"
+		"assert(s:string() == 'axy')\n"
+		"assert(not pcall(s.put, s, 3, 'zz'))\n"
+		"s:put(1, s:slice(2))\n"
+		"assert(s:string() == 'xyy')\n"));
+}
+
+/*
+ * Slices share the memory and keep the parent alive
+ */
+TEST(BytesTest, View)
+{
+	LuaPtr lua = make_lib_lua(LUA_BYTESLIBNAME, luaopen_bytes);
+	ASSERT_NE(nullptr, lua);
+	lua_State *L = lua.get();
+
+	char data[8] = { 1, 2, 3, 4, 5, 6, 7, 8 };
+	int released = 0;
+	PushBytes(L, data, sizeof(data), false, CountRelease, &released);
+	lua_setglobal(L, "ext");
+	PushBytes(L, data, sizeof(data), true, nullptr, nullptr);
+	lua_setglobal(L, "ro");
+	ASSERT_EQ("", Run(L,
+		"s = ext:slice(3, 6)\n"
+		"assert(#s == 4 and s:read('u8', 1) == 3 and s:read('u8', 4) == 6)\n"
+		"assert(#ext:slice(7, 100) == 2 and #ext:slice(5, 4) == 0)\n"
+		"s:write('u16be', 1, 0xabcd)\n"
+		"assert(ext:read('u16be', 3) == 0xabcd)\n"
+		"assert(not pcall(s.read, s, 'u8', 5))\n"
+		"assert(ro:readonly() and ro:slice(2):readonly())\n"
+		"assert(not pcall(ro.write, ro, 'u8', 1, 0))\n"
+		"assert(not pcall(ro.put, ro, 1, 'x'))\n"
+		"assert(ro:read('u8', 3) == 0xab)\n"
+		"ext = nil\n"
+		"collectgarbage()\n"));
+	ASSERT_EQ(0, released);
+	ASSERT_EQ(static_cast<char>(0xab), data[2]);
+	ASSERT_EQ(static_cast<char>(0xcd), data[3]);
+
+	size_t len = 0;
+	lua_getglobal(L, "s");
+	ASSERT_EQ(data + 2, ToBytes(L, -1, &len));
+	ASSERT_EQ(4u, len);
+	lua_pop(L, 1);
+	lua_pushinteger(L, 1);
+	ASSERT_EQ(nullptr, ToBytes(L, -1, &len));
+	lua_pop(L, 1);
+
+	ASSERT_EQ("", Run(L, "s = nil; collectgarbage()"));
+	ASSERT_EQ(1, released);
+}
+
+/*
+ * Read header fields of large messages (result is only printed)
+ * Disabled in the unit run; --gtest_also_run_disabled_tests to run.
+ * A string copy of each message is needed for string.unpack.
+ */
+TEST(BytesTest, DISABLED_Benchmark)
+{
+	LuaPtr lua = make_lib_lua(LUA_BYTESLIBNAME, luaopen_bytes);
+	ASSERT_NE(nullptr, lua);
+	lua_State *L = lua.get();
+	ASSERT_EQ("", Run(L,
+		"msg = bytes.new(64 * 1024)\n"
+		"msg:write('u16be', 1, 7):write('u32be', 3, 12345):write('f64be', 7, 0.5)\n"
+		"function viaBytes(m)\n"
+		"  return m:read('u16be', 1) + m:read('u32be', 3) + m:read('f64be', 7)\n"
+		"end\n"
+		"function viaString(m)\n"
+		"  local s = m:string()\n"
+		"  local x, y, z = string.unpack('>I2I4d', s)\n"
+		"  return x + y + z\n"
+		"end\n"
+		"assert(viaBytes(msg) == viaString(msg))\n"));
+
+	const int Count = 10000;
+	double nativeTime = RunLoop(L, "viaBytes(msg)", Count);
+	double pureTime = RunLoop(L, "viaString(msg)", Count);
+	ASSERT_GE(nativeTime, 0.0);
+	ASSERT_GE(pureTime, 0.0);
+	std::printf("[ BENCH    ] header bytes: %.1f ms, string.unpack: %.1f ms\n",
+		nativeTime, pureTime);
+}
@@ -0,0 +1,205 @@
+#include <gtest/gtest.h>
+#include <cstdio>
+#include "json_lib.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+namespace {
+	// plain Lua implementation for comparison
+	const char *const PureLuaJson =
+		"local pure = {}\n"
+		"local escapes = { ['\"'] = '\\\\\"', ['\\\\'] = '\\\\\\\\',\n"
+		"  ['\\n'] = '\\\\n', ['\\r'] = '\\\\r', ['\\t'] = '\\\\t' }\n"
+		"local function enc(v, out)\n"
+		"  local t = type(v)\n"
+		"  if t == 'table' then\n"
+		"    if #v > 0 then\n"
+		"      out[#out + 1] = '['\n"
+		"      for i = 1, #v do\n"
+		"        if i > 1 then out[#out + 1] = ',' end\n"
+		"        enc(v[i], out)\n"
+		"      end\n"
+		"      out[#out + 1] = ']'\n"
+		"    else\n"
+		"      out[#out + 1] = '{'\n"
+		"      local first = true\n"
+		"      for k, x in pairs(v) do\n"
+		"        if not first then out[#out + 1] = ',' end\n"
+		"        first = false\n"
+		"        enc(tostring(k), out)\n"
+		"        out[#out + 1] = ':'\n"
+		"        enc(x, out)\n"
+		"      end\n"
+		"      out[#out + 1] = '}'\n"
+		"    end\n"
+		"  elseif t == 'string' then\n"
+		"    out[#out + 1] = '\"' .. v:gsub('[%c\"\\\\]', escapes) .. '\"'\n"
+		"  elseif t == 'number' or t == 'boolean' then\n"
+		"    out[#out + 1] = tostring(v)\n"
+		"  else\n"
+		"    out[#out + 1] = 'null'\n"
+		"  end\n"
+		"end\n"
+		"function pure.encode(v)\n"
+		"  local out = {}\n"
+		"  enc(v, out)\n"
+		"  return table.concat(out)\n"
+		"end\n"
+		"local unescapes = { b = '\\b', f = '\\f', n = '\\n', r = '\\r',\n"
+		"  t = '\\t', ['\"'] = '\"', ['\\\\'] = '\\\\', ['/'] = '/' }\n"
+		"local dec\n"
+		"local function space(s, i)\n"
+		"  return s:find('[^ \\t\\r\\n]', i) or #s + 1\n"
+		"end\n"
+		"function dec(s, i)\n"
+		"  i = space(s, i)\n"
+		"  local c = s:sub(i, i)\n"
+		"  if c == '{' then\n"
+		"    local t = {}\n"
+		"    i = space(s, i + 1)\n"
+		"    if s:sub(i, i) == '}' then return t, i + 1 end\n"
+		"    while true do\n"
+		"      local k\n"
+		"      k, i = dec(s, i)\n"
+		"      i = space(s, i) + 1\n"
+		"      t[k], i = dec(s, i)\n"
+		"      i = space(s, i)\n"
+		"      c = s:sub(i, i)\n"
+		"      i = i + 1\n"
+		"      if c == '}' then return t, i end\n"
+		"    end\n"
+		"  elseif c == '[' then\n"
+		"    local t = {}\n"
+		"    i = space(s, i + 1)\n"
+		"    if s:sub(i, i) == ']' then return t, i + 1 end\n"
+		"    while true do\n"
+		"      t[#t + 1], i = dec(s, i)\n"
+		"      i = space(s, i)\n"
+		"      c = s:sub(i, i)\n"
+		"      i = i + 1\n"
+		"      if c == ']' then return t, i end\n"
+		"    end\n"
+		"  elseif c == '\"' then\n"
+		"    local j = i + 1\n"
+		"    local parts = {}\n"
+		"    while true do\n"
+		"      local k = s:find('[\"\\\\]', j)\n"
+		"      parts[#parts + 1] = s:sub(j, k - 1)\n"
+		"      if s:sub(k, k) == '\"' then return table.concat(parts), k + 1 end\n"
+		"      parts[#parts + 1] = unescapes[s:sub(k + 1, k + 1)]\n"
+		"      j = k + 2\n"
+		"    end\n"
+		"  elseif s:sub(i, i + 3) == 'true' then return true, i + 4\n"
+		"  elseif s:sub(i, i + 4) == 'false' then return false, i + 5\n"
+		"  elseif s:sub(i, i + 3) == 'null' then return nil, i + 4\n"
+		"  else\n"
+		"    local num = s:match('^-?%d+%.?%d*[eE]?[-+]?%d*', i)\n"
+		"    return math.tointeger(tonumber(num)) or tonumber(num), i + #num\n"
+		"  end\n"
+		"end\n"
+		"function pure.decode(s)\n"
+		"  return (dec(s, 1))\n"
+		"end\n"
+		"return pure\n";
+
+}
+
+/*
+ * Types, integers and null
+ */
+TEST(JsonTest, RoundTrip)
+{
+	LuaPtr lua = make_lib_lua(LUA_JSONLIBNAME, luaopen_json);
+	ASSERT_NE(nullptr, lua);
+	ASSERT_EQ("", Run(lua.get(),
+		"local s = '{\"a\":[1,-2,3.5,1e2,true,false,null],\"b\":\"x\\\\ty\",'\n"
+		"  .. '\"c\":{},\"d\":9223372036854775807,\"e\":\"\\\\u00e9\\\\ud83d\\\\ude00\"}'\n"
+		"local v = json.decode(s)\n"
+		"assert(math.type(v.a[1]) == 'integer' and v.a[2] == -2)\n"
+		"assert(math.type(v.a[3]) == 'float' and v.a[3] == 3.5)\n"
+		"assert(math.type(v.a[4]) == 'float' and v.a[4] == 100)\n"
+		"assert(v.a[5] == true and v.a[6] == false and v.a[7] == json.null)\n"
+		"assert(#v.a == 7 and v.b == 'x\\ty' and next(v.c) == nil)\n"
+		"assert(v.d == math.maxinteger and math.type(v.d) == 'integer')\n"
+		"assert(v.e == '\\u{e9}\\u{1f600}')\n"
+		"local w = json.decode(json.encode(v))\n"
+		"assert(math.type(w.a[1]) == 'integer' and math.type(w.a[4]) == 'float')\n"
+		"assert(w.a[7] == json.null and w.d == v.d and w.e == v.e)\n"
+		"assert(json.encode({1, 2.0, 'a\"\\n\\1'}) == '[1,2.0,\"a\\\\\"\\\\n\\\\u0001\"]')\n"
+		"assert(json.encode(0.1) == '0.1' and json.encode(json.null) == 'null')\n"
+		"assert(json.encode({[1] = 1, [3] = 3}) == '{\"1\":1,\"3\":3}'\n"
+		"  or json.encode({[1] = 1, [3] = 3}) == '{\"3\":3,\"1\":1}')\n"
+		"assert(math.type(json.decode('123456789012345678901')) == 'float')\n"));
+}
+
+/*
+ * Depth limit and invalid input
+ */
+TEST(JsonTest, Errors)
+{
+	LuaPtr lua = make_lib_lua(LUA_JSONLIBNAME, luaopen_json);
+	ASSERT_NE(nullptr, lua);
+	ASSERT_EQ("", Run(lua.get(),
+		"local deep = string.rep('[', 10) .. string.rep(']', 10)\n"
+		"assert(json.decode(deep, 10))\n"
+		"local ok, msg = pcall(json.decode, deep, 9)\n"
+		"assert(not ok and msg:find('too deep'))\n"
+		"local t = {}\n"
+		"t.self = t\n"
+		"ok, msg = pcall(json.encode, t)\n"
+		"assert(not ok and msg:find('cyclic'))\n"
+		"ok, msg = pcall(json.encode, t, 1e8)\n"
+		"assert(not ok and msg:find('out of range'))\n"
+		"ok, msg = pcall(json.decode, string.rep('[', 900000), 1e8)\n"
+		"assert(not ok and msg:find('out of range'))\n"
+		"assert(json.encode({{}}, 1000) == '[{}]')\n"
+		"ok, msg = pcall(json.decode, string.rep('[', 900000), 1000)\n"
+		"assert(not ok and msg:find('too deep'))\n"
+		"ok, msg = pcall(json.encode, { f = print })\n"
+		"assert(not ok and msg:find('function'))\n"
+		"ok, msg = pcall(json.encode, 0 / 0)\n"
+		"assert(not ok and msg:find('nan'))\n"
+		"for _, s in ipairs({ '', '[1,]', '{\"a\" 1}', '01', '\"\\1\"',\n"
+		"    '[1] x', 'tru', '\"\\\\ud800\"', '1.', '{1:2}' }) do\n"
+		"  ok, msg = pcall(json.decode, s)\n"
+		"  assert(not ok and msg:find('json: '), s)\n"
+		"end\n"));
+}
+
+/*
+ * Compare with plain Lua code (result is only printed)
+ * Disabled in the unit run; --gtest_also_run_disabled_tests to run.
+ */
+TEST(JsonTest, DISABLED_Benchmark)
+{
+	LuaPtr lua = make_lib_lua(LUA_JSONLIBNAME, luaopen_json);
+	ASSERT_NE(nullptr, lua);
+	lua_State *L = lua.get();
+	ASSERT_EQ(LUA_OK, luaL_dostring(L, PureLuaJson));
+	lua_setglobal(L, "pure");
+	ASSERT_EQ("", Run(L,
+		"local items = {}\n"
+		"for i = 1, 200 do\n"
+		"  items[i] = { id = i, name = 'item \"' .. i .. '\"', price = i * 1.25,\n"
+		"    tags = { 'a', 'b', 'c' }, active = (i % 2 == 0) }\n"
+		"end\n"
+		"doc = { items = items, total = 200 }\n"
+		"text = json.encode(doc)\n"
+		"assert(#pure.decode(text).items == 200)\n"
+		"assert(pure.decode(pure.encode(doc)).total == 200)\n"));
+
+	const int Count = 50;
+	double nativeTime = RunLoop(L, "json.encode(doc)", Count);
+	double pureTime = RunLoop(L, "pure.encode(doc)", Count);
+	ASSERT_GE(nativeTime, 0.0);
+	ASSERT_GE(pureTime, 0.0);
+	std::printf("[ BENCH    ] encode json: %.1f ms, pure Lua: %.1f ms\n",
+		nativeTime, pureTime);
+	nativeTime = RunLoop(L, "json.decode(text)", Count);
+	pureTime = RunLoop(L, "pure.decode(text)", Count);
+	ASSERT_GE(nativeTime, 0.0);
+	ASSERT_GE(pureTime, 0.0);
+	std::printf("[ BENCH    ] decode json: %.1f ms, pure Lua: %.1f ms\n",
+		nativeTime, pureTime);
+}
@@ -0,0 +1,133 @@
+#include <gtest/gtest.h>
+#include <cstdio>
+#include "numarray_lib.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+/*
+ * Indexing, slicing and conversion
+ */
+TEST(NumArrayTest, Basic)
+{
+	LuaPtr lua = make_lib_lua(LUA_NUMARRAYLIBNAME, luaopen_numarray);
+	ASSERT_NE(nullptr, lua);
+	ASSERT_EQ("", Run(lua.get(),
+		"local a = numarray.new(4)\n"
+		"assert(#a == 4 and a:len() == 4 and a:type() == 'double')\n"
+		"assert(a[1] == 0 and math.type(a[1]) == 'float')\n"
+		"assert(a[0] == nil and a[5] == nil and a[1.5] == nil)\n"
+		"a[1] = 1; a[2] = 2; a[3] = 3; a[4.0] = 4\n"
+		"local t = a:totable()\n"
+		"assert(#t == 4 and t[4] == 4)\n"
+		"local s = a:slice(2, 3)\n"
+		"assert(#s == 2 and s[1] == 2 and s[2] == 3)\n"
+		"assert(#a:slice(-2) == 2 and a:slice(-2)[1] == 3)\n"
+		"assert(#a:slice(3, 2) == 0 and #a:slice(-100, 100) == 4)\n"
+		"s[1] = 100\n"
+		"assert(a[2] == 2)\n"
+		"local c = a:copy()\n"
+		"c[1] = -1\n"
+		"assert(a[1] == 1 and c[1] == -1)\n"
+		"local n = numarray.fromtable({1, 2, math.maxinteger}, 'int64')\n"
+		"assert(n:type() == 'int64' and math.type(n[1]) == 'integer')\n"
+		"assert(n[3] == math.maxinteger)\n"
+		"n[1] = 2.0\n"
+		"assert(math.type(n[1]) == 'integer')\n"
+		"assert(tostring(n):find('numarray<int64>[3]', 1, true))\n"
+		"assert(not pcall(function() n[1] = 1.5 end))\n"
+		"assert(not pcall(function() a[5] = 1 end))\n"
+		"assert(not pcall(function() a.x = 1 end))\n"
+		"assert(not pcall(numarray.fromtable, {1, 'x'}))\n"
+		"assert(not pcall(numarray.fromtable, {1.5}, 'int64'))\n"
+		"assert(not pcall(numarray.new, -1))\n"
+		"assert(not pcall(numarray.new, 1, 'float'))\n"
+		"assert(not pcall(numarray.new, math.maxinteger))\n"));
+
+	lua_State *L = lua.get();
+	int type = -1;
+	lua_Integer len = -1;
+	lua_pushinteger(L, 1);
+	ASSERT_EQ(nullptr, ToNumArray(L, -1, &type, &len));
+	lua_pop(L, 1);
+	auto p = static_cast<lua_Integer *>(PushNumArray(L, NumArrayInt64, 3));
+	ASSERT_NE(nullptr, p);
+	p[2] = 42;
+	ASSERT_EQ(p, ToNumArray(L, -1, &type, &len));
+	ASSERT_EQ(NumArrayInt64, type);
+	ASSERT_EQ(3, len);
+	lua_setglobal(L, "p");
+	ASSERT_EQ("", Run(L, "assert(p[1] == 0 and p[3] == 42)"));
+}
+
+/*
+ * sum, dot, scale and axpy
+ */
+TEST(NumArrayTest, Arithmetic)
+{
+	LuaPtr lua = make_lib_lua(LUA_NUMARRAYLIBNAME, luaopen_numarray);
+	ASSERT_NE(nullptr, lua);
+	ASSERT_EQ("", Run(lua.get(),
+		"local x = numarray.fromtable({1, 2, 3})\n"
+		"local y = numarray.fromtable({4, 5, 6})\n"
+		"local n = numarray.fromtable({1, 2, 3}, 'int64')\n"
+		"assert(x:sum() == 6 and math.type(x:sum()) == 'float')\n"
+		"assert(n:sum() == 6 and math.type(n:sum()) == 'integer')\n"
+		"assert(x:dot(y) == 32 and math.type(x:dot(y)) == 'float')\n"
+		"assert(n:dot(n) == 14 and math.type(n:dot(n)) == 'integer')\n"
+		"assert(n:dot(y) == 32 and x:dot(n) == 14)\n"
+		"assert(x:scale(2) == x and x[3] == 6)\n"
+		"y:axpy(0.5, x)\n"
+		"assert(y[1] == 5 and y[2] == 7 and y[3] == 9)\n"
+		"y:axpy(1, n)\n"
+		"assert(y[3] == 12)\n"
+		"n:scale(3):axpy(-1, n:copy())\n"
+		"assert(n[1] == 0 and n[3] == 0)\n"
+		"local big = numarray.fromtable({math.maxinteger, 1}, 'int64')\n"
+		"assert(big:sum() == math.mininteger)\n"
+		"assert(not pcall(n.scale, n, 0.5))\n"
+		"assert(not pcall(n.axpy, n, 1, x))\n"
+		"assert(not pcall(x.dot, x, numarray.new(2)))\n"
+		"assert(not pcall(x.axpy, x, 1, numarray.new(4)))\n"
+		"assert(not pcall(x.sum, {}))\n"
+		"assert(numarray.new(0):sum() == 0)\n"));
+}
+
+/*
+ * Compare with plain Lua tables (result is only printed)
+ * Disabled in the unit run; --gtest_also_run_disabled_tests to run.
+ */
+TEST(NumArrayTest, DISABLED_Benchmark)
+{
+	LuaPtr lua = make_lib_lua(LUA_NUMARRAYLIBNAME, luaopen_numarray);
+	ASSERT_NE(nullptr, lua);
+	lua_State *L = lua.get();
+	ASSERT_EQ("", Run(L,
+		"local n = 100000\n"
+		"tx, ty = {}, {}\n"
+		"for i = 1, n do tx[i] = i * 0.5; ty[i] = i * 0.25 end\n"
+		"ax, ay = numarray.fromtable(tx), numarray.fromtable(ty)\n"
+		"function tdot(x, y)\n"
+		"  local s = 0\n"
+		"  for i = 1, #x do s = s + x[i] * y[i] end\n"
+		"  return s\n"
+		"end\n"
+		"function taxpy(a, x, y)\n"
+		"  for i = 1, #x do y[i] = y[i] + a * x[i] end\n"
+		"end\n"
+		"assert(tdot(tx, ty) == ax:dot(ay))\n"));
+
+	const int Count = 20;
+	double nativeTime = RunLoop(L, "ax:dot(ay)", Count);
+	double pureTime = RunLoop(L, "tdot(tx, ty)", Count);
+	ASSERT_GE(nativeTime, 0.0);
+	ASSERT_GE(pureTime, 0.0);
+	std::printf("[ BENCH    ] dot numarray: %.1f ms, table: %.1f ms\n",
+		nativeTime, pureTime);
+	nativeTime = RunLoop(L, "ay:axpy(0.5, ax)", Count);
+	pureTime = RunLoop(L, "taxpy(0.5, tx, ty)", Count);
+	ASSERT_GE(nativeTime, 0.0);
+	ASSERT_GE(pureTime, 0.0);
+	std::printf("[ BENCH    ] axpy numarray: %.1f ms, table: %.1f ms\n",
+		nativeTime, pureTime);
+}
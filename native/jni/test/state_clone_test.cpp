@@ -0,0 +1,95 @@
+#include <gtest/gtest.h>
+#include "state_clone.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+namespace {
+	inline LuaPtr make_lua()
+	{
+		return LuaPtr(luaL_newstate());
+	}
+
+	void OpenLibs(lua_State *L)
+	{
+		luaL_requiref(L, "_G", luaopen_base, 1);
+		luaL_requiref(L, LUA_LOADLIBNAME, luaopen_package, 1);
+		luaL_requiref(L, LUA_STRLIBNAME, luaopen_string, 1);
+		luaL_requiref(L, LUA_MATHLIBNAME, luaopen_math, 1);
+		lua_pop(L, 4);
+	}
+
+	int CounterClosure(lua_State *L)
+	{
+		lua_Integer n = lua_tointeger(L, lua_upvalueindex(1)) + 1;
+		lua_pushinteger(L, n);
+		lua_copy(L, -1, lua_upvalueindex(1));
+		return 1;
+	}
+}
+
+/*
+ * Globals, tables, closures and upvalues
+ */
+TEST(StateCloneTest, CloneGlobals)
+{
+	LuaPtr src = make_lua();
+	LuaPtr dst = make_lua();
+	ASSERT_NE(nullptr, src);
+	ASSERT_NE(nullptr, dst);
+	// io has userdata (FILE *)
+	OpenLibs(src.get());
+
+	lua_pushinteger(src.get(), 10);
+	lua_pushcclosure(src.get(), CounterClosure, 1);
+	lua_setglobal(src.get(), "counter");
+
+	ASSERT_EQ(LUA_OK, luaL_dostring(src.get(),
+		"data = { 1, 2.5, \"three\", sub = { x = true } }\n"
+		"data.self = data\n"
+		"alias = data.sub\n"
+		"setmetatable(data.sub, { __index = function() return 42 end })\n"
+		"local count = 0\n"
+		"function inc() count = count + 1 return count end\n"
+		"function get() return count end\n"
+		"inc()\n"
+		"package.loaded.mylib = { name = \"mylib\" }\n"));
+
+	ASSERT_EQ(LUA_OK, CloneState(src.get(), dst.get()));
+	ASSERT_EQ(0, lua_gettop(dst.get()));
+	ASSERT_EQ(0, lua_gettop(src.get()));
+
+	ASSERT_EQ(LUA_OK, luaL_dostring(dst.get(),
+		"assert(data[1] == 1 and math.type(data[1]) == \"integer\")\n"
+		"assert(data[2] == 2.5 and data[3] == \"three\")\n"
+		"assert(data.self == data and alias == data.sub)\n"
+		"assert(data.sub.x == true and data.sub.missing == 42)\n"
+		"assert(get() == 1)\n"
+		"assert(inc() == 2 and get() == 2)\n"
+		"assert(counter() == 11)\n"
+		"assert(require(\"mylib\").name == \"mylib\")\n"
+		"assert((\"abc\"):upper() == \"ABC\")\n"
+		"assert(string.format(\"%d\", 5) == \"5\")\n"));
+
+	// src is not changed by dst
+	ASSERT_EQ(LUA_OK, luaL_dostring(src.get(),
+		"assert(get() == 1 and counter() == 11)\n"));
+}
+
+/*
+ * Userdata cannot be cloned
+ */
+TEST(StateCloneTest, CloneUserdata)
+{
+	LuaPtr src = make_lua();
+	LuaPtr dst = make_lua();
+	ASSERT_NE(nullptr, src);
+	ASSERT_NE(nullptr, dst);
+
+	lua_newuserdata(src.get(), 16);
+	lua_setglobal(src.get(), "ud");
+
+	ASSERT_EQ(LUA_ERRRUN, CloneState(src.get(), dst.get()));
+	ASSERT_STREQ("clone: cannot copy userdata", lua_tostring(dst.get(), -1));
+	ASSERT_EQ(0, lua_gettop(src.get()));
+}
@@ -0,0 +1,120 @@
+#include <gtest/gtest.h>
+#include <cstdlib>
+#include "strbuf_lib.h"
+#include "test_util.h"
+
+using namespace testutil;
+
+namespace {
+	// malloc with a limit
+	struct Counter {
+		size_t used;
+		size_t limit;
+	};
+
+	void *CountAlloc(void *ud, void *ptr, size_t osize, size_t nsize)
+	{
+		auto counter = static_cast<Counter *>(ud);
+		size_t oldsize = (ptr != nullptr) ? osize : 0;
+		if (nsize == 0) {
+			counter->used -= oldsize;
+			std::free(ptr);
+			return nullptr;
+		}
+		if (counter->used - oldsize + nsize > counter->limit) {
+			return nullptr;
+		}
+		void *p = std::realloc(ptr, nsize);
+		if (p != nullptr) {
+			counter->used = counter->used - oldsize + nsize;
+		}
+		return p;
+	}
+
+	lua_State *NewState(Counter *counter)
+	{
+		lua_State *L = lua_newstate(CountAlloc, counter);
+		if (L == nullptr) {
+			return nullptr;
+		}
+		luaL_openlibs(L);
+		luaL_requiref(L, LUA_STRBUFLIBNAME, luaopen_strbuf, 1);
+		lua_pop(L, 1);
+		return L;
+	}
+}
+
+/*
+ * append, format, reset and tostring
+ */
+TEST(StrBufTest, Basic)
+{
+	Counter counter = { 0, static_cast<size_t>(-1) };
+	lua_State *L = NewState(&counter);
+	ASSERT_NE(nullptr, L);
+	ASSERT_EQ("", Run(L,
+		"local b = strbuf.new()\n"
+		"assert(#b == 0 and tostring(b) == '')\n"
+		"b:append('a', 1, 2.5):append('\\0z')\n"
+		"assert(b:len() == 7 and b:tostring() == 'a12.5\\0z')\n"
+		"b:reset():format('%d|%5.1f|%s|%-3s|%x|%%|%c', 42, 3.14159, 'str', 'x', 255, 65)\n"
+		"assert(tostring(b) == string.format('%d|%5.1f|%s|%-3s|%x|%%|%c',\n"
+		"  42, 3.14159, 'str', 'x', 255, 65))\n"
+		"b:reset()\n"
+		"for i = 1, 10000 do b:append(i, ',') end\n"
+		"local t = {}\n"
+		"for i = 1, 10000 do t[i] = i .. ',' end\n"
+		"assert(tostring(b) == table.concat(t))\n"
+		"b:reset():append('xy'):format('%s%s', b, b)\n"
+		"assert(tostring(b) == 'xyxyxyxy')\n"
+		"assert(not pcall(b.append, b, {}))\n"
+		"assert(not pcall(b.format, b, '%d'))\n"
+		"assert(not pcall(b.format, b, '%q', 'x'))\n"
+		"assert(not pcall(b.format, b, '%'))\n"
+		"assert(not pcall(b.len, {}))\n"));
+
+	size_t len = 0;
+	lua_pushinteger(L, 1);
+	ASSERT_EQ(nullptr, ToStrBuf(L, -1, &len));
+	lua_pop(L, 1);
+	ASSERT_EQ(LUA_OK, luaL_dostring(L, "return strbuf.new():append('abc')"));
+	const char *data = ToStrBuf(L, -1, &len);
+	ASSERT_NE(nullptr, data);
+	ASSERT_EQ(std::string("abc"), std::string(data, len));
+	lua_close(L);
+	ASSERT_EQ(0u, counter.used);
+}
+
+/*
+ * Buffer memory is a Lua object (counted by the allocator and GC)
+ */
+TEST(StrBufTest, MemoryLimit)
+{
+	Counter counter = { 0, static_cast<size_t>(-1) };
+	lua_State *L = NewState(&counter);
+	ASSERT_NE(nullptr, L);
+	lua_gc(L, LUA_GCCOLLECT, 0);
+	size_t base = counter.used;
+	ASSERT_EQ(LUA_OK, luaL_dostring(L, "b = strbuf.new(1024 * 1024)"));
+	ASSERT_GE(counter.used, base + 1024 * 1024);
+	// GC pacing sees it
+	ASSERT_GE(lua_gc(L, LUA_GCCOUNT, 0), 1024);
+
+	// garbage buffers are freed by the emergency GC (no finalizer)
+	counter.limit = counter.used + 512 * 1024;
+	ASSERT_EQ("", Run(L,
+		"b = nil\n"
+		"local c = strbuf.new(1024 * 1024)\n"
+		"c:reset()\n"
+		"c = nil\n"));
+	counter.limit = counter.used + 64 * 1024;
+	ASSERT_EQ(LUA_OK, luaL_loadstring(L,
+		"local c = strbuf.new()\n"
+		"while true do c:append(string.rep('x', 1000)) end\n"));
+	ASSERT_EQ(LUA_ERRMEM, lua_pcall(L, 0, 0, 0));
+	lua_pop(L, 1);
+	// still usable
+	ASSERT_EQ("", Run(L, "assert(#strbuf.new():append('ok') == 2)"));
+	lua_close(L);
+	ASSERT_EQ(0u, counter.used);
+}
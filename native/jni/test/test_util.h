@@ -0,0 +1,61 @@
+#pragma once
+
+#include <lua.h>
+#include <lualib.h>
+#include <lauxlib.h>
+#include <chrono>
+#include <cstdio>
+#include <memory>
+#include <string>
+
+/*
+ * Helpers shared by native tests.
+ */
+namespace testutil {
+
+	struct LuaDeleter {
+		void operator()(lua_State *L)
+		{
+			lua_close(L);
+		}
+	};
+	using LuaPtr = std::unique_ptr<lua_State, LuaDeleter>;
+
+	// standard libraries and a library as global name
+	inline LuaPtr make_lib_lua(const char *name, lua_CFunction open)
+	{
+		LuaPtr lua(luaL_newstate());
+		lua_State *L = lua.get();
+		luaL_openlibs(L);
+		luaL_requiref(L, name, open, 1);
+		lua_pop(L, 1);
+		return lua;
+	}
+
+	// run code and return error message or ""
+	inline std::string Run(lua_State *L, const char *code)
+	{
+		if (luaL_dostring(L, code) == LUA_OK) {
+			return "";
+		}
+		std::string msg = lua_tostring(L, -1);
+		lua_pop(L, 1);
+		return msg;
+	}
+
+	// run code count times and return elapsed time (-1 on error)
+	// for DISABLED_ benchmarks (--gtest_also_run_disabled_tests)
+	inline double RunLoop(lua_State *L, const char *code, int count)
+	{
+		char buf[128];
+		std::snprintf(buf, sizeof(buf), "for i = 1, %d do %s end", count, code);
+		auto start = std::chrono::steady_clock::now();
+		if (luaL_dostring(L, buf) != LUA_OK) {
+			lua_pop(L, 1);
+			return -1.0;
+		}
+		auto end = std::chrono::steady_clock::now();
+		return std::chrono::duration<double, std::milli>(end - start).count();
+	}
+
+}